@@ -0,0 +1,32 @@
+package com.example.auth.benchmark;
+
+import com.example.auth.security.oauth2.wechat.WechatMapOAuth2AccessTokenResponseConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 微信token接口返回转换为{@link OAuth2AccessTokenResponse}，每次登陆一次
+ * <p>
+ * Created by berg on 2023/4/13.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AccessTokenResponseConverterBenchmark {
+
+    private final WechatMapOAuth2AccessTokenResponseConverter converter = new WechatMapOAuth2AccessTokenResponseConverter();
+    private final Map<String, String> tokenResponseParameters = BenchmarkFixtures.tokenResponseParameters();
+
+    @Benchmark
+    public OAuth2AccessTokenResponse convert() {
+        return this.converter.convert(this.tokenResponseParameters);
+    }
+}
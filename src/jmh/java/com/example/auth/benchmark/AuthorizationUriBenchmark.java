@@ -0,0 +1,76 @@
+package com.example.auth.benchmark;
+
+import com.example.auth.security.oauth2.wechat.WechatAuthorizationUriTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 生成微信授权链接：
+ * <ul>
+ *     <li>template: 预编译模板，只追加编码后的redirect_uri和state</li>
+ *     <li>rewrite: 之前的做法，build一次取registrationId，再build时用正则把client_id替换成appid、拼接#wechat_redirect、URI.create</li>
+ *     <li>baseline: spring默认的builder，不做微信定制</li>
+ * </ul>
+ * endpoint 分别是网站应用扫码登陆和公众号网页授权
+ * <p>
+ * Created by berg on 2023/4/14.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AuthorizationUriBenchmark {
+
+    @Param({"qrconnect", "oauth2/authorize"})
+    public String endpoint;
+
+    private ClientRegistration clientRegistration;
+    private WechatAuthorizationUriTemplate template;
+
+    @Setup
+    public void setUp() {
+        this.clientRegistration = ClientRegistration.withClientRegistration(BenchmarkFixtures.clientRegistration())
+                .authorizationUri("https://open.weixin.qq.com/connect/" + this.endpoint)
+                .build();
+        this.template = WechatAuthorizationUriTemplate.compile(this.clientRegistration);
+    }
+
+    @Benchmark
+    public OAuth2AuthorizationRequest template() {
+        return this.template.authorizationRequest(BenchmarkFixtures.BASE_URL, BenchmarkFixtures.FRONTEND_REDIRECT_URL);
+    }
+
+    @Benchmark
+    public OAuth2AuthorizationRequest rewrite() {
+        OAuth2AuthorizationRequest.Builder builder = BenchmarkFixtures.authorizationRequestBuilder(this.clientRegistration);
+        String registrationId = builder.build()
+                .getAttributes()
+                .get(OAuth2ParameterNames.REGISTRATION_ID)
+                .toString();
+        builder.state(BenchmarkFixtures.FRONTEND_REDIRECT_URL);
+        if ("wechat".equals(registrationId)) {
+            builder.authorizationRequestUri(uriBuilder -> URI.create(uriBuilder.build().toString()
+                    .replaceAll("client_id=", "appid=")
+                    .concat("#wechat_redirect")));
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public OAuth2AuthorizationRequest baseline() {
+        return BenchmarkFixtures.authorizationRequestBuilder(this.clientRegistration)
+                .state(BenchmarkFixtures.FRONTEND_REDIRECT_URL)
+                .build();
+    }
+}
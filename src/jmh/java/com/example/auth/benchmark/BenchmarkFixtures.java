@@ -0,0 +1,130 @@
+package com.example.auth.benchmark;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 基准测试用的数据，和 application.yaml 中的微信配置以及微信接口的真实返回保持一致
+ * <p>
+ * Created by berg on 2023/4/13.
+ */
+final class BenchmarkFixtures {
+
+    static final String BASE_URL = "http://localhost:8080";
+    static final String REDIRECT_URI = BASE_URL + "/login/oauth2/code/wechat";
+    static final String FRONTEND_REDIRECT_URL = "http://localhost:8080/wx/h5/userinfo";
+
+    private BenchmarkFixtures() {
+    }
+
+    static ClientRegistration clientRegistration() {
+        return ClientRegistration.withRegistrationId("wechat")
+                .clientId("wx82882b49d4424d99")
+                .clientSecret("3a4b1c6e9d0f2a7b8c5d6e1f0a9b8c7d")
+                .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+                .redirectUri("{baseUrl}/login/oauth2/code/{registrationId}")
+                .scope("snsapi_login")
+                .authorizationUri("https://open.weixin.qq.com/connect/qrconnect")
+                .tokenUri("https://api.weixin.qq.com/sns/oauth2/access_token")
+                .userInfoUri("https://api.weixin.qq.com/sns/userinfo")
+                .build();
+    }
+
+    /**
+     * /sns/oauth2/access_token 的返回
+     */
+    static Map<String, String> tokenResponseParameters() {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("access_token", "ACCESS_TOKEN_68_xY3mGqPnN0hQ4V1cJ2lT6sZ8bK5rW9uE7aD0fH3jL1oI4pM6nB2vC8xZ5qA7wS9eR");
+        parameters.put("expires_in", "7200");
+        parameters.put("refresh_token", "REFRESH_TOKEN_68_aQ2wS4eD6rF8tG0yH1uJ3iK5oL7pZ9xC2vB4nM6mQ8wE0rT1yU3iO5pA7sD9fG");
+        parameters.put("openid", "o6_bmjrPTlm6_2sgVt7hMZOPfL2M");
+        parameters.put("scope", "snsapi_login");
+        parameters.put("unionid", "o6_bmasdasdsad6_2sgVt7hMZOPfL");
+        return parameters;
+    }
+
+    /**
+     * /sns/oauth2/access_token 返回的响应体，微信的content-type是text/plain
+     */
+    static byte[] tokenResponseBody() {
+        return ("{\"access_token\":\"ACCESS_TOKEN_68_xY3mGqPnN0hQ4V1cJ2lT6sZ8bK5rW9uE7aD0fH3jL1oI4pM6nB2vC8xZ5qA7wS9eR\","
+                + "\"expires_in\":7200,"
+                + "\"refresh_token\":\"REFRESH_TOKEN_68_aQ2wS4eD6rF8tG0yH1uJ3iK5oL7pZ9xC2vB4nM6mQ8wE0rT1yU3iO5pA7sD9fG\","
+                + "\"openid\":\"o6_bmjrPTlm6_2sgVt7hMZOPfL2M\",\"scope\":\"snsapi_login\","
+                + "\"unionid\":\"o6_bmasdasdsad6_2sgVt7hMZOPfL\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * /sns/userinfo 返回的响应体
+     */
+    static byte[] userInfoBody() {
+        return ("{\"openid\":\"o6_bmjrPTlm6_2sgVt7hMZOPfL2M\",\"nickname\":\"Band\",\"sex\":1,\"language\":\"zh_CN\","
+                + "\"city\":\"Shenzhen\",\"province\":\"Guangdong\",\"country\":\"CN\","
+                + "\"headimgurl\":\"https://thirdwx.qlogo.cn/mmopen/g3MonUZtNHkdmzicIlibx6iaFqAc56vxLSUfpb6n5WKSYVY0ChQKkiaJSgQ1dZuTOgvLLrhJbERQQ4eMsv84eavHiaiceqxibJxCfHe/0\","
+                + "\"privilege\":[\"PRIVILEGE1\"],\"unionid\":\"o6_bmasdasdsad6_2sgVt7hMZOPfL\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 默认的 DefaultOAuth2AuthorizationRequestResolver 交给customizer之前的builder
+     */
+    static OAuth2AuthorizationRequest.Builder authorizationRequestBuilder(ClientRegistration clientRegistration) {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        attributes.put(OAuth2ParameterNames.REGISTRATION_ID, clientRegistration.getRegistrationId());
+        return OAuth2AuthorizationRequest.authorizationCode()
+                .clientId(clientRegistration.getClientId())
+                .authorizationUri(clientRegistration.getProviderDetails().getAuthorizationUri())
+                .redirectUri(REDIRECT_URI)
+                .scopes(clientRegistration.getScopes())
+                .state("Cv5XpV0nU6lQ2mN8bR4tY1wE3zA7sD9fG0hJ2kL4oP6=")
+                .attributes(attributes);
+    }
+
+    static OAuth2AuthorizationCodeGrantRequest authorizationCodeGrantRequest(ClientRegistration clientRegistration) {
+        OAuth2AuthorizationRequest authorizationRequest = authorizationRequestBuilder(clientRegistration)
+                .state(FRONTEND_REDIRECT_URL)
+                .build();
+        OAuth2AuthorizationResponse authorizationResponse = OAuth2AuthorizationResponse
+                .success("061Mo7Ga1Fr2GE0jZsGa1HDBXJ3Mo7GP")
+                .redirectUri(REDIRECT_URI)
+                .state(FRONTEND_REDIRECT_URL)
+                .build();
+        return new OAuth2AuthorizationCodeGrantRequest(clientRegistration,
+                new OAuth2AuthorizationExchange(authorizationRequest, authorizationResponse));
+    }
+
+    /**
+     * 登陆成功之后会话中的 SPRING_SECURITY_CONTEXT
+     */
+    static SecurityContextImpl securityContext() {
+        WechatOAuth2User user = new WechatOAuth2User();
+        user.setOpenid("o6_bmjrPTlm6_2sgVt7hMZOPfL2M");
+        user.setNickname("Band");
+        user.setSex(1);
+        user.setProvince("Guangdong");
+        user.setCity("Shenzhen");
+        user.setCountry("CN");
+        user.setHeadimgurl("https://thirdwx.qlogo.cn/mmopen/g3MonUZtNHkdmzicIlibx6iaFqAc56vxLSUfpb6n5WKSYVY0ChQKkiaJSgQ1dZuTOgvLLrhJbERQQ4eMsv84eavHiaiceqxibJxCfHe/0");
+        user.setPrivilege(Collections.singletonList("PRIVILEGE1"));
+        user.setUnionid("o6_bmasdasdsad6_2sgVt7hMZOPfL");
+        OAuth2AuthenticationToken authentication = new OAuth2AuthenticationToken(user,
+                AuthorityUtils.createAuthorityList("SCOPE_snsapi_login"), "wechat");
+        authentication.setDetails(new WebAuthenticationDetails("127.0.0.1", "6b3b5d4e-4b0a-4f1c-9b61-5d8b2f7c0e11"));
+        return new SecurityContextImpl(authentication);
+    }
+}
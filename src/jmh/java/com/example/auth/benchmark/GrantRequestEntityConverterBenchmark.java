@@ -0,0 +1,34 @@
+package com.example.auth.benchmark;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2AuthorizationCodeGrantRequestEntityConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.RequestEntity;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用授权码换token的请求(/sns/oauth2/access_token?appid=&secret=&code=)，每次登陆一次
+ * <p>
+ * Created by berg on 2023/4/13.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GrantRequestEntityConverterBenchmark {
+
+    private final WechatOAuth2AuthorizationCodeGrantRequestEntityConverter converter =
+            new WechatOAuth2AuthorizationCodeGrantRequestEntityConverter();
+    private final OAuth2AuthorizationCodeGrantRequest grantRequest =
+            BenchmarkFixtures.authorizationCodeGrantRequest(BenchmarkFixtures.clientRegistration());
+
+    @Benchmark
+    public RequestEntity<?> convert() {
+        return this.converter.convert(this.grantRequest);
+    }
+}
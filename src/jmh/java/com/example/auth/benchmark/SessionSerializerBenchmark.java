@@ -0,0 +1,57 @@
+package com.example.auth.benchmark;
+
+import com.example.auth.redis.BinarySessionRedisSerializer;
+import com.example.auth.redis.RedisConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RedisConfig}会话序列化器对登陆之后的 SPRING_SECURITY_CONTEXT 的读写，每个请求至少读一次
+ * <p>
+ * Created by berg on 2023/4/13.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SessionSerializerBenchmark {
+
+    @Param({"json", "binary"})
+    public String serializer;
+
+    private RedisSerializer<Object> redisSerializer;
+    private SecurityContextImpl securityContext;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() {
+        RedisSerializer<Object> json = RedisConfig.jsonRedisSerializer();
+        this.redisSerializer = "json".equals(this.serializer) ? json : new BinarySessionRedisSerializer(json);
+        this.securityContext = BenchmarkFixtures.securityContext();
+        this.serialized = this.redisSerializer.serialize(this.securityContext);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return this.redisSerializer.serialize(this.securityContext);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return this.redisSerializer.deserialize(this.serialized);
+    }
+
+    @Benchmark
+    public Object roundTrip() {
+        return this.redisSerializer.deserialize(this.redisSerializer.serialize(this.securityContext));
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.auth.benchmark;
+
+import com.example.auth.security.oauth2.wechat.WechatAccessTokenResponseHttpMessageConverter;
+import com.example.auth.security.oauth2.wechat.WechatMapOAuth2AccessTokenResponseConverter;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2UserHttpMessageConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.beans.BeanUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.security.oauth2.core.http.converter.OAuth2AccessTokenResponseHttpMessageConverter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 微信token和用户信息响应体的解析，每次登陆各一次。
+ * legacy* 是改成流式解析之前的做法：token先读成Map再转字符串Map再转换，用户信息用ObjectMapper绑定再复制一份
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WechatResponseParsingBenchmark {
+
+    private final byte[] tokenResponseBody = BenchmarkFixtures.tokenResponseBody();
+    private final byte[] userInfoBody = BenchmarkFixtures.userInfoBody();
+
+    private final WechatAccessTokenResponseHttpMessageConverter tokenResponseConverter = new WechatAccessTokenResponseHttpMessageConverter();
+    private final WechatOAuth2UserHttpMessageConverter userConverter = new WechatOAuth2UserHttpMessageConverter();
+
+    private final OAuth2AccessTokenResponseHttpMessageConverter legacyTokenResponseConverter = new OAuth2AccessTokenResponseHttpMessageConverter();
+    private final MappingJackson2HttpMessageConverter legacyUserConverter = new MappingJackson2HttpMessageConverter();
+
+    public WechatResponseParsingBenchmark() {
+        this.legacyTokenResponseConverter.setSupportedMediaTypes(Arrays.asList(MediaType.APPLICATION_JSON,
+                MediaType.TEXT_PLAIN, new MediaType("application", "*+json")));
+        this.legacyTokenResponseConverter.setTokenResponseConverter(new WechatMapOAuth2AccessTokenResponseConverter());
+        this.legacyUserConverter.setSupportedMediaTypes(Arrays.asList(MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN));
+    }
+
+    @Benchmark
+    public OAuth2AccessTokenResponse tokenResponse() throws IOException {
+        return this.tokenResponseConverter.read(OAuth2AccessTokenResponse.class, new BodyInputMessage(this.tokenResponseBody));
+    }
+
+    @Benchmark
+    public OAuth2AccessTokenResponse legacyTokenResponse() throws IOException {
+        return this.legacyTokenResponseConverter.read(OAuth2AccessTokenResponse.class, new BodyInputMessage(this.tokenResponseBody));
+    }
+
+    @Benchmark
+    public WechatOAuth2User userInfo() throws IOException {
+        return this.userConverter.read(WechatOAuth2User.class, new BodyInputMessage(this.userInfoBody));
+    }
+
+    @Benchmark
+    public WechatOAuth2User legacyUserInfo() throws IOException {
+        WechatOAuth2User response = (WechatOAuth2User) this.legacyUserConverter
+                .read(WechatOAuth2User.class, null, new BodyInputMessage(this.userInfoBody));
+        WechatOAuth2User user = new WechatOAuth2User();
+        BeanUtils.copyProperties(response, user);
+        return user;
+    }
+
+    private static final class BodyInputMessage implements HttpInputMessage {
+
+        private static final HttpHeaders HEADERS = new HttpHeaders();
+
+        static {
+            HEADERS.setContentType(MediaType.TEXT_PLAIN);
+        }
+
+        private final byte[] body;
+
+        private BodyInputMessage(byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return new ByteArrayInputStream(this.body);
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return HEADERS;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.auth.cache;
+
+import com.example.auth.redis.WechatOAuth2UserRedisSerializer;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.lang.NonNull;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * 基于redis的{@link WechatUserProfileStore}，复用 application.yaml 中的redis连接。
+ * <p>
+ * 用户信息用{@link WechatOAuth2UserRedisSerializer}序列化后分别存在 {@code 前缀+openid} 和 {@code 前缀+unionid:unionid} 下；
+ * 写入和删除之后通过pub/sub广播 {@code 节点id\nopenid\nunionid}，其它节点收到后丢弃本地缓存，下次从redis读取。
+ * redis不可用时只打日志，登陆退化为直接请求微信
+ * <p>
+ * Created by berg on 2023/4/12.
+ */
+@Slf4j
+public class RedisWechatUserProfileStore implements WechatUserProfileStore, MessageListener, MeterBinder {
+
+    private static final String UNIONID_SEGMENT = "unionid:";
+
+    private final RedisTemplate<String, WechatOAuth2User> redisTemplate;
+    private final RedisSerializer<WechatOAuth2User> valueSerializer = new WechatOAuth2UserRedisSerializer();
+    private final String keyPrefix;
+    private final byte[] channel;
+    private final Expiration expiration;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final List<BiConsumer<String, String>> invalidationListeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Instantiates a new Redis wechat user profile store.
+     *
+     * @param connectionFactory the connection factory
+     * @param keyPrefix         key前缀
+     * @param channel           失效通知的频道
+     * @param ttl               过期时间
+     */
+    public RedisWechatUserProfileStore(RedisConnectionFactory connectionFactory, String keyPrefix, String channel,
+                                       Duration ttl) {
+        RedisTemplate<String, WechatOAuth2User> redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.setKeySerializer(RedisSerializer.string());
+        redisTemplate.setValueSerializer(this.valueSerializer);
+        redisTemplate.afterPropertiesSet();
+        this.redisTemplate = redisTemplate;
+        this.keyPrefix = keyPrefix;
+        this.channel = channel.getBytes(StandardCharsets.UTF_8);
+        this.expiration = Expiration.from(ttl);
+    }
+
+    @Override
+    public WechatOAuth2User get(String openid) {
+        return read(this.keyPrefix + openid);
+    }
+
+    @Override
+    public WechatOAuth2User getByUnionid(String unionid) {
+        return read(this.keyPrefix + UNIONID_SEGMENT + unionid);
+    }
+
+    @Override
+    public void save(WechatOAuth2User user) {
+        byte[] value = this.valueSerializer.serialize(user);
+        byte[] message = message(user.getOpenid(), user.getUnionid());
+        execute(connection -> {
+            // 一次往返写入两个key并广播
+            connection.stringCommands().set(key(user.getOpenid()), value, this.expiration,
+                    RedisStringCommands.SetOption.upsert());
+            if (StringUtils.hasText(user.getUnionid())) {
+                connection.stringCommands().set(key(UNIONID_SEGMENT + user.getUnionid()), value, this.expiration,
+                        RedisStringCommands.SetOption.upsert());
+            }
+            connection.publish(this.channel, message);
+            return null;
+        });
+    }
+
+    @Override
+    public void evict(String openid, String unionid) {
+        byte[] message = message(openid, unionid);
+        execute(connection -> {
+            connection.keyCommands().del(key(openid));
+            if (StringUtils.hasText(unionid)) {
+                connection.keyCommands().del(key(UNIONID_SEGMENT + unionid));
+            }
+            connection.publish(this.channel, message);
+            return null;
+        });
+    }
+
+    @Override
+    public void addInvalidationListener(BiConsumer<String, String> listener) {
+        this.invalidationListeners.add(listener);
+    }
+
+    @Override
+    public void onMessage(@NonNull Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split("\n", -1);
+        if (parts.length != 3 || this.nodeId.equals(parts[0])) {
+            // 自己发出的通知，本地缓存已经是最新的
+            return;
+        }
+        String unionid = parts[2].isEmpty() ? null : parts[2];
+        for (BiConsumer<String, String> listener : this.invalidationListeners) {
+            listener.accept(parts[1], unionid);
+        }
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        FunctionCounter.builder("wechat.userinfo.redis", this.hits, AtomicLong::get)
+                .tag("result", "hit").register(registry);
+        FunctionCounter.builder("wechat.userinfo.redis", this.misses, AtomicLong::get)
+                .tag("result", "miss").register(registry);
+        FunctionCounter.builder("wechat.userinfo.redis", this.errors, AtomicLong::get)
+                .tag("result", "error").register(registry);
+    }
+
+    private WechatOAuth2User read(String key) {
+        try {
+            WechatOAuth2User user = this.redisTemplate.opsForValue().get(key);
+            (user != null ? this.hits : this.misses).incrementAndGet();
+            return user;
+        } catch (RuntimeException ex) {
+            this.errors.incrementAndGet();
+            log.warn("Failed to read wechat userinfo from redis, key {}", key, ex);
+            return null;
+        }
+    }
+
+    private void execute(RedisCallback<Object> callback) {
+        try {
+            this.redisTemplate.execute(callback, false, true);
+        } catch (RuntimeException ex) {
+            this.errors.incrementAndGet();
+            log.warn("Failed to write wechat userinfo to redis", ex);
+        }
+    }
+
+    private byte[] key(String suffix) {
+        return (this.keyPrefix + suffix).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] message(String openid, String unionid) {
+        return (this.nodeId + "\n" + openid + "\n" + (unionid != null ? unionid : ""))
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
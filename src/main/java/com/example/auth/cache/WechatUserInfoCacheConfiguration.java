@@ -0,0 +1,87 @@
+package com.example.auth.cache;
+
+import com.example.auth.quota.WechatQuota;
+import com.example.auth.resilience.WechatResilience;
+import com.example.auth.security.oauth2.wechat.CachingWechatOAuth2UserService;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2UserService;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+
+/**
+ * 微信用户信息本地缓存，{@code wechat.userinfo-cache.enabled=true} 时生效，
+ * 命中率等指标以 {@code cache.*{cache=wechat.userinfo}} 暴露在actuator的metrics下。
+ * 多节点部署时再开启 {@code wechat.userinfo-cache.redis.enabled}，在本地缓存后面加一级redis
+ * <p>
+ * Created by berg on 2023/4/12.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatUserInfoCacheProperties.class)
+@ConditionalOnProperty(prefix = "wechat.userinfo-cache", name = "enabled", havingValue = "true")
+public class WechatUserInfoCacheConfiguration {
+
+    @Bean
+    public CachingWechatOAuth2UserService cachingWechatOAuth2UserService(ClientHttpRequestFactory wechatClientHttpRequestFactory,
+                                                                         WechatUserInfoCacheProperties properties,
+                                                                         ObjectProvider<WechatUserProfileStore> profileStore,
+                                                                         ObjectProvider<WechatResilience> wechatResilience,
+                                                                         ObjectProvider<WechatQuota> wechatQuota) {
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = new WechatOAuth2UserService(wechatClientHttpRequestFactory);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> delegate = userService;
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> refreshDelegate = userService;
+        WechatQuota quota = wechatQuota.getIfAvailable();
+        if (quota != null) {
+            // 未命中的用户在等待登陆，配额紧张时先给它们；命中的用户已经登陆，后台刷新可以推迟。
+            // 配额在熔断和重试里面，重试和对冲请求各占一个令牌
+            refreshDelegate = quota.decorateUserService(userService, WechatQuota.Priority.RELOGIN);
+            delegate = quota.decorateUserService(userService, WechatQuota.Priority.FIRST_LOGIN);
+        }
+        WechatResilience resilience = wechatResilience.getIfAvailable();
+        if (resilience != null) {
+            // 两条链共用同一套熔断和隔离，按registration和接口区分，和优先级无关
+            refreshDelegate = resilience.decorateUserService(refreshDelegate);
+            delegate = resilience.decorateUserService(delegate);
+        }
+        CachingWechatOAuth2UserService userService = new CachingWechatOAuth2UserService(delegate,
+                properties.getMaximumSize(), properties.getExpireAfterWrite(), properties.getRefreshAfterWrite(),
+                properties.getRefreshConcurrency(), properties.getRefreshQueueCapacity());
+        userService.setRefreshDelegate(refreshDelegate);
+        profileStore.ifAvailable(userService::setProfileStore);
+        return userService;
+    }
+
+    @Configuration
+    @ConditionalOnProperty(prefix = "wechat.userinfo-cache.redis", name = "enabled", havingValue = "true")
+    static class RedisProfileStoreConfiguration {
+
+        @Bean
+        public RedisWechatUserProfileStore redisWechatUserProfileStore(RedisConnectionFactory redisConnectionFactory,
+                                                                       WechatUserInfoCacheProperties properties) {
+            WechatUserInfoCacheProperties.Redis redis = properties.getRedis();
+            return new RedisWechatUserProfileStore(redisConnectionFactory, redis.getKeyPrefix(), redis.getChannel(),
+                    redis.getTtl());
+        }
+
+        /**
+         * 订阅其它节点的失效通知
+         */
+        @Bean
+        public RedisMessageListenerContainer wechatUserInfoListenerContainer(RedisConnectionFactory redisConnectionFactory,
+                                                                             RedisWechatUserProfileStore redisWechatUserProfileStore,
+                                                                             WechatUserInfoCacheProperties properties) {
+            RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+            container.setConnectionFactory(redisConnectionFactory);
+            container.addMessageListener(redisWechatUserProfileStore, new ChannelTopic(properties.getRedis().getChannel()));
+            return container;
+        }
+    }
+}
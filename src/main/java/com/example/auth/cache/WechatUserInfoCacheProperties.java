@@ -0,0 +1,76 @@
+package com.example.auth.cache;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 微信用户信息(/sns/userinfo)本地缓存配置
+ *
+ * Created by berg on 2023/4/12.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.userinfo-cache")
+public class WechatUserInfoCacheProperties {
+
+    /**
+     * 是否开启，默认关闭，每次登陆都请求微信
+     */
+    private boolean enabled = false;
+
+    /**
+     * 最多缓存的用户数，超过后按Caffeine的W-TinyLFU策略淘汰
+     */
+    private long maximumSize = 10000;
+
+    /**
+     * 写入后过期时间，过期后下次登陆重新请求微信
+     */
+    private Duration expireAfterWrite = Duration.ofMinutes(30);
+
+    /**
+     * 写入后超过该时间再被访问时，在后台用最近一次登陆的access_token提前刷新，当次登陆直接返回旧值。
+     * 需要小于 expireAfterWrite，并且小于微信access_token的有效期(2小时)
+     */
+    private Duration refreshAfterWrite = Duration.ofMinutes(20);
+
+    /**
+     * 后台刷新的线程数，刷新是阻塞的微信调用，不放在公共线程池里
+     */
+    private int refreshConcurrency = 4;
+
+    /**
+     * 等待后台刷新的最大用户数，超过时这次不刷新，继续用旧值
+     */
+    private int refreshQueueCapacity = 1000;
+
+    /**
+     * 多节点共享的redis二级缓存
+     */
+    private Redis redis = new Redis();
+
+    @Data
+    public static class Redis {
+
+        /**
+         * 是否开启，需要同时开启本地缓存
+         */
+        private boolean enabled = false;
+
+        /**
+         * redis中的过期时间，一般比本地缓存长
+         */
+        private Duration ttl = Duration.ofHours(2);
+
+        /**
+         * key前缀
+         */
+        private String keyPrefix = "wechat:userinfo:";
+
+        /**
+         * 节点间失效通知的pub/sub频道
+         */
+        private String channel = "wechat:userinfo:invalidation";
+    }
+}
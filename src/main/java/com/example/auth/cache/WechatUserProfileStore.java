@@ -0,0 +1,51 @@
+package com.example.auth.cache;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+
+import java.util.function.BiConsumer;
+
+/**
+ * 多个认证节点共享的微信用户信息存储，作为本地缓存后面的第二级
+ * <p>
+ * Created by berg on 2023/4/12.
+ */
+public interface WechatUserProfileStore {
+
+    /**
+     * 按openid查询
+     *
+     * @param openid the openid
+     * @return 不存在时返回null
+     */
+    WechatOAuth2User get(String openid);
+
+    /**
+     * 按unionid查询，可能是同一开放平台下其它应用保存的，openid不是当前应用的
+     *
+     * @param unionid the unionid
+     * @return 不存在时返回null
+     */
+    WechatOAuth2User getByUnionid(String unionid);
+
+    /**
+     * 保存从微信获取到的最新用户信息，并通知其它节点丢弃本地副本
+     *
+     * @param user the user
+     */
+    void save(WechatOAuth2User user);
+
+    /**
+     * 删除用户信息，并通知其它节点丢弃本地副本
+     *
+     * @param openid  the openid
+     * @param unionid the unionid，可以为null
+     */
+    void evict(String openid, String unionid);
+
+    /**
+     * 注册其它节点发来的失效通知的监听，参数为openid和unionid(可能为null)
+     *
+     * @param listener the listener
+     */
+    void addInvalidationListener(BiConsumer<String, String> listener);
+}
@@ -0,0 +1,262 @@
+package com.example.auth.degrade;
+
+import com.example.auth.cache.WechatUserProfileStore;
+import com.example.auth.security.oauth2.wechat.WechatErrorCodes;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 降级登陆：换token的响应里已经有openid和unionid，获取用户信息只是为了昵称、头像这些资料。
+ * <ul>
+ *     <li>scope只有 snsapi_base 时没有权限调用 /sns/userinfo，直接用openid登陆</li>
+ *     <li>fallback 模式下微信不可用(超时、熔断、io异常、errcode=-1)时降级，40001这类错误仍然登陆失败</li>
+ *     <li>async 模式下不等待用户信息，登陆链路上少一次微信调用</li>
+ * </ul>
+ * 降级登陆的用户只有openid和unionid，用户信息在后台获取，保存 profileTtl，
+ * 之后该用户的请求经过{@link WechatProfilePatchFilter}时补进登陆用户和会话。
+ * 有共享的{@link WechatUserProfileStore}时获取到的用户信息同时写进去，用户的下一个请求落到其它节点上也能补全；
+ * 本节点没有时去共享存储查，查不到的openid在 retryDelay 内不再查，其它节点保存后的失效通知会清掉这个标记
+ * 指标：{@code wechat.login.degraded{registration,reason}}(base_scope|fallback|async)、
+ * {@code wechat.login.profile{result}}(fetched|failed|rejected|patched)
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Slf4j
+public class WechatDegradedLogin implements DisposableBean {
+
+    public static final String DEGRADED = "wechat.login.degraded";
+    public static final String PROFILE = "wechat.login.profile";
+
+    private static final String OPENID_KEY = "openid";
+    private static final String UNIONID_KEY = "unionid";
+    private static final String SNSAPI_BASE = "snsapi_base";
+    private static final String SYSTEM_BUSY = "-1";
+
+    private final WechatDegradedLoginProperties properties;
+    private final MeterRegistry registry;
+    private final Cache<String, WechatOAuth2User> profiles;
+    /**
+     * 共享存储里没有查到用户信息的openid
+     */
+    private final Cache<String, Boolean> storeMisses;
+    private WechatUserProfileStore profileStore;
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Counter fetched;
+    private final Counter failed;
+    private final Counter rejected;
+    private final Counter patched;
+
+    public WechatDegradedLogin(WechatDegradedLoginProperties properties, MeterRegistry registry) {
+        Assert.notNull(properties, "properties cannot be null");
+        Assert.notNull(registry, "registry cannot be null");
+        this.properties = properties;
+        this.registry = registry;
+        this.profiles = Caffeine.newBuilder()
+                .maximumSize(properties.getProfileMaximumSize())
+                .expireAfterWrite(properties.getProfileTtl())
+                .build();
+        this.storeMisses = Caffeine.newBuilder()
+                .maximumSize(properties.getProfileMaximumSize())
+                .expireAfterWrite(properties.getRetryDelay())
+                .build();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(properties.getConcurrency(), runnable -> {
+            Thread thread = new Thread(runnable, "wechat-profile-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.fetched = registry.counter(PROFILE, "result", "fetched");
+        this.failed = registry.counter(PROFILE, "result", "failed");
+        this.rejected = registry.counter(PROFILE, "result", "rejected");
+        this.patched = registry.counter(PROFILE, "result", "patched");
+    }
+
+    /**
+     * 多节点共享的用户信息存储，后台获取到的用户信息写进去，本节点没有时从这里读
+     *
+     * @param profileStore the profile store
+     */
+    public void setProfileStore(WechatUserProfileStore profileStore) {
+        this.profileStore = profileStore;
+        profileStore.addInvalidationListener((openid, unionid) -> this.storeMisses.invalidate(openid));
+    }
+
+    public boolean isEnabled() {
+        return this.properties.getMode() != WechatDegradedLoginProperties.Mode.OFF;
+    }
+
+    /**
+     * 包装获取用户信息的服务，关闭时原样返回
+     *
+     * @param userService 获取用户信息的服务，可以是带缓存、熔断的
+     * @return the user service
+     */
+    public OAuth2UserService<OAuth2UserRequest, OAuth2User> decorateUserService(OAuth2UserService<OAuth2UserRequest, OAuth2User> userService) {
+        if (!isEnabled()) {
+            return userService;
+        }
+        return userRequest -> {
+            String openid = (String) userRequest.getAdditionalParameters().get(OPENID_KEY);
+            if (!StringUtils.hasText(openid)) {
+                return userService.loadUser(userRequest);
+            }
+            if (isBaseScope(userRequest.getAccessToken().getScopes())) {
+                return degraded(userRequest, openid, "base_scope");
+            }
+            if (this.properties.getMode() == WechatDegradedLoginProperties.Mode.ASYNC) {
+                fetchLater(userService, userRequest, openid, 0);
+                return degraded(userRequest, openid, "async");
+            }
+            try {
+                return userService.loadUser(userRequest);
+            } catch (OAuth2AuthenticationException | OAuth2AuthorizationException ex) {
+                if (!isUnavailable(ex)) {
+                    throw ex;
+                }
+                log.debug("Wechat userinfo unavailable for openid {}, logging in without profile", openid, ex);
+                fetchLater(userService, userRequest, openid, this.properties.getRetryDelay().toMillis());
+                return degraded(userRequest, openid, "fallback");
+            }
+        };
+    }
+
+    /**
+     * 后台获取到的用户信息，本节点没有时查共享存储
+     *
+     * @param openid the openid
+     * @return 还没有获取到或已经过期时为null
+     */
+    public WechatOAuth2User profile(String openid) {
+        WechatOAuth2User profile = this.profiles.getIfPresent(openid);
+        if (profile != null || this.profileStore == null || this.storeMisses.getIfPresent(openid) != null) {
+            return profile;
+        }
+        profile = this.profileStore.get(openid);
+        if (profile == null || profile.getNickname() == null) {
+            this.storeMisses.put(openid, Boolean.TRUE);
+            return null;
+        }
+        this.profiles.put(openid, profile);
+        return profile;
+    }
+
+    /**
+     * 把后台获取到的用户信息补进降级登陆的用户
+     *
+     * @param user 降级登陆的用户，没有昵称
+     * @return 是否有修改
+     */
+    public boolean patch(WechatOAuth2User user) {
+        if (user.getNickname() != null || user.getOpenid() == null) {
+            return false;
+        }
+        WechatOAuth2User profile = profile(user.getOpenid());
+        if (profile == null) {
+            return false;
+        }
+        user.setNickname(profile.getNickname());
+        user.setSex(profile.getSex());
+        user.setProvince(profile.getProvince());
+        user.setCity(profile.getCity());
+        user.setCountry(profile.getCountry());
+        user.setHeadimgurl(profile.getHeadimgurl());
+        user.setPrivilege(profile.getPrivilege());
+        if (user.getUnionid() == null) {
+            user.setUnionid(profile.getUnionid());
+        }
+        this.patched.increment();
+        return true;
+    }
+
+    private void fetchLater(OAuth2UserService<OAuth2UserRequest, OAuth2User> userService, OAuth2UserRequest userRequest,
+                            String openid, long delayMillis) {
+        if (this.pending.incrementAndGet() > this.properties.getQueueCapacity()) {
+            this.pending.decrementAndGet();
+            this.rejected.increment();
+            return;
+        }
+        this.executor.schedule(() -> {
+            try {
+                OAuth2User user = userService.loadUser(userRequest);
+                if (user instanceof WechatOAuth2User) {
+                    if (this.profileStore != null) {
+                        this.profileStore.save((WechatOAuth2User) user);
+                    }
+                    this.profiles.put(openid, (WechatOAuth2User) user);
+                    this.fetched.increment();
+                }
+            } catch (RuntimeException ex) {
+                this.failed.increment();
+                log.debug("Failed to fetch wechat userinfo for openid {}", openid, ex);
+            } finally {
+                this.pending.decrementAndGet();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private WechatOAuth2User degraded(OAuth2UserRequest userRequest, String openid, String reason) {
+        this.registry.counter(DEGRADED, "registration", userRequest.getClientRegistration().getRegistrationId(),
+                "reason", reason).increment();
+        WechatOAuth2User user = new WechatOAuth2User();
+        user.setOpenid(openid);
+        Object unionid = userRequest.getAdditionalParameters().get(UNIONID_KEY);
+        if (unionid != null) {
+            user.setUnionid(unionid.toString());
+        }
+        return user;
+    }
+
+    private static boolean isBaseScope(Set<String> scopes) {
+        return scopes.size() == 1 && scopes.contains(SNSAPI_BASE);
+    }
+
+    /**
+     * 微信暂时不可用，而不是token无效这类需要重新登陆的错误
+     */
+    private static boolean isUnavailable(RuntimeException ex) {
+        String errcode = WechatErrorCodes.find(ex);
+        if (errcode != null) {
+            return SYSTEM_BUSY.equals(errcode);
+        }
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            OAuth2Error error = null;
+            if (cause instanceof OAuth2AuthenticationException) {
+                error = ((OAuth2AuthenticationException) cause).getError();
+            } else if (cause instanceof OAuth2AuthorizationException) {
+                error = ((OAuth2AuthorizationException) cause).getError();
+            }
+            if ((error != null && OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE.equals(error.getErrorCode()))
+                    || cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void destroy() {
+        this.executor.shutdownNow();
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.auth.degrade;
+
+import com.example.auth.cache.WechatUserProfileStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 获取用户信息失败时的降级登陆，由 SecurityConfiguration 包装获取用户信息的服务并加上{@link WechatProfilePatchFilter}，
+ * {@code wechat.degraded-login.mode=off} 时关闭。开启 {@code wechat.userinfo-cache.redis.enabled} 时后台获取到的用户信息写到redis，
+ * 所有节点都能补全
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatDegradedLoginProperties.class)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class WechatDegradedLoginConfiguration {
+
+    @Bean
+    public WechatDegradedLogin wechatDegradedLogin(WechatDegradedLoginProperties properties, MeterRegistry meterRegistry,
+                                                   ObjectProvider<WechatUserProfileStore> profileStore) {
+        WechatDegradedLogin degradedLogin = new WechatDegradedLogin(properties, meterRegistry);
+        profileStore.ifAvailable(degradedLogin::setProfileStore);
+        return degradedLogin;
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.auth.degrade;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 降级登陆配置：获取用户信息(/sns/userinfo)失败或不需要等待时，只用换token时拿到的openid、unionid完成登陆，
+ * 用户信息在后台获取后再补进登陆用户
+ *
+ * Created by berg on 2023/4/15.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.degraded-login")
+public class WechatDegradedLoginProperties {
+
+    /**
+     * off: 关闭(默认)，获取用户信息失败时登陆失败；
+     * fallback: 微信不可用(超时、熔断、errcode=-1)时降级；
+     * async: 登陆时不等待用户信息，总是在后台获取
+     */
+    private Mode mode = Mode.OFF;
+
+    /**
+     * fallback 降级后多久在后台重新获取，微信刚刚不可用，马上重试大概率还是失败
+     */
+    private Duration retryDelay = Duration.ofSeconds(5);
+
+    /**
+     * 后台获取用户信息的线程数
+     */
+    private int concurrency = 4;
+
+    /**
+     * 等待后台获取的最大用户数，超过时不再获取，这些用户的信息保持为空
+     */
+    private int queueCapacity = 1000;
+
+    /**
+     * 后台获取到的用户信息在本节点保留多久，这段时间内登陆用户的请求到达时补进会话。
+     * 多节点部署时开启 wechat.userinfo-cache.redis，用户信息同时写到redis，请求落到其它节点也能补全
+     */
+    private Duration profileTtl = Duration.ofMinutes(5);
+
+    /**
+     * 本节点保留的用户信息和共享存储未命中记录各自的最大条数，profileTtl 内登陆的用户超过这个数时淘汰最久未用的
+     */
+    private long profileMaximumSize = 10000;
+
+    public enum Mode {
+        OFF, FALLBACK, ASYNC
+    }
+}
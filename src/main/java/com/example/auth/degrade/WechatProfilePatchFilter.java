@@ -0,0 +1,47 @@
+package com.example.auth.degrade;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+
+/**
+ * 降级登陆的用户(没有昵称)的请求到达时，把后台获取到的用户信息补进登陆用户，
+ * 再把安全上下文重新放进会话，让spring session写回redis。
+ * 无状态令牌模式下令牌里的用户信息不变，每个请求在内存里补一次，直到用户信息过期
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatProfilePatchFilter extends OncePerRequestFilter {
+
+    private final WechatDegradedLogin degradedLogin;
+
+    public WechatProfilePatchFilter(WechatDegradedLogin degradedLogin) {
+        this.degradedLogin = degradedLogin;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        SecurityContext context = SecurityContextHolder.getContext();
+        Authentication authentication = context.getAuthentication();
+        if (authentication != null && authentication.getPrincipal() instanceof WechatOAuth2User
+                && this.degradedLogin.patch((WechatOAuth2User) authentication.getPrincipal())) {
+            // 安全上下文是同一个对象，不重新放进去不会被当作修改过
+            HttpSession session = request.getSession(false);
+            if (session != null) {
+                session.setAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY, context);
+            }
+        }
+        filterChain.doFilter(request, response);
+    }
+}
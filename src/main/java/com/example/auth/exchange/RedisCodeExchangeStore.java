@@ -0,0 +1,162 @@
+package com.example.auth.exchange;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.util.StringUtils;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * 不同节点之间合并换token用的redis key，每个code(同一个浏览器)一个字符串，值的第一个字符表示状态：
+ * <pre>
+ * P + owner    有节点正在换token，有效期 lock-ttl
+ * R + json     换token成功，json里是token响应，有效期 result-ttl
+ * E + errcode  微信返回了错误码，比如40029，同一个code再换也是同样的结果，有效期 result-ttl
+ * </pre>
+ * 超时、连接失败、系统繁忙这类和code无关的失败删除key，让等待的节点自己重试
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+class RedisCodeExchangeStore {
+
+    /**
+     * 占位，表示还有节点在换token
+     */
+    static final OAuth2AccessTokenResponse PENDING_RESULT = OAuth2AccessTokenResponse.withToken("pending")
+            .tokenType(OAuth2AccessToken.TokenType.BEARER)
+            .build();
+
+    private static final char PENDING = 'P';
+    private static final char RESULT = 'R';
+    private static final char ERROR = 'E';
+    private static final String EXPIRES_AT = "expires_at";
+    private static final String ADDITIONAL_PARAMETERS = "additional_parameters";
+
+    /**
+     * 只删除自己持有的锁，锁过期后被别的节点拿到时不能删
+     */
+    private static final RedisScript<Long> RELEASE = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end return 0", Long.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> MAP = new TypeReference<Map<String, Object>>() {
+    };
+
+    private final StringRedisTemplate redisTemplate;
+    private final String keyPrefix;
+    private final Duration lockTtl;
+    private final Duration resultTtl;
+    private final SecureRandom random = new SecureRandom();
+
+    RedisCodeExchangeStore(RedisConnectionFactory connectionFactory, WechatCodeExchangeProperties properties) {
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.keyPrefix = properties.getKeyPrefix();
+        this.lockTtl = properties.getLockTtl();
+        this.resultTtl = properties.getResultTtl();
+    }
+
+    /**
+     * 抢锁
+     *
+     * @param key registrationId:code:state摘要
+     * @return 锁的值，释放时用；已被其它节点持有时为null
+     */
+    String tryAcquire(String key) {
+        String owner = PENDING + Long.toHexString(this.random.nextLong());
+        Boolean acquired = this.redisTemplate.opsForValue().setIfAbsent(this.keyPrefix + key, owner, this.lockTtl);
+        return Boolean.TRUE.equals(acquired) ? owner : null;
+    }
+
+    void release(String key, String owner) {
+        this.redisTemplate.execute(RELEASE, Collections.singletonList(this.keyPrefix + key), owner);
+    }
+
+    void complete(String key, OAuth2AccessTokenResponse tokenResponse) {
+        this.redisTemplate.opsForValue().set(this.keyPrefix + key, RESULT + write(tokenResponse), this.resultTtl);
+    }
+
+    void fail(String key, String errcode) {
+        this.redisTemplate.opsForValue().set(this.keyPrefix + key, ERROR + errcode, this.resultTtl);
+    }
+
+    /**
+     * 读取其它节点的结果
+     *
+     * @param key registrationId:code:state摘要
+     * @return 成功的结果；锁还在时返回 {@link #PENDING_RESULT}；key已删除时为null
+     * @throws OAuth2AuthorizationException 其它节点换token时微信返回了错误码
+     */
+    OAuth2AccessTokenResponse get(String key) {
+        String value = this.redisTemplate.opsForValue().get(this.keyPrefix + key);
+        if (!StringUtils.hasLength(value)) {
+            return null;
+        }
+        switch (value.charAt(0)) {
+            case RESULT:
+                return read(value.substring(1));
+            case ERROR:
+                String errcode = value.substring(1);
+                throw new OAuth2AuthorizationException(new OAuth2Error(errcode,
+                        "The code exchange failed with errcode " + errcode + " on another node", null));
+            default:
+                return PENDING_RESULT;
+        }
+    }
+
+    private static String write(OAuth2AccessTokenResponse tokenResponse) {
+        OAuth2AccessToken accessToken = tokenResponse.getAccessToken();
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put(OAuth2ParameterNames.ACCESS_TOKEN, accessToken.getTokenValue());
+        if (accessToken.getExpiresAt() != null) {
+            json.put(EXPIRES_AT, accessToken.getExpiresAt().toEpochMilli());
+        }
+        json.put(OAuth2ParameterNames.SCOPE, StringUtils.collectionToDelimitedString(accessToken.getScopes(), " "));
+        if (tokenResponse.getRefreshToken() != null) {
+            json.put(OAuth2ParameterNames.REFRESH_TOKEN, tokenResponse.getRefreshToken().getTokenValue());
+        }
+        json.put(ADDITIONAL_PARAMETERS, tokenResponse.getAdditionalParameters());
+        try {
+            return OBJECT_MAPPER.writeValueAsString(json);
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException("Failed to write the token response", ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static OAuth2AccessTokenResponse read(String value) {
+        Map<String, Object> json;
+        try {
+            json = OBJECT_MAPPER.readValue(value, MAP);
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException("Failed to read the token response", ex);
+        }
+        OAuth2AccessTokenResponse.Builder builder = OAuth2AccessTokenResponse
+                .withToken((String) json.get(OAuth2ParameterNames.ACCESS_TOKEN))
+                .tokenType(OAuth2AccessToken.TokenType.BEARER)
+                .scopes(new LinkedHashSet<>(Arrays.asList(StringUtils.delimitedListToStringArray(
+                        (String) json.get(OAuth2ParameterNames.SCOPE), " "))))
+                .refreshToken((String) json.get(OAuth2ParameterNames.REFRESH_TOKEN))
+                .additionalParameters((Map<String, Object>) json.get(ADDITIONAL_PARAMETERS));
+        Object expiresAt = json.get(EXPIRES_AT);
+        if (expiresAt != null) {
+            // 剩余的有效期，和调用微信的节点上的过期时间一致
+            builder.expiresIn(Math.max(1, (((Number) expiresAt).longValue() - System.currentTimeMillis()) / 1000));
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.auth.exchange;
+
+import com.example.auth.security.oauth2.wechat.WechatErrorCodes;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2AuthorizationRequestResolver;
+import com.example.auth.thread.SingleFlight;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.util.function.Supplier;
+
+/**
+ * 合并同一个code的换token请求，包装 SecurityConfiguration 里的token客户端：
+ * <ul>
+ *     <li>本节点内：同一个key同时只有一个请求调用微信，其余的等它的结果({@link SingleFlight})</li>
+ *     <li>节点之间(开启redis时)：先在redis里抢一个短期的锁，抢到的节点调用微信并把结果写回同一个key，
+ *     其它节点轮询这个key拿结果；结果保留 result-ttl，稍后到达的重复请求也直接拿结果</li>
+ * </ul>
+ * key是 registrationId:code:授权请求里的随机数({@link WechatOAuth2AuthorizationRequestResolver#EXCHANGE_NONCE_ATTRIBUTE})。
+ * 随机数只保存在发起授权的浏览器的授权请求(会话或签名的cookie)里，只有这个浏览器的重复回调会共用结果；
+ * 拿到code的第三方用自己发起的授权请求换token，即使 redirect_url(state)相同随机数也不同，照常去微信换，拿到40163。
+ * 没有随机数的授权请求不合并。
+ * redis不可用时退化为只合并本节点内的请求。
+ * 指标：{@code wechat.code-exchange{result}}(leader 调用了微信、local 共用本节点的调用、remote 共用其它节点的结果、timeout 等待超时)
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Slf4j
+public class WechatCodeExchange {
+
+    public static final String METRIC = "wechat.code-exchange";
+
+    private static final String SYSTEM_BUSY = "-1";
+
+    private final SingleFlight<String, OAuth2AccessTokenResponse> singleFlight = new SingleFlight<>();
+    private final RedisCodeExchangeStore store;
+    private final long waitTimeoutNanos;
+    private final long pollIntervalMillis;
+    private final Counter leader;
+    private final Counter remote;
+    private final Counter timeout;
+
+    /**
+     * 只合并本节点内的请求
+     *
+     * @param properties    the properties
+     * @param meterRegistry the meter registry
+     */
+    public WechatCodeExchange(WechatCodeExchangeProperties properties, MeterRegistry meterRegistry) {
+        this(properties, meterRegistry, null);
+    }
+
+    /**
+     * Instantiates a new Wechat code exchange.
+     *
+     * @param properties        the properties
+     * @param meterRegistry     the meter registry
+     * @param connectionFactory 为空时只合并本节点内的请求
+     */
+    public WechatCodeExchange(WechatCodeExchangeProperties properties, MeterRegistry meterRegistry,
+                              RedisConnectionFactory connectionFactory) {
+        Assert.notNull(properties, "properties cannot be null");
+        Assert.notNull(meterRegistry, "meterRegistry cannot be null");
+        this.store = connectionFactory != null ? new RedisCodeExchangeStore(connectionFactory, properties) : null;
+        this.waitTimeoutNanos = properties.getWaitTimeout().toNanos();
+        this.pollIntervalMillis = Math.max(1, properties.getPollInterval().toMillis());
+        this.leader = counter(meterRegistry, "leader");
+        this.remote = counter(meterRegistry, "remote");
+        this.timeout = counter(meterRegistry, "timeout");
+        FunctionCounter.builder(METRIC, this.singleFlight, SingleFlight::sharedCount)
+                .description("Authorization code exchanges by outcome")
+                .tag("result", "local")
+                .register(meterRegistry);
+    }
+
+    public OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> decorateTokenClient(
+            OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> client) {
+        return grantRequest -> {
+            String key = key(grantRequest);
+            if (key == null) {
+                return client.getTokenResponse(grantRequest);
+            }
+            Supplier<OAuth2AccessTokenResponse> call = () -> {
+                this.leader.increment();
+                return client.getTokenResponse(grantRequest);
+            };
+            return this.singleFlight.execute(key, this.store == null ? call : () -> exchangeAcrossNodes(key, call));
+        };
+    }
+
+    /**
+     * @return registrationId:code:授权请求里的随机数，没有随机数(不是微信模板生成的授权请求)时为null，不合并
+     */
+    static String key(OAuth2AuthorizationCodeGrantRequest grantRequest) {
+        OAuth2AuthorizationExchange exchange = grantRequest.getAuthorizationExchange();
+        Object nonce = exchange.getAuthorizationRequest().getAttribute(WechatOAuth2AuthorizationRequestResolver.EXCHANGE_NONCE_ATTRIBUTE);
+        if (!(nonce instanceof String) || !StringUtils.hasText((String) nonce)) {
+            return null;
+        }
+        return grantRequest.getClientRegistration().getRegistrationId() + ':' + exchange.getAuthorizationResponse().getCode()
+                + ':' + nonce;
+    }
+
+    private OAuth2AccessTokenResponse exchangeAcrossNodes(String key, Supplier<OAuth2AccessTokenResponse> call) {
+        long deadline = System.nanoTime() + this.waitTimeoutNanos;
+        while (true) {
+            String owner;
+            try {
+                owner = this.store.tryAcquire(key);
+            } catch (DataAccessException ex) {
+                log.warn("Failed to lock code exchange {} in redis, exchanging without it: {}", key, ex.getMessage());
+                return call.get();
+            }
+            if (owner != null) {
+                return exchangeAsOwner(key, owner, call);
+            }
+            OAuth2AccessTokenResponse tokenResponse = awaitRemote(key, deadline);
+            if (tokenResponse != null) {
+                this.remote.increment();
+                return tokenResponse;
+            }
+            // 持有锁的节点失败后删除了key，重新抢锁
+        }
+    }
+
+    private OAuth2AccessTokenResponse exchangeAsOwner(String key, String owner, Supplier<OAuth2AccessTokenResponse> call) {
+        OAuth2AccessTokenResponse tokenResponse;
+        try {
+            tokenResponse = call.get();
+        } catch (RuntimeException ex) {
+            String errcode = WechatErrorCodes.find(ex);
+            try {
+                // -1 系统繁忙和code无关，同其它失败一样让等待的节点自己重试
+                if (errcode != null && !SYSTEM_BUSY.equals(errcode)) {
+                    this.store.fail(key, errcode);
+                } else {
+                    this.store.release(key, owner);
+                }
+            } catch (DataAccessException storeEx) {
+                log.warn("Failed to publish code exchange failure {} to redis: {}", key, storeEx.getMessage());
+            }
+            throw ex;
+        }
+        try {
+            this.store.complete(key, tokenResponse);
+        } catch (DataAccessException ex) {
+            log.warn("Failed to publish code exchange result {} to redis: {}", key, ex.getMessage());
+        }
+        return tokenResponse;
+    }
+
+    /**
+     * @return 其它节点的结果，key已删除时为null
+     */
+    private OAuth2AccessTokenResponse awaitRemote(String key, long deadline) {
+        while (true) {
+            OAuth2AccessTokenResponse tokenResponse;
+            try {
+                tokenResponse = this.store.get(key);
+            } catch (DataAccessException ex) {
+                throw unavailable("failed to read the result from redis: " + ex.getMessage());
+            }
+            if (tokenResponse != RedisCodeExchangeStore.PENDING_RESULT) {
+                return tokenResponse;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                this.timeout.increment();
+                throw unavailable("timed out waiting for another node");
+            }
+            try {
+                Thread.sleep(this.pollIntervalMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw unavailable("interrupted");
+            }
+        }
+    }
+
+    private static OAuth2AuthorizationException unavailable(String reason) {
+        return new OAuth2AuthorizationException(new OAuth2Error(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE,
+                "The code is being exchanged on another node, " + reason, null));
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder(METRIC)
+                .description("Authorization code exchanges by outcome")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.auth.exchange;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+
+/**
+ * 合并同一个code的换token请求，由 SecurityConfiguration 包装token客户端，{@code wechat.code-exchange.enabled=false} 时关闭
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatCodeExchangeProperties.class)
+@ConditionalOnProperty(prefix = "wechat.code-exchange", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class WechatCodeExchangeConfiguration {
+
+    /**
+     * Wechat code exchange.
+     *
+     * @param properties             the properties
+     * @param meterRegistry          the meter registry
+     * @param redisConnectionFactory 延迟获取，原因同 RedisConfig 里的授权信息存储
+     * @return the wechat code exchange
+     */
+    @Bean
+    public WechatCodeExchange wechatCodeExchange(WechatCodeExchangeProperties properties, MeterRegistry meterRegistry,
+                                                 @Lazy RedisConnectionFactory redisConnectionFactory) {
+        return new WechatCodeExchange(properties, meterRegistry, properties.isRedis() ? redisConnectionFactory : null);
+    }
+}
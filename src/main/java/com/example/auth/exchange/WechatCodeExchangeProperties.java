@@ -0,0 +1,49 @@
+package com.example.auth.exchange;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 同一个code同时换token的合并配置。用户连点、微信重复回调时同一个code会在几毫秒内到达一个或多个节点，
+ * 只有第一个请求调用微信，其余的共用结果，不会再拿到40163(code已被使用)
+ *
+ * Created by berg on 2023/4/15.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.code-exchange")
+public class WechatCodeExchangeProperties {
+
+    /**
+     * 是否开启，默认开启，只合并本节点内的请求
+     */
+    private boolean enabled = true;
+
+    /**
+     * 是否用redis合并不同节点上的请求
+     */
+    private boolean redis = false;
+
+    private String keyPrefix = "wechat:code-exchange:";
+
+    /**
+     * 锁的有效期，持有锁的节点宕机后最多这么久其它节点才能接手，要大于换token的超时加重试
+     */
+    private Duration lockTtl = Duration.ofSeconds(15);
+
+    /**
+     * 换token的结果保留多久，这段时间内同一个浏览器同一个code的请求直接拿结果。微信的code5分钟过期，只需要覆盖重复请求的间隔
+     */
+    private Duration resultTtl = Duration.ofSeconds(10);
+
+    /**
+     * 等待其它节点换token结果的最长时间
+     */
+    private Duration waitTimeout = Duration.ofSeconds(6);
+
+    /**
+     * 等待时查询结果的间隔
+     */
+    private Duration pollInterval = Duration.ofMillis(20);
+}
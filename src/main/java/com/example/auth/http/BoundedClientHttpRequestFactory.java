@@ -0,0 +1,154 @@
+package com.example.auth.http;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 在进入连接池之前用信号量限制同时进行中的请求数。
+ * <p>
+ * HttpClient 4的连接池在 {@code synchronized} 块中等待空闲连接，虚拟线程在这里等待时会钉住(pin)载体线程，
+ * 连接池耗尽时整个虚拟线程调度器都可能停住。信号量的等待不会钉住载体线程，只要许可数不超过连接池大小，
+ * 拿到许可的请求就不会在连接池里等待。许可在响应关闭(连接归还连接池)时释放。
+ * <p>
+ * Created by berg on 2023/4/11.
+ */
+public class BoundedClientHttpRequestFactory implements ClientHttpRequestFactory {
+
+    private final ClientHttpRequestFactory delegate;
+    private final Semaphore permits;
+    private final long acquireTimeoutMillis;
+
+    public BoundedClientHttpRequestFactory(ClientHttpRequestFactory delegate, int maxConcurrentRequests,
+                                           long acquireTimeoutMillis) {
+        Assert.notNull(delegate, "delegate cannot be null");
+        Assert.isTrue(maxConcurrentRequests > 0, "maxConcurrentRequests must be greater than 0");
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrentRequests, true);
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+        return new BoundedClientHttpRequest(this.delegate.createRequest(uri, httpMethod));
+    }
+
+    /**
+     * 当前可用的许可数
+     *
+     * @return the available permits
+     */
+    public int availablePermits() {
+        return this.permits.availablePermits();
+    }
+
+    private void acquire() throws IOException {
+        try {
+            if (!this.permits.tryAcquire(this.acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timeout waiting for a wechat http request permit");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a wechat http request permit");
+        }
+    }
+
+    private class BoundedClientHttpRequest implements ClientHttpRequest {
+
+        private final ClientHttpRequest request;
+
+        BoundedClientHttpRequest(ClientHttpRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public ClientHttpResponse execute() throws IOException {
+            acquire();
+            try {
+                return new BoundedClientHttpResponse(this.request.execute());
+            } catch (IOException | RuntimeException ex) {
+                permits.release();
+                throw ex;
+            }
+        }
+
+        @Override
+        public OutputStream getBody() throws IOException {
+            return this.request.getBody();
+        }
+
+        @Override
+        public String getMethodValue() {
+            return this.request.getMethodValue();
+        }
+
+        @Override
+        public URI getURI() {
+            return this.request.getURI();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return this.request.getHeaders();
+        }
+    }
+
+    private class BoundedClientHttpResponse implements ClientHttpResponse {
+
+        private final ClientHttpResponse response;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        BoundedClientHttpResponse(ClientHttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException {
+            return this.response.getStatusCode();
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return this.response.getRawStatusCode();
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return this.response.getStatusText();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return this.response.getBody();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return this.response.getHeaders();
+        }
+
+        @Override
+        public void close() {
+            try {
+                this.response.close();
+            } finally {
+                if (this.released.compareAndSet(false, true)) {
+                    permits.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.auth.http;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.springframework.boot.actuate.autoconfigure.endpoint.condition.ConditionalOnAvailableEndpoint;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 所有微信接口调用共用的http客户端，默认的{@link org.springframework.web.client.RestTemplate}
+ * 使用{@link org.springframework.http.client.SimpleClientHttpRequestFactory}，没有连接池，每次登陆都要重新做一次TLS握手
+ * <p>
+ * Created by berg on 2023/4/9.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatHttpClientProperties.class)
+public class WechatHttpClientConfiguration {
+
+    @Bean
+    public PoolingHttpClientConnectionManager wechatHttpConnectionManager(WechatHttpClientProperties properties) {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", sslConnectionSocketFactory(properties))
+                .build();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry, null, null,
+                null, properties.getTimeToLive().toMillis(), TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(properties.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(properties.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity((int) properties.getValidateAfterInactivity().toMillis());
+        for (Map.Entry<String, Integer> entry : properties.getRoutes().entrySet()) {
+            HttpHost host = routeHost(entry.getKey());
+            connectionManager.setMaxPerRoute(new HttpRoute(host, null, "https".equalsIgnoreCase(host.getSchemeName())),
+                    entry.getValue());
+        }
+        return connectionManager;
+    }
+
+    @Bean
+    public CloseableHttpClient wechatHttpClient(PoolingHttpClientConnectionManager wechatHttpConnectionManager,
+                                                WechatHttpClientProperties properties) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout((int) properties.getConnectTimeout().toMillis())
+                .setSocketTimeout((int) properties.getReadTimeout().toMillis())
+                .setConnectionRequestTimeout((int) properties.getConnectionRequestTimeout().toMillis())
+                .build();
+        return HttpClients.custom()
+                .setConnectionManager(wechatHttpConnectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                // 后台线程回收过期和空闲的连接
+                .evictExpiredConnections()
+                .evictIdleConnections(properties.getIdleTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                // 微信接口都是无状态的，不需要cookie和认证状态，关闭后连接可以在不同用户之间复用
+                .disableCookieManagement()
+                .disableConnectionState()
+                .build();
+    }
+
+    /**
+     * 微信接口调用统一使用的{@link ClientHttpRequestFactory}
+     *
+     * @param wechatHttpClient the wechat http client
+     * @param properties       the properties
+     * @return the client http request factory
+     */
+    @Bean
+    public ClientHttpRequestFactory wechatClientHttpRequestFactory(CloseableHttpClient wechatHttpClient,
+                                                                   WechatHttpClientProperties properties) {
+        ClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(wechatHttpClient);
+        if (properties.getMaxConcurrentRequests() > 0) {
+            requestFactory = new BoundedClientHttpRequestFactory(requestFactory, properties.getMaxConcurrentRequests(),
+                    properties.getConnectionRequestTimeout().toMillis());
+        }
+        return requestFactory;
+    }
+
+    @Bean
+    @ConditionalOnAvailableEndpoint
+    public WechatHttpPoolEndpoint wechatHttpPoolEndpoint(PoolingHttpClientConnectionManager wechatHttpConnectionManager) {
+        return new WechatHttpPoolEndpoint(wechatHttpConnectionManager);
+    }
+
+    /**
+     * 同一个SSLContext内的连接共享TLS会话缓存，新建连接时可以直接恢复会话
+     */
+    private static SSLConnectionSocketFactory sslConnectionSocketFactory(WechatHttpClientProperties properties) {
+        SSLContext sslContext = SSLContexts.createDefault();
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        sessionContext.setSessionCacheSize(properties.getTlsSessionCacheSize());
+        sessionContext.setSessionTimeout((int) properties.getTlsSessionTimeout().getSeconds());
+        return new SSLConnectionSocketFactory(sslContext, SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+    }
+
+    private static HttpHost routeHost(String route) {
+        // 没有写协议的默认按https处理，端口要和实际路由解析出来的一致，否则匹配不上
+        HttpHost host = HttpHost.create(route.contains("://") ? route : "https://" + route);
+        if (host.getPort() > 0) {
+            return host;
+        }
+        int port = "https".equalsIgnoreCase(host.getSchemeName()) ? 443 : 80;
+        return new HttpHost(host.getHostName(), port, host.getSchemeName());
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.auth.http;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 调用微信开放平台接口(token、userinfo等)的http客户端配置
+ *
+ * Created by berg on 2023/4/9.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.http-client")
+public class WechatHttpClientProperties {
+
+    /**
+     * 连接池最大连接数
+     */
+    private int maxTotal = 200;
+
+    /**
+     * 每个路由(host:port)默认的最大连接数，微信的接口基本都在 api.weixin.qq.com 下面
+     */
+    private int maxPerRoute = 100;
+
+    /**
+     * 按host单独指定的最大连接数，例如 api.weixin.qq.com: 150
+     */
+    private Map<String, Integer> routes = new LinkedHashMap<>();
+
+    /**
+     * 同时进行中的请求数上限，超过时在连接池外面排队，0表示不限制。
+     * 虚拟线程模式下需要设置为不超过连接池大小，见 {@link BoundedClientHttpRequestFactory}
+     */
+    private int maxConcurrentRequests = 0;
+
+    /**
+     * 建立连接超时时间
+     */
+    private Duration connectTimeout = Duration.ofSeconds(2);
+
+    /**
+     * 读超时时间
+     */
+    private Duration readTimeout = Duration.ofSeconds(5);
+
+    /**
+     * 从连接池获取连接的等待时间，池子耗尽时快速失败而不是无限等待
+     */
+    private Duration connectionRequestTimeout = Duration.ofSeconds(1);
+
+    /**
+     * 空闲连接超过该时间会被后台线程回收
+     */
+    private Duration idleTimeout = Duration.ofSeconds(30);
+
+    /**
+     * 连接最大存活时间，避免长期持有微信侧已经切换的连接
+     */
+    private Duration timeToLive = Duration.ofMinutes(5);
+
+    /**
+     * 连接空闲超过该时间再次使用前先做校验
+     */
+    private Duration validateAfterInactivity = Duration.ofSeconds(2);
+
+    /**
+     * TLS会话缓存大小，复用会话可以省掉完整握手
+     */
+    private int tlsSessionCacheSize = 1000;
+
+    /**
+     * TLS会话缓存时间
+     */
+    private Duration tlsSessionTimeout = Duration.ofHours(1);
+
+    /**
+     * 是否优先使用HTTP/2(通过ALPN协商，不支持时回落到HTTP/1.1)，仅对响应式客户端生效，
+     * RestTemplate使用的HttpClient 4只支持HTTP/1.1
+     */
+    private boolean http2 = false;
+}
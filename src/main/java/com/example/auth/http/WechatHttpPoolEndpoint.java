@@ -0,0 +1,46 @@
+package com.example.auth.http;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 暴露微信http连接池状态：/actuator/wechathttp
+ * <p>
+ * Created by berg on 2023/4/9.
+ */
+@Endpoint(id = "wechathttp")
+public class WechatHttpPoolEndpoint {
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    public WechatHttpPoolEndpoint(PoolingHttpClientConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    @ReadOperation
+    public Map<String, Object> pool() {
+        Map<String, Object> routes = new LinkedHashMap<>();
+        for (HttpRoute route : this.connectionManager.getRoutes()) {
+            routes.put(route.getTargetHost().toURI(), stats(this.connectionManager.getStats(route)));
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("total", stats(this.connectionManager.getTotalStats()));
+        result.put("routes", routes);
+        return result;
+    }
+
+    private static Map<String, Integer> stats(PoolStats poolStats) {
+        Map<String, Integer> stats = new LinkedHashMap<>();
+        stats.put("leased", poolStats.getLeased());
+        stats.put("available", poolStats.getAvailable());
+        stats.put("pending", poolStats.getPending());
+        stats.put("max", poolStats.getMax());
+        return stats;
+    }
+}
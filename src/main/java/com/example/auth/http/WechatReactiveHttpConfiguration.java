@@ -0,0 +1,79 @@
+package com.example.auth.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.channel.ChannelOption;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+/**
+ * 响应式登陆链路(reactive profile)使用的服务器和微信http客户端，连接池参数和阻塞版本共用{@link WechatHttpClientProperties}
+ * <p>
+ * Created by berg on 2023/4/10.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class WechatReactiveHttpConfiguration {
+
+    /**
+     * classpath上同时有tomcat和netty时spring boot会优先选tomcat，响应式模式下明确使用netty的事件循环
+     *
+     * @return the netty reactive web server factory
+     */
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider wechatConnectionProvider(WechatHttpClientProperties properties) {
+        // reactor netty 的连接池是按远端地址划分的，maxConnections 对应每个路由的最大连接数
+        ConnectionProvider.Builder builder = ConnectionProvider.builder("wechat")
+                .maxConnections(properties.getMaxPerRoute())
+                .pendingAcquireTimeout(properties.getConnectionRequestTimeout())
+                .maxIdleTime(properties.getIdleTimeout())
+                .maxLifeTime(properties.getTimeToLive())
+                .evictInBackground(properties.getIdleTimeout());
+        for (Map.Entry<String, Integer> entry : properties.getRoutes().entrySet()) {
+            builder.forRemoteHost(InetSocketAddress.createUnresolved(entry.getKey(), 443),
+                    spec -> spec.maxConnections(entry.getValue()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * 微信接口响应的content-type是text/plain，需要让json解码器也处理text/plain
+     *
+     * @param wechatConnectionProvider the wechat connection provider
+     * @param properties               the properties
+     * @param objectMapper             the object mapper
+     * @return the web client
+     */
+    @Bean
+    public WebClient wechatWebClient(ConnectionProvider wechatConnectionProvider, WechatHttpClientProperties properties,
+                                     ObjectMapper objectMapper) {
+        HttpClient httpClient = HttpClient.create(wechatConnectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) properties.getConnectTimeout().toMillis())
+                .responseTimeout(properties.getReadTimeout());
+        if (properties.isHttp2()) {
+            httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11);
+        }
+        Jackson2JsonDecoder decoder = new Jackson2JsonDecoder(objectMapper, MediaType.APPLICATION_JSON,
+                MediaType.TEXT_PLAIN, new MediaType("application", "*+json"));
+        return WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .codecs(configurer -> configurer.defaultCodecs().jackson2JsonDecoder(decoder))
+                .build();
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.auth.metrics;
+
+import com.example.auth.security.miniprogram.WechatMiniProgramSession;
+import com.example.auth.security.miniprogram.WechatMiniProgramSessionClient;
+import com.example.auth.security.oauth2.wechat.WechatErrorCodes;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.client.web.OAuth2AuthorizationRequestResolver;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.security.web.AuthenticationEntryPoint;
+import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
+import org.springframework.util.Assert;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * 微信登陆各阶段的耗时，包装登陆链路上的各个组件：
+ * <ul>
+ *     <li>{@code wechat.login.authorize} 生成授权链接({@link OAuth2AuthorizationRequestResolver})</li>
+ *     <li>{@code wechat.login.token} 用code换access_token，小程序用code换session</li>
+ *     <li>{@code wechat.login.userinfo} 获取用户信息，开启缓存时包含缓存命中</li>
+ *     <li>{@code wechat.login.success} 登陆成功后的重定向</li>
+ *     <li>{@code wechat.login.unauthorized} 未登陆被拦截的请求数</li>
+ * </ul>
+ * 计时器的tag: registration(registrationId)、outcome(success|error)、errcode(微信错误码，成功为0，超时等非微信错误为none)、
+ * exception(异常类名)。会话读写的耗时见 {@code wechat.session.*}，SLO分桶在 management.metrics.distribution.slo 里配置
+ * <p>
+ * Created by berg on 2023/4/14.
+ */
+public class WechatLoginMetrics {
+
+    public static final String AUTHORIZE = "wechat.login.authorize";
+    public static final String TOKEN = "wechat.login.token";
+    public static final String USERINFO = "wechat.login.userinfo";
+    public static final String SUCCESS = "wechat.login.success";
+    public static final String UNAUTHORIZED = "wechat.login.unauthorized";
+
+    private static final String NONE = "none";
+    private static final String UNKNOWN = "unknown";
+
+    private final MeterRegistry registry;
+
+    public WechatLoginMetrics(MeterRegistry registry) {
+        Assert.notNull(registry, "registry cannot be null");
+        this.registry = registry;
+    }
+
+    public OAuth2AuthorizationRequestResolver instrumentResolver(OAuth2AuthorizationRequestResolver resolver) {
+        return new OAuth2AuthorizationRequestResolver() {
+            @Override
+            public OAuth2AuthorizationRequest resolve(HttpServletRequest request) {
+                return recordAuthorize(() -> resolver.resolve(request));
+            }
+
+            @Override
+            public OAuth2AuthorizationRequest resolve(HttpServletRequest request, String clientRegistrationId) {
+                return recordAuthorize(() -> resolver.resolve(request, clientRegistrationId));
+            }
+        };
+    }
+
+    public OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> instrumentTokenClient(
+            OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> client) {
+        return grantRequest -> {
+            String registrationId = grantRequest.getClientRegistration().getRegistrationId();
+            Timer.Sample sample = Timer.start(this.registry);
+            try {
+                OAuth2AccessTokenResponse tokenResponse = client.getTokenResponse(grantRequest);
+                sample.stop(timer(TOKEN, registrationId, null));
+                return tokenResponse;
+            } catch (RuntimeException ex) {
+                sample.stop(timer(TOKEN, registrationId, ex));
+                throw ex;
+            }
+        };
+    }
+
+    /**
+     * 小程序用code换session，和网页登陆换token一样计入 {@code wechat.login.token}
+     *
+     * @param client the client
+     * @return the wechat mini program session client
+     */
+    public WechatMiniProgramSessionClient instrumentSessionClient(WechatMiniProgramSessionClient client) {
+        return (registrationId, code) -> {
+            Timer.Sample sample = Timer.start(this.registry);
+            try {
+                WechatMiniProgramSession session = client.getSession(registrationId, code);
+                sample.stop(timer(TOKEN, registrationId, null));
+                return session;
+            } catch (RuntimeException ex) {
+                sample.stop(timer(TOKEN, registrationId, ex));
+                throw ex;
+            }
+        };
+    }
+
+    public OAuth2UserService<OAuth2UserRequest, OAuth2User> instrumentUserService(OAuth2UserService<OAuth2UserRequest, OAuth2User> userService) {
+        return userRequest -> {
+            String registrationId = userRequest.getClientRegistration().getRegistrationId();
+            Timer.Sample sample = Timer.start(this.registry);
+            try {
+                OAuth2User user = userService.loadUser(userRequest);
+                sample.stop(timer(USERINFO, registrationId, null));
+                return user;
+            } catch (RuntimeException ex) {
+                sample.stop(timer(USERINFO, registrationId, ex));
+                throw ex;
+            }
+        };
+    }
+
+    public AuthenticationSuccessHandler instrumentSuccessHandler(AuthenticationSuccessHandler successHandler) {
+        return (request, response, authentication) -> {
+            String registrationId = registrationId(authentication);
+            Timer.Sample sample = Timer.start(this.registry);
+            try {
+                successHandler.onAuthenticationSuccess(request, response, authentication);
+                sample.stop(timer(SUCCESS, registrationId, null));
+            } catch (IOException | ServletException | RuntimeException ex) {
+                sample.stop(timer(SUCCESS, registrationId, ex));
+                throw ex;
+            }
+        };
+    }
+
+    public AuthenticationEntryPoint instrumentEntryPoint(AuthenticationEntryPoint entryPoint) {
+        return (request, response, authException) -> {
+            Counter.builder(UNAUTHORIZED)
+                    .description("Requests rejected by the authentication entry point")
+                    .tag("exception", authException.getClass().getSimpleName())
+                    .register(this.registry)
+                    .increment();
+            entryPoint.commence(request, response, authException);
+        };
+    }
+
+    private OAuth2AuthorizationRequest recordAuthorize(Supplier<OAuth2AuthorizationRequest> resolve) {
+        Timer.Sample sample = Timer.start(this.registry);
+        OAuth2AuthorizationRequest authorizationRequest;
+        try {
+            authorizationRequest = resolve.get();
+        } catch (RuntimeException ex) {
+            // 请求里的registrationId不可信，不作为tag
+            sample.stop(timer(AUTHORIZE, UNKNOWN, ex));
+            throw ex;
+        }
+        // 每个请求都会经过resolver，不是授权路径时返回null，不记录
+        if (authorizationRequest != null) {
+            Object registrationId = authorizationRequest.getAttribute(OAuth2ParameterNames.REGISTRATION_ID);
+            sample.stop(timer(AUTHORIZE, registrationId != null ? registrationId.toString() : UNKNOWN, null));
+        }
+        return authorizationRequest;
+    }
+
+    private Timer timer(String name, String registrationId, Throwable ex) {
+        String errcode = NONE;
+        if (ex == null) {
+            errcode = "0";
+        } else {
+            String wechatErrcode = WechatErrorCodes.find(ex);
+            if (wechatErrcode != null) {
+                errcode = wechatErrcode;
+            }
+        }
+        return Timer.builder(name)
+                .tag("registration", registrationId)
+                .tag("outcome", ex == null ? "success" : "error")
+                .tag("errcode", errcode)
+                .tag("exception", ex == null ? NONE : ex.getClass().getSimpleName())
+                .register(this.registry);
+    }
+
+    private static String registrationId(Authentication authentication) {
+        if (authentication instanceof OAuth2AuthenticationToken) {
+            return ((OAuth2AuthenticationToken) authentication).getAuthorizedClientRegistrationId();
+        }
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.auth.provider;
+
+import com.example.auth.security.oauth2.wechat.WechatProviderRegistry;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 微信客户端配置的注册表，授权链接、换token请求、刷新token和获取用户信息共用一份，
+ * 由 SecurityConfiguration / ReactiveSecurityConfiguration 按registrationId分派
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatProviderProperties.class)
+public class WechatProviderConfiguration {
+
+    @Bean
+    public WechatProviderRegistry wechatProviderRegistry(WechatProviderProperties properties) {
+        return new WechatProviderRegistry(properties.getTypes());
+    }
+}
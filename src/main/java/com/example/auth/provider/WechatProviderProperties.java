@@ -0,0 +1,23 @@
+package com.example.auth.provider;
+
+import com.example.auth.security.oauth2.wechat.WechatProviderType;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 多个微信应用(网站应用、公众号)同时接入时的配置
+ *
+ * Created by berg on 2023/4/15.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.provider")
+public class WechatProviderProperties {
+
+    /**
+     * registrationId 对应的微信应用类型 website | official-account，没有配置的按 authorization-uri 识别
+     */
+    private Map<String, WechatProviderType> types = new LinkedHashMap<>();
+}
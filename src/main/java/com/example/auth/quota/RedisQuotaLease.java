@@ -0,0 +1,97 @@
+package com.example.auth.quota;
+
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 集群共享的令牌桶，每个appid的每个接口两个key，用hash tag放在redis cluster的同一个slot：
+ * <pre>
+ * {appid:endpoint}            hash: tokens 剩余令牌、ts 上次补充的时间、blocked 微信返回配额用尽后暂停到的时间
+ * {appid:endpoint}:yyyyMMdd   当天已租出的调用数
+ * </pre>
+ * 节点一次租用一批令牌放在本地桶里，租出即计入当天用量，没用完的不归还，当天用量最多多算 节点数×leaseSize
+ * <p>
+ * Created by berg on 2023/4/16.
+ */
+class RedisQuotaLease {
+
+    /**
+     * 按经过的时间补充令牌后租出不超过 want 个，不超过当天剩余配额。
+     * 返回 {租到的令牌数, 当天已用, 暂停到的时间}
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> LEASE = new DefaultRedisScript<>(
+            "local now = tonumber(ARGV[1]) "
+                    + "local rate = tonumber(ARGV[2]) "
+                    + "local burst = tonumber(ARGV[3]) "
+                    + "local want = tonumber(ARGV[4]) "
+                    + "local quota = tonumber(ARGV[5]) "
+                    + "local state = redis.call('hmget', KEYS[1], 'tokens', 'ts', 'blocked') "
+                    + "local tokens = tonumber(state[1]) or burst "
+                    + "local ts = tonumber(state[2]) or now "
+                    + "local blocked = tonumber(state[3]) or 0 "
+                    + "tokens = math.min(burst, tokens + math.max(0, now - ts) * rate / 1000) "
+                    + "local used = tonumber(redis.call('get', KEYS[2]) or '0') "
+                    + "local grant = 0 "
+                    + "if blocked <= now then "
+                    + "  grant = math.min(want, math.floor(tokens)) "
+                    + "  if quota > 0 then grant = math.max(0, math.min(grant, quota - used)) end "
+                    + "end "
+                    + "redis.call('hset', KEYS[1], 'tokens', tostring(tokens - grant), 'ts', ARGV[1]) "
+                    + "redis.call('pexpire', KEYS[1], 86400000) "
+                    + "if grant > 0 then "
+                    + "  used = redis.call('incrby', KEYS[2], grant) "
+                    + "  redis.call('expire', KEYS[2], 172800) "
+                    + "end "
+                    + "return {grant, used, blocked}", List.class);
+
+    private static final String BLOCKED = "blocked";
+
+    private final StringRedisTemplate redisTemplate;
+    private final String keyPrefix;
+
+    RedisQuotaLease(RedisConnectionFactory connectionFactory, String keyPrefix) {
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * 租用令牌
+     *
+     * @param bucket    appid:endpoint
+     * @param day       当天的日期 yyyyMMdd
+     * @param nowMillis 当前时间
+     * @param limit     生效的配置
+     * @param want      最多租多少个
+     * @return {租到的令牌数, 当天已用, 暂停到的时间}
+     */
+    long[] lease(String bucket, String day, long nowMillis, WechatQuotaProperties.Limit limit, long want) {
+        List<?> result = this.redisTemplate.execute(LEASE, Arrays.asList(key(bucket), key(bucket) + ':' + day),
+                Long.toString(nowMillis), Double.toString(limit.getRatePerSecond()), Integer.toString(limit.getBurst()),
+                Long.toString(want), Long.toString(limit.getDailyQuota()));
+        if (result == null || result.size() < 3) {
+            return new long[]{0, 0, 0};
+        }
+        return new long[]{((Number) result.get(0)).longValue(), ((Number) result.get(1)).longValue(),
+                ((Number) result.get(2)).longValue()};
+    }
+
+    /**
+     * 微信返回配额用尽后所有节点暂停租用
+     *
+     * @param bucket      appid:endpoint
+     * @param untilMillis 暂停到的时间
+     */
+    void block(String bucket, long untilMillis) {
+        this.redisTemplate.opsForHash().put(key(bucket), BLOCKED, Long.toString(untilMillis));
+    }
+
+    private String key(String bucket) {
+        return this.keyPrefix + '{' + bucket + '}';
+    }
+}
@@ -0,0 +1,411 @@
+package com.example.auth.quota;
+
+import com.example.auth.resilience.WechatEndpoint;
+import com.example.auth.security.oauth2.wechat.WechatErrorCodes;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.util.Assert;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 按appid限制对微信接口的调用，包装换token和获取用户信息，每个appid的每个接口({@link WechatEndpoint})一个令牌桶：
+ * <ul>
+ *     <li>本地桶：调用前CAS扣一个令牌，不加锁；桶空了由一个线程当场去租，其余的直接拒绝</li>
+ *     <li>租用：后台每隔 leaseInterval 给有调用的桶补到 leaseSize，开启redis时从集群共享的桶里租({@link RedisQuotaLease})，
+ *     整个集群的速率和每日配额不超过配置；redis不可用或没开启时按配置的速率在本地补充</li>
+ *     <li>优先级：本地令牌或当天剩余配额低于 reserve 时只放行第一次登陆({@link Priority#FIRST_LOGIN})，
+ *     已缓存用户的后台刷新({@link Priority#RELOGIN})等配额恢复再刷新</li>
+ *     <li>微信返回45009(当天配额用尽)时所有节点暂停到第二天0点，45011(调用太频繁)暂停一分钟</li>
+ * </ul>
+ * 包装在熔断和重试({@code WechatResilience})里面，重试和对冲请求都是真正发给微信的调用，各占一个令牌。
+ * 拒绝时抛出 {@code temporarily_unavailable}，不计入熔断失败也不重试；开启降级登陆时获取用户信息被拒绝会用openid登陆。
+ * 指标：{@code wechat.quota.calls{appid,endpoint,priority,result}}(granted|rejected)、
+ * {@code wechat.quota.permits} 本地桶的令牌数、{@code wechat.quota.remaining} 当天剩余配额(不限制时为NaN)、
+ * {@code wechat.quota.fallback} redis租用失败改为本地补充的次数
+ * <p>
+ * Created by berg on 2023/4/16.
+ */
+@Slf4j
+public class WechatQuota implements DisposableBean {
+
+    public static final String CALLS = "wechat.quota.calls";
+    public static final String PERMITS = "wechat.quota.permits";
+    public static final String REMAINING = "wechat.quota.remaining";
+    public static final String FALLBACK = "wechat.quota.fallback";
+
+    /**
+     * 当天的调用次数已达上限
+     */
+    private static final String DAILY_QUOTA_EXCEEDED = "45009";
+    /**
+     * 接口调用太频繁
+     */
+    private static final String MINUTE_QUOTA_EXCEEDED = "45011";
+    private static final DateTimeFormatter DAY = DateTimeFormatter.BASIC_ISO_DATE;
+
+    /**
+     * 调用的优先级
+     */
+    public enum Priority {
+
+        /**
+         * 用户在等待的登陆，本地没有这个用户的信息
+         */
+        FIRST_LOGIN("first_login"),
+
+        /**
+         * 已缓存用户的后台刷新，拒绝后继续用缓存
+         */
+        RELOGIN("relogin");
+
+        private final String tag;
+
+        Priority(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final WechatQuotaProperties properties;
+    private final MeterRegistry registry;
+    private final RedisQuotaLease redis;
+    private final Clock clock;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final Counter fallback;
+
+    /**
+     * Instantiates a new Wechat quota.
+     *
+     * @param properties        the properties
+     * @param registry          the registry
+     * @param connectionFactory 为空时每个节点单独限流
+     */
+    public WechatQuota(WechatQuotaProperties properties, MeterRegistry registry, RedisConnectionFactory connectionFactory) {
+        this(properties, registry, connectionFactory, Clock.systemUTC());
+    }
+
+    WechatQuota(WechatQuotaProperties properties, MeterRegistry registry, RedisConnectionFactory connectionFactory, Clock clock) {
+        Assert.notNull(properties, "properties cannot be null");
+        Assert.notNull(registry, "registry cannot be null");
+        Assert.isTrue(properties.getLeaseSize() > 0, "leaseSize must be greater than 0");
+        this.properties = properties;
+        this.registry = registry;
+        this.redis = connectionFactory != null ? new RedisQuotaLease(connectionFactory, properties.getKeyPrefix()) : null;
+        this.clock = clock;
+        this.fallback = Counter.builder(FALLBACK)
+                .description("Quota leases served locally because redis failed")
+                .register(registry);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wechat-quota-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, properties.getLeaseInterval().toMillis());
+        this.scheduler.scheduleWithFixedDelay(this::leaseActive, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> decorateTokenClient(
+            OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> client) {
+        // 每次登陆都要换token，没有可以推迟的调用
+        return grantRequest -> execute(grantRequest.getClientRegistration(), WechatEndpoint.TOKEN, Priority.FIRST_LOGIN,
+                () -> client.getTokenResponse(grantRequest), OAuth2AuthorizationException::new);
+    }
+
+    /**
+     * 包装获取用户信息的服务
+     *
+     * @param userService 获取用户信息的服务
+     * @param priority    经过这个服务的调用的优先级，缓存的后台刷新用 {@link Priority#RELOGIN}
+     * @return the user service
+     */
+    public OAuth2UserService<OAuth2UserRequest, OAuth2User> decorateUserService(OAuth2UserService<OAuth2UserRequest, OAuth2User> userService,
+                                                                               Priority priority) {
+        return userRequest -> execute(userRequest.getClientRegistration(), WechatEndpoint.USERINFO, priority,
+                () -> userService.loadUser(userRequest), OAuth2AuthenticationException::new);
+    }
+
+    <T> T execute(ClientRegistration registration, WechatEndpoint endpoint, Priority priority, Supplier<T> call,
+                  Function<OAuth2Error, ? extends RuntimeException> unavailable) {
+        Bucket bucket = bucket(registration.getClientId(), endpoint);
+        if (!bucket.tryAcquire(priority)) {
+            bucket.rejected[priority.ordinal()].increment();
+            throw unavailable.apply(bucket.error("over quota"));
+        }
+        bucket.granted[priority.ordinal()].increment();
+        try {
+            return call.get();
+        } catch (RuntimeException ex) {
+            String errcode = WechatErrorCodes.find(ex);
+            if (DAILY_QUOTA_EXCEEDED.equals(errcode)) {
+                bucket.block(startOfNextDay());
+            } else if (MINUTE_QUOTA_EXCEEDED.equals(errcode)) {
+                bucket.block(this.clock.millis() + TimeUnit.MINUTES.toMillis(1));
+            } else {
+                throw ex;
+            }
+            // 不带上原来的异常，降级登陆按 temporarily_unavailable 处理
+            throw unavailable.apply(bucket.error("WeChat returned errcode " + errcode));
+        }
+    }
+
+    /**
+     * 本地桶里的令牌数
+     *
+     * @param appid    the appid
+     * @param endpoint the endpoint
+     * @return the permits
+     */
+    public long permits(String appid, WechatEndpoint endpoint) {
+        return bucket(appid, endpoint).permits.get();
+    }
+
+    private Bucket bucket(String appid, WechatEndpoint endpoint) {
+        return this.buckets.computeIfAbsent(appid + ':' + endpoint.tag(),
+                key -> new Bucket(key, appid, endpoint, this.properties.resolve(appid, endpoint)));
+    }
+
+    private void leaseActive() {
+        for (Bucket bucket : this.buckets.values()) {
+            try {
+                if (bucket.active.getAndSet(false)) {
+                    bucket.lease();
+                }
+            } catch (RuntimeException ex) {
+                log.warn("Failed to lease wechat quota for {}", bucket.key, ex);
+            }
+        }
+    }
+
+    private LocalDate today() {
+        return LocalDate.ofInstant(this.clock.instant(), zone());
+    }
+
+    private long startOfNextDay() {
+        return today().plusDays(1).atStartOfDay(zone()).toInstant().toEpochMilli();
+    }
+
+    private ZoneId zone() {
+        return this.properties.getZone();
+    }
+
+    @Override
+    public void destroy() {
+        this.scheduler.shutdownNow();
+    }
+
+    private final class Bucket {
+
+        private final String key;
+        private final String appid;
+        private final WechatEndpoint endpoint;
+        private final WechatQuotaProperties.Limit limit;
+        private final long leaseSize;
+        /**
+         * 低优先级调用要留下的本地令牌数
+         */
+        private final long reservedPermits;
+        /**
+         * 低优先级调用要留下的当天配额
+         */
+        private final long reservedQuota;
+        private final AtomicLong permits = new AtomicLong();
+        private final AtomicBoolean leasing = new AtomicBoolean();
+        /**
+         * 上次租用之后有没有调用，后台只给有调用的桶租用
+         */
+        private final AtomicBoolean active = new AtomicBoolean();
+        private final Counter[] granted = new Counter[Priority.values().length];
+        private final Counter[] rejected = new Counter[Priority.values().length];
+        private volatile long used;
+        private volatile long blockedUntil;
+        /**
+         * 上次租用的时间，桶空了但上次没有租到时，一个租用间隔内不再当场去租
+         */
+        private volatile long leasedAt;
+        private volatile boolean exhausted;
+
+        // 本地补充的状态，只在持有 leasing 时读写
+        private double localTokens;
+        private long localRefilledAt;
+        private String localDay;
+        private long localUsed;
+
+        Bucket(String key, String appid, WechatEndpoint endpoint, WechatQuotaProperties.Limit limit) {
+            this.key = key;
+            this.appid = appid;
+            this.endpoint = endpoint;
+            this.limit = limit;
+            this.leaseSize = properties.getLeaseSize();
+            this.reservedPermits = (long) Math.ceil(this.leaseSize * properties.getReserve());
+            this.reservedQuota = (long) Math.ceil(limit.getDailyQuota() * properties.getReserve());
+            this.localTokens = limit.getBurst();
+            this.localRefilledAt = clock.millis();
+            for (Priority priority : Priority.values()) {
+                this.granted[priority.ordinal()] = counter(priority, "granted");
+                this.rejected[priority.ordinal()] = counter(priority, "rejected");
+            }
+            Gauge.builder(PERMITS, this.permits, AtomicLong::get)
+                    .description("WeChat API permits held by this node")
+                    .tag("appid", appid)
+                    .tag("endpoint", endpoint.tag())
+                    .register(registry);
+            Gauge.builder(REMAINING, this, Bucket::remaining)
+                    .description("WeChat API calls left today across the cluster")
+                    .tag("appid", appid)
+                    .tag("endpoint", endpoint.tag())
+                    .register(registry);
+        }
+
+        boolean tryAcquire(Priority priority) {
+            this.active.set(true);
+            if (clock.millis() < this.blockedUntil) {
+                return false;
+            }
+            long floor = 0;
+            if (priority == Priority.RELOGIN) {
+                if (this.limit.getDailyQuota() > 0 && remaining() < this.reservedQuota) {
+                    return false;
+                }
+                floor = this.reservedPermits;
+            }
+            if (take(floor)) {
+                return true;
+            }
+            // 上次租到了令牌或者已经过了一个租用间隔才当场去租，redis的桶空了时不会每个调用都访问一次redis
+            if ((!this.exhausted || clock.millis() - this.leasedAt >= properties.getLeaseInterval().toMillis()) && lease()) {
+                return take(floor);
+            }
+            return false;
+        }
+
+        private boolean take(long floor) {
+            for (long current = this.permits.get(); current > floor; current = this.permits.get()) {
+                if (this.permits.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 补到 leaseSize，同时只有一个线程在租
+         *
+         * @return 是否租到了令牌
+         */
+        boolean lease() {
+            if (!this.leasing.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                long want = this.leaseSize - this.permits.get();
+                if (want <= 0) {
+                    return true;
+                }
+                long now = clock.millis();
+                String day = today().format(DAY);
+                long grant = -1;
+                if (redis != null) {
+                    try {
+                        long[] result = redis.lease(this.key, day, now, this.limit, want);
+                        grant = result[0];
+                        this.used = result[1];
+                        this.blockedUntil = Math.max(this.blockedUntil, result[2]);
+                    } catch (RuntimeException ex) {
+                        fallback.increment();
+                        log.debug("Failed to lease wechat quota for {} from redis, refilling locally", this.key, ex);
+                    }
+                }
+                if (grant < 0) {
+                    grant = leaseLocally(day, now, want);
+                }
+                this.leasedAt = now;
+                this.exhausted = grant == 0;
+                if (grant > 0) {
+                    this.permits.addAndGet(grant);
+                }
+                return grant > 0;
+            } finally {
+                this.leasing.set(false);
+            }
+        }
+
+        /**
+         * 没有redis时按配置的速率和每日配额在本节点补充
+         */
+        private long leaseLocally(String day, long now, long want) {
+            if (!day.equals(this.localDay)) {
+                this.localDay = day;
+                this.localUsed = 0;
+            }
+            this.localTokens = Math.min(this.limit.getBurst(),
+                    this.localTokens + Math.max(0, now - this.localRefilledAt) * this.limit.getRatePerSecond() / 1000);
+            this.localRefilledAt = now;
+            long grant = Math.min(want, (long) this.localTokens);
+            if (this.limit.getDailyQuota() > 0) {
+                grant = Math.max(0, Math.min(grant, this.limit.getDailyQuota() - this.localUsed));
+            }
+            this.localTokens -= grant;
+            this.localUsed += grant;
+            this.used = this.localUsed;
+            return grant;
+        }
+
+        void block(long untilMillis) {
+            this.blockedUntil = Math.max(this.blockedUntil, untilMillis);
+            this.permits.set(0);
+            if (redis != null) {
+                try {
+                    redis.block(this.key, untilMillis);
+                } catch (RuntimeException ex) {
+                    log.debug("Failed to share the wechat quota block for {}", this.key, ex);
+                }
+            }
+        }
+
+        double remaining() {
+            long dailyQuota = this.limit.getDailyQuota();
+            return dailyQuota > 0 ? Math.max(0, dailyQuota - this.used) : Double.NaN;
+        }
+
+        OAuth2Error error(String reason) {
+            return new OAuth2Error(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE, "WeChat " + this.endpoint.tag()
+                    + " call for appid " + this.appid + " is unavailable: " + reason, null);
+        }
+
+        private Counter counter(Priority priority, String result) {
+            return Counter.builder(CALLS)
+                    .tag("appid", this.appid)
+                    .tag("endpoint", this.endpoint.tag())
+                    .tag("priority", priority.tag)
+                    .tag("result", result)
+                    .register(registry);
+        }
+    }
+}
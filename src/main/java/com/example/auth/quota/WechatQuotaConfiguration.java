@@ -0,0 +1,35 @@
+package com.example.auth.quota;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+
+/**
+ * 按appid限制微信接口的调用量，{@code wechat.quota.enabled=true} 时生效，
+ * 由 SecurityConfiguration 和 WechatUserInfoCacheConfiguration 包装换token和获取用户信息的调用
+ * <p>
+ * Created by berg on 2023/4/16.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatQuotaProperties.class)
+@ConditionalOnProperty(prefix = "wechat.quota", name = "enabled", havingValue = "true")
+public class WechatQuotaConfiguration {
+
+    /**
+     * Wechat quota.
+     *
+     * @param properties             the properties
+     * @param meterRegistry          the meter registry
+     * @param redisConnectionFactory 延迟获取，原因同 RedisConfig 里的授权信息存储
+     * @return the wechat quota
+     */
+    @Bean
+    public WechatQuota wechatQuota(WechatQuotaProperties properties, MeterRegistry meterRegistry,
+                                   @Lazy RedisConnectionFactory redisConnectionFactory) {
+        return new WechatQuota(properties, meterRegistry, properties.isRedis() ? redisConnectionFactory : null);
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.auth.quota;
+
+import com.example.auth.resilience.WechatEndpoint;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 调用微信接口的配额。微信按appid限制 /sns/oauth2/access_token、/sns/userinfo 的调用量，超过后返回45009，
+ * 所有节点同时登陆失败。{@code token}、{@code userinfo} 是所有appid的默认值，{@code apps.<appid>} 下只写需要覆盖的字段
+ *
+ * Created by berg on 2023/4/16.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.quota")
+public class WechatQuotaProperties {
+
+    /**
+     * 是否开启，默认关闭
+     */
+    private boolean enabled = false;
+
+    /**
+     * 是否用redis在节点之间共享令牌桶，关闭时每个节点单独按配置的速率限流
+     */
+    private boolean redis = false;
+
+    private String keyPrefix = "wechat:quota:";
+
+    /**
+     * 后台从redis租用令牌的间隔，只给这段时间内有调用的appid租用
+     */
+    private Duration leaseInterval = Duration.ofMillis(200);
+
+    /**
+     * 本地桶最多持有的令牌数，每次租用补到这个数。越大访问redis越少，但空闲节点手里闲置的令牌越多
+     */
+    private int leaseSize = 20;
+
+    /**
+     * 留给第一次登陆的比例：本地桶的令牌、当天剩余配额低于这个比例时，已缓存用户的后台刷新不再调用微信
+     */
+    private double reserve = 0.2;
+
+    /**
+     * 每日配额按这个时区的0点清零
+     */
+    private ZoneId zone = ZoneId.of("Asia/Shanghai");
+
+    /**
+     * 用code换access_token
+     */
+    private Limit token = Limit.defaults();
+
+    /**
+     * 获取用户信息
+     */
+    private Limit userinfo = Limit.defaults();
+
+    /**
+     * 按appid覆盖的配置，同一个appid的多个registration共用配额
+     */
+    private Map<String, App> apps = new LinkedHashMap<>();
+
+    /**
+     * 某个appid某个接口生效的配置
+     *
+     * @param appid    the appid
+     * @param endpoint the endpoint
+     * @return the limit
+     */
+    public Limit resolve(String appid, WechatEndpoint endpoint) {
+        Limit defaults = endpoint == WechatEndpoint.TOKEN ? this.token : this.userinfo;
+        App app = this.apps.get(appid);
+        if (app == null) {
+            return defaults;
+        }
+        Limit overrides = endpoint == WechatEndpoint.TOKEN ? app.getToken() : app.getUserinfo();
+        return overrides != null ? overrides.merge(defaults) : defaults;
+    }
+
+    @Data
+    public static class App {
+
+        private Limit token;
+
+        private Limit userinfo;
+    }
+
+    /**
+     * 字段为空时使用默认值
+     */
+    @Data
+    public static class Limit {
+
+        /**
+         * 整个集群每秒的调用数
+         */
+        private Double ratePerSecond;
+
+        /**
+         * 令牌桶容量，空闲之后允许的突发调用数
+         */
+        private Integer burst;
+
+        /**
+         * 整个集群每天的调用数，和微信后台的接口配额一致，0表示不限制
+         */
+        private Long dailyQuota;
+
+        static Limit defaults() {
+            Limit limit = new Limit();
+            limit.setRatePerSecond(100.0);
+            limit.setBurst(200);
+            limit.setDailyQuota(0L);
+            return limit;
+        }
+
+        Limit merge(Limit defaults) {
+            Limit limit = new Limit();
+            limit.setRatePerSecond(this.ratePerSecond != null ? this.ratePerSecond : defaults.ratePerSecond);
+            limit.setBurst(this.burst != null ? this.burst : defaults.burst);
+            limit.setDailyQuota(this.dailyQuota != null ? this.dailyQuota : defaults.dailyQuota);
+            return limit;
+        }
+    }
+}
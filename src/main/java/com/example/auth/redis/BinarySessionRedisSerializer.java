@@ -0,0 +1,411 @@
+package com.example.auth.redis;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+import org.springframework.security.web.csrf.DefaultCsrfToken;
+import org.springframework.util.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * spring session属性的二进制序列化，替代带完整类名的json({@link RedisConfig#jsonRedisSerializer()})。
+ * <p>
+ * 格式为 {@code MAGIC + 类型id + 内容}。安全上下文、OAuth2登陆token、微信用户等常用类型注册了固定的类型id，
+ * 按字段顺序写入，不带字段名和类名；没有注册的类型用json序列化后嵌进来，保证任何属性都能存。
+ * 读取时第一个字节不是 {@link #MAGIC} 的按json读取，已有的json会话不受影响。
+ * <p>
+ * 类型id一旦使用就不能修改含义，新类型通过 {@link #register} 追加新的id
+ * <p>
+ * Created by berg on 2023/4/13.
+ */
+public class BinarySessionRedisSerializer implements RedisSerializer<Object> {
+
+    /**
+     * json序列化的结果总是以 '{' '[' '"' 或数字开头，不会是这个字节
+     */
+    static final byte MAGIC = (byte) 0xB5;
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int LONG = 2;
+    private static final int INTEGER = 3;
+    private static final int BOOLEAN = 4;
+    private static final int SECURITY_CONTEXT = 10;
+    private static final int OAUTH2_AUTHENTICATION_TOKEN = 11;
+    private static final int WECHAT_OAUTH2_USER = 12;
+    private static final int SIMPLE_GRANTED_AUTHORITY = 13;
+    private static final int WEB_AUTHENTICATION_DETAILS = 14;
+    private static final int OAUTH2_AUTHORIZATION_REQUEST = 15;
+    private static final int CSRF_TOKEN = 16;
+    /**
+     * 没有注册的类型，内容是json
+     */
+    private static final int JSON = 127;
+
+    private final RedisSerializer<Object> jsonSerializer;
+    private final Map<Class<?>, Integer> typeIds = new HashMap<>();
+    private final Map<Integer, SessionTypeCodec<?>> codecs = new HashMap<>();
+
+    /**
+     * Instantiates a new Binary session redis serializer.
+     *
+     * @param jsonSerializer 读取已有的json会话、序列化没有注册的类型
+     */
+    public BinarySessionRedisSerializer(RedisSerializer<Object> jsonSerializer) {
+        Assert.notNull(jsonSerializer, "jsonSerializer cannot be null");
+        this.jsonSerializer = jsonSerializer;
+        register(STRING, String.class, new SessionTypeCodec<String>() {
+            @Override
+            public void write(String value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException {
+                writeString(value, out);
+            }
+
+            @Override
+            public String read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException {
+                return readString(in);
+            }
+        });
+        register(LONG, Long.class, new SessionTypeCodec<Long>() {
+            @Override
+            public void write(Long value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException {
+                out.writeLong(value);
+            }
+
+            @Override
+            public Long read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException {
+                return in.readLong();
+            }
+        });
+        register(INTEGER, Integer.class, new SessionTypeCodec<Integer>() {
+            @Override
+            public void write(Integer value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException {
+                out.writeInt(value);
+            }
+
+            @Override
+            public Integer read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException {
+                return in.readInt();
+            }
+        });
+        register(BOOLEAN, Boolean.class, new SessionTypeCodec<Boolean>() {
+            @Override
+            public void write(Boolean value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException {
+                out.writeBoolean(value);
+            }
+
+            @Override
+            public Boolean read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException {
+                return in.readBoolean();
+            }
+        });
+        register(SECURITY_CONTEXT, SecurityContextImpl.class, new SecurityContextCodec());
+        register(OAUTH2_AUTHENTICATION_TOKEN, OAuth2AuthenticationToken.class, new OAuth2AuthenticationTokenCodec());
+        register(WECHAT_OAUTH2_USER, WechatOAuth2User.class, new SessionTypeCodec<WechatOAuth2User>() {
+            @Override
+            public void write(WechatOAuth2User value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException {
+                WechatOAuth2UserRedisSerializer.write(value, out);
+            }
+
+            @Override
+            public WechatOAuth2User read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException {
+                return WechatOAuth2UserRedisSerializer.read(in);
+            }
+        });
+        register(SIMPLE_GRANTED_AUTHORITY, SimpleGrantedAuthority.class, new SessionTypeCodec<SimpleGrantedAuthority>() {
+            @Override
+            public void write(SimpleGrantedAuthority value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException {
+                writeString(value.getAuthority(), out);
+            }
+
+            @Override
+            public SimpleGrantedAuthority read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException {
+                return new SimpleGrantedAuthority(readString(in));
+            }
+        });
+        register(WEB_AUTHENTICATION_DETAILS, WebAuthenticationDetails.class, new SessionTypeCodec<WebAuthenticationDetails>() {
+            @Override
+            public void write(WebAuthenticationDetails value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException {
+                writeString(value.getRemoteAddress(), out);
+                writeString(value.getSessionId(), out);
+            }
+
+            @Override
+            public WebAuthenticationDetails read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException {
+                return new WebAuthenticationDetails(readString(in), readString(in));
+            }
+        });
+        register(OAUTH2_AUTHORIZATION_REQUEST, OAuth2AuthorizationRequest.class, new OAuth2AuthorizationRequestCodec());
+        register(CSRF_TOKEN, DefaultCsrfToken.class, new SessionTypeCodec<DefaultCsrfToken>() {
+            @Override
+            public void write(DefaultCsrfToken value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException {
+                writeString(value.getHeaderName(), out);
+                writeString(value.getParameterName(), out);
+                writeString(value.getToken(), out);
+            }
+
+            @Override
+            public DefaultCsrfToken read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException {
+                return new DefaultCsrfToken(readString(in), readString(in), readString(in));
+            }
+        });
+    }
+
+    /**
+     * 注册一个类型，只匹配完全相同的类，不匹配子类
+     *
+     * @param typeId 1-126之间，不能和已有的重复
+     * @param type   the type
+     * @param codec  the codec
+     * @param <T>    the type parameter
+     */
+    public <T> void register(int typeId, Class<T> type, SessionTypeCodec<T> codec) {
+        Assert.isTrue(typeId > NULL && typeId < JSON, "typeId must be between 1 and 126");
+        Assert.isTrue(!this.codecs.containsKey(typeId), () -> "typeId " + typeId + " is already registered");
+        this.typeIds.put(type, typeId);
+        this.codecs.put(typeId, codec);
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(MAGIC);
+            writeObject(value, out);
+        } catch (IOException ex) {
+            throw new SerializationException("Could not write session attribute", ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (bytes[0] != MAGIC) {
+            // 切换之前写入的json会话
+            return this.jsonSerializer.deserialize(bytes);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1))) {
+            return readObject(in);
+        } catch (IOException ex) {
+            throw new SerializationException("Could not read session attribute", ex);
+        }
+    }
+
+    /**
+     * 是否是字符串、数字、布尔这类读取很便宜的简单值，会话的创建时间、最后访问时间等字段也是这些类型。
+     * 二进制格式看类型id，json格式看是不是对象或数组
+     *
+     * @param bytes 序列化后的属性
+     * @return the boolean
+     */
+    public static boolean isScalar(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return true;
+        }
+        if (bytes[0] == MAGIC) {
+            return bytes.length == 1 || (bytes[1] & 0xFF) <= BOOLEAN;
+        }
+        return bytes[0] != '{' && bytes[0] != '[';
+    }
+
+    /**
+     * 写入类型id和内容
+     *
+     * @param value the value
+     * @param out   the out
+     * @throws IOException the io exception
+     */
+    @SuppressWarnings("unchecked")
+    public void writeObject(Object value, DataOutputStream out) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Integer typeId = this.typeIds.get(value.getClass());
+        if (typeId == null) {
+            byte[] json = this.jsonSerializer.serialize(value);
+            out.writeByte(JSON);
+            out.writeInt(json.length);
+            out.write(json);
+            return;
+        }
+        out.writeByte(typeId);
+        ((SessionTypeCodec<Object>) this.codecs.get(typeId)).write(value, out, this);
+    }
+
+    /**
+     * 按类型id读取
+     *
+     * @param in the in
+     * @return the object
+     * @throws IOException the io exception
+     */
+    public Object readObject(DataInputStream in) throws IOException {
+        int typeId = in.readUnsignedByte();
+        if (typeId == NULL) {
+            return null;
+        }
+        if (typeId == JSON) {
+            byte[] json = new byte[in.readInt()];
+            in.readFully(json);
+            return this.jsonSerializer.deserialize(json);
+        }
+        SessionTypeCodec<?> codec = this.codecs.get(typeId);
+        if (codec == null) {
+            throw new IOException("Unknown session attribute type id " + typeId);
+        }
+        return codec.read(in, this);
+    }
+
+    /**
+     * 可以为null的字符串，长度为-1表示null，不受 {@link DataOutputStream#writeUTF} 64K的限制
+     *
+     * @param value the value
+     * @param out   the out
+     * @throws IOException the io exception
+     */
+    public static void writeString(String value, DataOutputStream out) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeMap(Map<String, Object> map, DataOutputStream out) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            writeString(entry.getKey(), out);
+            writeObject(entry.getValue(), out);
+        }
+    }
+
+    private Map<String, Object> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, Object> map = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readObject(in));
+        }
+        return map;
+    }
+
+    private static class SecurityContextCodec implements SessionTypeCodec<SecurityContextImpl> {
+
+        @Override
+        public void write(SecurityContextImpl value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException {
+            serializer.writeObject(value.getAuthentication(), out);
+        }
+
+        @Override
+        public SecurityContextImpl read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException {
+            return new SecurityContextImpl((Authentication) serializer.readObject(in));
+        }
+    }
+
+    private static class OAuth2AuthenticationTokenCodec implements SessionTypeCodec<OAuth2AuthenticationToken> {
+
+        @Override
+        public void write(OAuth2AuthenticationToken value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException {
+            serializer.writeObject(value.getPrincipal(), out);
+            Collection<GrantedAuthority> authorities = value.getAuthorities();
+            out.writeInt(authorities.size());
+            for (GrantedAuthority authority : authorities) {
+                serializer.writeObject(authority, out);
+            }
+            writeString(value.getAuthorizedClientRegistrationId(), out);
+            serializer.writeObject(value.getDetails(), out);
+        }
+
+        @Override
+        public OAuth2AuthenticationToken read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException {
+            OAuth2User principal = (OAuth2User) serializer.readObject(in);
+            int size = in.readInt();
+            List<GrantedAuthority> authorities = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                authorities.add((GrantedAuthority) serializer.readObject(in));
+            }
+            OAuth2AuthenticationToken token = new OAuth2AuthenticationToken(principal, authorities, readString(in));
+            token.setDetails(serializer.readObject(in));
+            return token;
+        }
+    }
+
+    private static class OAuth2AuthorizationRequestCodec implements SessionTypeCodec<OAuth2AuthorizationRequest> {
+
+        @Override
+        public void write(OAuth2AuthorizationRequest value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException {
+            writeString(value.getGrantType().getValue(), out);
+            writeString(value.getAuthorizationUri(), out);
+            writeString(value.getClientId(), out);
+            writeString(value.getRedirectUri(), out);
+            out.writeInt(value.getScopes().size());
+            for (String scope : value.getScopes()) {
+                writeString(scope, out);
+            }
+            writeString(value.getState(), out);
+            serializer.writeMap(value.getAdditionalParameters(), out);
+            writeString(value.getAuthorizationRequestUri(), out);
+            serializer.writeMap(value.getAttributes(), out);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public OAuth2AuthorizationRequest read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException {
+            String grantType = readString(in);
+            OAuth2AuthorizationRequest.Builder builder = AuthorizationGrantType.AUTHORIZATION_CODE.getValue().equals(grantType)
+                    ? OAuth2AuthorizationRequest.authorizationCode()
+                    : OAuth2AuthorizationRequest.implicit();
+            builder.authorizationUri(readString(in))
+                    .clientId(readString(in))
+                    .redirectUri(readString(in));
+            int size = in.readInt();
+            Set<String> scopes = new LinkedHashSet<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                scopes.add(readString(in));
+            }
+            return builder.scopes(scopes)
+                    .state(readString(in))
+                    .additionalParameters(serializer.readMap(in))
+                    .authorizationRequestUri(readString(in))
+                    .attributes(serializer.readMap(in))
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.auth.redis;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * 延迟反序列化会话属性：简单值直接读取，安全上下文、授权请求这类对象先保留原始字节，
+ * 包装成{@link LazySessionAttribute}，由{@link LazySessionRepository}在第一次 getAttribute 时才反序列化。
+ * 只需要登陆用户的请求不会去解析授权请求等其它属性，没读过的属性回写时直接用原始字节
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class LazyRedisSerializer implements RedisSerializer<Object> {
+
+    private final RedisSerializer<Object> delegate;
+
+    public LazyRedisSerializer(RedisSerializer<Object> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (value instanceof LazySessionAttribute) {
+            return ((LazySessionAttribute) value).serialize();
+        }
+        return this.delegate.serialize(value);
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (BinarySessionRedisSerializer.isScalar(bytes)) {
+            return this.delegate.deserialize(bytes);
+        }
+        return new LazySessionAttribute(bytes, this.delegate);
+    }
+
+    /**
+     * 还没有反序列化的会话属性
+     */
+    static final class LazySessionAttribute {
+
+        private final byte[] bytes;
+        private final RedisSerializer<Object> serializer;
+        private volatile boolean resolved;
+        private Object value;
+
+        LazySessionAttribute(byte[] bytes, RedisSerializer<Object> serializer) {
+            this.bytes = bytes;
+            this.serializer = serializer;
+        }
+
+        Object get() {
+            if (!this.resolved) {
+                synchronized (this) {
+                    if (!this.resolved) {
+                        this.value = this.serializer.deserialize(this.bytes);
+                        this.resolved = true;
+                    }
+                }
+            }
+            return this.value;
+        }
+
+        /**
+         * 读出来的对象可能被修改过，读过的重新序列化
+         */
+        byte[] serialize() {
+            return this.resolved ? this.serializer.serialize(this.value) : this.bytes;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.auth.redis;
+
+import org.springframework.session.Session;
+import org.springframework.session.SessionRepository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+
+/**
+ * 配合{@link LazyRedisSerializer}使用，getAttribute 时才反序列化取到的属性，其它操作都交给被代理的repository
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class LazySessionRepository<S extends Session> implements SessionRepository<LazySessionRepository.LazySession<S>> {
+
+    private final SessionRepository<S> delegate;
+
+    public LazySessionRepository(SessionRepository<S> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public LazySession<S> createSession() {
+        return new LazySession<>(this.delegate.createSession());
+    }
+
+    @Override
+    public void save(LazySession<S> session) {
+        this.delegate.save(session.delegate);
+    }
+
+    @Override
+    public LazySession<S> findById(String id) {
+        S session = this.delegate.findById(id);
+        return session != null ? new LazySession<>(session) : null;
+    }
+
+    @Override
+    public void deleteById(String id) {
+        this.delegate.deleteById(id);
+    }
+
+    public static final class LazySession<S extends Session> implements Session {
+
+        private final S delegate;
+
+        LazySession(S delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T getAttribute(String attributeName) {
+            Object value = this.delegate.getAttribute(attributeName);
+            if (value instanceof LazyRedisSerializer.LazySessionAttribute) {
+                return (T) ((LazyRedisSerializer.LazySessionAttribute) value).get();
+            }
+            return (T) value;
+        }
+
+        @Override
+        public String getId() {
+            return this.delegate.getId();
+        }
+
+        @Override
+        public String changeSessionId() {
+            return this.delegate.changeSessionId();
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return this.delegate.getAttributeNames();
+        }
+
+        @Override
+        public void setAttribute(String attributeName, Object attributeValue) {
+            this.delegate.setAttribute(attributeName, attributeValue);
+        }
+
+        @Override
+        public void removeAttribute(String attributeName) {
+            this.delegate.removeAttribute(attributeName);
+        }
+
+        @Override
+        public Instant getCreationTime() {
+            return this.delegate.getCreationTime();
+        }
+
+        @Override
+        public void setLastAccessedTime(Instant lastAccessedTime) {
+            this.delegate.setLastAccessedTime(lastAccessedTime);
+        }
+
+        @Override
+        public Instant getLastAccessedTime() {
+            return this.delegate.getLastAccessedTime();
+        }
+
+        @Override
+        public void setMaxInactiveInterval(Duration interval) {
+            this.delegate.setMaxInactiveInterval(interval);
+        }
+
+        @Override
+        public Duration getMaxInactiveInterval() {
+            return this.delegate.getMaxInactiveInterval();
+        }
+
+        @Override
+        public boolean isExpired() {
+            return this.delegate.isExpired();
+        }
+    }
+}
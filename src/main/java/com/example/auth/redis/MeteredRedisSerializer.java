@@ -0,0 +1,74 @@
+package com.example.auth.redis;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.util.Assert;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 记录会话属性序列化耗时和大小的{@link RedisSerializer}：
+ * {@code wechat.session.serializer{operation=serialize|deserialize}} 和 {@code wechat.session.size}，
+ * tag serializer 是 binary 或 json。每个会话属性都会调用一次，meter在构造时注册好
+ * <p>
+ * Created by berg on 2023/4/14.
+ */
+public class MeteredRedisSerializer implements RedisSerializer<Object> {
+
+    private final RedisSerializer<Object> delegate;
+    private final Timer serializeTimer;
+    private final Timer deserializeTimer;
+    private final DistributionSummary serializedSize;
+    private final DistributionSummary deserializedSize;
+
+    public MeteredRedisSerializer(RedisSerializer<Object> delegate, String serializer, MeterRegistry registry) {
+        Assert.notNull(delegate, "delegate cannot be null");
+        this.delegate = delegate;
+        this.serializeTimer = timer(serializer, "serialize", registry);
+        this.deserializeTimer = timer(serializer, "deserialize", registry);
+        this.serializedSize = size(serializer, "serialize", registry);
+        this.deserializedSize = size(serializer, "deserialize", registry);
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        long start = System.nanoTime();
+        byte[] bytes = this.delegate.serialize(value);
+        this.serializeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (bytes != null) {
+            this.serializedSize.record(bytes.length);
+        }
+        return bytes;
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        long start = System.nanoTime();
+        Object value = this.delegate.deserialize(bytes);
+        this.deserializeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (bytes != null) {
+            this.deserializedSize.record(bytes.length);
+        }
+        return value;
+    }
+
+    private static Timer timer(String serializer, String operation, MeterRegistry registry) {
+        return Timer.builder("wechat.session.serializer")
+                .description("Time spent (de)serializing a session attribute")
+                .tag("serializer", serializer)
+                .tag("operation", operation)
+                .register(registry);
+    }
+
+    private static DistributionSummary size(String serializer, String operation, MeterRegistry registry) {
+        return DistributionSummary.builder("wechat.session.size")
+                .description("Size of a serialized session attribute")
+                .baseUnit("bytes")
+                .tag("serializer", serializer)
+                .tag("operation", operation)
+                .register(registry);
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.auth.redis;
+
+import io.lettuce.core.ReadFrom;
+import io.lettuce.core.event.command.CommandListener;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.session.config.SessionRepositoryCustomizer;
+import org.springframework.session.data.redis.RedisIndexedSessionRepository;
+import org.springframework.util.Assert;
+
+/**
+ * 只让会话读取走从节点：给 RedisIndexedSessionRepository 单独建一个带 ReadFrom 的连接工厂，
+ * 集群、哨兵、密码、超时、客户端选项和共享连接工厂一致。授权信息、换token合并的轮询、客户端配置的重新加载等
+ * 仍然用共享的连接工厂，只读主节点，不受从节点复制延迟的影响。
+ * 单机部署没有从节点可读，保持共享连接工厂
+ * <p>
+ * Created by berg on 2023/4/16.
+ */
+public class ReadFromSessionRepositoryCustomizer implements SessionRepositoryCustomizer<RedisIndexedSessionRepository>,
+        DisposableBean {
+
+    private final ReadFrom readFrom;
+    private final CommandListener commandListener;
+    private volatile LettuceConnectionFactory connectionFactory;
+
+    /**
+     * @param readFrom        会话读命令发到哪个节点
+     * @param commandListener 为空时不统计会话连接上的命令，见 {@link RedisCommandCounter}
+     */
+    public ReadFromSessionRepositoryCustomizer(ReadFrom readFrom, CommandListener commandListener) {
+        Assert.notNull(readFrom, "readFrom cannot be null");
+        this.readFrom = readFrom;
+        this.commandListener = commandListener;
+    }
+
+    @Override
+    public void customize(RedisIndexedSessionRepository sessionRepository) {
+        RedisTemplate<?, ?> redisTemplate = (RedisTemplate<?, ?>) sessionRepository.getSessionRedisOperations();
+        RedisConnectionFactory shared = redisTemplate.getConnectionFactory();
+        if (!(shared instanceof LettuceConnectionFactory)) {
+            return;
+        }
+        LettuceConnectionFactory connectionFactory = create((LettuceConnectionFactory) shared);
+        if (connectionFactory == null) {
+            return;
+        }
+        connectionFactory.afterPropertiesSet();
+        if (this.commandListener != null && connectionFactory.getNativeClient() != null) {
+            connectionFactory.getNativeClient().addListener(this.commandListener);
+        }
+        this.connectionFactory = connectionFactory;
+        redisTemplate.setConnectionFactory(connectionFactory);
+    }
+
+    private LettuceConnectionFactory create(LettuceConnectionFactory shared) {
+        LettuceClientConfiguration clientConfiguration = clientConfiguration(shared.getClientConfiguration());
+        if (shared.isClusterAware()) {
+            return new LettuceConnectionFactory(shared.getClusterConfiguration(), clientConfiguration);
+        }
+        if (shared.isRedisSentinelAware()) {
+            return new LettuceConnectionFactory(shared.getSentinelConfiguration(), clientConfiguration);
+        }
+        return null;
+    }
+
+    /**
+     * 复制共享连接工厂的客户端配置，只换 ReadFrom。ClientResources 共用，关闭时不会关掉共享的线程池
+     */
+    private LettuceClientConfiguration clientConfiguration(LettuceClientConfiguration shared) {
+        LettuceClientConfiguration.LettuceClientConfigurationBuilder builder = LettuceClientConfiguration.builder();
+        if (shared.isUseSsl()) {
+            LettuceClientConfiguration.LettuceSslClientConfigurationBuilder ssl = builder.useSsl();
+            if (!shared.isVerifyPeer()) {
+                ssl.disablePeerVerification();
+            }
+            if (shared.isStartTls()) {
+                ssl.startTls();
+            }
+            builder = ssl.and();
+        }
+        shared.getClientResources().ifPresent(builder::clientResources);
+        shared.getClientOptions().ifPresent(builder::clientOptions);
+        shared.getClientName().ifPresent(builder::clientName);
+        return builder.readFrom(this.readFrom)
+                .commandTimeout(shared.getCommandTimeout())
+                .shutdownTimeout(shared.getShutdownTimeout())
+                .shutdownQuietPeriod(shared.getShutdownQuietPeriod())
+                .build();
+    }
+
+    @Override
+    public void destroy() {
+        LettuceConnectionFactory connectionFactory = this.connectionFactory;
+        if (connectionFactory != null) {
+            connectionFactory.destroy();
+        }
+    }
+}
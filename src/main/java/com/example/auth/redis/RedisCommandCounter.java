@@ -0,0 +1,61 @@
+package com.example.auth.redis;
+
+import io.lettuce.core.event.command.CommandListener;
+import io.lettuce.core.event.command.CommandStartedEvent;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 统计每个请求发出的redis命令数：{@code wechat.redis.commands}。
+ * <p>
+ * lettuce 在调用线程上分发命令时回调{@link #commandStarted}，请求线程上有计数器时加一，其它线程只多一次ThreadLocal读取。
+ * 共享连接上没有显式的pipeline，每个命令就是一次往返；会话读写、授权信息等走同一个连接工厂的都算在内
+ * <p>
+ * Created by berg on 2023/4/16.
+ */
+public class RedisCommandCounter implements CommandListener {
+
+    private final ThreadLocal<int[]> current = new ThreadLocal<>();
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        int[] count = this.current.get();
+        if (count != null) {
+            count[0]++;
+        }
+    }
+
+    /**
+     * 给请求挂上计数器的过滤器，要放在 SessionRepositoryFilter 外面，才能算上请求结束时保存会话的命令
+     *
+     * @param registry the registry
+     * @return the filter
+     */
+    public OncePerRequestFilter filter(MeterRegistry registry) {
+        DistributionSummary commands = DistributionSummary.builder("wechat.redis.commands")
+                .description("Redis commands issued while serving one request")
+                .baseUnit("commands")
+                .register(registry);
+        return new OncePerRequestFilter() {
+            @Override
+            protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+                    throws ServletException, IOException {
+                int[] count = new int[1];
+                RedisCommandCounter.this.current.set(count);
+                try {
+                    filterChain.doFilter(request, response);
+                } finally {
+                    RedisCommandCounter.this.current.remove();
+                    commands.record(count[0]);
+                }
+            }
+        };
+    }
+}
@@ -6,22 +6,257 @@ import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.jsontype.PolymorphicTypeValidator;
 import com.fasterxml.jackson.databind.jsontype.impl.StdTypeResolverBuilder;
+import io.lettuce.core.AbstractRedisClient;
+import io.lettuce.core.ClientOptions;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.data.redis.LettuceClientConfigurationBuilderCustomizer;
+import org.springframework.boot.autoconfigure.session.RedisSessionProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.KotlinDetector;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.security.jackson2.SecurityJackson2Modules;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.session.DelegatingIndexResolver;
+import org.springframework.session.IndexResolver;
+import org.springframework.session.PrincipalNameIndexResolver;
+import org.springframework.session.Session;
+import org.springframework.session.SessionRepository;
+import org.springframework.session.config.SessionRepositoryCustomizer;
+import org.springframework.session.data.redis.RedisIndexedSessionRepository;
+import org.springframework.session.web.http.CookieHttpSessionIdResolver;
+import org.springframework.session.web.http.CookieSerializer;
+import org.springframework.session.web.http.HttpSessionIdResolver;
+import org.springframework.session.web.http.SessionRepositoryFilter;
 import org.springframework.util.ClassUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.time.Duration;
 
 /**
  * Created by berg on 2023/4/8.
  */
 @Configuration
+@EnableConfigurationProperties(WechatSessionProperties.class)
 public class RedisConfig {
 
     @Bean("springSessionDefaultRedisSerializer")
-    public RedisSerializer<Object> defaultRedisSerializer() {
+    public RedisSerializer<Object> defaultRedisSerializer(WechatSessionProperties sessionProperties,
+                                                          MeterRegistry meterRegistry) {
+        RedisSerializer<Object> jsonRedisSerializer = jsonRedisSerializer();
+        if (sessionProperties.getSerializer() == WechatSessionProperties.Serializer.JSON) {
+            return new MeteredRedisSerializer(jsonRedisSerializer, "json", meterRegistry);
+        }
+        // 二进制格式，仍然可以读取切换之前的json会话
+        return new MeteredRedisSerializer(new BinarySessionRedisSerializer(jsonRedisSerializer), "binary", meterRegistry);
+    }
+
+    /**
+     * 授权信息存到redis，替换spring boot默认的内存存储
+     *
+     * @param clientRegistrationRepository the client registration repository
+     * @param redisConnectionFactory       延迟获取，刷新token的服务会在meter registry初始化时创建，这时连接工厂还在创建中
+     * @param sessionProperties            the session properties
+     * @return the redis o auth 2 authorized client service
+     */
+    @Bean
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    @ConditionalOnProperty(prefix = "wechat.session.authorized-client", name = "store", havingValue = "redis", matchIfMissing = true)
+    public RedisOAuth2AuthorizedClientService redisOAuth2AuthorizedClientService(ClientRegistrationRepository clientRegistrationRepository,
+                                                                                 @Lazy RedisConnectionFactory redisConnectionFactory,
+                                                                                 WechatSessionProperties sessionProperties) {
+        WechatSessionProperties.AuthorizedClient authorizedClient = sessionProperties.getAuthorizedClient();
+        return new RedisOAuth2AuthorizedClientService(clientRegistrationRepository, redisConnectionFactory,
+                authorizedClient.getKeyPrefix(), authorizedClient.getTtl());
+    }
+
+    /**
+     * 会话属性延迟反序列化，{@code wechat.session.lazy-attributes=false} 时关闭
+     */
+    @Configuration
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    @ConditionalOnProperty(prefix = "wechat.session", name = "lazy-attributes", havingValue = "true", matchIfMissing = true)
+    static class LazySessionConfiguration {
+
+        /**
+         * 读取会话时不再反序列化对象类型的属性。
+         * 加载会话时要按安全上下文算principal索引，安全上下文在这里就会解析，授权请求等其它属性仍然延迟
+         */
+        @Bean
+        SessionRepositoryCustomizer<RedisIndexedSessionRepository> lazySessionRepositoryCustomizer() {
+            return sessionRepository -> {
+                RedisTemplate<?, ?> redisTemplate = (RedisTemplate<?, ?>) sessionRepository.getSessionRedisOperations();
+                @SuppressWarnings("unchecked")
+                RedisSerializer<Object> hashValueSerializer = (RedisSerializer<Object>) redisTemplate.getHashValueSerializer();
+                redisTemplate.setHashValueSerializer(new LazyRedisSerializer(hashValueSerializer));
+                IndexResolver<Session> indexResolver = new DelegatingIndexResolver<>(new PrincipalNameIndexResolver<>());
+                sessionRepository.setIndexResolver(session -> indexResolver.resolveIndexesFor(new LazySessionRepository.LazySession<>(session)));
+            };
+        }
+    }
+
+    /**
+     * 会话的key加上hash tag，{@code wechat.session.cluster.hash-tags=true} 时开启
+     *
+     * @param redisSessionProperties spring.session.redis 配置，取namespace
+     * @return the session repository customizer
+     */
+    @Bean
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    @ConditionalOnProperty(prefix = "wechat.session.cluster", name = "hash-tags", havingValue = "true")
+    SessionRepositoryCustomizer<RedisIndexedSessionRepository> hashTagSessionRepositoryCustomizer(RedisSessionProperties redisSessionProperties) {
+        SessionKeyHashTagSerializer keySerializer = new SessionKeyHashTagSerializer(redisSessionProperties.getNamespace());
+        return sessionRepository -> ((RedisTemplate<?, ?>) sessionRepository.getSessionRedisOperations()).setKeySerializer(keySerializer);
+    }
+
+    /**
+     * spring session的过滤器只认 SessionRepository 类型的bean，再注册一个会让spring boot不再配置redis会话，
+     * 所以在这里把过滤器换成包装过的repository：延迟反序列化({@link LazySessionRepository})、
+     * 合并访问时间的更新({@link TouchCoalescingSessionRepository})，会话id的解析方式和原来一致
+     */
+    @Bean
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    static BeanPostProcessor wechatSessionRepositoryFilterPostProcessor(ObjectProvider<RedisIndexedSessionRepository> redisSessionRepository,
+                                                                        ObjectProvider<HttpSessionIdResolver> httpSessionIdResolver,
+                                                                        ObjectProvider<CookieSerializer> cookieSerializer,
+                                                                        ObjectProvider<WechatSessionProperties> sessionProperties) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (!(bean instanceof SessionRepositoryFilter)) {
+                    return bean;
+                }
+                RedisIndexedSessionRepository sessionRepository = redisSessionRepository.getIfAvailable();
+                if (sessionRepository == null) {
+                    return bean;
+                }
+                WechatSessionProperties properties = sessionProperties.getObject();
+                boolean coalesceTouch = !properties.getTouchInterval().isZero();
+                if (!properties.isLazyAttributes() && !coalesceTouch) {
+                    return bean;
+                }
+                SessionRepositoryFilter<?> filter = properties.isLazyAttributes()
+                        ? filter(new LazySessionRepository<>(sessionRepository), properties.getTouchInterval())
+                        : filter(sessionRepository, properties.getTouchInterval());
+                HttpSessionIdResolver resolver = httpSessionIdResolver.getIfAvailable();
+                if (resolver == null) {
+                    CookieHttpSessionIdResolver cookieResolver = new CookieHttpSessionIdResolver();
+                    cookieSerializer.ifAvailable(cookieResolver::setCookieSerializer);
+                    resolver = cookieResolver;
+                }
+                filter.setHttpSessionIdResolver(resolver);
+                return filter;
+            }
+        };
+    }
+
+    private static <S extends Session> SessionRepositoryFilter<?> filter(SessionRepository<S> sessionRepository, Duration touchInterval) {
+        if (touchInterval.isZero()) {
+            return new SessionRepositoryFilter<>(sessionRepository);
+        }
+        return new SessionRepositoryFilter<>(new TouchCoalescingSessionRepository<>(sessionRepository, touchInterval));
+    }
+
+    /**
+     * 会话读取分摊到从节点，{@code wechat.session.cluster.read-from} 配置时开启。
+     * 只作用于会话存储单独的连接工厂，共享连接工厂的其它读取仍然只读主节点
+     *
+     * @param sessionProperties   the session properties
+     * @param redisCommandCounter 开启 command-metrics 时会话连接上的命令也计数
+     * @return the session repository customizer
+     */
+    @Bean
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    @ConditionalOnProperty(prefix = "wechat.session.cluster", name = "read-from")
+    ReadFromSessionRepositoryCustomizer readFromSessionRepositoryCustomizer(WechatSessionProperties sessionProperties,
+                                                                           ObjectProvider<RedisCommandCounter> redisCommandCounter) {
+        return new ReadFromSessionRepositoryCustomizer(sessionProperties.getCluster().getReadFrom().toLettuce(),
+                redisCommandCounter.getIfAvailable());
+    }
+
+    /**
+     * lettuce 默认所有线程共用一个连接，命令在同一个连接上连续发送，不用连接池，也就没有等连接的阻塞。
+     * 在spring boot的配置(超时等)基础上改为断线时直接拒绝命令，并限制排队的命令数
+     *
+     * @param sessionProperties the session properties
+     * @return the lettuce client configuration builder customizer
+     */
+    @Bean
+    public LettuceClientConfigurationBuilderCustomizer wechatLettuceClientConfigurationCustomizer(WechatSessionProperties sessionProperties) {
+        WechatSessionProperties.Connection connection = sessionProperties.getConnection();
+        return builder -> {
+            ClientOptions clientOptions = builder.build().getClientOptions().orElseGet(ClientOptions::create);
+            builder.clientOptions(clientOptions.mutate()
+                    .disconnectedBehavior(connection.isRejectWhenDisconnected()
+                            ? ClientOptions.DisconnectedBehavior.REJECT_COMMANDS
+                            : ClientOptions.DisconnectedBehavior.DEFAULT)
+                    .requestQueueSize(connection.getRequestQueueSize())
+                    .build());
+        };
+    }
+
+    /**
+     * 每个请求的redis命令数，{@code wechat.session.command-metrics=false} 时关闭
+     */
+    @Configuration
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    @ConditionalOnProperty(prefix = "wechat.session", name = "command-metrics", havingValue = "true", matchIfMissing = true)
+    static class RedisCommandMetricsConfiguration {
+
+        @Bean
+        static RedisCommandCounter redisCommandCounter() {
+            return new RedisCommandCounter();
+        }
+
+        /**
+         * 连接在第一次使用时才建立，在连接工厂初始化后注册监听，之后建立的连接都会回调
+         */
+        @Bean
+        static BeanPostProcessor redisCommandCounterPostProcessor(ObjectProvider<RedisCommandCounter> redisCommandCounter) {
+            return new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    if (bean instanceof LettuceConnectionFactory) {
+                        AbstractRedisClient client = ((LettuceConnectionFactory) bean).getNativeClient();
+                        if (client != null) {
+                            client.addListener(redisCommandCounter.getObject());
+                        }
+                    }
+                    return bean;
+                }
+            };
+        }
+
+        /**
+         * 在 SessionRepositoryFilter 外面，算上请求结束时保存会话的命令
+         */
+        @Bean
+        FilterRegistrationBean<OncePerRequestFilter> redisCommandCounterFilter(RedisCommandCounter redisCommandCounter,
+                                                                               MeterRegistry meterRegistry) {
+            FilterRegistrationBean<OncePerRequestFilter> registration = new FilterRegistrationBean<>(
+                    redisCommandCounter.filter(meterRegistry));
+            registration.setOrder(SessionRepositoryFilter.DEFAULT_ORDER - 1);
+            return registration;
+        }
+    }
+
+    /**
+     * 带完整类名的json序列化
+     *
+     * @return the redis serializer
+     */
+    public static RedisSerializer<Object> jsonRedisSerializer() {
         // 参考 RedisSerializer.json();
         ObjectMapper mapper = new ObjectMapper();
         StdTypeResolverBuilder typer = new TypeResolverBuilder(ObjectMapper.DefaultTyping.EVERYTHING,
@@ -30,7 +265,7 @@ public class RedisConfig {
         typer = typer.inclusion(JsonTypeInfo.As.PROPERTY);
         mapper.setDefaultTyping(typer);
         GenericJackson2JsonRedisSerializer.registerNullValueSerializer(mapper, null);
-        mapper.registerModules(SecurityJackson2Modules.getModules(getClass().getClassLoader()));
+        mapper.registerModules(SecurityJackson2Modules.getModules(RedisConfig.class.getClassLoader()));
         return new GenericJackson2JsonRedisSerializer(mapper);
     }
 
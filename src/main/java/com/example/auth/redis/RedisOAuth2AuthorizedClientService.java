@@ -0,0 +1,205 @@
+package com.example.auth.redis;
+
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2RefreshToken;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 基于redis的{@link OAuth2AuthorizedClientService}，授权信息不放在会话里，每个用户每个registration一个hash：
+ * <pre>
+ * 前缀 + registrationId:principalName
+ *   access_token / access_issued_at / access_expires_at / scope
+ *   refresh_token / refresh_issued_at
+ * </pre>
+ * 字段都是字符串，时间是epoch毫秒。只需要access_token的调用方用{@link #loadAccessToken}只取access相关的字段，
+ * 不会读出refresh_token。key在refresh_token过期(ttl)后删除，没有refresh_token的在access_token过期后删除
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class RedisOAuth2AuthorizedClientService implements OAuth2AuthorizedClientService {
+
+    static final String ACCESS_TOKEN = "access_token";
+    static final String ACCESS_ISSUED_AT = "access_issued_at";
+    static final String ACCESS_EXPIRES_AT = "access_expires_at";
+    static final String SCOPE = "scope";
+    static final String REFRESH_TOKEN = "refresh_token";
+    static final String REFRESH_ISSUED_AT = "refresh_issued_at";
+
+    private static final byte[][] ACCESS_FIELDS = bytes(ACCESS_TOKEN, ACCESS_ISSUED_AT, ACCESS_EXPIRES_AT, SCOPE);
+    private static final byte[][] ALL_FIELDS = bytes(ACCESS_TOKEN, ACCESS_ISSUED_AT, ACCESS_EXPIRES_AT, SCOPE,
+            REFRESH_TOKEN, REFRESH_ISSUED_AT);
+
+    /**
+     * 先删除再写，没有refresh_token时不会留下旧的字段；放在一个脚本里执行，并发读到的不会是删掉后还没写完、
+     * 或者还没设置过期时间的hash，中途连接断开也不会留下永不过期的key。ARGV[1]是过期时间，之后是字段和值
+     */
+    private static final RedisScript<Long> SAVE = new DefaultRedisScript<>(
+            "redis.call('del', KEYS[1]) "
+                    + "redis.call('hmset', KEYS[1], unpack(ARGV, 2)) "
+                    + "redis.call('pexpireat', KEYS[1], ARGV[1]) "
+                    + "return 1", Long.class);
+
+    private final ClientRegistrationRepository clientRegistrationRepository;
+    private final StringRedisTemplate redisTemplate;
+    private final String keyPrefix;
+    private final Duration ttl;
+
+    /**
+     * Instantiates a new Redis o auth 2 authorized client service.
+     *
+     * @param clientRegistrationRepository the client registration repository
+     * @param connectionFactory            the connection factory
+     * @param keyPrefix                    key前缀
+     * @param ttl                          refresh_token的有效期，微信是30天
+     */
+    public RedisOAuth2AuthorizedClientService(ClientRegistrationRepository clientRegistrationRepository,
+                                              RedisConnectionFactory connectionFactory, String keyPrefix, Duration ttl) {
+        Assert.notNull(clientRegistrationRepository, "clientRegistrationRepository cannot be null");
+        this.clientRegistrationRepository = clientRegistrationRepository;
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.keyPrefix = keyPrefix;
+        this.ttl = ttl;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends OAuth2AuthorizedClient> T loadAuthorizedClient(String clientRegistrationId, String principalName) {
+        ClientRegistration clientRegistration = this.clientRegistrationRepository.findByRegistrationId(clientRegistrationId);
+        if (clientRegistration == null) {
+            return null;
+        }
+        List<byte[]> values = hmget(key(clientRegistrationId, principalName), ALL_FIELDS);
+        OAuth2AccessToken accessToken = accessToken(values);
+        if (accessToken == null) {
+            return null;
+        }
+        OAuth2RefreshToken refreshToken = null;
+        String refreshTokenValue = string(values.get(4));
+        if (refreshTokenValue != null) {
+            refreshToken = new OAuth2RefreshToken(refreshTokenValue, instant(values.get(5)));
+        }
+        return (T) new OAuth2AuthorizedClient(clientRegistration, principalName, accessToken, refreshToken);
+    }
+
+    /**
+     * 只读取access_token
+     *
+     * @param clientRegistrationId the client registration id
+     * @param principalName        the principal name
+     * @return the access token, or null
+     */
+    public OAuth2AccessToken loadAccessToken(String clientRegistrationId, String principalName) {
+        return accessToken(hmget(key(clientRegistrationId, principalName), ACCESS_FIELDS));
+    }
+
+    @Override
+    public void saveAuthorizedClient(OAuth2AuthorizedClient authorizedClient, Authentication principal) {
+        Assert.notNull(authorizedClient, "authorizedClient cannot be null");
+        Assert.notNull(principal, "principal cannot be null");
+        OAuth2AccessToken accessToken = authorizedClient.getAccessToken();
+        OAuth2RefreshToken refreshToken = authorizedClient.getRefreshToken();
+        Map<String, String> fields = new LinkedHashMap<>();
+        put(fields, ACCESS_TOKEN, accessToken.getTokenValue());
+        put(fields, ACCESS_ISSUED_AT, millis(accessToken.getIssuedAt()));
+        put(fields, ACCESS_EXPIRES_AT, millis(accessToken.getExpiresAt()));
+        put(fields, SCOPE, StringUtils.collectionToDelimitedString(accessToken.getScopes(), " "));
+        Instant expireAt = accessToken.getExpiresAt();
+        if (refreshToken != null) {
+            put(fields, REFRESH_TOKEN, refreshToken.getTokenValue());
+            put(fields, REFRESH_ISSUED_AT, millis(refreshToken.getIssuedAt()));
+            Instant refreshIssuedAt = refreshToken.getIssuedAt() != null ? refreshToken.getIssuedAt() : Instant.now();
+            expireAt = refreshIssuedAt.plus(this.ttl);
+        }
+        if (expireAt == null) {
+            expireAt = Instant.now().plus(this.ttl);
+        }
+        String key = keyName(authorizedClient.getClientRegistration().getRegistrationId(), principal.getName());
+        List<String> args = new ArrayList<>(1 + fields.size() * 2);
+        args.add(Long.toString(expireAt.toEpochMilli()));
+        fields.forEach((field, value) -> {
+            args.add(field);
+            args.add(value);
+        });
+        this.redisTemplate.execute(SAVE, Collections.singletonList(key), args.toArray());
+    }
+
+    @Override
+    public void removeAuthorizedClient(String clientRegistrationId, String principalName) {
+        byte[] key = key(clientRegistrationId, principalName);
+        this.redisTemplate.execute((RedisCallback<Long>) connection -> connection.keyCommands().del(key));
+    }
+
+    private List<byte[]> hmget(byte[] key, byte[][] fields) {
+        return this.redisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.hashCommands().hMGet(key, fields));
+    }
+
+    private static OAuth2AccessToken accessToken(List<byte[]> values) {
+        String tokenValue = values == null ? null : string(values.get(0));
+        if (tokenValue == null) {
+            return null;
+        }
+        String scope = string(values.get(3));
+        Set<String> scopes = StringUtils.hasText(scope)
+                ? new LinkedHashSet<>(Arrays.asList(StringUtils.delimitedListToStringArray(scope, " ")))
+                : null;
+        return new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, tokenValue, instant(values.get(1)),
+                instant(values.get(2)), scopes);
+    }
+
+    private byte[] key(String registrationId, String principalName) {
+        return keyName(registrationId, principalName).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String keyName(String registrationId, String principalName) {
+        return this.keyPrefix + registrationId + ':' + principalName;
+    }
+
+    private static void put(Map<String, String> fields, String field, String value) {
+        if (value != null) {
+            fields.put(field, value);
+        }
+    }
+
+    private static String millis(Instant instant) {
+        return instant == null ? null : Long.toString(instant.toEpochMilli());
+    }
+
+    private static Instant instant(byte[] millis) {
+        return millis == null ? null : Instant.ofEpochMilli(Long.parseLong(string(millis)));
+    }
+
+    private static String string(byte[] bytes) {
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[][] bytes(String... fields) {
+        byte[][] bytes = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            bytes[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+}
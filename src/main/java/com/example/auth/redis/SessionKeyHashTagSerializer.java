@@ -0,0 +1,69 @@
+package com.example.auth.redis;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 给会话的key加上hash tag，redis cluster 下同一个会话的key落在同一个slot：
+ * <pre>
+ * spring:session:sessions:ID           -&gt; spring:session:sessions:{ID}:ID
+ * spring:session:sessions:expires:ID   -&gt; spring:session:sessions:expires:{ID}:ID
+ * </pre>
+ * 会话的hash和用来触发过期事件的 expires key 在同一个节点上，故障转移时一起切换，不会出现只剩一半的会话。
+ * key 仍以 {@code :ID} 结尾，RedisIndexedSessionRepository 从过期事件里按最后一个冒号解析会话id不受影响；
+ * expirations、index 等多个会话共用的key保持原样，由集群按key分散。
+ * <p>
+ * 注意 keyspace 通知只在产生它的节点上发布，RedisIndexedSessionRepository 的监听只订阅了集群里的一个节点，
+ * 其它master上过期的会话收不到 SessionExpiredEvent，principal 索引(index key)里这些会话id不会被删除。
+ * 按用户名查会话时会跳过已经不存在的id，结果不受影响，但索引集合会一直增长，需要按用户定期清理或者不依赖索引
+ * <p>
+ * 和不带tag的key互不相通，开关切换后旧会话读不到，需要重新登陆
+ * <p>
+ * Created by berg on 2023/4/16.
+ */
+public class SessionKeyHashTagSerializer implements RedisSerializer<String> {
+
+    private final String sessionsPrefix;
+    private final String expiresPrefix;
+
+    /**
+     * @param namespace spring.session.redis.namespace，不带结尾的冒号
+     */
+    public SessionKeyHashTagSerializer(String namespace) {
+        Assert.hasText(namespace, "namespace must not be empty");
+        this.sessionsPrefix = namespace + ":sessions:";
+        this.expiresPrefix = this.sessionsPrefix + "expires:";
+    }
+
+    @Override
+    public byte[] serialize(String key) {
+        if (key == null) {
+            return null;
+        }
+        if (key.startsWith(this.sessionsPrefix)) {
+            int idStart = key.startsWith(this.expiresPrefix) ? this.expiresPrefix.length() : this.sessionsPrefix.length();
+            String id = key.substring(idStart);
+            key = key.substring(0, idStart) + '{' + id + "}:" + id;
+        }
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String deserialize(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        String key = new String(bytes, StandardCharsets.UTF_8);
+        if (!key.startsWith(this.sessionsPrefix)) {
+            return key;
+        }
+        int idStart = key.startsWith(this.expiresPrefix) ? this.expiresPrefix.length() : this.sessionsPrefix.length();
+        int tagEnd = key.indexOf("}:", idStart);
+        if (key.length() <= idStart || key.charAt(idStart) != '{' || tagEnd < 0) {
+            return key;
+        }
+        return key.substring(0, idStart) + key.substring(tagEnd + 2);
+    }
+}
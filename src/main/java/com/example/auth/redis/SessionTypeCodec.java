@@ -0,0 +1,20 @@
+package com.example.auth.redis;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * {@link BinarySessionRedisSerializer}中一种已注册类型的编解码，嵌套的对象通过
+ * {@link BinarySessionRedisSerializer#writeObject}/{@link BinarySessionRedisSerializer#readObject}读写
+ * <p>
+ * Created by berg on 2023/4/13.
+ *
+ * @param <T> the type
+ */
+public interface SessionTypeCodec<T> {
+
+    void write(T value, DataOutputStream out, BinarySessionRedisSerializer serializer) throws IOException;
+
+    T read(DataInputStream in, BinarySessionRedisSerializer serializer) throws IOException;
+}
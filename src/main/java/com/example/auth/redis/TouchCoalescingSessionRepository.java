@@ -0,0 +1,129 @@
+package com.example.auth.redis;
+
+import org.springframework.session.Session;
+import org.springframework.session.SessionRepository;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+
+/**
+ * 合并 lastAccessedTime 的更新：距上次保存的访问时间不到 {@code touchInterval} 时忽略这次更新。
+ * <p>
+ * SessionRepositoryFilter 每个请求都会更新访问时间，redis会话因此每次都要写访问时间和过期时间的几个key；
+ * 合并之后属性没变的请求只剩读取会话的一次 HGETALL。代价是会话最多提前 touchInterval 过期，
+ * touchInterval 要远小于会话超时时间
+ * <p>
+ * Created by berg on 2023/4/16.
+ */
+public class TouchCoalescingSessionRepository<S extends Session>
+        implements SessionRepository<TouchCoalescingSessionRepository.CoalescingSession<S>> {
+
+    private final SessionRepository<S> delegate;
+    private final Duration touchInterval;
+
+    public TouchCoalescingSessionRepository(SessionRepository<S> delegate, Duration touchInterval) {
+        Assert.notNull(delegate, "delegate cannot be null");
+        Assert.isTrue(touchInterval != null && !touchInterval.isNegative(), "touchInterval must not be negative");
+        this.delegate = delegate;
+        this.touchInterval = touchInterval;
+    }
+
+    @Override
+    public CoalescingSession<S> createSession() {
+        return new CoalescingSession<>(this.delegate.createSession(), this.touchInterval);
+    }
+
+    @Override
+    public void save(CoalescingSession<S> session) {
+        this.delegate.save(session.delegate);
+    }
+
+    @Override
+    public CoalescingSession<S> findById(String id) {
+        S session = this.delegate.findById(id);
+        return session != null ? new CoalescingSession<>(session, this.touchInterval) : null;
+    }
+
+    @Override
+    public void deleteById(String id) {
+        this.delegate.deleteById(id);
+    }
+
+    public static final class CoalescingSession<S extends Session> implements Session {
+
+        private final S delegate;
+        private final Duration touchInterval;
+
+        CoalescingSession(S delegate, Duration touchInterval) {
+            this.delegate = delegate;
+            this.touchInterval = touchInterval;
+        }
+
+        @Override
+        public void setLastAccessedTime(Instant lastAccessedTime) {
+            Instant current = this.delegate.getLastAccessedTime();
+            if (current != null && lastAccessedTime.isAfter(current)
+                    && lastAccessedTime.isBefore(current.plus(this.touchInterval))) {
+                return;
+            }
+            this.delegate.setLastAccessedTime(lastAccessedTime);
+        }
+
+        @Override
+        public String getId() {
+            return this.delegate.getId();
+        }
+
+        @Override
+        public String changeSessionId() {
+            return this.delegate.changeSessionId();
+        }
+
+        @Override
+        public <T> T getAttribute(String attributeName) {
+            return this.delegate.getAttribute(attributeName);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return this.delegate.getAttributeNames();
+        }
+
+        @Override
+        public void setAttribute(String attributeName, Object attributeValue) {
+            this.delegate.setAttribute(attributeName, attributeValue);
+        }
+
+        @Override
+        public void removeAttribute(String attributeName) {
+            this.delegate.removeAttribute(attributeName);
+        }
+
+        @Override
+        public Instant getCreationTime() {
+            return this.delegate.getCreationTime();
+        }
+
+        @Override
+        public Instant getLastAccessedTime() {
+            return this.delegate.getLastAccessedTime();
+        }
+
+        @Override
+        public void setMaxInactiveInterval(Duration interval) {
+            this.delegate.setMaxInactiveInterval(interval);
+        }
+
+        @Override
+        public Duration getMaxInactiveInterval() {
+            return this.delegate.getMaxInactiveInterval();
+        }
+
+        @Override
+        public boolean isExpired() {
+            return this.delegate.isExpired();
+        }
+    }
+}
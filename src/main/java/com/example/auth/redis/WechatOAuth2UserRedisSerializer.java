@@ -0,0 +1,158 @@
+package com.example.auth.redis;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link WechatOAuth2User}的紧凑二进制序列化：版本号 + 非空字段位图 + 按固定顺序写入的字段，
+ * 不带字段名和类型信息，一个用户通常只有json的三分之一大小
+ * <p>
+ * 新增字段只能追加在最后并占用新的位，同时升级版本号；新字段一律写成 2字节长度 + 内容(字符串用writeUTF，
+ * 其它类型先写长度再写字节)，滚动发布时旧节点按位图跳过不认识的字段，新旧节点可以互相读取缓存和会话。
+ * 不能修改已有字段的编码，做不到时需要先清空redis里的用户信息缓存和会话
+ * <p>
+ * Created by berg on 2023/4/12.
+ */
+public class WechatOAuth2UserRedisSerializer implements RedisSerializer<WechatOAuth2User> {
+
+    private static final byte VERSION = 1;
+
+    private static final int OPENID = 1;
+    private static final int NICKNAME = 1 << 1;
+    private static final int SEX = 1 << 2;
+    private static final int PROVINCE = 1 << 3;
+    private static final int CITY = 1 << 4;
+    private static final int COUNTRY = 1 << 5;
+    private static final int HEADIMGURL = 1 << 6;
+    private static final int PRIVILEGE = 1 << 7;
+    private static final int UNIONID = 1 << 8;
+    /**
+     * 本版本认识的字段，之外的位是新版本追加的
+     */
+    private static final int KNOWN_FIELDS = (UNIONID << 1) - 1;
+
+    @Override
+    public byte[] serialize(WechatOAuth2User user) throws SerializationException {
+        if (user == null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            write(user, out);
+        } catch (IOException ex) {
+            throw new SerializationException("Could not write WechatOAuth2User", ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public WechatOAuth2User deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            return read(in);
+        } catch (IOException ex) {
+            throw new SerializationException("Could not read WechatOAuth2User", ex);
+        }
+    }
+
+    /**
+     * 写入到已有的输出流，会话序列化时嵌套使用
+     *
+     * @param user the user
+     * @param out  the out
+     * @throws IOException the io exception
+     */
+    public static void write(WechatOAuth2User user, DataOutputStream out) throws IOException {
+        int present = (user.getOpenid() != null ? OPENID : 0)
+                | (user.getNickname() != null ? NICKNAME : 0)
+                | (user.getSex() != null ? SEX : 0)
+                | (user.getProvince() != null ? PROVINCE : 0)
+                | (user.getCity() != null ? CITY : 0)
+                | (user.getCountry() != null ? COUNTRY : 0)
+                | (user.getHeadimgurl() != null ? HEADIMGURL : 0)
+                | (user.getPrivilege() != null ? PRIVILEGE : 0)
+                | (user.getUnionid() != null ? UNIONID : 0);
+        out.writeByte(VERSION);
+        out.writeShort(present);
+        writeIfPresent(out, present, OPENID, user.getOpenid());
+        writeIfPresent(out, present, NICKNAME, user.getNickname());
+        if ((present & SEX) != 0) {
+            out.writeByte(user.getSex());
+        }
+        writeIfPresent(out, present, PROVINCE, user.getProvince());
+        writeIfPresent(out, present, CITY, user.getCity());
+        writeIfPresent(out, present, COUNTRY, user.getCountry());
+        writeIfPresent(out, present, HEADIMGURL, user.getHeadimgurl());
+        if ((present & PRIVILEGE) != 0) {
+            out.writeShort(user.getPrivilege().size());
+            for (String privilege : user.getPrivilege()) {
+                out.writeUTF(privilege);
+            }
+        }
+        writeIfPresent(out, present, UNIONID, user.getUnionid());
+    }
+
+    /**
+     * 从已有的输入流读取，会话序列化时嵌套使用
+     *
+     * @param in the in
+     * @return the wechat o auth 2 user
+     * @throws IOException the io exception
+     */
+    public static WechatOAuth2User read(DataInputStream in) throws IOException {
+        byte version = in.readByte();
+        if (version < VERSION) {
+            throw new IOException("Unsupported WechatOAuth2User version " + version);
+        }
+        int present = in.readUnsignedShort();
+        WechatOAuth2User user = new WechatOAuth2User();
+        user.setOpenid(readIfPresent(in, present, OPENID));
+        user.setNickname(readIfPresent(in, present, NICKNAME));
+        if ((present & SEX) != 0) {
+            user.setSex((int) in.readByte());
+        }
+        user.setProvince(readIfPresent(in, present, PROVINCE));
+        user.setCity(readIfPresent(in, present, CITY));
+        user.setCountry(readIfPresent(in, present, COUNTRY));
+        user.setHeadimgurl(readIfPresent(in, present, HEADIMGURL));
+        if ((present & PRIVILEGE) != 0) {
+            int size = in.readUnsignedShort();
+            List<String> privilege = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                privilege.add(in.readUTF());
+            }
+            user.setPrivilege(privilege);
+        }
+        user.setUnionid(readIfPresent(in, present, UNIONID));
+        // 新版本追加的字段，按长度跳过
+        int unknown = present & ~KNOWN_FIELDS;
+        for (int field = UNIONID << 1; unknown != 0; field <<= 1) {
+            if ((unknown & field) != 0) {
+                in.readFully(new byte[in.readUnsignedShort()]);
+                unknown &= ~field;
+            }
+        }
+        return user;
+    }
+
+    private static void writeIfPresent(DataOutputStream out, int present, int field, String value) throws IOException {
+        if ((present & field) != 0) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readIfPresent(DataInputStream in, int present, int field) throws IOException {
+        return (present & field) != 0 ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.auth.redis;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 存在redis中的spring session配置
+ *
+ * Created by berg on 2023/4/13.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.session")
+public class WechatSessionProperties {
+
+    /**
+     * 会话属性的序列化方式，两种方式都能读取json格式的旧会话。默认json，所有节点升级到能读binary的版本之后再改为binary
+     */
+    private Serializer serializer = Serializer.JSON;
+
+    /**
+     * 读取会话时只反序列化简单值，对象类型的属性(安全上下文、授权请求等)在第一次使用时才反序列化，见 {@link LazyRedisSerializer}
+     */
+    private boolean lazyAttributes = true;
+
+    /**
+     * 距上次保存的访问时间不到这个时间的请求不再更新访问时间，属性没变时不写redis，0 为每个请求都更新，
+     * 见 {@link TouchCoalescingSessionRepository}
+     */
+    private Duration touchInterval = Duration.ofMinutes(1);
+
+    /**
+     * 是否统计每个请求的redis命令数，见 {@link RedisCommandCounter}
+     */
+    private boolean commandMetrics = true;
+
+    /**
+     * lettuce 共享连接
+     */
+    private Connection connection = new Connection();
+
+    /**
+     * redis cluster(spring.redis.cluster.nodes)或主从部署下的会话存储
+     */
+    private Cluster cluster = new Cluster();
+
+    /**
+     * 登陆后的授权信息(access_token、refresh_token)
+     */
+    private AuthorizedClient authorizedClient = new AuthorizedClient();
+
+    @Data
+    public static class AuthorizedClient {
+
+        /**
+         * 存储位置，redis 时每个用户一个hash，见 {@link RedisOAuth2AuthorizedClientService}
+         */
+        private Store store = Store.REDIS;
+
+        private String keyPrefix = "wechat:authorized-client:";
+
+        /**
+         * 保存时间，和微信refresh_token的有效期一致
+         */
+        private Duration ttl = Duration.ofDays(30);
+    }
+
+    @Data
+    public static class Connection {
+
+        /**
+         * 断线时直接拒绝命令，不在内存里排队等重连，请求线程不会因为redis不可用一直挂住
+         */
+        private boolean rejectWhenDisconnected = true;
+
+        /**
+         * 连接上等待发送和等待响应的命令上限，超过时新命令直接失败
+         */
+        private int requestQueueSize = 10000;
+    }
+
+    @Data
+    public static class Cluster {
+
+        /**
+         * 会话的key加上hash tag，同一个会话的key在同一个slot，见 {@link SessionKeyHashTagSerializer}。
+         * 集群下过期通知只能收到一个节点的，其它master上过期的会话不会清理 principal 索引
+         */
+        private boolean hashTags = false;
+
+        /**
+         * 会话的读命令发到哪个节点，为空时只读主节点。只作用于会话存储单独的连接工厂({@link ReadFromSessionRepositoryCustomizer})，
+         * 其它redis读取仍走主节点。从节点有复制延迟，登陆后紧接着的请求可能读到旧会话，注销后短时间内还能读到已删除的会话
+         */
+        private ReadFrom readFrom;
+    }
+
+    public enum ReadFrom {
+        UPSTREAM(io.lettuce.core.ReadFrom.UPSTREAM),
+        UPSTREAM_PREFERRED(io.lettuce.core.ReadFrom.UPSTREAM_PREFERRED),
+        REPLICA_PREFERRED(io.lettuce.core.ReadFrom.REPLICA_PREFERRED),
+        REPLICA(io.lettuce.core.ReadFrom.REPLICA),
+        ANY(io.lettuce.core.ReadFrom.ANY);
+
+        private final io.lettuce.core.ReadFrom lettuce;
+
+        ReadFrom(io.lettuce.core.ReadFrom lettuce) {
+            this.lettuce = lettuce;
+        }
+
+        public io.lettuce.core.ReadFrom toLettuce() {
+            return this.lettuce;
+        }
+    }
+
+    public enum Store {
+        /**
+         * spring boot默认的内存存储，重启丢失，多节点之间不共享
+         */
+        MEMORY,
+        REDIS
+    }
+
+    public enum Serializer {
+        /**
+         * 带完整类名的json，可读性好，体积大
+         */
+        JSON,
+        /**
+         * 常用类型注册类型id的二进制格式，见 {@link BinarySessionRedisSerializer}
+         */
+        BINARY
+    }
+}
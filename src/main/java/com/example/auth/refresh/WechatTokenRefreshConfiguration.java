@@ -0,0 +1,62 @@
+package com.example.auth.refresh;
+
+import com.example.auth.redis.RedisOAuth2AuthorizedClientService;
+import com.example.auth.security.SecurityConfiguration;
+import com.example.auth.security.oauth2.wechat.RefreshingOAuth2AuthorizedClientService;
+import com.example.auth.security.oauth2.wechat.WechatProviderRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.security.oauth2.client.InMemoryOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+
+/**
+ * 后台刷新微信access_token，{@code wechat.token-refresh.enabled=true} 时生效，
+ * 包装实际存储授权信息的{@link OAuth2AuthorizedClientService}。
+ * 下游通过 {@code @RegisteredOAuth2AuthorizedClient} 或 OAuth2AuthorizedClientService 拿到的token在过期前就已经换新，
+ * 刷新结果以 {@code wechat.token.refresh{result}} 暴露在actuator的metrics下
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatTokenRefreshProperties.class)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(prefix = "wechat.token-refresh", name = "enabled", havingValue = "true")
+public class WechatTokenRefreshConfiguration {
+
+    /**
+     * 代理redis存储(见 RedisConfig)，没有时用内存存储
+     */
+    @Bean
+    @Primary
+    public RefreshingOAuth2AuthorizedClientService authorizedClientService(ClientRegistrationRepository clientRegistrationRepository,
+                                                                           ObjectProvider<RedisOAuth2AuthorizedClientService> redisAuthorizedClientService,
+                                                                           ClientHttpRequestFactory wechatClientHttpRequestFactory,
+                                                                           WechatTokenRefreshProperties properties,
+                                                                           WechatProviderRegistry wechatProviderRegistry) {
+        OAuth2AuthorizedClientService delegate = redisAuthorizedClientService.getIfAvailable();
+        if (delegate == null) {
+            delegate = new InMemoryOAuth2AuthorizedClientService(clientRegistrationRepository);
+        }
+        RefreshingOAuth2AuthorizedClientService authorizedClientService = new RefreshingOAuth2AuthorizedClientService(
+                delegate,
+                SecurityConfiguration.refreshTokenResponseClient(wechatClientHttpRequestFactory, wechatProviderRegistry));
+        authorizedClientService.setProviderRegistry(wechatProviderRegistry);
+        authorizedClientService.setRefreshBefore(properties.getRefreshBefore());
+        authorizedClientService.setJitter(properties.getJitter());
+        authorizedClientService.setInterval(properties.getInterval());
+        authorizedClientService.setBatchSize(properties.getBatchSize());
+        authorizedClientService.setRatePerSecond(properties.getRatePerSecond());
+        authorizedClientService.setConcurrency(properties.getConcurrency());
+        authorizedClientService.setRetryDelay(properties.getRetryDelay());
+        authorizedClientService.setMaxAttempts(properties.getMaxAttempts());
+        authorizedClientService.setRefreshTokenTtl(properties.getRefreshTokenTtl());
+        return authorizedClientService;
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.auth.refresh;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 后台刷新微信access_token的配置，刷新走 /sns/oauth2/refresh_token
+ *
+ * Created by berg on 2023/4/15.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.token-refresh")
+public class WechatTokenRefreshProperties {
+
+    /**
+     * 是否开启，默认关闭，access_token过期后只能重新登陆
+     */
+    private boolean enabled = false;
+
+    /**
+     * 在access_token过期前多久刷新
+     */
+    private Duration refreshBefore = Duration.ofMinutes(10);
+
+    /**
+     * 刷新时间再随机提前 0~jitter，同一时刻登陆的大量用户不会在同一时刻刷新
+     */
+    private Duration jitter = Duration.ofMinutes(5);
+
+    /**
+     * 检查到期任务的间隔
+     */
+    private Duration interval = Duration.ofSeconds(5);
+
+    /**
+     * 每次检查最多取出的到期任务数，剩下的留到下一次
+     */
+    private int batchSize = 100;
+
+    /**
+     * 每秒最多发起的刷新请求数，所有registration共用
+     */
+    private double ratePerSecond = 20;
+
+    /**
+     * 同时进行的刷新请求数
+     */
+    private int concurrency = 4;
+
+    /**
+     * 网络错误等可重试的失败，第一次重试的间隔，之后每次翻倍
+     */
+    private Duration retryDelay = Duration.ofSeconds(30);
+
+    /**
+     * 最多尝试次数，用完后不再刷新，等用户重新登陆
+     */
+    private int maxAttempts = 5;
+
+    /**
+     * 微信refresh_token的有效期，刷新不会延长它，过期后不再刷新
+     */
+    private Duration refreshTokenTtl = Duration.ofDays(30);
+}
@@ -0,0 +1,462 @@
+package com.example.auth.registration;
+
+import com.example.auth.security.oauth2.wechat.WechatProviderRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthenticationMethod;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 存在redis里的客户端配置，接入新的微信应用、更换secret不需要重启。每个registration一个hash：
+ * <pre>
+ * 前缀 + registrationId
+ *   client_id / client_secret / previous_client_secret / secret_rotated_at
+ *   client_name / client_authentication_method / authorization_grant_type / redirect_uri / scope
+ *   authorization_uri / token_uri / user_info_uri / user_info_authentication_method / user_name_attribute
+ * 前缀 + ids   所有registrationId的set
+ * </pre>
+ * 读取只查本地不可变的快照，{@link #findByRegistrationId(String)} 是一次{@link HashMap#get(Object)}，不加锁也不分配对象。
+ * 修改写入redis后发布到 channel，每个节点收到后只重新加载这一个registration，写时复制替换快照；
+ * 另外每隔 refreshInterval 全量加载一次，补上错过的消息。
+ * <p>
+ * 更换secret时旧的secret保留在 previous_client_secret，secretOverlap 内{@link #previousRegistration(String)}
+ * 返回用旧secret的配置，微信后台和redis里的secret先后生效的这段时间里换token失败可以用另一个重试，
+ * 见{@link SecretRotationTokenResponseClient}
+ * <p>
+ * yaml里的 spring.security.oauth2.client 配置作为初始快照，redis里没有的registration启动时写入redis(seed)，
+ * redis里有的以redis为准
+ * <p>
+ * secret明文存在redis里，和yaml里的配置同等对待：redis要开启访问控制(ACL/密码)，只对认证服务开放
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Slf4j
+public class RedisClientRegistrationRepository implements ClientRegistrationRepository, Iterable<ClientRegistration>,
+        MessageListener, SmartInitializingSingleton, DisposableBean {
+
+    static final String CLIENT_ID = "client_id";
+    static final String CLIENT_SECRET = "client_secret";
+    static final String PREVIOUS_CLIENT_SECRET = "previous_client_secret";
+    static final String SECRET_ROTATED_AT = "secret_rotated_at";
+    static final String CLIENT_NAME = "client_name";
+    static final String CLIENT_AUTHENTICATION_METHOD = "client_authentication_method";
+    static final String AUTHORIZATION_GRANT_TYPE = "authorization_grant_type";
+    static final String REDIRECT_URI = "redirect_uri";
+    static final String SCOPE = "scope";
+    static final String AUTHORIZATION_URI = "authorization_uri";
+    static final String TOKEN_URI = "token_uri";
+    static final String USER_INFO_URI = "user_info_uri";
+    static final String USER_INFO_AUTHENTICATION_METHOD = "user_info_authentication_method";
+    static final String USER_NAME_ATTRIBUTE = "user_name_attribute";
+
+    private static final String IDS = "ids";
+
+    /**
+     * 读出当前secret并替换，读和写之间不会插入其它节点的更换，registration不存在时返回0
+     */
+    private static final RedisScript<Long> ROTATE_SECRET = new DefaultRedisScript<>(
+            "local current = redis.call('hget', KEYS[1], '" + CLIENT_SECRET + "') "
+                    + "if not current then return 0 end "
+                    + "redis.call('hset', KEYS[1], '" + CLIENT_SECRET + "', ARGV[1], '" + PREVIOUS_CLIENT_SECRET + "', current, "
+                    + "'" + SECRET_ROTATED_AT + "', ARGV[2]) "
+                    + "return 1", Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisConnectionFactory connectionFactory;
+    private final WechatClientRegistrationProperties properties;
+    private final Map<String, ClientRegistration> seed;
+    private volatile Map<String, Entry> snapshot;
+
+    private WechatProviderRegistry providerRegistry;
+    private Clock clock = Clock.systemUTC();
+    private RedisMessageListenerContainer listenerContainer;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Instantiates a new Redis client registration repository.
+     *
+     * @param connectionFactory the connection factory
+     * @param properties        the properties
+     * @param seed              yaml里配置的客户端，作为初始快照，redis里没有时写入
+     */
+    public RedisClientRegistrationRepository(RedisConnectionFactory connectionFactory,
+                                             WechatClientRegistrationProperties properties,
+                                             Collection<ClientRegistration> seed) {
+        Assert.notNull(connectionFactory, "connectionFactory cannot be null");
+        Assert.notNull(properties, "properties cannot be null");
+        this.connectionFactory = connectionFactory;
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.properties = properties;
+        Map<String, ClientRegistration> registrations = new LinkedHashMap<>();
+        Map<String, Entry> snapshot = new HashMap<>();
+        for (ClientRegistration clientRegistration : seed) {
+            registrations.put(clientRegistration.getRegistrationId(), clientRegistration);
+            snapshot.put(clientRegistration.getRegistrationId(), new Entry(clientRegistration, null, null));
+        }
+        this.seed = Collections.unmodifiableMap(registrations);
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * 快照变化后重新编译注册表里的微信登陆策略
+     *
+     * @param providerRegistry the provider registry
+     */
+    public void setProviderRegistry(WechatProviderRegistry providerRegistry) {
+        this.providerRegistry = providerRegistry;
+    }
+
+    void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public ClientRegistration findByRegistrationId(String registrationId) {
+        Assert.hasText(registrationId, "registrationId cannot be empty");
+        Entry entry = this.snapshot.get(registrationId);
+        return entry != null ? entry.registration : null;
+    }
+
+    /**
+     * 更换secret的重叠期内，用旧secret的客户端配置
+     *
+     * @param registrationId the registration id
+     * @return 不在重叠期内时为null
+     */
+    public ClientRegistration previousRegistration(String registrationId) {
+        Entry entry = this.snapshot.get(registrationId);
+        if (entry == null || entry.previous == null
+                || this.clock.instant().isAfter(entry.rotatedAt.plus(this.properties.getSecretOverlap()))) {
+            return null;
+        }
+        return entry.previous;
+    }
+
+    @Override
+    public Iterator<ClientRegistration> iterator() {
+        List<ClientRegistration> registrations = new ArrayList<>(this.snapshot.size());
+        this.snapshot.values().forEach(entry -> registrations.add(entry.registration));
+        return Collections.unmodifiableList(registrations).iterator();
+    }
+
+    /**
+     * 新增或者修改客户端配置，写入redis并通知所有节点。修改secret请用{@link #rotateSecret(String, String)}
+     *
+     * @param clientRegistration the client registration
+     */
+    public void save(ClientRegistration clientRegistration) {
+        String registrationId = clientRegistration.getRegistrationId();
+        Map<String, String> fields = fields(clientRegistration);
+        String key = key(registrationId);
+        this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            // 只覆盖配置字段，保留 previous_client_secret
+            connection.hashCommands().hMSet(bytes(key), bytes(fields));
+            connection.setCommands().sAdd(bytes(key(IDS)), bytes(registrationId));
+            return null;
+        });
+        publishAndReload(registrationId);
+    }
+
+    /**
+     * 更换secret，旧的secret在 secretOverlap 内仍然可以用来重试
+     *
+     * @param registrationId the registration id
+     * @param clientSecret   新的secret
+     */
+    public void rotateSecret(String registrationId, String clientSecret) {
+        Long rotated = this.redisTemplate.execute(ROTATE_SECRET, Collections.singletonList(key(registrationId)),
+                clientSecret, Long.toString(this.clock.millis()));
+        Assert.isTrue(rotated != null && rotated == 1, () -> "Unknown client registration: " + registrationId);
+        publishAndReload(registrationId);
+    }
+
+    /**
+     * 删除客户端配置并通知所有节点
+     *
+     * @param registrationId the registration id
+     */
+    public void remove(String registrationId) {
+        this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.keyCommands().del(bytes(key(registrationId)));
+            connection.setCommands().sRem(bytes(key(IDS)), bytes(registrationId));
+            return null;
+        });
+        publishAndReload(registrationId);
+    }
+
+    /**
+     * 从redis全量加载，替换整个快照
+     */
+    public synchronized void reload() {
+        Set<String> ids = this.redisTemplate.opsForSet().members(key(IDS));
+        List<String> registrationIds = ids != null ? new ArrayList<>(ids) : Collections.emptyList();
+        List<Object> hashes = registrationIds.isEmpty() ? Collections.emptyList()
+                : this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String registrationId : registrationIds) {
+                connection.hashCommands().hGetAll(bytes(key(registrationId)));
+            }
+            return null;
+        });
+        Map<String, Entry> snapshot = new HashMap<>();
+        for (int i = 0; i < registrationIds.size(); i++) {
+            Entry entry = entry(registrationIds.get(i), hashes.get(i));
+            if (entry != null) {
+                snapshot.put(entry.registration.getRegistrationId(), entry);
+            }
+        }
+        replace(snapshot);
+    }
+
+    /**
+     * 重新加载一个registration，redis里已经删除时从快照里移除
+     *
+     * @param registrationId the registration id
+     */
+    public synchronized void reload(String registrationId) {
+        Entry entry = entry(registrationId, this.redisTemplate.opsForHash().entries(key(registrationId)));
+        Map<String, Entry> snapshot = new HashMap<>(this.snapshot);
+        if (entry != null) {
+            snapshot.put(registrationId, entry);
+        } else {
+            snapshot.remove(registrationId);
+        }
+        replace(snapshot);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String registrationId = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            reload(registrationId);
+            log.info("Reloaded client registration {}", registrationId);
+        } catch (RuntimeException ex) {
+            log.warn("Failed to reload client registration {}, will retry on next full reload", registrationId, ex);
+        }
+    }
+
+    /**
+     * 所有单例创建完之后再访问redis：刷新token的服务作为MeterBinder在连接工厂的创建过程中就会用到本类
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (this.properties.isSeed()) {
+            seed();
+        }
+        reload();
+        this.listenerContainer = new RedisMessageListenerContainer();
+        this.listenerContainer.setConnectionFactory(this.connectionFactory);
+        this.listenerContainer.addMessageListener(this, new ChannelTopic(this.properties.getChannel()));
+        this.listenerContainer.afterPropertiesSet();
+        this.listenerContainer.start();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wechat-client-registration-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = this.properties.getRefreshInterval().toMillis();
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                reload();
+            } catch (RuntimeException ex) {
+                log.warn("Failed to reload client registrations", ex);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+        if (this.listenerContainer != null) {
+            this.listenerContainer.destroy();
+        }
+    }
+
+    /**
+     * yaml里有、redis里还没有的写入redis
+     */
+    private void seed() {
+        for (ClientRegistration clientRegistration : this.seed.values()) {
+            String key = key(clientRegistration.getRegistrationId());
+            if (Boolean.TRUE.equals(this.redisTemplate.opsForHash().putIfAbsent(key, CLIENT_ID, clientRegistration.getClientId()))) {
+                this.redisTemplate.opsForHash().putAll(key, fields(clientRegistration));
+                this.redisTemplate.opsForSet().add(key(IDS), clientRegistration.getRegistrationId());
+            }
+        }
+    }
+
+    private void replace(Map<String, Entry> snapshot) {
+        this.snapshot = snapshot;
+        if (this.providerRegistry != null) {
+            this.providerRegistry.reload(this);
+        }
+    }
+
+    /**
+     * 本节点不等消息，马上生效
+     */
+    private void publishAndReload(String registrationId) {
+        this.redisTemplate.convertAndSend(this.properties.getChannel(), registrationId);
+        reload(registrationId);
+    }
+
+    private String key(String name) {
+        return this.properties.getKeyPrefix() + name;
+    }
+
+    /**
+     * 配置没变的registration沿用快照里的对象，登陆流程里拿到的还是同一个实例
+     */
+    private Entry entry(String registrationId, Object hash) {
+        Map<String, String> fields = strings(hash);
+        if (fields.get(CLIENT_ID) == null) {
+            return null;
+        }
+        ClientRegistration registration;
+        try {
+            registration = registration(registrationId, fields, fields.get(CLIENT_SECRET));
+        } catch (IllegalArgumentException ex) {
+            log.warn("Ignoring invalid client registration {}: {}", registrationId, ex.getMessage());
+            return null;
+        }
+        Entry current = this.snapshot.get(registrationId);
+        String previousSecret = fields.get(PREVIOUS_CLIENT_SECRET);
+        String rotatedAt = fields.get(SECRET_ROTATED_AT);
+        ClientRegistration previous = previousSecret != null && rotatedAt != null
+                ? registration(registrationId, fields, previousSecret) : null;
+        Instant rotatedAtInstant = rotatedAt != null ? Instant.ofEpochMilli(Long.parseLong(rotatedAt)) : null;
+        if (current != null && sameRegistration(current.registration, registration)
+                && (previous == null ? current.previous == null
+                : current.previous != null && sameRegistration(current.previous, previous))) {
+            return current;
+        }
+        return new Entry(registration, previous, rotatedAtInstant);
+    }
+
+    private static ClientRegistration registration(String registrationId, Map<String, String> fields, String clientSecret) {
+        ClientRegistration.Builder builder = ClientRegistration.withRegistrationId(registrationId)
+                .clientId(fields.get(CLIENT_ID))
+                .clientSecret(clientSecret)
+                .authorizationGrantType(new AuthorizationGrantType(fields.getOrDefault(AUTHORIZATION_GRANT_TYPE,
+                        AuthorizationGrantType.AUTHORIZATION_CODE.getValue())))
+                .redirectUri(fields.get(REDIRECT_URI))
+                .authorizationUri(fields.get(AUTHORIZATION_URI))
+                .tokenUri(fields.get(TOKEN_URI))
+                .userInfoUri(fields.get(USER_INFO_URI))
+                .userNameAttributeName(fields.get(USER_NAME_ATTRIBUTE));
+        if (fields.get(CLIENT_AUTHENTICATION_METHOD) != null) {
+            builder.clientAuthenticationMethod(new ClientAuthenticationMethod(fields.get(CLIENT_AUTHENTICATION_METHOD)));
+        }
+        if (fields.get(USER_INFO_AUTHENTICATION_METHOD) != null) {
+            builder.userInfoAuthenticationMethod(new AuthenticationMethod(fields.get(USER_INFO_AUTHENTICATION_METHOD)));
+        }
+        if (fields.get(CLIENT_NAME) != null) {
+            builder.clientName(fields.get(CLIENT_NAME));
+        }
+        if (StringUtils.hasText(fields.get(SCOPE))) {
+            builder.scope(StringUtils.commaDelimitedListToSet(fields.get(SCOPE)));
+        }
+        return builder.build();
+    }
+
+    static Map<String, String> fields(ClientRegistration clientRegistration) {
+        ClientRegistration.ProviderDetails providerDetails = clientRegistration.getProviderDetails();
+        Map<String, String> fields = new LinkedHashMap<>();
+        put(fields, CLIENT_ID, clientRegistration.getClientId());
+        put(fields, CLIENT_SECRET, clientRegistration.getClientSecret());
+        put(fields, CLIENT_NAME, clientRegistration.getClientName());
+        put(fields, CLIENT_AUTHENTICATION_METHOD, clientRegistration.getClientAuthenticationMethod().getValue());
+        put(fields, AUTHORIZATION_GRANT_TYPE, clientRegistration.getAuthorizationGrantType().getValue());
+        put(fields, REDIRECT_URI, clientRegistration.getRedirectUri());
+        put(fields, SCOPE, StringUtils.collectionToCommaDelimitedString(clientRegistration.getScopes()));
+        put(fields, AUTHORIZATION_URI, providerDetails.getAuthorizationUri());
+        put(fields, TOKEN_URI, providerDetails.getTokenUri());
+        put(fields, USER_INFO_URI, providerDetails.getUserInfoEndpoint().getUri());
+        put(fields, USER_INFO_AUTHENTICATION_METHOD, providerDetails.getUserInfoEndpoint().getAuthenticationMethod().getValue());
+        put(fields, USER_NAME_ATTRIBUTE, providerDetails.getUserInfoEndpoint().getUserNameAttributeName());
+        return fields;
+    }
+
+    private static boolean sameRegistration(ClientRegistration a, ClientRegistration b) {
+        return fields(a).equals(fields(b));
+    }
+
+    private static void put(Map<String, String> fields, String field, String value) {
+        if (StringUtils.hasText(value)) {
+            fields.put(field, value);
+        }
+    }
+
+    private static Map<String, String> strings(Object hash) {
+        if (!(hash instanceof Map)) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> fields = new HashMap<>();
+        ((Map<?, ?>) hash).forEach((field, value) -> fields.put(string(field), string(value)));
+        return fields;
+    }
+
+    private static String string(Object value) {
+        if (value instanceof byte[]) {
+            return new String((byte[]) value, StandardCharsets.UTF_8);
+        }
+        return value != null ? value.toString() : null;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<byte[], byte[]> bytes(Map<String, String> fields) {
+        Map<byte[], byte[]> bytes = new LinkedHashMap<>();
+        fields.forEach((field, value) -> bytes.put(bytes(field), bytes(value)));
+        return bytes;
+    }
+
+    private static final class Entry {
+        private final ClientRegistration registration;
+        /**
+         * 用旧secret的配置，没有更换过secret时为null
+         */
+        private final ClientRegistration previous;
+        private final Instant rotatedAt;
+
+        private Entry(ClientRegistration registration, ClientRegistration previous, Instant rotatedAt) {
+            this.registration = registration;
+            this.previous = previous;
+            this.rotatedAt = rotatedAt;
+        }
+    }
+}
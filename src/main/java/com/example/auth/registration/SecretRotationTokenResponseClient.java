@@ -0,0 +1,74 @@
+package com.example.auth.registration;
+
+import com.example.auth.security.oauth2.wechat.WechatErrorCodes;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.util.Assert;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 更换secret的重叠期内，换token返回secret无效时用旧的secret再试一次。
+ * 微信后台重置secret和redis里的配置更新不是同时生效的，这段时间里两个secret总有一个是对的。
+ * secret无效时微信不会消耗code，重试是安全的
+ * <p>
+ * 指标：{@code wechat.client-registration.secret.fallback{registration,result}}(success|failure)
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Slf4j
+public class SecretRotationTokenResponseClient implements OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> {
+
+    public static final String FALLBACK = "wechat.client-registration.secret.fallback";
+
+    /**
+     * 40001 access_token/secret无效，40125 secret无效
+     */
+    private static final Set<String> INVALID_SECRET_ERRCODES = new HashSet<>(Arrays.asList("40001", "40125"));
+
+    private final OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> delegate;
+    private final RedisClientRegistrationRepository clientRegistrationRepository;
+    private final MeterRegistry meterRegistry;
+
+    public SecretRotationTokenResponseClient(OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> delegate,
+                                             RedisClientRegistrationRepository clientRegistrationRepository,
+                                             MeterRegistry meterRegistry) {
+        Assert.notNull(delegate, "delegate cannot be null");
+        Assert.notNull(clientRegistrationRepository, "clientRegistrationRepository cannot be null");
+        Assert.notNull(meterRegistry, "meterRegistry cannot be null");
+        this.delegate = delegate;
+        this.clientRegistrationRepository = clientRegistrationRepository;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public OAuth2AccessTokenResponse getTokenResponse(OAuth2AuthorizationCodeGrantRequest grantRequest) {
+        try {
+            return this.delegate.getTokenResponse(grantRequest);
+        } catch (OAuth2AuthorizationException ex) {
+            String registrationId = grantRequest.getClientRegistration().getRegistrationId();
+            ClientRegistration previous = this.clientRegistrationRepository.previousRegistration(registrationId);
+            if (previous == null || !INVALID_SECRET_ERRCODES.contains(WechatErrorCodes.find(ex))) {
+                throw ex;
+            }
+            log.warn("Invalid secret for client registration {}, retrying with the previous secret", registrationId);
+            try {
+                OAuth2AccessTokenResponse tokenResponse = this.delegate.getTokenResponse(
+                        new OAuth2AuthorizationCodeGrantRequest(previous, grantRequest.getAuthorizationExchange()));
+                this.meterRegistry.counter(FALLBACK, "registration", registrationId, "result", "success").increment();
+                return tokenResponse;
+            } catch (OAuth2AuthorizationException fallbackEx) {
+                this.meterRegistry.counter(FALLBACK, "registration", registrationId, "result", "failure").increment();
+                fallbackEx.addSuppressed(ex);
+                throw fallbackEx;
+            }
+        }
+    }
+}
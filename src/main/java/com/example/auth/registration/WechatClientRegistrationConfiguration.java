@@ -0,0 +1,46 @@
+package com.example.auth.registration;
+
+import com.example.auth.security.oauth2.wechat.WechatProviderRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.security.oauth2.client.OAuth2ClientProperties;
+import org.springframework.boot.autoconfigure.security.oauth2.client.OAuth2ClientPropertiesRegistrationAdapter;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+
+/**
+ * 客户端配置存到redis，{@code wechat.client-registration.store=redis} 时替换spring boot按yaml创建的
+ * InMemoryClientRegistrationRepository，yaml里的配置作为初始值。换token时的secret重叠期重试由 SecurityConfiguration 加上
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Configuration
+@EnableConfigurationProperties({WechatClientRegistrationProperties.class, OAuth2ClientProperties.class})
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(prefix = "wechat.client-registration", name = "store", havingValue = "redis")
+public class WechatClientRegistrationConfiguration {
+
+    /**
+     * 替换按yaml创建的客户端配置
+     *
+     * @param redisConnectionFactory 延迟获取，原因同 RedisConfig 里的授权信息存储
+     * @param properties             the properties
+     * @param oAuth2ClientProperties yaml里的客户端配置，作为初始值
+     * @param wechatProviderRegistry 配置变化后重新编译微信登陆策略
+     * @return the redis client registration repository
+     */
+    @Bean
+    public RedisClientRegistrationRepository clientRegistrationRepository(@Lazy RedisConnectionFactory redisConnectionFactory,
+                                                                          WechatClientRegistrationProperties properties,
+                                                                          OAuth2ClientProperties oAuth2ClientProperties,
+                                                                          WechatProviderRegistry wechatProviderRegistry) {
+        RedisClientRegistrationRepository clientRegistrationRepository = new RedisClientRegistrationRepository(
+                redisConnectionFactory, properties,
+                OAuth2ClientPropertiesRegistrationAdapter.getClientRegistrations(oAuth2ClientProperties).values());
+        clientRegistrationRepository.setProviderRegistry(wechatProviderRegistry);
+        return clientRegistrationRepository;
+    }
+}
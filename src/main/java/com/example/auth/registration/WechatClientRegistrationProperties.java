@@ -0,0 +1,50 @@
+package com.example.auth.registration;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 客户端配置(appid、secret、授权地址)的存储，{@code store=redis} 时可以不重启地接入新应用、更换secret
+ *
+ * Created by berg on 2023/4/15.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.client-registration")
+public class WechatClientRegistrationProperties {
+
+    /**
+     * yaml: 只用 spring.security.oauth2.client 的静态配置；redis: 存到redis，修改后通过pub/sub通知所有节点
+     */
+    private Store store = Store.YAML;
+
+    /**
+     * redis key前缀
+     */
+    private String keyPrefix = "wechat:client-registration:";
+
+    /**
+     * 配置变化的通知channel，消息内容是registrationId
+     */
+    private String channel = "wechat:client-registration:changed";
+
+    /**
+     * 全量重新加载的间隔，补上错过的通知
+     */
+    private Duration refreshInterval = Duration.ofMinutes(1);
+
+    /**
+     * 更换secret之后旧secret还能用来重试的时间
+     */
+    private Duration secretOverlap = Duration.ofMinutes(10);
+
+    /**
+     * 启动时把yaml里有、redis里没有的配置写入redis
+     */
+    private boolean seed = true;
+
+    public enum Store {
+        YAML, REDIS
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.auth.resilience;
+
+import java.time.Clock;
+
+/**
+ * 按最近N次调用计算失败率的熔断器：
+ * <ul>
+ *     <li>CLOSED 正常放行，失败率达到阈值后进入OPEN</li>
+ *     <li>OPEN 全部拒绝，等待一段时间后进入HALF_OPEN</li>
+ *     <li>HALF_OPEN 只放行固定数量的试探调用，全部成功回到CLOSED，有一次失败回到OPEN</li>
+ * </ul>
+ * 每次调用很短，状态变化都在同一把锁里完成
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureRateThreshold;
+    private final int minimumNumberOfCalls;
+    private final long waitMillisInOpenState;
+    private final int permittedCallsInHalfOpenState;
+    private final Clock clock;
+
+    /**
+     * 最近的调用结果，true为失败
+     */
+    private final boolean[] window;
+    private int position;
+    private int calls;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    public WechatCircuitBreaker(int failureRateThreshold, int slidingWindowSize, int minimumNumberOfCalls,
+                                long waitMillisInOpenState, int permittedCallsInHalfOpenState, Clock clock) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.window = new boolean[slidingWindowSize];
+        this.minimumNumberOfCalls = Math.min(minimumNumberOfCalls, slidingWindowSize);
+        this.waitMillisInOpenState = waitMillisInOpenState;
+        this.permittedCallsInHalfOpenState = permittedCallsInHalfOpenState;
+        this.clock = clock;
+    }
+
+    /**
+     * 是否放行，放行之后必须调用{@link #onSuccess()}或{@link #onFailure()}
+     *
+     * @return the boolean
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (this.state == State.OPEN) {
+            if (this.clock.millis() - this.openedAt < this.waitMillisInOpenState) {
+                return false;
+            }
+            this.state = State.HALF_OPEN;
+            this.halfOpenPermits = this.permittedCallsInHalfOpenState;
+            this.halfOpenSuccesses = 0;
+        }
+        if (this.state == State.HALF_OPEN) {
+            if (this.halfOpenPermits == 0) {
+                return false;
+            }
+            this.halfOpenPermits--;
+        }
+        return true;
+    }
+
+    /**
+     * 放行之后没有真正发出调用(例如隔离拒绝)，归还许可
+     */
+    public synchronized void releasePermission() {
+        if (this.state == State.HALF_OPEN) {
+            this.halfOpenPermits++;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (this.state == State.HALF_OPEN) {
+            if (++this.halfOpenSuccesses >= this.permittedCallsInHalfOpenState) {
+                reset();
+            }
+            return;
+        }
+        if (this.state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    public synchronized void onFailure() {
+        if (this.state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        if (this.state == State.CLOSED) {
+            record(true);
+            if (this.calls >= this.minimumNumberOfCalls
+                    && this.failures * 100 >= this.failureRateThreshold * this.calls) {
+                open();
+            }
+        }
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    private void record(boolean failure) {
+        if (this.calls == this.window.length) {
+            if (this.window[this.position]) {
+                this.failures--;
+            }
+        } else {
+            this.calls++;
+        }
+        this.window[this.position] = failure;
+        if (failure) {
+            this.failures++;
+        }
+        this.position = (this.position + 1) % this.window.length;
+    }
+
+    private void open() {
+        this.state = State.OPEN;
+        this.openedAt = this.clock.millis();
+    }
+
+    private void reset() {
+        this.state = State.CLOSED;
+        this.position = 0;
+        this.calls = 0;
+        this.failures = 0;
+    }
+}
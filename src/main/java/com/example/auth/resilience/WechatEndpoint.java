@@ -0,0 +1,35 @@
+package com.example.auth.resilience;
+
+/**
+ * 登陆链路上调用的微信接口
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public enum WechatEndpoint {
+
+    /**
+     * /sns/oauth2/access_token 和小程序的 /sns/jscode2session，code只能用一次，不是幂等的
+     */
+    TOKEN("token", false),
+
+    /**
+     * /sns/userinfo
+     */
+    USERINFO("userinfo", true);
+
+    private final String tag;
+    private final boolean idempotent;
+
+    WechatEndpoint(String tag, boolean idempotent) {
+        this.tag = tag;
+        this.idempotent = idempotent;
+    }
+
+    public String tag() {
+        return this.tag;
+    }
+
+    public boolean isIdempotent() {
+        return this.idempotent;
+    }
+}
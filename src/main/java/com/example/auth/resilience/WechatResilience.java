@@ -0,0 +1,366 @@
+package com.example.auth.resilience;
+
+import com.example.auth.security.miniprogram.WechatMiniProgramSessionClient;
+import com.example.auth.security.oauth2.wechat.WechatErrorCodes;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.time.Clock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 包装登陆链路上对微信接口的调用，每个registration的每个接口({@link WechatEndpoint})各自一套：
+ * <ul>
+ *     <li>熔断({@link WechatCircuitBreaker})：连接失败、超时、errcode=-1 计为失败，40029这类业务错误说明微信是正常的，计为成功</li>
+ *     <li>隔离：信号量限制同时进行中的调用数，满了直接拒绝，不排队</li>
+ *     <li>超时：调用放到单独的线程执行，调用方最多等 timeout。超时的调用仍然占着隔离名额直到http客户端的读超时，
+ *     微信变慢时积压的线程数不会超过隔离上限；所有registration共用的线程池最多 {@code max-threads} 个线程，不排队，满了同样拒绝</li>
+ *     <li>重试：获取用户信息在io异常和配置的errcode上重试；code只能用一次，换token只重试请求没发出去的连接失败</li>
+ *     <li>对冲：获取用户信息超过 hedgeDelay 没返回时再发一个相同的请求，取先成功的一个</li>
+ * </ul>
+ * 熔断、隔离拒绝和超时都转换成 {@code temporarily_unavailable} 错误。
+ * 指标：{@code wechat.resilience.calls{registration,endpoint,result}}(success|error|failure|rejected|timeout)、
+ * {@code wechat.resilience.retries}、{@code wechat.resilience.hedges}、{@code wechat.resilience.state}(0关闭 1打开 2半开)
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatResilience implements DisposableBean {
+
+    public static final String CALLS = "wechat.resilience.calls";
+    public static final String RETRIES = "wechat.resilience.retries";
+    public static final String HEDGES = "wechat.resilience.hedges";
+    public static final String STATE = "wechat.resilience.state";
+
+    /**
+     * 系统繁忙
+     */
+    private static final String SYSTEM_BUSY = "-1";
+
+    private final WechatResilienceProperties properties;
+    private final MeterRegistry registry;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Guard> guards = new ConcurrentHashMap<>();
+
+    public WechatResilience(WechatResilienceProperties properties, MeterRegistry registry) {
+        Assert.notNull(properties, "properties cannot be null");
+        Assert.notNull(registry, "registry cannot be null");
+        this.properties = properties;
+        this.registry = registry;
+        // 每个接口的线程数由隔离信号量限制，registration可以动态增加，总数再由 max-threads 兜底，满了直接拒绝不排队
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(0, properties.getMaxThreads(), 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "wechat-call-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> decorateTokenClient(
+            OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> client) {
+        return grantRequest -> execute(grantRequest.getClientRegistration().getRegistrationId(), WechatEndpoint.TOKEN,
+                () -> client.getTokenResponse(grantRequest), OAuth2AuthorizationException::new);
+    }
+
+    /**
+     * 小程序用code换session，和换token一样code只能用一次，共用 {@link WechatEndpoint#TOKEN} 的配置
+     *
+     * @param client the client
+     * @return the wechat mini program session client
+     */
+    public WechatMiniProgramSessionClient decorateSessionClient(WechatMiniProgramSessionClient client) {
+        return (registrationId, code) -> execute(registrationId, WechatEndpoint.TOKEN,
+                () -> client.getSession(registrationId, code), OAuth2AuthorizationException::new);
+    }
+
+    public OAuth2UserService<OAuth2UserRequest, OAuth2User> decorateUserService(OAuth2UserService<OAuth2UserRequest, OAuth2User> userService) {
+        return userRequest -> execute(userRequest.getClientRegistration().getRegistrationId(), WechatEndpoint.USERINFO,
+                () -> userService.loadUser(userRequest), OAuth2AuthenticationException::new);
+    }
+
+    /**
+     * 熔断器当前状态
+     *
+     * @param registrationId the registration id
+     * @param endpoint       the endpoint
+     * @return the state
+     */
+    public WechatCircuitBreaker.State state(String registrationId, WechatEndpoint endpoint) {
+        return guard(registrationId, endpoint).breaker.getState();
+    }
+
+    <T> T execute(String registrationId, WechatEndpoint endpoint, Supplier<T> call,
+                  Function<OAuth2Error, ? extends RuntimeException> unavailable) {
+        Guard guard = guard(registrationId, endpoint);
+        int maxAttempts = Math.max(1, guard.policy.getMaxAttempts());
+        long backoff = guard.policy.getRetryBackoff().toMillis();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return guard.call(call, unavailable);
+            } catch (RuntimeException ex) {
+                if (attempt >= maxAttempts || !guard.retryable(ex)) {
+                    throw ex;
+                }
+                guard.retries.increment();
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+                backoff *= 2;
+            }
+        }
+    }
+
+    private Guard guard(String registrationId, WechatEndpoint endpoint) {
+        return this.guards.computeIfAbsent(registrationId + ':' + endpoint.tag(),
+                key -> new Guard(registrationId, endpoint, this.properties.resolve(registrationId, endpoint)));
+    }
+
+    @Override
+    public void destroy() {
+        this.executor.shutdownNow();
+    }
+
+    private static boolean hasCause(Throwable ex, Class<?>... types) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            for (Class<?> type : types) {
+                if (type.isInstance(cause)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private final class Guard {
+
+        private final String registrationId;
+        private final WechatEndpoint endpoint;
+        private final WechatResilienceProperties.Policy policy;
+        private final WechatCircuitBreaker breaker;
+        private final Semaphore bulkhead;
+        private final long timeoutNanos;
+        private final long hedgeDelayNanos;
+        private final Counter success;
+        private final Counter error;
+        private final Counter failure;
+        private final Counter rejected;
+        private final Counter timeout;
+        private final Counter retries;
+        private final Counter hedges;
+
+        Guard(String registrationId, WechatEndpoint endpoint, WechatResilienceProperties.Policy policy) {
+            this.registrationId = registrationId;
+            this.endpoint = endpoint;
+            this.policy = policy;
+            this.breaker = new WechatCircuitBreaker(policy.getFailureRateThreshold(), policy.getSlidingWindowSize(),
+                    policy.getMinimumNumberOfCalls(), policy.getWaitDurationInOpenState().toMillis(),
+                    policy.getPermittedCallsInHalfOpenState(), Clock.systemUTC());
+            this.bulkhead = new Semaphore(policy.getMaxConcurrentCalls());
+            this.timeoutNanos = policy.getTimeout().toNanos();
+            long hedgeDelay = policy.getHedgeDelay().toNanos();
+            this.hedgeDelayNanos = endpoint.isIdempotent() && hedgeDelay > 0 && hedgeDelay < this.timeoutNanos ? hedgeDelay : 0;
+            this.success = counter(CALLS, "success");
+            this.error = counter(CALLS, "error");
+            this.failure = counter(CALLS, "failure");
+            this.rejected = counter(CALLS, "rejected");
+            this.timeout = counter(CALLS, "timeout");
+            this.retries = counter(RETRIES, null);
+            this.hedges = counter(HEDGES, null);
+            Gauge.builder(STATE, this.breaker, breaker -> breaker.getState().ordinal())
+                    .description("WeChat circuit breaker state, 0 closed, 1 open, 2 half open")
+                    .tag("registration", registrationId)
+                    .tag("endpoint", endpoint.tag())
+                    .register(registry);
+        }
+
+        <T> T call(Supplier<T> call, Function<OAuth2Error, ? extends RuntimeException> unavailable) {
+            String rejectedReason = tryAcquire();
+            if (rejectedReason != null) {
+                this.rejected.increment();
+                throw unavailable.apply(error(rejectedReason));
+            }
+            ExecutorCompletionService<T> completion = new ExecutorCompletionService<>(executor);
+            long deadline = System.nanoTime() + this.timeoutNanos;
+            if (!submit(completion, call)) {
+                this.rejected.increment();
+                throw unavailable.apply(error("no thread available for the call"));
+            }
+            int submitted = 1;
+            int failed = 0;
+            try {
+                Future<T> done = null;
+                if (this.hedgeDelayNanos > 0) {
+                    done = completion.poll(this.hedgeDelayNanos, TimeUnit.NANOSECONDS);
+                    if (done == null && tryAcquire() == null && submit(completion, call)) {
+                        submitted++;
+                        this.hedges.increment();
+                    }
+                }
+                while (true) {
+                    if (done == null) {
+                        done = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    }
+                    if (done == null) {
+                        // 不取消还在执行的调用，http客户端的阻塞io不响应中断，结果由任务自己记到熔断器上
+                        this.timeout.increment();
+                        throw unavailable.apply(error("timed out after " + this.policy.getTimeout().toMillis() + "ms"));
+                    }
+                    try {
+                        return done.get();
+                    } catch (ExecutionException ex) {
+                        if (++failed == submitted) {
+                            throw rethrow(ex.getCause());
+                        }
+                        done = null;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw unavailable.apply(error("interrupted"));
+            }
+        }
+
+        /**
+         * 拿到隔离名额和熔断许可，在任务结束时归还
+         *
+         * @return 拒绝的原因，放行时为null
+         */
+        private String tryAcquire() {
+            if (!this.bulkhead.tryAcquire()) {
+                return "too many concurrent calls";
+            }
+            if (!this.breaker.tryAcquirePermission()) {
+                this.bulkhead.release();
+                return "circuit breaker is open";
+            }
+            return null;
+        }
+
+        /**
+         * 提交到线程池，线程池满了时归还隔离名额和熔断许可
+         *
+         * @return 是否提交成功
+         */
+        private <T> boolean submit(ExecutorCompletionService<T> completion, Supplier<T> call) {
+            try {
+                completion.submit(task(call));
+                return true;
+            } catch (RejectedExecutionException ex) {
+                this.bulkhead.release();
+                this.breaker.releasePermission();
+                return false;
+            }
+        }
+
+        private <T> Callable<T> task(Supplier<T> call) {
+            return () -> {
+                long start = System.nanoTime();
+                Counter outcome = this.failure;
+                try {
+                    T result = call.get();
+                    // 超过timeout才返回的慢调用也计为失败
+                    if (System.nanoTime() - start <= this.timeoutNanos) {
+                        outcome = this.success;
+                    }
+                    return result;
+                } catch (RuntimeException ex) {
+                    if (!isFailure(ex)) {
+                        outcome = this.error;
+                    }
+                    throw ex;
+                } finally {
+                    this.bulkhead.release();
+                    outcome.increment();
+                    if (outcome == this.failure) {
+                        this.breaker.onFailure();
+                    } else {
+                        this.breaker.onSuccess();
+                    }
+                }
+            };
+        }
+
+        /**
+         * 是否说明微信不可用
+         */
+        private boolean isFailure(RuntimeException ex) {
+            String errcode = WechatErrorCodes.find(ex);
+            if (errcode != null) {
+                return SYSTEM_BUSY.equals(errcode);
+            }
+            return hasCause(ex, IOException.class);
+        }
+
+        boolean retryable(RuntimeException ex) {
+            String errcode = WechatErrorCodes.find(ex);
+            if (errcode != null) {
+                return this.policy.getRetryErrcodes().contains(errcode);
+            }
+            if (this.endpoint.isIdempotent()) {
+                return hasCause(ex, IOException.class);
+            }
+            // 连接没有建立，请求没有发到微信，code还没有被使用
+            return hasCause(ex, ConnectException.class, NoRouteToHostException.class, UnknownHostException.class,
+                    ConnectTimeoutException.class);
+        }
+
+        private OAuth2Error error(String reason) {
+            return new OAuth2Error(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE, "WeChat " + this.endpoint.tag()
+                    + " call for registration " + this.registrationId + " is unavailable: " + reason, null);
+        }
+
+        private Counter counter(String name, String result) {
+            Counter.Builder builder = Counter.builder(name)
+                    .tag("registration", this.registrationId)
+                    .tag("endpoint", this.endpoint.tag());
+            if (result != null) {
+                builder.tag("result", result);
+            }
+            return builder.register(registry);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            return (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        return new IllegalStateException(ex);
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.auth.resilience;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 微信接口调用的熔断、隔离、超时和重试，{@code wechat.resilience.enabled=false} 时关闭，
+ * 由 SecurityConfiguration 和 WechatUserInfoCacheConfiguration 包装换token和获取用户信息的调用
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatResilienceProperties.class)
+@ConditionalOnProperty(prefix = "wechat.resilience", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class WechatResilienceConfiguration {
+
+    @Bean
+    public WechatResilience wechatResilience(WechatResilienceProperties properties, MeterRegistry meterRegistry) {
+        return new WechatResilience(properties, meterRegistry);
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.auth.resilience;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 调用微信接口(用code换token、获取用户信息)的熔断、隔离、超时、重试配置。
+ * {@code token}、{@code userinfo} 是所有registration的默认值，{@code registrations.<registrationId>} 下只写需要覆盖的字段
+ *
+ * Created by berg on 2023/4/15.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.resilience")
+public class WechatResilienceProperties {
+
+    /**
+     * 是否开启，默认开启
+     */
+    private boolean enabled = true;
+
+    /**
+     * 执行调用的线程数上限，所有registration和接口共用，满了直接拒绝。
+     * 超时的调用会占着线程直到http客户端的读超时，这个值要大于常用registration的隔离上限之和
+     */
+    private int maxThreads = 400;
+
+    /**
+     * 用code换access_token，code只能用一次，默认只重试请求没有发出去的连接失败
+     */
+    private Policy token = Policy.tokenDefaults();
+
+    /**
+     * 获取用户信息，幂等的GET，可以重试和对冲
+     */
+    private Policy userinfo = Policy.userinfoDefaults();
+
+    /**
+     * 按registrationId覆盖的配置
+     */
+    private Map<String, Registration> registrations = new LinkedHashMap<>();
+
+    /**
+     * 某个registration某个接口生效的配置
+     *
+     * @param registrationId the registration id
+     * @param endpoint       the endpoint
+     * @return the policy
+     */
+    public Policy resolve(String registrationId, WechatEndpoint endpoint) {
+        Policy defaults = endpoint == WechatEndpoint.TOKEN ? this.token : this.userinfo;
+        Registration registration = this.registrations.get(registrationId);
+        if (registration == null) {
+            return defaults;
+        }
+        Policy overrides = endpoint == WechatEndpoint.TOKEN ? registration.getToken() : registration.getUserinfo();
+        return overrides != null ? overrides.merge(defaults) : defaults;
+    }
+
+    @Data
+    public static class Registration {
+
+        private Policy token;
+
+        private Policy userinfo;
+    }
+
+    /**
+     * 字段为空时使用默认值
+     */
+    @Data
+    public static class Policy {
+
+        /**
+         * 单次调用的超时时间，超时后不再等待结果
+         */
+        private Duration timeout;
+
+        /**
+         * 同时进行中的调用数上限(隔离)，超过时直接拒绝，超时未返回的调用一直占用名额直到连接超时
+         */
+        private Integer maxConcurrentCalls;
+
+        /**
+         * 最多调用次数，包括第一次，1表示不重试
+         */
+        private Integer maxAttempts;
+
+        /**
+         * 第一次重试前的等待时间，之后每次翻倍
+         */
+        private Duration retryBackoff;
+
+        /**
+         * 可以重试的微信errcode，例如-1(系统繁忙)
+         */
+        private Set<String> retryErrcodes;
+
+        /**
+         * 对冲：超过该时间还没有返回时再发一个相同的请求，取先返回的，0表示关闭。只对获取用户信息生效
+         */
+        private Duration hedgeDelay;
+
+        /**
+         * 失败率达到该百分比时熔断
+         */
+        private Integer failureRateThreshold;
+
+        /**
+         * 按最近多少次调用计算失败率
+         */
+        private Integer slidingWindowSize;
+
+        /**
+         * 至少有多少次调用才计算失败率
+         */
+        private Integer minimumNumberOfCalls;
+
+        /**
+         * 熔断后多久放行试探调用
+         */
+        private Duration waitDurationInOpenState;
+
+        /**
+         * 半开状态放行的试探调用数，全部成功后恢复
+         */
+        private Integer permittedCallsInHalfOpenState;
+
+        static Policy tokenDefaults() {
+            Policy policy = commonDefaults();
+            policy.setTimeout(Duration.ofSeconds(5));
+            policy.setMaxAttempts(2);
+            policy.setRetryErrcodes(Collections.emptySet());
+            return policy;
+        }
+
+        static Policy userinfoDefaults() {
+            Policy policy = commonDefaults();
+            policy.setTimeout(Duration.ofSeconds(3));
+            policy.setMaxAttempts(3);
+            policy.setRetryErrcodes(new LinkedHashSet<>(Collections.singleton("-1")));
+            return policy;
+        }
+
+        private static Policy commonDefaults() {
+            Policy policy = new Policy();
+            policy.setMaxConcurrentCalls(100);
+            policy.setRetryBackoff(Duration.ofMillis(50));
+            policy.setHedgeDelay(Duration.ZERO);
+            policy.setFailureRateThreshold(50);
+            policy.setSlidingWindowSize(100);
+            policy.setMinimumNumberOfCalls(20);
+            policy.setWaitDurationInOpenState(Duration.ofSeconds(30));
+            policy.setPermittedCallsInHalfOpenState(5);
+            return policy;
+        }
+
+        Policy merge(Policy defaults) {
+            Policy policy = new Policy();
+            policy.setTimeout(this.timeout != null ? this.timeout : defaults.timeout);
+            policy.setMaxConcurrentCalls(this.maxConcurrentCalls != null ? this.maxConcurrentCalls : defaults.maxConcurrentCalls);
+            policy.setMaxAttempts(this.maxAttempts != null ? this.maxAttempts : defaults.maxAttempts);
+            policy.setRetryBackoff(this.retryBackoff != null ? this.retryBackoff : defaults.retryBackoff);
+            policy.setRetryErrcodes(this.retryErrcodes != null ? this.retryErrcodes : defaults.retryErrcodes);
+            policy.setHedgeDelay(this.hedgeDelay != null ? this.hedgeDelay : defaults.hedgeDelay);
+            policy.setFailureRateThreshold(this.failureRateThreshold != null ? this.failureRateThreshold : defaults.failureRateThreshold);
+            policy.setSlidingWindowSize(this.slidingWindowSize != null ? this.slidingWindowSize : defaults.slidingWindowSize);
+            policy.setMinimumNumberOfCalls(this.minimumNumberOfCalls != null ? this.minimumNumberOfCalls : defaults.minimumNumberOfCalls);
+            policy.setWaitDurationInOpenState(this.waitDurationInOpenState != null ? this.waitDurationInOpenState : defaults.waitDurationInOpenState);
+            policy.setPermittedCallsInHalfOpenState(this.permittedCallsInHalfOpenState != null
+                    ? this.permittedCallsInHalfOpenState : defaults.permittedCallsInHalfOpenState);
+            return policy;
+        }
+    }
+}
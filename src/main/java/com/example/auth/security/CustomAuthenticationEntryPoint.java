@@ -8,20 +8,28 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 /**
- * 未授权的情况下返回给前端特定的json
+ * 未授权的情况下返回给前端特定的json，只写固定的响应体，不读写会话
  *
  * Created by berg on 2023/4/8.
  */
 public class CustomAuthenticationEntryPoint implements AuthenticationEntryPoint {
 
+    // todo: 返回你想要的json串
+    /**
+     * 响应体，{@link CustomServerAuthenticationEntryPoint} 共用
+     */
+    static final String BODY = "{\"status\": 401, \"message\":\"Unauthorized\"}";
+
+    private static final byte[] UNAUTHORIZED = BODY.getBytes(StandardCharsets.UTF_8);
+
     @Override
     public void commence(HttpServletRequest request, HttpServletResponse response, AuthenticationException authException) throws IOException, ServletException {
         response.setContentType("application/json");
         response.setStatus(HttpServletResponse.SC_OK);
-        // todo: 返回你想要的json串
-        String example = "{\"status\": 401, \"message\":\"Unauthorized\"}";
-        response.getWriter().write(example);
+        response.setContentLength(UNAUTHORIZED.length);
+        response.getOutputStream().write(UNAUTHORIZED);
     }
 }
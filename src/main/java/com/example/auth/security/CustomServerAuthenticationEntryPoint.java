@@ -0,0 +1,32 @@
+package com.example.auth.security;
+
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.web.server.ServerAuthenticationEntryPoint;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 响应式场景下未授权的情况返回给前端特定的json，和{@link CustomAuthenticationEntryPoint}保持一致
+ *
+ * Created by berg on 2023/4/10.
+ */
+public class CustomServerAuthenticationEntryPoint implements ServerAuthenticationEntryPoint {
+
+    private static final byte[] UNAUTHORIZED = CustomAuthenticationEntryPoint.BODY.getBytes(StandardCharsets.UTF_8);
+
+    @Override
+    public Mono<Void> commence(ServerWebExchange exchange, AuthenticationException ex) {
+        ServerHttpResponse response = exchange.getResponse();
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        response.setStatusCode(HttpStatus.OK);
+        DataBuffer buffer = response.bufferFactory().wrap(UNAUTHORIZED);
+        return response.writeWith(Mono.just(buffer));
+    }
+}
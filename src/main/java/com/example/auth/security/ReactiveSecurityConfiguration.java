@@ -0,0 +1,79 @@
+package com.example.auth.security;
+
+import com.example.auth.security.oauth2.wechat.WechatProviderRegistry;
+import com.example.auth.security.oauth2.wechat.WechatReactiveAuthorizationCodeTokenResponseClient;
+import com.example.auth.security.oauth2.wechat.WechatReactiveOAuth2UserService;
+import com.example.auth.security.oauth2.wechat.WechatServerOAuth2AuthorizationRequestResolver;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.config.annotation.web.reactive.EnableWebFluxSecurity;
+import org.springframework.security.config.web.server.ServerHttpSecurity;
+import org.springframework.security.oauth2.client.authentication.OAuth2LoginReactiveAuthenticationManager;
+import org.springframework.security.oauth2.client.registration.ReactiveClientRegistrationRepository;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.security.web.server.DefaultServerRedirectStrategy;
+import org.springframework.security.web.server.ServerRedirectStrategy;
+import org.springframework.security.web.server.SecurityWebFilterChain;
+import org.springframework.security.web.server.authentication.ServerAuthenticationSuccessHandler;
+import org.springframework.util.StringUtils;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.net.URI;
+
+/**
+ * 响应式的微信登陆配置，和{@link SecurityConfiguration}是两套可替换的实现。
+ * 获取token和获取用户信息都不阻塞线程，少量事件循环线程就可以支撑大量同时进行中的登陆。
+ * <p>
+ * 使用 {@code --spring.profiles.active=reactive} 启动
+ * <p>
+ * Created by berg on 2023/4/10.
+ */
+@Configuration
+@EnableWebFluxSecurity
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveSecurityConfiguration {
+
+    /**
+     * 响应式的{@link ServerHttpSecurity}配置
+     *
+     * @param http                         the http
+     * @param clientRegistrationRepository the client registration repository
+     * @param wechatWebClient              调用微信接口的web client
+     * @param wechatProviderRegistry       按registrationId分派的微信客户端配置，见 WechatProviderConfiguration
+     * @return the security web filter chain
+     */
+    @Bean
+    SecurityWebFilterChain springSecurityFilterChain(ServerHttpSecurity http,
+                                                     ReactiveClientRegistrationRepository clientRegistrationRepository,
+                                                     WebClient wechatWebClient,
+                                                     WechatProviderRegistry wechatProviderRegistry) {
+        OAuth2LoginReactiveAuthenticationManager authenticationManager = new OAuth2LoginReactiveAuthenticationManager(
+                new WechatReactiveAuthorizationCodeTokenResponseClient(wechatWebClient, wechatProviderRegistry),
+                new WechatReactiveOAuth2UserService(wechatWebClient));
+
+        http.authorizeExchange()
+                .pathMatchers("/oauth2/**", "/login/oauth2/**").permitAll()
+                .anyExchange().authenticated()
+                .and().exceptionHandling().authenticationEntryPoint(new CustomServerAuthenticationEntryPoint());
+        http.oauth2Login()
+                .authorizationRequestResolver(new WechatServerOAuth2AuthorizationRequestResolver(clientRegistrationRepository,
+                        wechatProviderRegistry))
+                .authenticationManager(authenticationManager)
+                .authenticationSuccessHandler(customAuthenticationSuccessHandler());
+        return http.build();
+    }
+
+    private ServerAuthenticationSuccessHandler customAuthenticationSuccessHandler() {
+        // 和servlet版本一样使用回调中的state(前端传入的redirect_url)作为重定向地址
+        ServerRedirectStrategy redirectStrategy = new DefaultServerRedirectStrategy();
+        return (webFilterExchange, authentication) -> {
+            String state = webFilterExchange.getExchange()
+                    .getRequest()
+                    .getQueryParams()
+                    .getFirst(OAuth2ParameterNames.STATE);
+            URI location = URI.create(StringUtils.hasText(state) ? state : "/");
+            return redirectStrategy.sendRedirect(webFilterExchange.getExchange(), location);
+        };
+    }
+}
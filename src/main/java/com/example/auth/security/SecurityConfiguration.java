@@ -1,54 +1,123 @@
 package com.example.auth.security;
 
-import com.example.auth.security.oauth2.wechat.WechatMapOAuth2AccessTokenResponseConverter;
-import com.example.auth.security.oauth2.wechat.WechatOAuth2AuthRequestBuilderCustomizer;
+import com.example.auth.degrade.WechatDegradedLogin;
+import com.example.auth.degrade.WechatProfilePatchFilter;
+import com.example.auth.exchange.WechatCodeExchange;
+import com.example.auth.metrics.WechatLoginMetrics;
+import com.example.auth.quota.WechatQuota;
+import com.example.auth.registration.RedisClientRegistrationRepository;
+import com.example.auth.registration.SecretRotationTokenResponseClient;
+import com.example.auth.resilience.WechatResilience;
+import com.example.auth.security.authorization.CookieOAuth2AuthorizationRequestRepository;
+import com.example.auth.security.miniprogram.DefaultWechatMiniProgramSessionClient;
+import com.example.auth.security.miniprogram.WechatMiniProgramAuthenticationFilter;
+import com.example.auth.security.miniprogram.WechatMiniProgramAuthenticationProvider;
+import com.example.auth.security.miniprogram.WechatMiniProgramProperties;
+import com.example.auth.security.miniprogram.WechatMiniProgramSessionClient;
+import com.example.auth.security.oauth2.wechat.CachingWechatOAuth2UserService;
+import com.example.auth.security.oauth2.wechat.WechatAccessTokenResponseHttpMessageConverter;
 import com.example.auth.security.oauth2.wechat.WechatOAuth2AuthorizationCodeGrantRequestEntityConverter;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2AuthorizationRequestResolver;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2RefreshTokenGrantRequestEntityConverter;
 import com.example.auth.security.oauth2.wechat.WechatOAuth2UserService;
+import com.example.auth.security.oauth2.wechat.WechatProviderOAuth2UserService;
+import com.example.auth.security.oauth2.wechat.WechatProviderRegistry;
+import com.example.auth.security.token.WechatTokenAuthenticationFilter;
+import com.example.auth.security.token.WechatTokenService;
+import com.example.auth.trace.WechatLoginTracer;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
+import org.springframework.boot.actuate.autoconfigure.web.server.ManagementServerProperties;
+import org.springframework.boot.actuate.health.HealthEndpoint;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
-import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.converter.FormHttpMessageConverter;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityCustomizer;
 import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.oauth2.client.endpoint.DefaultAuthorizationCodeTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.DefaultRefreshTokenTokenResponseClient;
 import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
 import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.endpoint.OAuth2RefreshTokenGrantRequest;
 import org.springframework.security.oauth2.client.http.OAuth2ErrorResponseErrorHandler;
 import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
 import org.springframework.security.oauth2.client.userinfo.DefaultOAuth2UserService;
-import org.springframework.security.oauth2.client.userinfo.DelegatingOAuth2UserService;
 import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
 import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
-import org.springframework.security.oauth2.client.web.DefaultOAuth2AuthorizationRequestResolver;
 import org.springframework.security.oauth2.client.web.OAuth2AuthorizationRequestRedirectFilter;
+import org.springframework.security.oauth2.client.web.OAuth2LoginAuthenticationFilter;
 import org.springframework.security.oauth2.client.web.OAuth2AuthorizationRequestResolver;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
-import org.springframework.security.oauth2.core.http.converter.OAuth2AccessTokenResponseHttpMessageConverter;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.authentication.AnonymousAuthenticationFilter;
 import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
 import org.springframework.security.web.authentication.SavedRequestAwareAuthenticationSuccessHandler;
+import org.springframework.security.web.authentication.SimpleUrlAuthenticationFailureHandler;
+import org.springframework.security.web.csrf.CookieCsrfTokenRepository;
+import org.springframework.security.web.savedrequest.CookieRequestCache;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.OrRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
 
 /**
  * 参考：https://www.cnblogs.com/felordcn/p/15143384.html
  *
- * 针对微信网页登陆的OAuth2配置
+ * 针对微信网页登陆的OAuth2配置，响应式的版本见{@link ReactiveSecurityConfiguration}
  * <p>
  * Created by berg on 2023/4/7.
  */
-@EnableWebSecurity(debug = true)
+@EnableWebSecurity
+@EnableConfigurationProperties(WechatSecurityProperties.class)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class SecurityConfiguration {
 
 
+    /**
+     * DebugFilter 按配置开启，只在本地开发时打开，见 application-dev.yaml
+     *
+     * @param properties the properties
+     * @return the web security customizer
+     */
+    @Bean
+    WebSecurityCustomizer wechatSecurityDebugCustomizer(WechatSecurityProperties properties) {
+        return web -> web.debug(properties.isDebug());
+    }
+
     /**
      * 配置{@link HttpSecurity}的新方式
      *
      * @param httpSecurity                 the http security
      * @param clientRegistrationRepository the client registration repository
+     * @param wechatClientHttpRequestFactory 调用微信接口共用的连接池
+     * @param cachingWechatOAuth2UserService 开启用户信息缓存时存在，见 WechatUserInfoCacheConfiguration
+     * @param meterRegistry                登陆各阶段的耗时指标，见 WechatLoginMetrics
+     * @param wechatTokenService           开启无状态令牌时存在，见 WechatTokenConfiguration
+     * @param wechatResilience             微信接口的熔断、隔离和重试，见 WechatResilienceConfiguration
+     * @param wechatDegradedLogin          获取用户信息失败时的降级登陆，见 WechatDegradedLoginConfiguration
+     * @param wechatProviderRegistry       按registrationId分派的微信客户端配置，见 WechatProviderConfiguration
+     * @param redisClientRegistrationRepository 客户端配置存在redis时存在，见 WechatClientRegistrationConfiguration
+     * @param wechatMiniProgramSessionClient 开启小程序登陆时存在，见 WechatMiniProgramConfiguration
+     * @param wechatMiniProgramProperties  小程序登陆配置
+     * @param wechatCodeExchange           合并同一个code的换token请求，见 WechatCodeExchangeConfiguration
+     * @param wechatLoginTracer            开启登陆追踪时存在，见 WechatLoginTraceConfiguration
+     * @param cookieAuthorizationRequestRepository 授权请求存在cookie时存在，见 WechatAuthorizationRequestConfiguration
+     * @param wechatQuota                  开启微信接口配额时存在，见 WechatQuotaConfiguration
+     * @param managementServerProperties   actuator 单独监听的端口
+     * @param serverProperties             应用端口
      * @return the security filter chain
      * @throws Exception the exception
      */
@@ -57,25 +126,153 @@ public class SecurityConfiguration {
             name = {"defaultWebSecurityFilterChain"}
     )
     SecurityFilterChain defaultWebSecurityFilterChain(HttpSecurity httpSecurity,
-                                                      ClientRegistrationRepository clientRegistrationRepository) throws Exception {
+                                                      ClientRegistrationRepository clientRegistrationRepository,
+                                                      ClientHttpRequestFactory wechatClientHttpRequestFactory,
+                                                      ObjectProvider<CachingWechatOAuth2UserService> cachingWechatOAuth2UserService,
+                                                      MeterRegistry meterRegistry,
+                                                      ObjectProvider<WechatTokenService> wechatTokenService,
+                                                      ObjectProvider<WechatResilience> wechatResilience,
+                                                      ObjectProvider<WechatDegradedLogin> wechatDegradedLogin,
+                                                      WechatProviderRegistry wechatProviderRegistry,
+                                                      ObjectProvider<RedisClientRegistrationRepository> redisClientRegistrationRepository,
+                                                      ObjectProvider<WechatMiniProgramSessionClient> wechatMiniProgramSessionClient,
+                                                      ObjectProvider<WechatMiniProgramProperties> wechatMiniProgramProperties,
+                                                      ObjectProvider<WechatCodeExchange> wechatCodeExchange,
+                                                      ObjectProvider<WechatLoginTracer> wechatLoginTracer,
+                                                      ObjectProvider<CookieOAuth2AuthorizationRequestRepository> cookieAuthorizationRequestRepository,
+                                                      ObjectProvider<WechatQuota> wechatQuota,
+                                                      ObjectProvider<ManagementServerProperties> managementServerProperties,
+                                                      ObjectProvider<ServerProperties> serverProperties) throws Exception {
+        WechatLoginMetrics loginMetrics = new WechatLoginMetrics(meterRegistry);
+        WechatResilience resilience = wechatResilience.getIfAvailable();
+        WechatLoginTracer loginTracer = wechatLoginTracer.getIfAvailable();
+        WechatQuota quota = wechatQuota.getIfAvailable();
+
+        OAuth2AuthorizationRequestResolver authorizationRequestResolver = loginMetrics.instrumentResolver(
+                oAuth2AuthorizationRequestResolver(clientRegistrationRepository, wechatProviderRegistry));
 
-        OAuth2AuthorizationRequestResolver authorizationRequestResolver = oAuth2AuthorizationRequestResolver(clientRegistrationRepository);
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> tokenResponseClient = accessTokenResponseClient(wechatClientHttpRequestFactory,
+                wechatProviderRegistry);
+        RedisClientRegistrationRepository registrationRepository = redisClientRegistrationRepository.getIfAvailable();
+        if (registrationRepository != null) {
+            // 更换secret的重叠期内用旧secret重试，在熔断和重试里面
+            tokenResponseClient = new SecretRotationTokenResponseClient(tokenResponseClient, registrationRepository, meterRegistry);
+        }
+        if (quota != null) {
+            // 在熔断和重试里面，每次真正发给微信的调用(包括重试)各占一个令牌；合并掉的重复code不占令牌
+            tokenResponseClient = quota.decorateTokenClient(tokenResponseClient);
+        }
+        if (resilience != null) {
+            tokenResponseClient = resilience.decorateTokenClient(tokenResponseClient);
+        }
+        WechatCodeExchange codeExchange = wechatCodeExchange.getIfAvailable();
+        if (codeExchange != null) {
+            // 同一个code只调用一次微信，等待结果的请求不占隔离名额
+            tokenResponseClient = codeExchange.decorateTokenClient(tokenResponseClient);
+        }
+        if (loginTracer != null) {
+            // 在请求线程里，和追踪过滤器共用ThreadLocal
+            tokenResponseClient = loginTracer.decorateTokenClient(tokenResponseClient);
+        }
+        // 耗时指标包含重试和对冲
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient = loginMetrics.instrumentTokenClient(
+                tokenResponseClient);
 
-        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient = accessTokenResponseClient();
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> wechatUserService = cachingWechatOAuth2UserService.getIfAvailable();
+        if (wechatUserService == null) {
+            wechatUserService = new WechatOAuth2UserService(wechatClientHttpRequestFactory);
+            if (quota != null) {
+                // 重试和对冲请求各占一个令牌
+                wechatUserService = quota.decorateUserService(wechatUserService, WechatQuota.Priority.FIRST_LOGIN);
+            }
+            if (resilience != null) {
+                wechatUserService = resilience.decorateUserService(wechatUserService);
+            }
+        }
+        WechatDegradedLogin degradedLogin = wechatDegradedLogin.getIfAvailable();
+        if (degradedLogin != null) {
+            wechatUserService = degradedLogin.decorateUserService(wechatUserService);
+        }
+        // 按registrationId查一次注册表决定用微信的还是默认的服务
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> providerUserService = new WechatProviderOAuth2UserService(
+                wechatProviderRegistry, wechatUserService, new DefaultOAuth2UserService());
+        if (loginTracer != null) {
+            providerUserService = loginTracer.decorateUserService(providerUserService);
+        }
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> oAuth2UserService = loginMetrics.instrumentUserService(providerUserService);
 
-        OAuth2UserService<OAuth2UserRequest, OAuth2User> oAuth2UserService = new DelegatingOAuth2UserService<>(Arrays.asList(new WechatOAuth2UserService(),
-                new DefaultOAuth2UserService()));
+        CookieOAuth2AuthorizationRequestRepository authorizationRequestRepository = cookieAuthorizationRequestRepository.getIfAvailable();
+        // 授权请求放在cookie里时，登陆前的原始地址也放cookie，未登陆的请求不创建会话
+        CookieRequestCache requestCache = authorizationRequestRepository != null ? new CookieRequestCache() : null;
+        AuthenticationSuccessHandler successHandler = customAuthenticationSuccessHandler(requestCache);
+        WechatTokenService tokenService = wechatTokenService.getIfAvailable();
+        if (tokenService != null) {
+            successHandler = tokenService.successHandler(successHandler);
+        }
+        if (loginTracer != null) {
+            successHandler = loginTracer.decorateSuccessHandler(successHandler);
+        }
 
         httpSecurity.authorizeRequests()
                 .antMatchers("/oauth2/**", "/login/oauth2/**").permitAll()
+                // actuator 单独监听的内网端口(management.server.port)不走登陆，prometheus 在这里抓取
+                .requestMatchers(managementPortMatcher(managementServerProperties.getIfAvailable(), serverProperties.getIfAvailable()))
+                .permitAll()
+                // 应用端口上的指标、连接池、登陆追踪等端点不对登陆的微信用户开放，health 仍按登陆校验
+                .requestMatchers(EndpointRequest.toAnyEndpoint().excluding(HealthEndpoint.class)).denyAll()
                 .anyRequest().authenticated()
-                .and().exceptionHandling().authenticationEntryPoint(new CustomAuthenticationEntryPoint())
+                .and().exceptionHandling().authenticationEntryPoint(loginMetrics.instrumentEntryPoint(new CustomAuthenticationEntryPoint()))
                 .and().sessionManagement()
                 .sessionCreationPolicy(SessionCreationPolicy.IF_REQUIRED);
 //                .and().csrf().disable();
+        if (tokenService != null) {
+            // 登陆后只认令牌，会话只在授权跳转期间保存授权请求(授权请求放cookie时不创建)，登陆成功即销毁
+            // 无状态时csrf令牌不能放会话里：浏览器带令牌cookie的请求用双提交cookie校验，
+            // 带 Authorization: Bearer 的请求跨站伪造不了请求头，不需要csrf令牌
+            httpSecurity.sessionManagement()
+                    .sessionCreationPolicy(SessionCreationPolicy.STATELESS)
+                    .and().csrf().csrfTokenRepository(CookieCsrfTokenRepository.withHttpOnlyFalse())
+                    .ignoringRequestMatchers(WechatTokenService.BEARER_REQUEST_MATCHER)
+                    .and().logout().addLogoutHandler(tokenService.logoutHandler())
+                    .and().addFilterBefore(new WechatTokenAuthenticationFilter(tokenService, meterRegistry),
+                            OAuth2AuthorizationRequestRedirectFilter.class);
+        }
+        if (degradedLogin != null && degradedLogin.isEnabled()) {
+            // 在会话或令牌恢复出登陆用户之后
+            httpSecurity.addFilterBefore(new WechatProfilePatchFilter(degradedLogin), AnonymousAuthenticationFilter.class);
+        }
+        List<RequestMatcher> loginRequestMatchers = new ArrayList<>();
+        loginRequestMatchers.add(new AntPathRequestMatcher(OAuth2LoginAuthenticationFilter.DEFAULT_FILTER_PROCESSES_URI));
+        WechatMiniProgramSessionClient sessionClient = wechatMiniProgramSessionClient.getIfAvailable();
+        if (sessionClient != null) {
+            WechatMiniProgramProperties miniProgramProperties = wechatMiniProgramProperties.getObject();
+            // 在装饰之前确定认识的小程序，自定义的客户端按 wechat.mini-program.apps 判断
+            Predicate<String> registrationIds = sessionClient instanceof DefaultWechatMiniProgramSessionClient
+                    ? ((DefaultWechatMiniProgramSessionClient) sessionClient)::supports
+                    : miniProgramProperties.getApps()::containsKey;
+            if (resilience != null) {
+                sessionClient = resilience.decorateSessionClient(sessionClient);
+            }
+            if (loginTracer != null) {
+                sessionClient = loginTracer.decorateSessionClient(sessionClient);
+            }
+            // 小程序直接POST code，不走授权跳转
+            WechatMiniProgramAuthenticationFilter miniProgramFilter = new WechatMiniProgramAuthenticationFilter(
+                    miniProgramProperties.getLoginProcessingUrl(), registrationIds,
+                    new WechatMiniProgramAuthenticationProvider(loginMetrics.instrumentSessionClient(sessionClient), meterRegistry),
+                    tokenService);
+            httpSecurity.csrf().ignoringRequestMatchers(miniProgramFilter.getLoginRequestMatcher())
+                    .and().addFilterBefore(miniProgramFilter, OAuth2LoginAuthenticationFilter.class);
+            loginRequestMatchers.add(miniProgramFilter.getLoginRequestMatcher());
+        }
+        if (loginTracer != null) {
+            // 只追踪登陆回调，放在登陆过滤器之前
+            httpSecurity.addFilterBefore(loginTracer.filter(new OrRequestMatcher(loginRequestMatchers)),
+                    OAuth2AuthorizationRequestRedirectFilter.class);
+        }
         // 如果需要拿授权方的用户信息需要走 oauth2login
         httpSecurity.oauth2Login()
-                .successHandler(customAuthenticationSuccessHandler())
+                .successHandler(loginMetrics.instrumentSuccessHandler(successHandler))
 //                .defaultSuccessUrl("/oauth2/wx/h5/redirect")
                 // 授权端点配置  比如获取 code
                 .authorizationEndpoint().authorizationRequestResolver(authorizationRequestResolver)
@@ -85,6 +282,14 @@ public class SecurityConfiguration {
                 .and()
                 // 获取用户信息端点配置  根据accessToken获取用户基本信息
                 .userInfoEndpoint().userService(oAuth2UserService);
+        if (authorizationRequestRepository != null) {
+            // 跳转授权、state校验失败和未登陆的401都不碰会话，登陆成功后才写redis
+            SimpleUrlAuthenticationFailureHandler failureHandler = new SimpleUrlAuthenticationFailureHandler("/login?error");
+            failureHandler.setAllowSessionCreation(false);
+            httpSecurity.requestCache().requestCache(requestCache)
+                    .and().oauth2Login().failureHandler(failureHandler)
+                    .authorizationEndpoint().authorizationRequestRepository(authorizationRequestRepository);
+        }
 
         // 如果不需要获取用户信息  仅仅是授权 就用 oauth2 client
 //        httpSecurity.oauth2Client()
@@ -93,51 +298,107 @@ public class SecurityConfiguration {
         return httpSecurity.build();
     }
 
-    private AuthenticationSuccessHandler customAuthenticationSuccessHandler() {
-        // 使用前端请求中的参数作为重定向地址， 相关代码在WechatOAuth2AuthRequestBuilderCustomizer
+    /**
+     * 请求是否来自actuator单独监听的端口，没有配置 management.server.port 或者和应用端口相同时不匹配任何请求
+     *
+     * @param managementServerProperties management.server 配置
+     * @param serverProperties           server 配置
+     * @return the request matcher
+     */
+    private static RequestMatcher managementPortMatcher(ManagementServerProperties managementServerProperties,
+                                                        ServerProperties serverProperties) {
+        Integer managementPort = managementServerProperties != null ? managementServerProperties.getPort() : null;
+        Integer serverPort = serverProperties != null && serverProperties.getPort() != null ? serverProperties.getPort() : 8080;
+        if (managementPort == null || managementPort <= 0 || managementPort.equals(serverPort)) {
+            return request -> false;
+        }
+        return request -> request.getLocalPort() == managementPort;
+    }
+
+    private AuthenticationSuccessHandler customAuthenticationSuccessHandler(CookieRequestCache requestCache) {
+        // 使用前端请求中的参数作为重定向地址， 相关代码在WechatOAuth2AuthorizationRequestResolver
         SavedRequestAwareAuthenticationSuccessHandler successHandler = new SavedRequestAwareAuthenticationSuccessHandler();
         successHandler.setTargetUrlParameter("state");
+        if (requestCache != null) {
+            successHandler.setRequestCache(requestCache);
+        }
         return successHandler;
     }
 
     /**
-     * 用来从{@link javax.servlet.http.HttpServletRequest}中检索Oauth2需要的参数并封装成OAuth2请求对象{@link OAuth2AuthorizationRequest}
+     * 用来从{@link javax.servlet.http.HttpServletRequest}中检索Oauth2需要的参数并封装成OAuth2请求对象{@link OAuth2AuthorizationRequest}，
+     * 微信的授权链接使用启动时预编译的模板生成
      *
      * @param clientRegistrationRepository the client registration repository
-     * @return DefaultOAuth2AuthorizationRequestResolver
+     * @param providerRegistry             微信客户端配置的注册表
+     * @return WechatOAuth2AuthorizationRequestResolver
+     */
+    private OAuth2AuthorizationRequestResolver oAuth2AuthorizationRequestResolver(ClientRegistrationRepository clientRegistrationRepository,
+                                                                                  WechatProviderRegistry providerRegistry) {
+        return new WechatOAuth2AuthorizationRequestResolver(clientRegistrationRepository,
+                OAuth2AuthorizationRequestRedirectFilter.DEFAULT_AUTHORIZATION_REQUEST_BASE_URI, providerRegistry);
+    }
+
+    /**
+     * 调用token-uri去请求授权服务器获取token的OAuth2 Http 客户端
+     *
+     * @param requestFactory 调用微信接口共用的连接池
+     * @return OAuth2AccessTokenResponseClient
      */
-    private OAuth2AuthorizationRequestResolver oAuth2AuthorizationRequestResolver(ClientRegistrationRepository clientRegistrationRepository) {
-        DefaultOAuth2AuthorizationRequestResolver resolver = new DefaultOAuth2AuthorizationRequestResolver(clientRegistrationRepository,
-                OAuth2AuthorizationRequestRedirectFilter.DEFAULT_AUTHORIZATION_REQUEST_BASE_URI);
-        resolver.setAuthorizationRequestCustomizer(WechatOAuth2AuthRequestBuilderCustomizer::customize);
-        return resolver;
+    public static OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient(ClientHttpRequestFactory requestFactory) {
+        return accessTokenResponseClient(requestFactory, new WechatProviderRegistry());
     }
 
     /**
      * 调用token-uri去请求授权服务器获取token的OAuth2 Http 客户端
      *
+     * @param requestFactory   调用微信接口共用的连接池
+     * @param providerRegistry 微信客户端配置的注册表
      * @return OAuth2AccessTokenResponseClient
      */
-    private OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient() {
+    public static OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient(ClientHttpRequestFactory requestFactory,
+                                                                                                             WechatProviderRegistry providerRegistry) {
         DefaultAuthorizationCodeTokenResponseClient tokenResponseClient = new DefaultAuthorizationCodeTokenResponseClient();
-        tokenResponseClient.setRequestEntityConverter(new WechatOAuth2AuthorizationCodeGrantRequestEntityConverter());
+        tokenResponseClient.setRequestEntityConverter(new WechatOAuth2AuthorizationCodeGrantRequestEntityConverter(providerRegistry));
+        tokenResponseClient.setRestOperations(tokenRestTemplate(requestFactory));
+        return tokenResponseClient;
+    }
 
-        OAuth2AccessTokenResponseHttpMessageConverter tokenResponseHttpMessageConverter = new OAuth2AccessTokenResponseHttpMessageConverter();
-        // 微信返回的content-type 是 text-plain
-        tokenResponseHttpMessageConverter.setSupportedMediaTypes(Arrays.asList(MediaType.APPLICATION_JSON,
-                MediaType.TEXT_PLAIN,
-                new MediaType("application", "*+json")));
-        // 兼容微信解析
-        tokenResponseHttpMessageConverter.setTokenResponseConverter(new WechatMapOAuth2AccessTokenResponseConverter());
+    /**
+     * 用refresh_token刷新access_token的客户端，后台刷新时使用，见 WechatTokenRefreshConfiguration
+     *
+     * @param requestFactory 调用微信接口共用的连接池
+     * @return OAuth2AccessTokenResponseClient
+     */
+    public static OAuth2AccessTokenResponseClient<OAuth2RefreshTokenGrantRequest> refreshTokenResponseClient(ClientHttpRequestFactory requestFactory) {
+        return refreshTokenResponseClient(requestFactory, new WechatProviderRegistry());
+    }
 
+    /**
+     * 用refresh_token刷新access_token的客户端，后台刷新时使用，见 WechatTokenRefreshConfiguration
+     *
+     * @param requestFactory   调用微信接口共用的连接池
+     * @param providerRegistry 微信客户端配置的注册表
+     * @return OAuth2AccessTokenResponseClient
+     */
+    public static OAuth2AccessTokenResponseClient<OAuth2RefreshTokenGrantRequest> refreshTokenResponseClient(ClientHttpRequestFactory requestFactory,
+                                                                                                         WechatProviderRegistry providerRegistry) {
+        DefaultRefreshTokenTokenResponseClient tokenResponseClient = new DefaultRefreshTokenTokenResponseClient();
+        tokenResponseClient.setRequestEntityConverter(new WechatOAuth2RefreshTokenGrantRequestEntityConverter(providerRegistry));
+        tokenResponseClient.setRestOperations(tokenRestTemplate(requestFactory));
+        return tokenResponseClient;
+    }
+
+    private static RestTemplate tokenRestTemplate(ClientHttpRequestFactory requestFactory) {
+        // 微信返回的content-type 是 text-plain，流式解析直接读出token，兼容微信的errcode
         RestTemplate restTemplate = new RestTemplate(
                 Arrays.asList(new FormHttpMessageConverter(),
-                        tokenResponseHttpMessageConverter
+                        new WechatAccessTokenResponseHttpMessageConverter()
                 ));
 
+        restTemplate.setRequestFactory(requestFactory);
         restTemplate.setErrorHandler(new OAuth2ErrorResponseErrorHandler());
-        tokenResponseClient.setRestOperations(restTemplate);
-        return tokenResponseClient;
+        return restTemplate;
     }
 
 
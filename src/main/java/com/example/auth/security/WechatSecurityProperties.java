@@ -0,0 +1,19 @@
+package com.example.auth.security;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * 安全配置的开关
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.security")
+public class WechatSecurityProperties {
+
+    /**
+     * 是否开启 spring security 的 DebugFilter，每个请求都打印请求头和过滤器链，开销很大，只在本地开发时开启(dev profile)
+     */
+    private boolean debug = false;
+}
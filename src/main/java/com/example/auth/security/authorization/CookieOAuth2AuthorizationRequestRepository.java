@@ -0,0 +1,287 @@
+package com.example.auth.security.authorization;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.security.oauth2.client.web.AuthorizationRequestRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import org.springframework.web.util.WebUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 把授权请求保存在短期有效的签名cookie里，代替默认的 HttpSessionOAuth2AuthorizationRequestRepository，
+ * 跳转到微信授权页时不再创建redis会话。
+ * <p>
+ * cookie 格式为 {@code base64url(body).base64url(HMAC-SHA256(body))}，body 是紧凑的二进制：
+ * <pre>
+ * version(1) exp(8) authorizationUri clientId redirectUri state authorizationRequestUri scopes additionalParameters attributes
+ * </pre>
+ * 只签名不加密，里面没有密钥类的内容；cookie 是 HttpOnly 的，回调时校验签名、有效期和state，取出后立即清掉
+ * <p>
+ * Created by berg on 2023/4/16.
+ */
+public class CookieOAuth2AuthorizationRequestRepository implements AuthorizationRequestRepository<OAuth2AuthorizationRequest> {
+
+    private static final byte VERSION = 1;
+    private static final int MIN_SECRET_LENGTH = 32;
+    private static final String PLACEHOLDER_SECRET_PREFIX = "change-me";
+    private static final String HMAC = "HmacSHA256";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final String cookieName;
+    /**
+     * 第一个签名，全部用来校验
+     */
+    private final List<SigningKey> keys = new ArrayList<>();
+    private final Duration ttl;
+    private final Clock clock;
+
+    public CookieOAuth2AuthorizationRequestRepository(String cookieName, List<String> secrets, Duration ttl) {
+        this(cookieName, secrets, ttl, Clock.systemUTC());
+    }
+
+    CookieOAuth2AuthorizationRequestRepository(String cookieName, List<String> secrets, Duration ttl, Clock clock) {
+        Assert.hasText(cookieName, "wechat.authorization-request.cookie-name must not be empty");
+        Assert.notEmpty(secrets, "wechat.authorization-request.secrets must not be empty");
+        for (String secret : secrets) {
+            Assert.isTrue(secret != null && secret.length() >= MIN_SECRET_LENGTH,
+                    () -> "wechat.authorization-request.secrets must be at least " + MIN_SECRET_LENGTH + " characters");
+            Assert.isTrue(!secret.startsWith(PLACEHOLDER_SECRET_PREFIX),
+                    "wechat.authorization-request.secrets contains a placeholder, set a random secret");
+            this.keys.add(new SigningKey(secret));
+        }
+        this.cookieName = cookieName;
+        this.ttl = ttl;
+        this.clock = clock;
+    }
+
+    @Override
+    public OAuth2AuthorizationRequest loadAuthorizationRequest(HttpServletRequest request) {
+        String state = request.getParameter(OAuth2ParameterNames.STATE);
+        if (state == null) {
+            return null;
+        }
+        Cookie cookie = WebUtils.getCookie(request, this.cookieName);
+        if (cookie == null || !StringUtils.hasText(cookie.getValue())) {
+            return null;
+        }
+        OAuth2AuthorizationRequest authorizationRequest = decode(cookie.getValue());
+        // 和会话存储一样，state 对不上的当作没有授权请求
+        return authorizationRequest != null && state.equals(authorizationRequest.getState()) ? authorizationRequest : null;
+    }
+
+    @Override
+    public void saveAuthorizationRequest(OAuth2AuthorizationRequest authorizationRequest, HttpServletRequest request,
+                                         HttpServletResponse response) {
+        if (authorizationRequest == null) {
+            clearCookie(request, response);
+            return;
+        }
+        Assert.hasText(authorizationRequest.getState(), "authorizationRequest.state cannot be empty");
+        response.addHeader(HttpHeaders.SET_COOKIE, cookie(request, encode(authorizationRequest), this.ttl).toString());
+    }
+
+    @Override
+    @Deprecated
+    public OAuth2AuthorizationRequest removeAuthorizationRequest(HttpServletRequest request) {
+        // 没有response清不掉cookie，留到 ttl 之后由浏览器过期
+        return loadAuthorizationRequest(request);
+    }
+
+    @Override
+    public OAuth2AuthorizationRequest removeAuthorizationRequest(HttpServletRequest request, HttpServletResponse response) {
+        OAuth2AuthorizationRequest authorizationRequest = loadAuthorizationRequest(request);
+        if (authorizationRequest != null) {
+            clearCookie(request, response);
+        }
+        return authorizationRequest;
+    }
+
+    String encode(OAuth2AuthorizationRequest authorizationRequest) {
+        Assert.isTrue(AuthorizationGrantType.AUTHORIZATION_CODE.equals(authorizationRequest.getGrantType()),
+                "Only the authorization_code grant type can be stored in a cookie");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeLong(this.clock.instant().plus(this.ttl).getEpochSecond());
+            out.writeUTF(authorizationRequest.getAuthorizationUri());
+            out.writeUTF(authorizationRequest.getClientId());
+            writeNullable(out, authorizationRequest.getRedirectUri());
+            out.writeUTF(authorizationRequest.getState());
+            out.writeUTF(authorizationRequest.getAuthorizationRequestUri());
+            Set<String> scopes = authorizationRequest.getScopes();
+            out.writeShort(scopes.size());
+            for (String scope : scopes) {
+                out.writeUTF(scope);
+            }
+            writeMap(out, authorizationRequest.getAdditionalParameters());
+            writeMap(out, authorizationRequest.getAttributes());
+            byte[] body = bytes.toByteArray();
+            return ENCODER.encodeToString(body) + '.' + ENCODER.encodeToString(this.keys.get(0).sign(body));
+        } catch (IOException | GeneralSecurityException ex) {
+            throw new IllegalStateException("Failed to encode authorization request", ex);
+        }
+    }
+
+    /**
+     * 校验签名和有效期并解析
+     *
+     * @param value cookie的值
+     * @return 格式错误、签名不对或已过期时返回null
+     */
+    OAuth2AuthorizationRequest decode(String value) {
+        int dot = value.indexOf('.');
+        if (dot <= 0 || dot == value.length() - 1) {
+            return null;
+        }
+        try {
+            byte[] body = DECODER.decode(value.substring(0, dot));
+            byte[] signature = DECODER.decode(value.substring(dot + 1));
+            if (!verify(body, signature)) {
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            if (this.clock.instant().getEpochSecond() >= in.readLong()) {
+                return null;
+            }
+            OAuth2AuthorizationRequest.Builder builder = OAuth2AuthorizationRequest.authorizationCode()
+                    .authorizationUri(in.readUTF())
+                    .clientId(in.readUTF())
+                    .redirectUri(readNullable(in))
+                    .state(in.readUTF())
+                    .authorizationRequestUri(in.readUTF());
+            int size = in.readUnsignedShort();
+            Set<String> scopes = new LinkedHashSet<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                scopes.add(in.readUTF());
+            }
+            return builder.scopes(scopes)
+                    .additionalParameters(readMap(in))
+                    .attributes(readMap(in))
+                    .build();
+        } catch (IllegalArgumentException | IOException | GeneralSecurityException ex) {
+            return null;
+        }
+    }
+
+    private boolean verify(byte[] body, byte[] signature) throws GeneralSecurityException {
+        for (SigningKey key : this.keys) {
+            if (MessageDigest.isEqual(key.sign(body), signature)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clearCookie(HttpServletRequest request, HttpServletResponse response) {
+        if (WebUtils.getCookie(request, this.cookieName) != null) {
+            response.addHeader(HttpHeaders.SET_COOKIE, cookie(request, "", Duration.ZERO).toString());
+        }
+    }
+
+    private ResponseCookie cookie(HttpServletRequest request, String value, Duration maxAge) {
+        String contextPath = request.getContextPath();
+        return ResponseCookie.from(this.cookieName, value)
+                .path(StringUtils.hasLength(contextPath) ? contextPath : "/")
+                .maxAge(maxAge)
+                .httpOnly(true)
+                .secure(request.isSecure())
+                // 微信授权回调是跨站的顶级导航，Lax 下能带上
+                .sameSite("Lax")
+                .build();
+    }
+
+    /**
+     * 授权请求里的参数和属性都是字符串(registration_id、nonce、code_verifier 等)
+     */
+    private static void writeMap(DataOutputStream out, Map<String, Object> map) throws IOException {
+        out.writeShort(map.size());
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(String.valueOf(entry.getValue()));
+        }
+    }
+
+    private static Map<String, Object> readMap(DataInputStream in) throws IOException {
+        int size = in.readUnsignedShort();
+        Map<String, Object> map = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            map.put(in.readUTF(), in.readUTF());
+        }
+        return map;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static final class SigningKey {
+
+        private final Mac prototype;
+
+        SigningKey(String secret) {
+            try {
+                Mac master = Mac.getInstance(HMAC);
+                master.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC));
+                this.prototype = Mac.getInstance(HMAC);
+                this.prototype.init(new SecretKeySpec(
+                        master.doFinal("wechat-authorization-request-sign".getBytes(StandardCharsets.UTF_8)), HMAC));
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException("Failed to init authorization request signing key", ex);
+            }
+        }
+
+        /**
+         * 每次签名复制一份初始化好的Mac
+         */
+        byte[] sign(byte[] body) throws GeneralSecurityException {
+            Mac mac;
+            try {
+                mac = (Mac) this.prototype.clone();
+            } catch (CloneNotSupportedException ex) {
+                synchronized (this.prototype) {
+                    return this.prototype.doFinal(body);
+                }
+            }
+            return mac.doFinal(body);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.auth.security.authorization;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 授权请求保存在签名cookie里，{@code wechat.authorization-request.store=cookie} 时生效，
+ * SecurityConfiguration 检测到{@link CookieOAuth2AuthorizationRequestRepository}后，未登陆的请求都不再创建会话
+ * <p>
+ * Created by berg on 2023/4/16.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatAuthorizationRequestProperties.class)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(prefix = "wechat.authorization-request", name = "store", havingValue = "cookie")
+public class WechatAuthorizationRequestConfiguration {
+
+    @Bean
+    public CookieOAuth2AuthorizationRequestRepository cookieOAuth2AuthorizationRequestRepository(
+            WechatAuthorizationRequestProperties properties) {
+        return new CookieOAuth2AuthorizationRequestRepository(properties.getCookieName(), properties.getSecrets(),
+                properties.getTtl());
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.auth.security.authorization;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 授权请求(state、redirect_uri 等)的保存方式。cookie 时授权跳转期间不创建会话，只有登陆成功后才写redis
+ *
+ * Created by berg on 2023/4/16.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.authorization-request")
+public class WechatAuthorizationRequestProperties {
+
+    /**
+     * session | cookie，session 为spring security默认的会话存储
+     */
+    private Store store = Store.SESSION;
+
+    /**
+     * 放授权请求的cookie
+     */
+    private String cookieName = "WECHAT_AUTH_REQUEST";
+
+    /**
+     * 授权请求的有效期，超过后回调按state校验失败处理，需要大于用户在微信授权页停留的时间
+     */
+    private Duration ttl = Duration.ofMinutes(10);
+
+    /**
+     * 签名密钥，至少32个字符，第一个用来签名，列表里的都能校验，轮换时把新密钥放到最前面，旧的在 ttl 之后删除。
+     * cookie 时必须配置，没有默认值，为空或者是占位值时启动失败
+     */
+    private List<String> secrets = new ArrayList<>();
+
+    public enum Store {
+        SESSION, COOKIE
+    }
+}
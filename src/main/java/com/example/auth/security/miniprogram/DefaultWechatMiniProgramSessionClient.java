@@ -0,0 +1,146 @@
+package com.example.auth.security.miniprogram;
+
+import com.example.auth.security.oauth2.wechat.WechatErrorCodes;
+import com.example.auth.security.oauth2.wechat.WechatJsonReader;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 直接在共用的连接池上调用 jscode2session：每个小程序的请求地址(appid、secret)启动时拼好，每次只追加code；
+ * 响应体用共享的{@link WechatJsonReader}解析器边读边解析，只取需要的字段，不经过 RestTemplate 的消息转换和中间的Map
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class DefaultWechatMiniProgramSessionClient implements WechatMiniProgramSessionClient {
+
+    static final String INVALID_SESSION_RESPONSE_ERROR_CODE = "invalid_session_response";
+    private static final String CLIENT_REGISTRATION_NOT_FOUND_ERROR_CODE = "client_registration_not_found";
+
+    private final ClientHttpRequestFactory requestFactory;
+    /**
+     * registrationId -> 不含code的请求地址
+     */
+    private final Map<String, String> sessionUris = new HashMap<>();
+
+    /**
+     * Instantiates a new client.
+     *
+     * @param requestFactory 调用微信接口共用的连接池
+     * @param properties     the properties
+     */
+    public DefaultWechatMiniProgramSessionClient(ClientHttpRequestFactory requestFactory, WechatMiniProgramProperties properties) {
+        Assert.notNull(requestFactory, "requestFactory cannot be null");
+        Assert.notNull(properties, "properties cannot be null");
+        this.requestFactory = requestFactory;
+        properties.getApps().forEach((registrationId, app) -> {
+            Assert.hasText(app.getAppid(), () -> "wechat.mini-program.apps." + registrationId + ".appid must not be empty");
+            Assert.hasText(app.getSecret(), () -> "wechat.mini-program.apps." + registrationId + ".secret must not be empty");
+            String sessionUri = StringUtils.hasText(app.getSessionUri()) ? app.getSessionUri() : properties.getSessionUri();
+            this.sessionUris.put(registrationId, sessionUri + (sessionUri.indexOf('?') < 0 ? '?' : '&')
+                    + "appid=" + encode(app.getAppid())
+                    + "&secret=" + encode(app.getSecret())
+                    + "&grant_type=authorization_code&js_code=");
+        });
+    }
+
+    /**
+     * 是否配置了该小程序
+     *
+     * @param registrationId the registration id
+     * @return the boolean
+     */
+    public boolean supports(String registrationId) {
+        return this.sessionUris.containsKey(registrationId);
+    }
+
+    @Override
+    public WechatMiniProgramSession getSession(String registrationId, String code) {
+        String sessionUri = this.sessionUris.get(registrationId);
+        if (sessionUri == null) {
+            throw new OAuth2AuthorizationException(new OAuth2Error(CLIENT_REGISTRATION_NOT_FOUND_ERROR_CODE,
+                    "Client Registration not found with Id: " + registrationId, null));
+        }
+        try {
+            ClientHttpRequest request = this.requestFactory.createRequest(URI.create(sessionUri + encode(code)), HttpMethod.GET);
+            try (ClientHttpResponse response = request.execute()) {
+                if (response.getRawStatusCode() != HttpStatus.OK.value()) {
+                    throw new OAuth2AuthorizationException(new OAuth2Error(INVALID_SESSION_RESPONSE_ERROR_CODE,
+                            "An error occurred while attempting to retrieve the session: HTTP " + response.getRawStatusCode(), null));
+                }
+                return read(response);
+            }
+        } catch (IOException ex) {
+            throw new OAuth2AuthorizationException(new OAuth2Error(INVALID_SESSION_RESPONSE_ERROR_CODE,
+                    "An error occurred while attempting to retrieve the session: " + ex.getMessage(), null), ex);
+        }
+    }
+
+    /**
+     * 微信出错时http状态码也是200，响应体里只有errcode和errmsg，例如 {"errcode":40029,"errmsg":"invalid code"}
+     */
+    private static WechatMiniProgramSession read(ClientHttpResponse response) throws IOException {
+        String openid = null;
+        String unionid = null;
+        String sessionKey = null;
+        String errcode = null;
+        String errmsg = null;
+        try (JsonParser parser = WechatJsonReader.createParser(response.getBody())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new OAuth2AuthorizationException(new OAuth2Error(INVALID_SESSION_RESPONSE_ERROR_CODE,
+                        "The session response is not a JSON object", null));
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value.isStructStart()) {
+                    parser.skipChildren();
+                    continue;
+                }
+                switch (field) {
+                    case "openid":
+                        openid = parser.getValueAsString();
+                        break;
+                    case "unionid":
+                        unionid = parser.getValueAsString();
+                        break;
+                    case "session_key":
+                        sessionKey = parser.getValueAsString();
+                        break;
+                    case WechatErrorCodes.ERRCODE:
+                        errcode = parser.getValueAsString();
+                        break;
+                    case WechatErrorCodes.ERRMSG:
+                        errmsg = parser.getValueAsString();
+                        break;
+                    default:
+                }
+            }
+        }
+        WechatErrorCodes.check(errcode, errmsg);
+        if (!StringUtils.hasText(openid)) {
+            throw new OAuth2AuthorizationException(new OAuth2Error(INVALID_SESSION_RESPONSE_ERROR_CODE,
+                    "Missing required \"openid\" in the session response", null));
+        }
+        return new WechatMiniProgramSession(openid, unionid, sessionKey);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.auth.security.miniprogram;
+
+import com.example.auth.security.oauth2.wechat.WechatErrorCodes;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import com.example.auth.security.token.WechatTokenService;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.http.MediaType;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
+import org.springframework.security.web.authentication.AbstractAuthenticationProcessingFilter;
+import org.springframework.security.web.authentication.AuthenticationFailureHandler;
+import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.function.Predicate;
+
+/**
+ * 小程序登陆：wx.login 拿到code后POST到 {@code /login/wechat/miniprogram/{registrationId}}，
+ * code放在表单参数或者json请求体({@code {"code":"..."}}，wx.request 默认的格式)里。
+ * <p>
+ * 登陆成功返回json：开启无状态令牌时带上令牌，小程序之后用 {@code Authorization: Bearer} 请求头传递；
+ * 否则和网页登陆一样建立会话，会话id在响应的 Set-Cookie 里。登陆失败返回和{@code CustomAuthenticationEntryPoint}一样格式的json，
+ * 微信返回的错误码放在 errcode 里
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatMiniProgramAuthenticationFilter extends AbstractAuthenticationProcessingFilter {
+
+    private static final String REGISTRATION_ID_URI_VARIABLE_NAME = "registrationId";
+    private static final String CODE = "code";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final AntPathRequestMatcher loginRequestMatcher;
+    private final Predicate<String> registrationIds;
+
+    /**
+     * Instantiates a new filter.
+     *
+     * @param loginProcessingUrl 带 {registrationId} 变量的登陆地址
+     * @param registrationIds    配置了的小程序，比如{@link DefaultWechatMiniProgramSessionClient#supports}
+     * @param provider           the provider
+     * @param tokenService       开启无状态令牌时不为空
+     */
+    public WechatMiniProgramAuthenticationFilter(String loginProcessingUrl, Predicate<String> registrationIds,
+                                                 WechatMiniProgramAuthenticationProvider provider, WechatTokenService tokenService) {
+        this(new AntPathRequestMatcher(loginProcessingUrl, "POST"), registrationIds, new ProviderManager(provider), tokenService);
+    }
+
+    private WechatMiniProgramAuthenticationFilter(AntPathRequestMatcher loginRequestMatcher, Predicate<String> registrationIds,
+                                                  AuthenticationManager authenticationManager, WechatTokenService tokenService) {
+        super(loginRequestMatcher, authenticationManager);
+        Assert.notNull(registrationIds, "registrationIds cannot be null");
+        this.loginRequestMatcher = loginRequestMatcher;
+        this.registrationIds = registrationIds;
+        setAuthenticationSuccessHandler(successHandler(tokenService));
+        setAuthenticationFailureHandler(failureHandler());
+    }
+
+    /**
+     * 登陆地址，小程序没有cookie也就没有csrf的问题，配置csrf时排除
+     *
+     * @return the request matcher
+     */
+    public RequestMatcher getLoginRequestMatcher() {
+        return this.loginRequestMatcher;
+    }
+
+    @Override
+    public Authentication attemptAuthentication(HttpServletRequest request, HttpServletResponse response)
+            throws AuthenticationException, IOException {
+        String registrationId = this.loginRequestMatcher.matcher(request).getVariables().get(REGISTRATION_ID_URI_VARIABLE_NAME);
+        // 路径变量是任意的，没有配置的小程序在这里拒绝，不会按它去建熔断器、指标
+        if (!StringUtils.hasText(registrationId) || !this.registrationIds.test(registrationId)) {
+            throw new OAuth2AuthenticationException(new OAuth2Error(OAuth2ErrorCodes.INVALID_REQUEST), "Unknown registrationId");
+        }
+        String code = request.getParameter(CODE);
+        if (!StringUtils.hasText(code) && isJson(request)) {
+            code = readCode(request);
+        }
+        if (!StringUtils.hasText(code)) {
+            throw new OAuth2AuthenticationException(new OAuth2Error(OAuth2ErrorCodes.INVALID_REQUEST), "Missing code");
+        }
+        WechatMiniProgramAuthenticationToken loginRequest = new WechatMiniProgramAuthenticationToken(registrationId, code);
+        loginRequest.setDetails(this.authenticationDetailsSource.buildDetails(request));
+        return getAuthenticationManager().authenticate(loginRequest);
+    }
+
+    private static boolean isJson(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return contentType != null && contentType.regionMatches(true, 0, MediaType.APPLICATION_JSON_VALUE, 0,
+                MediaType.APPLICATION_JSON_VALUE.length());
+    }
+
+    /**
+     * 只读请求体第一层的code字段
+     */
+    private static String readCode(HttpServletRequest request) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(request.getInputStream())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (CODE.equals(field) && value == JsonToken.VALUE_STRING) {
+                    return parser.getText();
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } catch (JsonProcessingException ex) {
+            return null;
+        }
+    }
+
+    private static AuthenticationSuccessHandler successHandler(WechatTokenService tokenService) {
+        return (request, response, authentication) -> {
+            OAuth2AuthenticationToken authenticationToken = (OAuth2AuthenticationToken) authentication;
+            WechatOAuth2User user = (WechatOAuth2User) authenticationToken.getPrincipal();
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            try (JsonGenerator json = JSON_FACTORY.createGenerator(response.getOutputStream())) {
+                json.writeStartObject();
+                json.writeNumberField("status", HttpServletResponse.SC_OK);
+                json.writeStringField("openid", user.getOpenid());
+                if (user.getUnionid() != null) {
+                    json.writeStringField("unionid", user.getUnionid());
+                }
+                if (tokenService != null) {
+                    json.writeStringField("token", tokenService.issue(authenticationToken));
+                    json.writeNumberField("expires_in", tokenService.getTtl().getSeconds());
+                }
+                json.writeEndObject();
+            }
+        };
+    }
+
+    private static AuthenticationFailureHandler failureHandler() {
+        return (request, response, exception) -> {
+            String errcode = WechatErrorCodes.find(exception);
+            boolean unavailable = exception instanceof OAuth2AuthenticationException && OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE
+                    .equals(((OAuth2AuthenticationException) exception).getError().getErrorCode());
+            // 和 CustomAuthenticationEntryPoint 一样，http状态码是200，状态放在json里
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.setStatus(HttpServletResponse.SC_OK);
+            try (JsonGenerator json = JSON_FACTORY.createGenerator(response.getOutputStream())) {
+                json.writeStartObject();
+                json.writeNumberField("status", unavailable ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : HttpServletResponse.SC_UNAUTHORIZED);
+                json.writeStringField("message", unavailable ? "Service Unavailable" : "Unauthorized");
+                if (errcode != null) {
+                    json.writeStringField("errcode", errcode);
+                }
+                json.writeEndObject();
+            }
+        };
+    }
+}
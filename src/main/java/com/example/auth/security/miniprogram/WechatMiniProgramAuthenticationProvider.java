@@ -0,0 +1,65 @@
+package com.example.auth.security.miniprogram;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import com.example.auth.thread.SingleFlight;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.util.Assert;
+
+/**
+ * 用code换openid完成小程序登陆，登陆结果和网页登陆一样是 principal 为 {@link WechatOAuth2User} 的
+ * {@link OAuth2AuthenticationToken}，会话序列化、无状态令牌、缓存的用户信息都可以直接复用。
+ * 小程序没有获取用户信息的接口，用户信息里只有openid和unionid
+ * <p>
+ * 同一个code同时提交多次(小程序重试、用户连点)只调用一次微信，其余请求等待并共用结果，
+ * 合并的次数计入 {@code wechat.mini-program.code.shared}
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatMiniProgramAuthenticationProvider implements AuthenticationProvider {
+
+    public static final String SHARED = "wechat.mini-program.code.shared";
+
+    private final WechatMiniProgramSessionClient sessionClient;
+    private final SingleFlight<String, WechatMiniProgramSession> singleFlight = new SingleFlight<>();
+
+    public WechatMiniProgramAuthenticationProvider(WechatMiniProgramSessionClient sessionClient, MeterRegistry meterRegistry) {
+        Assert.notNull(sessionClient, "sessionClient cannot be null");
+        Assert.notNull(meterRegistry, "meterRegistry cannot be null");
+        this.sessionClient = sessionClient;
+        FunctionCounter.builder(SHARED, this.singleFlight, SingleFlight::sharedCount)
+                .description("Mini program logins that joined an in-flight exchange of the same code")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Authentication authenticate(Authentication authentication) {
+        WechatMiniProgramAuthenticationToken loginRequest = (WechatMiniProgramAuthenticationToken) authentication;
+        String registrationId = loginRequest.getRegistrationId();
+        String code = loginRequest.getCode();
+        WechatMiniProgramSession session;
+        try {
+            session = this.singleFlight.execute(registrationId + ':' + code,
+                    () -> this.sessionClient.getSession(registrationId, code));
+        } catch (OAuth2AuthorizationException ex) {
+            throw new OAuth2AuthenticationException(ex.getError(), ex.getError().toString(), ex);
+        }
+        WechatOAuth2User user = new WechatOAuth2User();
+        user.setOpenid(session.getOpenid());
+        user.setUnionid(session.getUnionid());
+        OAuth2AuthenticationToken result = new OAuth2AuthenticationToken(user, AuthorityUtils.NO_AUTHORITIES, registrationId);
+        result.setDetails(loginRequest.getDetails());
+        return result;
+    }
+
+    @Override
+    public boolean supports(Class<?> authentication) {
+        return WechatMiniProgramAuthenticationToken.class.isAssignableFrom(authentication);
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.auth.security.miniprogram;
+
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+
+/**
+ * 小程序登陆请求，未认证，认证通过后换成
+ * {@link org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken}，和网页登陆一样存进会话或令牌
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatMiniProgramAuthenticationToken extends AbstractAuthenticationToken {
+
+    private final String registrationId;
+    private final String code;
+
+    public WechatMiniProgramAuthenticationToken(String registrationId, String code) {
+        super(AuthorityUtils.NO_AUTHORITIES);
+        this.registrationId = registrationId;
+        this.code = code;
+        setAuthenticated(false);
+    }
+
+    public String getRegistrationId() {
+        return this.registrationId;
+    }
+
+    public String getCode() {
+        return this.code;
+    }
+
+    @Override
+    public Object getCredentials() {
+        return this.code;
+    }
+
+    @Override
+    public Object getPrincipal() {
+        return this.registrationId;
+    }
+}
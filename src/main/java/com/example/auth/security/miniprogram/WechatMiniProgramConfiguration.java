@@ -0,0 +1,34 @@
+package com.example.auth.security.miniprogram;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.ClientHttpRequestFactory;
+
+/**
+ * 小程序登陆，{@code wechat.mini-program.enabled=true} 时生效，
+ * SecurityConfiguration 检测到{@link WechatMiniProgramSessionClient}后在 oauth2Login 旁边加上小程序的登陆地址
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatMiniProgramProperties.class)
+@ConditionalOnProperty(prefix = "wechat.mini-program", name = "enabled", havingValue = "true")
+public class WechatMiniProgramConfiguration {
+
+    /**
+     * 调用 jscode2session 的客户端
+     *
+     * @param wechatClientHttpRequestFactory 调用微信接口共用的连接池
+     * @param properties                     the properties
+     * @return the wechat mini program session client
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public WechatMiniProgramSessionClient wechatMiniProgramSessionClient(ClientHttpRequestFactory wechatClientHttpRequestFactory,
+                                                                         WechatMiniProgramProperties properties) {
+        return new DefaultWechatMiniProgramSessionClient(wechatClientHttpRequestFactory, properties);
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.auth.security.miniprogram;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 小程序登陆配置：小程序 wx.login 拿到code后POST到 login-processing-url，服务端调用 jscode2session 换openid，
+ * 不经过授权跳转
+ *
+ * Created by berg on 2023/4/15.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.mini-program")
+public class WechatMiniProgramProperties {
+
+    /**
+     * 是否开启，默认关闭
+     */
+    private boolean enabled = false;
+
+    /**
+     * 登陆地址，{registrationId} 对应 apps 里的配置名
+     */
+    private String loginProcessingUrl = "/login/wechat/miniprogram/{registrationId}";
+
+    /**
+     * 换session的接口
+     */
+    private String sessionUri = "https://api.weixin.qq.com/sns/jscode2session";
+
+    /**
+     * registrationId -> 小程序的appid和secret
+     */
+    private Map<String, App> apps = new LinkedHashMap<>();
+
+    @Data
+    public static class App {
+
+        private String appid;
+
+        private String secret;
+
+        /**
+         * 为空时用上面的 session-uri
+         */
+        private String sessionUri;
+    }
+}
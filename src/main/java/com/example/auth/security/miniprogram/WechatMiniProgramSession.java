@@ -0,0 +1,45 @@
+package com.example.auth.security.miniprogram;
+
+import org.springframework.util.Assert;
+
+/**
+ * 小程序 {@code /sns/jscode2session} 的结果。session_key 用来解密 wx.getUserProfile、手机号这类加密数据，
+ * 不能下发给小程序，也不放进会话和令牌
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public final class WechatMiniProgramSession {
+
+    private final String openid;
+    private final String unionid;
+    private final String sessionKey;
+
+    public WechatMiniProgramSession(String openid, String unionid, String sessionKey) {
+        Assert.hasText(openid, "openid cannot be empty");
+        this.openid = openid;
+        this.unionid = unionid;
+        this.sessionKey = sessionKey;
+    }
+
+    public String getOpenid() {
+        return this.openid;
+    }
+
+    /**
+     * 小程序绑定到开放平台账号下才有
+     *
+     * @return the unionid, or null
+     */
+    public String getUnionid() {
+        return this.unionid;
+    }
+
+    public String getSessionKey() {
+        return this.sessionKey;
+    }
+
+    @Override
+    public String toString() {
+        return "WechatMiniProgramSession{openid='" + this.openid + "', unionid='" + this.unionid + "'}";
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.auth.security.miniprogram;
+
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+
+/**
+ * 用小程序 wx.login 拿到的code换 openid 和 session_key，相当于网页登陆的
+ * {@link org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient}
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@FunctionalInterface
+public interface WechatMiniProgramSessionClient {
+
+    /**
+     * code只能用一次
+     *
+     * @param registrationId 小程序的配置名，见 {@code wechat.mini-program.apps}
+     * @param code           wx.login 拿到的code
+     * @return the session
+     * @throws OAuth2AuthorizationException 微信返回错误码或者调用失败
+     */
+    WechatMiniProgramSession getSession(String registrationId, String code);
+}
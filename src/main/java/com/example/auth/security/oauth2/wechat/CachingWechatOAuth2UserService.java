@@ -0,0 +1,310 @@
+package com.example.auth.security.oauth2.wechat;
+
+import com.example.auth.cache.WechatUserProfileStore;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.lang.NonNull;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 带本地缓存的微信用户信息服务，同一个用户短时间内重复登陆(比如换了台设备)时不再请求 /sns/userinfo。
+ * <p>
+ * 主键是openid，unionid作为二级索引：同一开放平台账号下的其它应用已经拿到过该用户的信息时，
+ * 直接复用(openid替换成当前应用的)。写入后超过 refreshAfterWrite 再被访问时，用最近一次登陆的access_token在后台刷新。
+ * 刷新是阻塞的http调用(包括重试和对冲)，放在单独的有界线程池里，不占用 ForkJoinPool.commonPool；
+ * 线程池和队列都满时这次不刷新，继续用旧值，下次访问再试
+ * <p>
+ * 多节点部署时可以设置{@link WechatUserProfileStore}作为第二级：本地未命中先查共享存储，
+ * 从微信拿到的新数据写回共享存储并通知其它节点丢弃本地副本。
+ * <p>
+ * Created by berg on 2023/4/12.
+ */
+@Slf4j
+public class CachingWechatOAuth2UserService implements OAuth2UserService<OAuth2UserRequest, OAuth2User>, MeterBinder,
+        DisposableBean {
+
+    public static final String CACHE_NAME = "wechat.userinfo";
+    private static final String OPENID_KEY = "openid";
+    private static final String UNIONID_KEY = "unionid";
+    private static final int DEFAULT_REFRESH_CONCURRENCY = 4;
+    private static final int DEFAULT_REFRESH_QUEUE_CAPACITY = 1000;
+
+    private final OAuth2UserService<OAuth2UserRequest, OAuth2User> delegate;
+    private OAuth2UserService<OAuth2UserRequest, OAuth2User> refreshDelegate;
+    private final LoadingCache<String, CachedUser> users;
+    private final Cache<String, WechatOAuth2User> usersByUnionid;
+    private final ThreadPoolExecutor refreshExecutor;
+    private WechatUserProfileStore profileStore;
+
+    /**
+     * Instantiates a new Caching wechat o auth 2 user service.
+     *
+     * @param delegate          真正请求微信的服务，返回{@link WechatOAuth2User}
+     * @param maximumSize       最多缓存的用户数
+     * @param expireAfterWrite  写入后过期时间
+     * @param refreshAfterWrite 写入后提前刷新的时间
+     */
+    public CachingWechatOAuth2UserService(OAuth2UserService<OAuth2UserRequest, OAuth2User> delegate, long maximumSize,
+                                          Duration expireAfterWrite, Duration refreshAfterWrite) {
+        this(delegate, maximumSize, expireAfterWrite, refreshAfterWrite, DEFAULT_REFRESH_CONCURRENCY,
+                DEFAULT_REFRESH_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Instantiates a new Caching wechat o auth 2 user service.
+     *
+     * @param delegate              真正请求微信的服务，返回{@link WechatOAuth2User}
+     * @param maximumSize           最多缓存的用户数
+     * @param expireAfterWrite      写入后过期时间
+     * @param refreshAfterWrite     写入后提前刷新的时间
+     * @param refreshConcurrency    后台刷新的线程数
+     * @param refreshQueueCapacity  等待刷新的最大用户数
+     */
+    public CachingWechatOAuth2UserService(OAuth2UserService<OAuth2UserRequest, OAuth2User> delegate, long maximumSize,
+                                          Duration expireAfterWrite, Duration refreshAfterWrite,
+                                          int refreshConcurrency, int refreshQueueCapacity) {
+        Assert.notNull(delegate, "delegate cannot be null");
+        Assert.isTrue(refreshAfterWrite.compareTo(expireAfterWrite) < 0,
+                "refreshAfterWrite must be less than expireAfterWrite");
+        this.delegate = delegate;
+        this.refreshDelegate = delegate;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.refreshExecutor = new ThreadPoolExecutor(refreshConcurrency, refreshConcurrency, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(refreshQueueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "wechat-userinfo-refresh-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        this.refreshExecutor.allowCoreThreadTimeOut(true);
+        this.users = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .refreshAfterWrite(refreshAfterWrite)
+                // 提交被拒绝时Caffeine放弃这次刷新，保留旧值
+                .executor(this.refreshExecutor)
+                .recordStats()
+                .build(new RefreshingLoader());
+        this.usersByUnionid = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public OAuth2User loadUser(OAuth2UserRequest userRequest) throws OAuth2AuthenticationException {
+        Assert.notNull(userRequest, "userRequest cannot be null");
+        String openid = (String) userRequest.getAdditionalParameters().get(OPENID_KEY);
+        if (!StringUtils.hasText(openid)) {
+            // 交给被代理的服务抛出缺少openid的异常
+            return this.delegate.loadUser(userRequest);
+        }
+        // get会在需要时触发后台刷新，刷新时使用最近一次登陆的token
+        CachedUser cached = this.users.getIfPresent(openid);
+        if (cached != null) {
+            cached.userRequest = userRequest;
+            return cached.user;
+        }
+        WechatOAuth2User sameUnionid = findByUnionid(userRequest);
+        if (sameUnionid != null) {
+            WechatOAuth2User user = copyWithOpenid(sameUnionid, openid);
+            this.users.put(openid, new CachedUser(user, userRequest));
+            return user;
+        }
+        AtomicReference<WechatOAuth2User> loaded = new AtomicReference<>();
+        // 同一个openid并发登陆时只请求一次共享存储和微信
+        cached = this.users.get(openid, key -> {
+            WechatOAuth2User user = loadShared(userRequest, openid);
+            if (user == null) {
+                user = (WechatOAuth2User) this.delegate.loadUser(userRequest);
+                loaded.set(user);
+                if (!cacheable(user)) {
+                    return null;
+                }
+                save(user);
+            }
+            return new CachedUser(user, userRequest);
+        });
+        return cached != null ? cached.user : loaded.get();
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, this.users, CACHE_NAME, Tags.of("key", OPENID_KEY));
+        CaffeineCacheMetrics.monitor(registry, this.usersByUnionid, CACHE_NAME, Tags.of("key", UNIONID_KEY));
+    }
+
+    /**
+     * 设置后台刷新用的服务，默认和未命中时相同。配额紧张时刷新可以被拒绝，拒绝后继续用缓存
+     *
+     * @param refreshDelegate the refresh delegate
+     */
+    public void setRefreshDelegate(OAuth2UserService<OAuth2UserRequest, OAuth2User> refreshDelegate) {
+        Assert.notNull(refreshDelegate, "refreshDelegate cannot be null");
+        this.refreshDelegate = refreshDelegate;
+    }
+
+    /**
+     * 设置多节点共享的第二级存储，并监听其它节点的失效通知
+     *
+     * @param profileStore the profile store
+     */
+    public void setProfileStore(WechatUserProfileStore profileStore) {
+        Assert.notNull(profileStore, "profileStore cannot be null");
+        profileStore.addInvalidationListener(this::invalidateLocal);
+        this.profileStore = profileStore;
+    }
+
+    @Override
+    public void destroy() {
+        this.refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * 主动失效，比如用户在业务侧修改了资料
+     *
+     * @param openid the openid
+     */
+    public void evict(String openid) {
+        CachedUser cached = this.users.getIfPresent(openid);
+        String unionid = cached != null ? cached.user.getUnionid() : null;
+        invalidateLocal(openid, unionid);
+        if (this.profileStore != null) {
+            this.profileStore.evict(openid, unionid);
+        }
+    }
+
+    private void invalidateLocal(String openid, String unionid) {
+        this.users.invalidate(openid);
+        if (StringUtils.hasText(unionid)) {
+            this.usersByUnionid.invalidate(unionid);
+        }
+    }
+
+    /**
+     * 本地未命中时依次查共享存储的openid和unionid
+     */
+    private WechatOAuth2User loadShared(OAuth2UserRequest userRequest, String openid) {
+        if (this.profileStore == null) {
+            return null;
+        }
+        WechatOAuth2User user = this.profileStore.get(openid);
+        if (user == null) {
+            String unionid = unionid(userRequest);
+            WechatOAuth2User sameUnionid = unionid != null ? this.profileStore.getByUnionid(unionid) : null;
+            user = sameUnionid != null ? copyWithOpenid(sameUnionid, openid) : null;
+        }
+        if (user != null) {
+            indexByUnionid(user);
+        }
+        return user;
+    }
+
+    private void save(WechatOAuth2User user) {
+        indexByUnionid(user);
+        if (this.profileStore != null) {
+            this.profileStore.save(user);
+        }
+    }
+
+    private WechatOAuth2User findByUnionid(OAuth2UserRequest userRequest) {
+        String unionid = unionid(userRequest);
+        return unionid != null ? this.usersByUnionid.getIfPresent(unionid) : null;
+    }
+
+    private static String unionid(OAuth2UserRequest userRequest) {
+        Object unionid = userRequest.getAdditionalParameters().get(UNIONID_KEY);
+        return unionid instanceof String && StringUtils.hasText((String) unionid) ? (String) unionid : null;
+    }
+
+    private void indexByUnionid(WechatOAuth2User user) {
+        if (StringUtils.hasText(user.getUnionid())) {
+            this.usersByUnionid.put(user.getUnionid(), user);
+        }
+    }
+
+    /**
+     * 微信接口出错时(比如token失效)会抛出异常，这里再兜底检查一下openid
+     */
+    private static boolean cacheable(WechatOAuth2User user) {
+        return user != null && StringUtils.hasText(user.getOpenid());
+    }
+
+    private static WechatOAuth2User copyWithOpenid(WechatOAuth2User source, String openid) {
+        WechatOAuth2User user = new WechatOAuth2User();
+        user.setOpenid(openid);
+        user.setNickname(source.getNickname());
+        user.setSex(source.getSex());
+        user.setProvince(source.getProvince());
+        user.setCity(source.getCity());
+        user.setCountry(source.getCountry());
+        user.setHeadimgurl(source.getHeadimgurl());
+        user.setPrivilege(source.getPrivilege());
+        user.setUnionid(source.getUnionid());
+        return user;
+    }
+
+    private static final class CachedUser {
+        private final WechatOAuth2User user;
+        /**
+         * 最近一次登陆的请求，后台刷新时使用其中的access_token
+         */
+        private volatile OAuth2UserRequest userRequest;
+
+        private CachedUser(WechatOAuth2User user, OAuth2UserRequest userRequest) {
+            this.user = user;
+            this.userRequest = userRequest;
+        }
+    }
+
+    private final class RefreshingLoader implements CacheLoader<String, CachedUser> {
+
+        @Override
+        public CachedUser load(@NonNull String openid) {
+            // 没有access_token无法加载，返回null表示不存在；未命中都走 loadUser 里的 get(key, mappingFunction)
+            return null;
+        }
+
+        @Override
+        public CachedUser reload(@NonNull String openid, @NonNull CachedUser oldValue) {
+            WechatOAuth2User user;
+            try {
+                user = (WechatOAuth2User) refreshDelegate.loadUser(oldValue.userRequest);
+            } catch (OAuth2AuthenticationException ex) {
+                if (OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE.equals(ex.getError().getErrorCode())) {
+                    // 熔断、超时或配额不足，不是token失效，保留旧的用户信息，过 refreshAfterWrite 再刷新
+                    return oldValue;
+                }
+                user = null;
+            }
+            if (!cacheable(user)) {
+                // token已经失效，返回null移除缓存，下次登陆用新token重新获取
+                log.debug("Failed to refresh wechat userinfo for openid {}, evicting", openid);
+                return null;
+            }
+            save(user);
+            return new CachedUser(user, oldValue.userRequest);
+        }
+    }
+}
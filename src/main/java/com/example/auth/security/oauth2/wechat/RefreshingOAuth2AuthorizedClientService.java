@@ -0,0 +1,387 @@
+package com.example.auth.security.oauth2.wechat;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.lang.NonNull;
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2RefreshTokenGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2RefreshToken;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 在后台刷新微信access_token的{@link OAuth2AuthorizedClientService}，保存授权信息时登记一个刷新任务，
+ * 在过期前 refreshBefore(再随机提前 0~jitter)用 refresh_token 换新的access_token，下游服务读到的一直是有效的token。
+ * <p>
+ * 任务放在{@link DelayQueue}里，单个调度线程每隔 interval 取出最多 batchSize 个到期任务，按 ratePerSecond 的间隔
+ * 交给 concurrency 个工作线程发请求。保存、读取授权信息只是入队和转发，不会因为刷新阻塞用户请求。
+ * <p>
+ * 微信的refresh_token有效期30天且刷新不会延长，返回的refresh_token和原来的相同时保留原来的签发时间，
+ * 超过 refreshTokenTtl 后不再刷新。refresh_token无效(40030)或过期(42002)时放弃，网络错误等按 retryDelay 指数退避重试。
+ * <p>
+ * 刷新任务只在本节点内存中，多节点部署时每个节点刷新自己登陆过的用户
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Slf4j
+public class RefreshingOAuth2AuthorizedClientService implements OAuth2AuthorizedClientService, InitializingBean,
+        DisposableBean, MeterBinder {
+
+    /**
+     * refresh_token无效、过期，appid无效，重试也不会成功
+     */
+    private static final Set<String> REJECTED_ERRCODES = new HashSet<>(Arrays.asList("40030", "42002", "40013"));
+
+    private final OAuth2AuthorizedClientService delegate;
+    private final OAuth2AccessTokenResponseClient<OAuth2RefreshTokenGrantRequest> refreshTokenResponseClient;
+    private final DelayQueue<RefreshTask> queue = new DelayQueue<>();
+    private final Map<String, RefreshTask> tasks = new ConcurrentHashMap<>();
+
+    private Duration refreshBefore = Duration.ofMinutes(10);
+    private Duration jitter = Duration.ofMinutes(5);
+    private Duration interval = Duration.ofSeconds(5);
+    private int batchSize = 100;
+    private double ratePerSecond = 20;
+    private int concurrency = 4;
+    private Duration retryDelay = Duration.ofSeconds(30);
+    private int maxAttempts = 5;
+    private Duration refreshTokenTtl = Duration.ofDays(30);
+    private Clock clock = Clock.systemUTC();
+    private WechatProviderRegistry providerRegistry = new WechatProviderRegistry();
+
+    private ScheduledExecutorService scheduler;
+    private ThreadPoolExecutor workers;
+
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    public RefreshingOAuth2AuthorizedClientService(OAuth2AuthorizedClientService delegate,
+                                                   OAuth2AccessTokenResponseClient<OAuth2RefreshTokenGrantRequest> refreshTokenResponseClient) {
+        this.delegate = delegate;
+        this.refreshTokenResponseClient = refreshTokenResponseClient;
+    }
+
+    @Override
+    public <T extends OAuth2AuthorizedClient> T loadAuthorizedClient(String clientRegistrationId, String principalName) {
+        return this.delegate.loadAuthorizedClient(clientRegistrationId, principalName);
+    }
+
+    @Override
+    public void saveAuthorizedClient(OAuth2AuthorizedClient authorizedClient, Authentication principal) {
+        this.delegate.saveAuthorizedClient(authorizedClient, principal);
+        schedule(authorizedClient);
+    }
+
+    @Override
+    public void removeAuthorizedClient(String clientRegistrationId, String principalName) {
+        this.delegate.removeAuthorizedClient(clientRegistrationId, principalName);
+        this.tasks.remove(key(clientRegistrationId, principalName));
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemon("wechat-token-refresh-scheduler"));
+        // 队列满时由调度线程自己执行，相当于降低了发起速度
+        this.workers = new ThreadPoolExecutor(this.concurrency, this.concurrency, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(this.batchSize), daemon("wechat-token-refresh"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        long period = this.interval.toMillis();
+        this.scheduler.scheduleWithFixedDelay(this::tick, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.workers.shutdownNow();
+        }
+    }
+
+    /**
+     * 取出一批到期的任务，按速率限制交给工作线程
+     */
+    void tick() {
+        List<RefreshTask> batch = new ArrayList<>(Math.min(this.batchSize, this.queue.size()));
+        this.queue.drainTo(batch, this.batchSize);
+        long spacing = (long) (TimeUnit.SECONDS.toNanos(1) / this.ratePerSecond);
+        long next = System.nanoTime();
+        for (RefreshTask task : batch) {
+            // 重新登陆或者注销后登记了新任务，旧的直接丢弃
+            if (!this.tasks.remove(task.key, task)) {
+                continue;
+            }
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            next = Math.max(next, System.nanoTime()) + spacing;
+            if (this.workers != null) {
+                this.workers.execute(() -> refresh(task));
+            } else {
+                refresh(task);
+            }
+        }
+    }
+
+    private void refresh(RefreshTask task) {
+        OAuth2AuthorizedClient authorizedClient = this.delegate.loadAuthorizedClient(task.registrationId, task.principalName);
+        if (authorizedClient == null) {
+            return;
+        }
+        Instant expiresAt = authorizedClient.getAccessToken().getExpiresAt();
+        if (expiresAt != null && expiresAt.isAfter(this.clock.instant().plus(this.refreshBefore).plus(this.jitter))) {
+            // 期间用户重新登陆过，按新的token重新登记
+            schedule(authorizedClient);
+            return;
+        }
+        ClientRegistration clientRegistration = authorizedClient.getClientRegistration();
+        try {
+            OAuth2AccessTokenResponse response = this.refreshTokenResponseClient.getTokenResponse(new OAuth2RefreshTokenGrantRequest(
+                    clientRegistration, authorizedClient.getAccessToken(), authorizedClient.getRefreshToken()));
+            OAuth2RefreshToken refreshToken = response.getRefreshToken();
+            if (refreshToken == null || refreshToken.getTokenValue().equals(authorizedClient.getRefreshToken().getTokenValue())) {
+                refreshToken = authorizedClient.getRefreshToken();
+            }
+            OAuth2AuthorizedClient refreshed = new OAuth2AuthorizedClient(clientRegistration, task.principalName,
+                    accessToken(response.getAccessToken()), refreshToken);
+            this.delegate.saveAuthorizedClient(refreshed, new PrincipalName(task.principalName));
+            this.succeeded.incrementAndGet();
+            schedule(refreshed);
+        } catch (RuntimeException ex) {
+            String errcode = WechatErrorCodes.find(ex);
+            if (errcode != null && REJECTED_ERRCODES.contains(errcode)) {
+                this.rejected.incrementAndGet();
+                log.info("refresh_token of {}/{} rejected by wechat: {}", task.registrationId, task.principalName, errcode);
+                return;
+            }
+            int attempt = task.attempt + 1;
+            if (attempt >= this.maxAttempts) {
+                this.exhausted.incrementAndGet();
+                log.warn("give up refreshing {}/{} after {} attempts", task.registrationId, task.principalName, attempt, ex);
+                return;
+            }
+            this.retried.incrementAndGet();
+            log.debug("refresh {}/{} failed, retry #{}", task.registrationId, task.principalName, attempt, ex);
+            Duration delay = this.retryDelay.multipliedBy(1L << Math.min(attempt - 1, 16));
+            enqueue(new RefreshTask(task.registrationId, task.principalName,
+                    this.clock.millis() + delay.toMillis() + randomMillis(this.retryDelay), attempt));
+        }
+    }
+
+    /**
+     * 有效期按本服务的时钟重新计算
+     */
+    private OAuth2AccessToken accessToken(OAuth2AccessToken accessToken) {
+        if (accessToken.getIssuedAt() == null || accessToken.getExpiresAt() == null) {
+            return accessToken;
+        }
+        Instant issuedAt = this.clock.instant();
+        return new OAuth2AccessToken(accessToken.getTokenType(), accessToken.getTokenValue(), issuedAt,
+                issuedAt.plus(Duration.between(accessToken.getIssuedAt(), accessToken.getExpiresAt())), accessToken.getScopes());
+    }
+
+    /**
+     * 登记刷新任务，没有refresh_token、没有过期时间或者refresh_token已经过期的不刷新
+     */
+    private void schedule(OAuth2AuthorizedClient authorizedClient) {
+        ClientRegistration clientRegistration = authorizedClient.getClientRegistration();
+        String key = key(clientRegistration.getRegistrationId(), authorizedClient.getPrincipalName());
+        OAuth2AccessToken accessToken = authorizedClient.getAccessToken();
+        OAuth2RefreshToken refreshToken = authorizedClient.getRefreshToken();
+        if (!this.providerRegistry.supports(clientRegistration) || refreshToken == null
+                || accessToken.getExpiresAt() == null) {
+            this.tasks.remove(key);
+            return;
+        }
+        long dueAt = accessToken.getExpiresAt().minus(this.refreshBefore).toEpochMilli() - randomMillis(this.jitter);
+        if (refreshToken.getIssuedAt() != null
+                && dueAt >= refreshToken.getIssuedAt().plus(this.refreshTokenTtl).toEpochMilli()) {
+            this.tasks.remove(key);
+            return;
+        }
+        enqueue(new RefreshTask(clientRegistration.getRegistrationId(), authorizedClient.getPrincipalName(), dueAt, 0));
+    }
+
+    private void enqueue(RefreshTask task) {
+        this.tasks.put(task.key, task);
+        this.queue.add(task);
+    }
+
+    private static long randomMillis(Duration bound) {
+        long millis = bound.toMillis();
+        return millis > 0 ? ThreadLocalRandom.current().nextLong(millis) : 0;
+    }
+
+    private static String key(String registrationId, String principalName) {
+        return registrationId + ':' + principalName;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * 当前登记的刷新任务数
+     */
+    int scheduled() {
+        return this.tasks.size();
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        Gauge.builder("wechat.token.refresh.scheduled", this, RefreshingOAuth2AuthorizedClientService::scheduled)
+                .description("登记中的access_token刷新任务")
+                .register(registry);
+        counter(registry, "success", this.succeeded);
+        counter(registry, "retry", this.retried);
+        counter(registry, "rejected", this.rejected);
+        counter(registry, "exhausted", this.exhausted);
+    }
+
+    private static void counter(MeterRegistry registry, String result, AtomicLong count) {
+        FunctionCounter.builder("wechat.token.refresh", count, AtomicLong::get)
+                .tag("result", result)
+                .register(registry);
+    }
+
+    public void setRefreshBefore(Duration refreshBefore) {
+        this.refreshBefore = refreshBefore;
+    }
+
+    public void setJitter(Duration jitter) {
+        this.jitter = jitter;
+    }
+
+    public void setInterval(Duration interval) {
+        this.interval = interval;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setRatePerSecond(double ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public void setRetryDelay(Duration retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setRefreshTokenTtl(Duration refreshTokenTtl) {
+        this.refreshTokenTtl = refreshTokenTtl;
+    }
+
+    /**
+     * 只刷新注册表里是微信的客户端配置，默认按授权地址识别
+     *
+     * @param providerRegistry the provider registry
+     */
+    public void setProviderRegistry(WechatProviderRegistry providerRegistry) {
+        this.providerRegistry = providerRegistry;
+    }
+
+    void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    private final class RefreshTask implements Delayed {
+
+        private final String key;
+        private final String registrationId;
+        private final String principalName;
+        private final long dueAt;
+        private final int attempt;
+
+        RefreshTask(String registrationId, String principalName, long dueAt, int attempt) {
+            this.key = key(registrationId, principalName);
+            this.registrationId = registrationId;
+            this.principalName = principalName;
+            this.dueAt = dueAt;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public long getDelay(@NonNull TimeUnit unit) {
+            return unit.convert(this.dueAt - RefreshingOAuth2AuthorizedClientService.this.clock.millis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(@NonNull Delayed other) {
+            return Long.compare(this.dueAt, ((RefreshTask) other).dueAt);
+        }
+    }
+
+    /**
+     * 后台刷新后保存时没有当前用户，保存只用到principal的名字
+     */
+    private static final class PrincipalName extends AbstractAuthenticationToken {
+
+        private final String name;
+
+        PrincipalName(String name) {
+            super(AuthorityUtils.NO_AUTHORITIES);
+            this.name = name;
+            setAuthenticated(true);
+        }
+
+        @Override
+        public Object getCredentials() {
+            return "";
+        }
+
+        @Override
+        public Object getPrincipal() {
+            return this.name;
+        }
+    }
+}
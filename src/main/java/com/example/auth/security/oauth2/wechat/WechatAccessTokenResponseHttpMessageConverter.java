@@ -0,0 +1,56 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 读取微信token接口响应的转换器，替换 OAuth2AccessTokenResponseHttpMessageConverter 加
+ * {@link WechatMapOAuth2AccessTokenResponseConverter} 的组合：不再先读成Map再转字符串Map再转换，
+ * 用{@link WechatJsonReader}一遍读出结果。微信返回的content-type 是 text-plain，一并支持
+ * <p>
+ * 解析出错(包括微信返回的errcode)和原来一样包装成{@link HttpMessageNotReadableException}
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatAccessTokenResponseHttpMessageConverter extends AbstractHttpMessageConverter<OAuth2AccessTokenResponse> {
+
+    public WechatAccessTokenResponseHttpMessageConverter() {
+        super(StandardCharsets.UTF_8, MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN,
+                new MediaType("application", "*+json"));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return OAuth2AccessTokenResponse.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected OAuth2AccessTokenResponse readInternal(Class<? extends OAuth2AccessTokenResponse> clazz,
+                                                     HttpInputMessage inputMessage) throws HttpMessageNotReadableException {
+        try {
+            return WechatJsonReader.readTokenResponse(inputMessage.getBody());
+        } catch (Exception ex) {
+            throw new HttpMessageNotReadableException(
+                    "An error occurred reading the OAuth 2.0 Access Token Response: " + ex.getMessage(), ex,
+                    inputMessage);
+        }
+    }
+
+    @Override
+    protected boolean canWrite(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected void writeInternal(OAuth2AccessTokenResponse tokenResponse, HttpOutputMessage outputMessage)
+            throws HttpMessageNotWritableException {
+        throw new HttpMessageNotWritableException("Writing the OAuth 2.0 Access Token Response is not supported");
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import org.springframework.web.util.UriComponents;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 预编译的微信授权链接模板，每个{@link ClientRegistration}启动时编译一次：
+ * {@code https://open.weixin.qq.com/connect/qrconnect?appid=APPID&redirect_uri=REDIRECT_URI&response_type=code&scope=SCOPE&state=STATE#wechat_redirect}
+ * <p>
+ * 微信要求参数按 appid、redirect_uri、response_type、scope、state 的顺序，多个scope用逗号分隔，结尾带 {@code #wechat_redirect}。
+ * 网站应用扫码登陆(connect/qrconnect)和公众号网页授权(connect/oauth2/authorize)格式相同，只是authorization-uri不同。
+ * 每次登陆只需要把 redirect_uri 和 state 编码追加到预先拼好的常量片段上，编码规则和
+ * {@link org.springframework.web.util.UriUtils#encodeQueryParam(String, java.nio.charset.Charset)}一致
+ * <p>
+ * Created by berg on 2023/4/14.
+ */
+public final class WechatAuthorizationUriTemplate {
+
+    private static final String WECHAT_ID = "wechat";
+    private static final String WECHAT_AUTHORIZATION_URI_PREFIX = "https://open.weixin.qq.com/connect/";
+    private static final String WECHAT_REDIRECT = "#wechat_redirect";
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final ClientRegistration clientRegistration;
+    /**
+     * {@code authorizationUri?appid=APPID&redirect_uri=}
+     */
+    private final String prefix;
+    /**
+     * {@code &response_type=code&scope=SCOPE}
+     */
+    private final String middle;
+    /**
+     * redirect-uri 模板去掉 {@code {baseUrl}} 之后的部分，不是以 {@code {baseUrl}} 开头或者还有其它变量时为null
+     */
+    private final String redirectUriSuffix;
+    /**
+     * 最近一次展开的redirect_uri，baseUrl基本不会变(除非同时用多个域名访问)，只缓存一个
+     */
+    private volatile RedirectUri lastRedirectUri;
+
+    WechatAuthorizationUriTemplate(ClientRegistration clientRegistration) {
+        this.clientRegistration = clientRegistration;
+        StringBuilder prefix = new StringBuilder(clientRegistration.getProviderDetails().getAuthorizationUri());
+        prefix.append(prefix.indexOf("?") < 0 ? '?' : '&').append("appid=");
+        appendEncoded(prefix, clientRegistration.getClientId());
+        this.prefix = prefix.append("&redirect_uri=").toString();
+        StringBuilder middle = new StringBuilder("&response_type=code");
+        if (!clientRegistration.getScopes().isEmpty()) {
+            middle.append("&scope=");
+            appendEncoded(middle, StringUtils.collectionToDelimitedString(clientRegistration.getScopes(), ","));
+        }
+        this.middle = middle.toString();
+        this.redirectUriSuffix = redirectUriSuffix(clientRegistration);
+    }
+
+    /**
+     * 编译授权链接模板
+     *
+     * @param clientRegistration 微信的客户端配置
+     * @return the template
+     */
+    public static WechatAuthorizationUriTemplate compile(ClientRegistration clientRegistration) {
+        Assert.isTrue(supports(clientRegistration), () -> "Not a WeChat client registration: "
+                + clientRegistration.getRegistrationId());
+        return new WechatAuthorizationUriTemplate(clientRegistration);
+    }
+
+    /**
+     * 是否是微信的授权码登陆：registrationId是wechat，或者授权地址是微信开放平台的
+     *
+     * @param clientRegistration the client registration
+     * @return the boolean
+     */
+    public static boolean supports(ClientRegistration clientRegistration) {
+        if (!AuthorizationGrantType.AUTHORIZATION_CODE.equals(clientRegistration.getAuthorizationGrantType())) {
+            return false;
+        }
+        String authorizationUri = clientRegistration.getProviderDetails().getAuthorizationUri();
+        return WECHAT_ID.equals(clientRegistration.getRegistrationId())
+                || (authorizationUri != null && authorizationUri.startsWith(WECHAT_AUTHORIZATION_URI_PREFIX));
+    }
+
+    public ClientRegistration getClientRegistration() {
+        return this.clientRegistration;
+    }
+
+    /**
+     * 用当前请求的baseUrl生成授权请求
+     *
+     * @param baseUrl       当前请求的 scheme://host[:port][contextPath]
+     * @param state         前端传入的授权之后的重定向地址
+     * @param exchangeNonce 每次授权随机生成，只保存在浏览器的授权请求里，见
+     *                      {@link WechatOAuth2AuthorizationRequestResolver#EXCHANGE_NONCE_ATTRIBUTE}
+     * @return the authorization request
+     */
+    public OAuth2AuthorizationRequest authorizationRequest(String baseUrl, String state, String exchangeNonce) {
+        RedirectUri redirectUri = redirectUri(baseUrl);
+        Map<String, Object> attributes = new HashMap<>(4);
+        attributes.put(OAuth2ParameterNames.REGISTRATION_ID, this.clientRegistration.getRegistrationId());
+        attributes.put(WechatOAuth2AuthorizationRequestResolver.EXCHANGE_NONCE_ATTRIBUTE, exchangeNonce);
+        return OAuth2AuthorizationRequest.authorizationCode()
+                .clientId(this.clientRegistration.getClientId())
+                .authorizationUri(this.clientRegistration.getProviderDetails().getAuthorizationUri())
+                .redirectUri(redirectUri.value)
+                .scopes(this.clientRegistration.getScopes())
+                .state(state)
+                .attributes(attributes)
+                // 设置了完整的授权链接之后，build时不会再用UriBuilder拼一遍
+                .authorizationRequestUri(encodedRequestUri(redirectUri.encoded, state))
+                .build();
+    }
+
+    /**
+     * 用已经展开的redirect_uri生成授权链接，响应式版本由默认的resolver展开redirect_uri
+     *
+     * @param redirectUri 展开之后的redirect_uri
+     * @param state       the state
+     * @return the authorization request uri
+     */
+    public String authorizationRequestUri(String redirectUri, String state) {
+        StringBuilder uri = new StringBuilder(this.prefix.length() + redirectUri.length() * 2 + this.middle.length() + 64);
+        appendEncoded(uri.append(this.prefix), redirectUri);
+        return finish(uri, state);
+    }
+
+    private String encodedRequestUri(String encodedRedirectUri, String state) {
+        StringBuilder uri = new StringBuilder(this.prefix.length() + encodedRedirectUri.length() + this.middle.length()
+                + (state != null ? state.length() + 32 : 16));
+        uri.append(this.prefix).append(encodedRedirectUri);
+        return finish(uri, state);
+    }
+
+    private String finish(StringBuilder uri, String state) {
+        uri.append(this.middle);
+        if (state != null) {
+            appendEncoded(uri.append("&state="), state);
+        }
+        return uri.append(WECHAT_REDIRECT).toString();
+    }
+
+    private RedirectUri redirectUri(String baseUrl) {
+        RedirectUri redirectUri = this.lastRedirectUri;
+        if (redirectUri != null && redirectUri.baseUrl.equals(baseUrl)) {
+            return redirectUri;
+        }
+        String value = this.redirectUriSuffix != null ? baseUrl + this.redirectUriSuffix : expandRedirectUri(baseUrl);
+        StringBuilder encoded = new StringBuilder(value.length() * 2);
+        appendEncoded(encoded, value);
+        redirectUri = new RedirectUri(baseUrl, value, encoded.toString());
+        this.lastRedirectUri = redirectUri;
+        return redirectUri;
+    }
+
+    /**
+     * redirect-uri 模板里除了 {baseUrl} 还有其它变量时，和 DefaultOAuth2AuthorizationRequestResolver 一样展开
+     */
+    private String expandRedirectUri(String baseUrl) {
+        UriComponents base = UriComponentsBuilder.fromHttpUrl(baseUrl).build();
+        Map<String, String> variables = new HashMap<>();
+        variables.put("registrationId", this.clientRegistration.getRegistrationId());
+        variables.put("baseUrl", baseUrl);
+        variables.put("baseScheme", base.getScheme());
+        variables.put("baseHost", base.getHost());
+        variables.put("basePort", base.getPort() == -1 ? "" : ":" + base.getPort());
+        variables.put("basePath", base.getPath() != null ? base.getPath() : "");
+        variables.put("action", "login");
+        return UriComponentsBuilder.fromUriString(this.clientRegistration.getRedirectUri())
+                .buildAndExpand(variables)
+                .toUriString();
+    }
+
+    private static String redirectUriSuffix(ClientRegistration clientRegistration) {
+        String template = clientRegistration.getRedirectUri();
+        String baseUrl = "{baseUrl}";
+        if (!template.startsWith(baseUrl)) {
+            return null;
+        }
+        String suffix = template.substring(baseUrl.length())
+                .replace("{registrationId}", clientRegistration.getRegistrationId());
+        return suffix.indexOf('{') < 0 ? suffix : null;
+    }
+
+    /**
+     * 按查询参数值的规则编码后追加，不需要编码的字符原样追加
+     */
+    static void appendEncoded(StringBuilder target, String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80 && isAllowed(c)) {
+                target.append(c);
+            } else if (c < 0x80) {
+                appendEscaped(target, c);
+            } else {
+                // 非ascii字符按utf-8编码，只有这里会分配
+                int end = i + 1;
+                while (end < length && value.charAt(end) >= 0x80) {
+                    end++;
+                }
+                for (byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+                    appendEscaped(target, b & 0xFF);
+                }
+                i = end - 1;
+            }
+        }
+    }
+
+    private static void appendEscaped(StringBuilder target, int b) {
+        target.append('%').append(HEX[b >> 4]).append(HEX[b & 0xF]);
+    }
+
+    /**
+     * 和 HierarchicalUriComponents.Type.QUERY_PARAM 一致：pchar、'/'、'?'，但不包括 '=' 和 '&'
+     */
+    private static boolean isAllowed(char c) {
+        if (c == '=' || c == '&') {
+            return false;
+        }
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '.' || c == '_' || c == '~'
+                || c == '!' || c == '$' || c == '\'' || c == '(' || c == ')' || c == '*' || c == '+' || c == ','
+                || c == ';' || c == ':' || c == '@' || c == '/' || c == '?';
+    }
+
+    private static final class RedirectUri {
+        private final String baseUrl;
+        private final String value;
+        private final String encoded;
+
+        private RedirectUri(String baseUrl, String value, String encoded) {
+            this.baseUrl = baseUrl;
+            this.value = value;
+            this.encoded = encoded;
+        }
+    }
+}
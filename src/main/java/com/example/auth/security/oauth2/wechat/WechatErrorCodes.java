@@ -0,0 +1,76 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.util.StringUtils;
+
+/**
+ * 微信接口的错误码。微信出错时http状态码仍然是200，响应体里只有 {@code errcode} 和 {@code errmsg}，
+ * 解析时转换成{@link OAuth2AuthorizationException}，错误码原样放在{@link OAuth2Error#getErrorCode()}里
+ * <p>
+ * Created by berg on 2023/4/14.
+ */
+public final class WechatErrorCodes {
+
+    public static final String ERRCODE = "errcode";
+    public static final String ERRMSG = "errmsg";
+
+    private WechatErrorCodes() {
+    }
+
+    /**
+     * errcode不为空且不为0时抛出异常
+     *
+     * @param errcode 响应里的errcode
+     * @param errmsg  响应里的errmsg
+     */
+    public static void check(Object errcode, Object errmsg) {
+        if (errcode == null) {
+            return;
+        }
+        String code = errcode.toString();
+        if (StringUtils.hasText(code) && !"0".equals(code)) {
+            OAuth2Error error = new OAuth2Error(code, errmsg != null ? errmsg.toString() : null, null);
+            throw new OAuth2AuthorizationException(error);
+        }
+    }
+
+    /**
+     * 从异常链里找出微信返回的错误码，OAuth2框架会把解析异常层层包装
+     *
+     * @param ex the exception
+     * @return 错误码，不是微信返回的错误(比如超时)时为null
+     */
+    public static String find(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            OAuth2Error error = null;
+            if (cause instanceof OAuth2AuthorizationException) {
+                error = ((OAuth2AuthorizationException) cause).getError();
+            } else if (cause instanceof OAuth2AuthenticationException) {
+                error = ((OAuth2AuthenticationException) cause).getError();
+            }
+            if (error != null && isWechatErrorCode(error.getErrorCode())) {
+                return error.getErrorCode();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isWechatErrorCode(String errorCode) {
+        // 微信的错误码都是整数，OAuth2标准错误码是 invalid_token_response 这种字符串
+        if (!StringUtils.hasLength(errorCode)) {
+            return false;
+        }
+        int start = errorCode.charAt(0) == '-' ? 1 : 0;
+        if (start == errorCode.length()) {
+            return false;
+        }
+        for (int i = start; i < errorCode.length(); i++) {
+            if (!Character.isDigit(errorCode.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.auth.security.oauth2.wechat;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 微信接口响应的流式解析，直接从响应体读出{@link OAuth2AccessTokenResponse}和{@link WechatOAuth2User}，
+ * 不经过中间的Map和ObjectMapper的反射绑定。errcode/errmsg在同一遍解析里识别，出错时抛出{@link OAuth2AuthorizationException}
+ * <p>
+ * 所有解析共用一个{@link JsonFactory}，类加载时先解析一遍各接口的样例响应，把字段名放进共享的符号表，
+ * 之后的请求不用再为字段名分配和合并符号表。阻塞、响应式和小程序的解析都用这里
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public final class WechatJsonReader {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final String[] WARM_UP_RESPONSES = {
+            "{\"access_token\":\"ACCESS_TOKEN\",\"expires_in\":7200,\"refresh_token\":\"REFRESH_TOKEN\","
+                    + "\"openid\":\"OPENID\",\"scope\":\"SCOPE\",\"unionid\":\"UNIONID\",\"is_snapshotuser\":1}",
+            "{\"openid\":\"OPENID\",\"nickname\":\"NICKNAME\",\"sex\":1,\"province\":\"PROVINCE\",\"city\":\"CITY\","
+                    + "\"country\":\"COUNTRY\",\"headimgurl\":\"HEADIMGURL\",\"privilege\":[\"PRIVILEGE1\"],\"unionid\":\"UNIONID\"}",
+            "{\"openid\":\"OPENID\",\"session_key\":\"SESSIONKEY\",\"unionid\":\"UNIONID\",\"errcode\":0,\"errmsg\":\"ok\"}"
+    };
+
+    static {
+        try {
+            readTokenResponse(WARM_UP_RESPONSES[0].getBytes(StandardCharsets.UTF_8));
+            readUser(WARM_UP_RESPONSES[1].getBytes(StandardCharsets.UTF_8));
+            try (JsonParser parser = createParser(WARM_UP_RESPONSES[2].getBytes(StandardCharsets.UTF_8))) {
+                while (parser.nextToken() != null) {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private WechatJsonReader() {
+    }
+
+    /**
+     * 用共享的{@link JsonFactory}创建解析器，调用方负责关闭
+     *
+     * @param body 响应体
+     * @return the json parser
+     * @throws IOException the io exception
+     */
+    public static JsonParser createParser(InputStream body) throws IOException {
+        return JSON_FACTORY.createParser(body);
+    }
+
+    /**
+     * 用共享的{@link JsonFactory}创建解析器，调用方负责关闭
+     *
+     * @param body 响应体
+     * @return the json parser
+     * @throws IOException the io exception
+     */
+    public static JsonParser createParser(byte[] body) throws IOException {
+        return JSON_FACTORY.createParser(body);
+    }
+
+    /**
+     * 解析 /sns/oauth2/access_token 的响应，行为和{@link WechatMapOAuth2AccessTokenResponseConverter}一致
+     *
+     * @param body 响应体
+     * @return the token response
+     * @throws IOException 不是json对象或者json格式错误
+     */
+    public static OAuth2AccessTokenResponse readTokenResponse(InputStream body) throws IOException {
+        try (JsonParser parser = createParser(body)) {
+            return readTokenResponse(parser);
+        }
+    }
+
+    /**
+     * 解析 /sns/oauth2/access_token 的响应，响应式客户端使用
+     *
+     * @param body 响应体
+     * @return the token response
+     * @throws IOException 不是json对象或者json格式错误
+     */
+    public static OAuth2AccessTokenResponse readTokenResponse(byte[] body) throws IOException {
+        try (JsonParser parser = createParser(body)) {
+            return readTokenResponse(parser);
+        }
+    }
+
+    /**
+     * 解析 /sns/userinfo 的响应
+     *
+     * @param body 响应体
+     * @return the wechat user
+     * @throws IOException 不是json对象或者json格式错误
+     */
+    public static WechatOAuth2User readUser(InputStream body) throws IOException {
+        try (JsonParser parser = createParser(body)) {
+            return readUser(parser);
+        }
+    }
+
+    /**
+     * 解析 /sns/userinfo 的响应，响应式客户端使用
+     *
+     * @param body 响应体
+     * @return the wechat user
+     * @throws IOException 不是json对象或者json格式错误
+     */
+    public static WechatOAuth2User readUser(byte[] body) throws IOException {
+        try (JsonParser parser = createParser(body)) {
+            return readUser(parser);
+        }
+    }
+
+    private static OAuth2AccessTokenResponse readTokenResponse(JsonParser parser) throws IOException {
+        startObject(parser);
+        String accessToken = null;
+        long expiresIn = 0;
+        String refreshToken = null;
+        Set<String> scopes = Collections.emptySet();
+        String errcode = null;
+        String errmsg = null;
+        Map<String, Object> additionalParameters = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            switch (name) {
+                case OAuth2ParameterNames.ACCESS_TOKEN:
+                    accessToken = text(parser);
+                    break;
+                case OAuth2ParameterNames.EXPIRES_IN:
+                    expiresIn = expiresIn(parser);
+                    break;
+                case OAuth2ParameterNames.REFRESH_TOKEN:
+                    refreshToken = text(parser);
+                    break;
+                case OAuth2ParameterNames.SCOPE:
+                    scopes = scopes(text(parser));
+                    break;
+                case OAuth2ParameterNames.TOKEN_TYPE:
+                    // 微信不返回token_type，固定是bearer
+                    parser.skipChildren();
+                    break;
+                case WechatErrorCodes.ERRCODE:
+                    errcode = text(parser);
+                    break;
+                case WechatErrorCodes.ERRMSG:
+                    errmsg = text(parser);
+                    break;
+                default:
+                    // openid、unionid 等，值都转成字符串，和 OAuth2AccessTokenResponseHttpMessageConverter 一致
+                    additionalParameters.put(name, text(parser));
+            }
+        }
+        // 比如code已经用过 {"errcode":40163,"errmsg":"code been used"}
+        WechatErrorCodes.check(errcode, errmsg);
+        // @formatter:off
+        return OAuth2AccessTokenResponse.withToken(accessToken)
+                .tokenType(OAuth2AccessToken.TokenType.BEARER)
+                .expiresIn(expiresIn)
+                .scopes(scopes)
+                .refreshToken(refreshToken)
+                .additionalParameters(additionalParameters)
+                .build();
+        // @formatter:on
+    }
+
+    private static WechatOAuth2User readUser(JsonParser parser) throws IOException {
+        startObject(parser);
+        WechatOAuth2User user = new WechatOAuth2User();
+        String errcode = null;
+        String errmsg = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (name) {
+                case "openid":
+                    user.setOpenid(text(parser));
+                    break;
+                case "nickname":
+                    user.setNickname(text(parser));
+                    break;
+                case "sex":
+                    user.setSex(value == JsonToken.VALUE_NULL ? null : parser.getValueAsInt());
+                    break;
+                case "province":
+                    user.setProvince(text(parser));
+                    break;
+                case "city":
+                    user.setCity(text(parser));
+                    break;
+                case "country":
+                    user.setCountry(text(parser));
+                    break;
+                case "headimgurl":
+                    user.setHeadimgurl(text(parser));
+                    break;
+                case "privilege":
+                    user.setPrivilege(privilege(parser, value));
+                    break;
+                case "unionid":
+                    user.setUnionid(text(parser));
+                    break;
+                case WechatErrorCodes.ERRCODE:
+                    errcode = text(parser);
+                    break;
+                case WechatErrorCodes.ERRMSG:
+                    errmsg = text(parser);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        // 比如token已经失效 {"errcode":40001,"errmsg":"invalid credential"}
+        WechatErrorCodes.check(errcode, errmsg);
+        return user;
+    }
+
+    private static void startObject(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "The response is not a JSON object");
+        }
+    }
+
+    /**
+     * 标量转成字符串，对象和数组微信不会返回，跳过
+     */
+    private static String text(JsonParser parser) throws IOException {
+        JsonToken value = parser.currentToken();
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (value.isScalarValue()) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static long expiresIn(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue();
+        }
+        try {
+            String expiresIn = text(parser);
+            return expiresIn != null ? Long.parseLong(expiresIn) : 0;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static Set<String> scopes(String scope) {
+        if (scope == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<>(Arrays.asList(StringUtils.delimitedListToStringArray(scope, " ")));
+    }
+
+    private static List<String> privilege(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        List<String> privilege = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            privilege.add(text(parser));
+        }
+        return privilege;
+    }
+}
@@ -23,6 +23,9 @@ public class WechatMapOAuth2AccessTokenResponseConverter implements Converter<Ma
 
     @Override
     public OAuth2AccessTokenResponse convert(Map<String, String> tokenResponseParameters) {
+        // 比如code已经用过 {"errcode":40163,"errmsg":"code been used"}
+        WechatErrorCodes.check(tokenResponseParameters.get(WechatErrorCodes.ERRCODE),
+                tokenResponseParameters.get(WechatErrorCodes.ERRMSG));
         String accessToken = tokenResponseParameters.get(OAuth2ParameterNames.ACCESS_TOKEN);
 
         long expiresIn = getExpiresIn(tokenResponseParameters);
@@ -28,6 +28,7 @@ import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
 import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
 import org.springframework.security.oauth2.core.endpoint.PkceParameterNames;
+import org.springframework.util.Assert;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.util.UriComponentsBuilder;
@@ -36,7 +37,8 @@ import java.net.URI;
 import java.util.Collections;
 
 /**
- * 兼容微信请求参数的请求参数封装工具类,扩展了{@link OAuth2AuthorizationCodeGrantRequestEntityConverter}
+ * 兼容微信请求参数的请求参数封装工具类,扩展了{@link OAuth2AuthorizationCodeGrantRequestEntityConverter}，
+ * 哪些客户端配置是微信的由{@link WechatProviderRegistry}决定
  *
  * @see OAuth2AuthorizationCodeGrantRequestEntityConverter
  * @see Converter
@@ -47,7 +49,25 @@ import java.util.Collections;
 public class WechatOAuth2AuthorizationCodeGrantRequestEntityConverter
         implements Converter<OAuth2AuthorizationCodeGrantRequest, RequestEntity<?>> {
     private static final HttpHeaders DEFAULT_TOKEN_REQUEST_HEADERS = getDefaultTokenRequestHeaders();
-    private static final String WECHAT_ID = "wechat";
+
+    private final WechatProviderRegistry providerRegistry;
+
+    /**
+     * 只按授权地址识别微信的客户端配置
+     */
+    public WechatOAuth2AuthorizationCodeGrantRequestEntityConverter() {
+        this(new WechatProviderRegistry());
+    }
+
+    /**
+     * Instantiates a new Wechat o auth 2 authorization code grant request entity converter.
+     *
+     * @param providerRegistry 微信客户端配置的注册表，和授权请求解析共用
+     */
+    public WechatOAuth2AuthorizationCodeGrantRequestEntityConverter(WechatProviderRegistry providerRegistry) {
+        Assert.notNull(providerRegistry, "providerRegistry cannot be null");
+        this.providerRegistry = providerRegistry;
+    }
 
     /**
      * Returns the {@link RequestEntity} used for the Access Token Request.
@@ -58,19 +78,15 @@ public class WechatOAuth2AuthorizationCodeGrantRequestEntityConverter
     @Override
     public RequestEntity<?> convert(OAuth2AuthorizationCodeGrantRequest authorizationCodeGrantRequest) {
         ClientRegistration clientRegistration = authorizationCodeGrantRequest.getClientRegistration();
-        HttpHeaders headers = getTokenRequestHeaders(clientRegistration);
-
-
-        String tokenUri = clientRegistration.getProviderDetails().getTokenUri();
-        // 针对微信的定制  WECHAT_ID表示为微信公众号专用的registrationId
-        if (WECHAT_ID.equals(clientRegistration.getRegistrationId())) {
-            MultiValueMap<String, String> queryParameters = this.buildWechatQueryParameters(authorizationCodeGrantRequest);
-            URI uri = UriComponentsBuilder.fromUriString(tokenUri).queryParams(queryParameters).build().toUri();
-            return RequestEntity.get(uri).headers(headers).build();
+        // 针对微信的定制，每个微信应用的请求前缀在注册表里预先拼好
+        WechatProvider provider = this.providerRegistry.get(clientRegistration);
+        if (provider != null) {
+            return provider.tokenRequest(authorizationCodeGrantRequest);
         }
         // 其它 客户端
+        HttpHeaders headers = getTokenRequestHeaders(clientRegistration);
         MultiValueMap<String, String> formParameters = this.buildFormParameters(authorizationCodeGrantRequest);
-        URI uri = UriComponentsBuilder.fromUriString(tokenUri).build()
+        URI uri = UriComponentsBuilder.fromUriString(clientRegistration.getProviderDetails().getTokenUri()).build()
                 .toUri();
         return new RequestEntity<>(formParameters, headers, HttpMethod.POST, uri);
     }
@@ -107,28 +123,6 @@ public class WechatOAuth2AuthorizationCodeGrantRequestEntityConverter
         return formParameters;
     }
 
-    private MultiValueMap<String, String> buildWechatQueryParameters(OAuth2AuthorizationCodeGrantRequest authorizationCodeGrantRequest) {
-        // 获取微信的客户端配置
-        ClientRegistration clientRegistration = authorizationCodeGrantRequest.getClientRegistration();
-        OAuth2AuthorizationExchange authorizationExchange = authorizationCodeGrantRequest.getAuthorizationExchange();
-        MultiValueMap<String, String> formParameters = new LinkedMultiValueMap<>();
-        // grant_type
-        formParameters.add(OAuth2ParameterNames.GRANT_TYPE, authorizationCodeGrantRequest.getGrantType().getValue());
-        // code
-        formParameters.add(OAuth2ParameterNames.CODE, authorizationExchange.getAuthorizationResponse().getCode());
-        // 如果有redirect-uri
-        String redirectUri = authorizationExchange.getAuthorizationRequest().getRedirectUri();
-        if (redirectUri != null) {
-            formParameters.add(OAuth2ParameterNames.REDIRECT_URI, redirectUri);
-        }
-        //appid
-        formParameters.add("appid", clientRegistration.getClientId());
-        //secret
-        formParameters.add("secret", clientRegistration.getClientSecret());
-        return formParameters;
-    }
-
-
     /**
      * Gets token request headers.
      *
@@ -0,0 +1,130 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.security.crypto.keygen.Base64StringKeyGenerator;
+import org.springframework.security.crypto.keygen.StringKeyGenerator;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.client.web.DefaultOAuth2AuthorizationRequestResolver;
+import org.springframework.security.oauth2.client.web.OAuth2AuthorizationRequestResolver;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.util.Assert;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Base64;
+
+/**
+ * 微信授权请求解析，微信的客户端配置用预编译的{@link WechatAuthorizationUriTemplate}直接生成授权链接，
+ * 其它客户端仍然交给{@link DefaultOAuth2AuthorizationRequestResolver}
+ * <p>
+ * 客户端配置是可遍历的(比如yaml配置的InMemoryClientRegistrationRepository)时启动就编译好所有微信模板，
+ * 否则第一次使用时编译。模板缓存在{@link WechatProviderRegistry}里，配置变化之后按新配置重新编译
+ * <p>
+ * Created by berg on 2023/4/14.
+ */
+public class WechatOAuth2AuthorizationRequestResolver implements OAuth2AuthorizationRequestResolver {
+
+    /**
+     * 授权请求里的随机数，和授权请求一起保存在发起授权的浏览器里(会话或签名的cookie)。
+     * state是前端传入的 redirect_url，谁都能猜到，合并换token请求({@code WechatCodeExchange})只能按这个随机数区分浏览器
+     */
+    public static final String EXCHANGE_NONCE_ATTRIBUTE = "wechat_exchange_nonce";
+
+    private static final String REGISTRATION_ID_URI_VARIABLE_NAME = "registrationId";
+    private static final StringKeyGenerator EXCHANGE_NONCE_GENERATOR = new Base64StringKeyGenerator(
+            Base64.getUrlEncoder().withoutPadding(), 16);
+
+    private final ClientRegistrationRepository clientRegistrationRepository;
+    private final AntPathRequestMatcher authorizationRequestMatcher;
+    private final DefaultOAuth2AuthorizationRequestResolver delegate;
+    private final WechatProviderRegistry providerRegistry;
+
+    /**
+     * Instantiates a new Wechat o auth 2 authorization request resolver.
+     *
+     * @param clientRegistrationRepository    the client registration repository
+     * @param authorizationRequestBaseUri     授权入口，默认 /oauth2/authorization
+     */
+    public WechatOAuth2AuthorizationRequestResolver(ClientRegistrationRepository clientRegistrationRepository,
+                                                    String authorizationRequestBaseUri) {
+        this(clientRegistrationRepository, authorizationRequestBaseUri, new WechatProviderRegistry());
+    }
+
+    /**
+     * Instantiates a new Wechat o auth 2 authorization request resolver.
+     *
+     * @param clientRegistrationRepository    the client registration repository
+     * @param authorizationRequestBaseUri     授权入口，默认 /oauth2/authorization
+     * @param providerRegistry                微信客户端配置的注册表，和换token请求共用
+     */
+    @SuppressWarnings("unchecked")
+    public WechatOAuth2AuthorizationRequestResolver(ClientRegistrationRepository clientRegistrationRepository,
+                                                    String authorizationRequestBaseUri,
+                                                    WechatProviderRegistry providerRegistry) {
+        Assert.notNull(clientRegistrationRepository, "clientRegistrationRepository cannot be null");
+        Assert.hasText(authorizationRequestBaseUri, "authorizationRequestBaseUri cannot be empty");
+        Assert.notNull(providerRegistry, "providerRegistry cannot be null");
+        this.clientRegistrationRepository = clientRegistrationRepository;
+        this.providerRegistry = providerRegistry;
+        this.authorizationRequestMatcher = new AntPathRequestMatcher(
+                authorizationRequestBaseUri + "/{" + REGISTRATION_ID_URI_VARIABLE_NAME + "}");
+        this.delegate = new DefaultOAuth2AuthorizationRequestResolver(clientRegistrationRepository, authorizationRequestBaseUri);
+        this.delegate.setAuthorizationRequestCustomizer(WechatOAuth2AuthRequestBuilderCustomizer::customize);
+        if (clientRegistrationRepository instanceof Iterable) {
+            providerRegistry.reload((Iterable<ClientRegistration>) clientRegistrationRepository);
+        }
+    }
+
+    @Override
+    public OAuth2AuthorizationRequest resolve(HttpServletRequest request) {
+        if (!this.authorizationRequestMatcher.matches(request)) {
+            return null;
+        }
+        String registrationId = this.authorizationRequestMatcher.matcher(request)
+                .getVariables()
+                .get(REGISTRATION_ID_URI_VARIABLE_NAME);
+        WechatAuthorizationUriTemplate template = template(registrationId);
+        return template != null ? resolve(request, template) : this.delegate.resolve(request);
+    }
+
+    @Override
+    public OAuth2AuthorizationRequest resolve(HttpServletRequest request, String clientRegistrationId) {
+        if (clientRegistrationId == null) {
+            return null;
+        }
+        WechatAuthorizationUriTemplate template = template(clientRegistrationId);
+        return template != null ? resolve(request, template) : this.delegate.resolve(request, clientRegistrationId);
+    }
+
+    private OAuth2AuthorizationRequest resolve(HttpServletRequest request, WechatAuthorizationUriTemplate template) {
+        // 使用前端请求中的重定向地址作为state，登陆成功后跳回去
+        String state = request.getParameter(WechatOAuth2AuthRequestBuilderCustomizer.REDIRECT_URL_PARAMETER);
+        return template.authorizationRequest(baseUrl(request), state, EXCHANGE_NONCE_GENERATOR.generateKey());
+    }
+
+    /**
+     * 不是微信的客户端配置返回null
+     */
+    private WechatAuthorizationUriTemplate template(String registrationId) {
+        ClientRegistration clientRegistration = this.clientRegistrationRepository.findByRegistrationId(registrationId);
+        if (clientRegistration == null) {
+            // 交给默认的resolver抛出 Invalid Client Registration
+            return null;
+        }
+        WechatProvider provider = this.providerRegistry.get(clientRegistration);
+        return provider != null ? provider.getAuthorizationUriTemplate() : null;
+    }
+
+    /**
+     * 和{@link DefaultOAuth2AuthorizationRequestResolver}一样：scheme://host[:port]/contextPath，默认端口省略
+     */
+    private static String baseUrl(HttpServletRequest request) {
+        String scheme = request.getScheme();
+        int port = request.getServerPort();
+        StringBuilder baseUrl = new StringBuilder(64).append(scheme).append("://").append(request.getServerName());
+        if (!("http".equalsIgnoreCase(scheme) && port == 80) && !("https".equalsIgnoreCase(scheme) && port == 443)) {
+            baseUrl.append(':').append(port);
+        }
+        return baseUrl.append(request.getContextPath()).toString();
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.RequestEntity;
+import org.springframework.security.oauth2.client.endpoint.OAuth2RefreshTokenGrantRequest;
+import org.springframework.security.oauth2.client.endpoint.OAuth2RefreshTokenGrantRequestEntityConverter;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.util.Assert;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.net.URI;
+import java.util.Collections;
+
+/**
+ * 微信刷新access_token的请求：
+ * {@code GET /sns/oauth2/refresh_token?appid=APPID&grant_type=refresh_token&refresh_token=REFRESH_TOKEN}，
+ * 地址由 token-uri 的 access_token 换成 refresh_token 得到。非微信的配置交给{@link OAuth2RefreshTokenGrantRequestEntityConverter}
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatOAuth2RefreshTokenGrantRequestEntityConverter implements Converter<OAuth2RefreshTokenGrantRequest, RequestEntity<?>> {
+
+    private static final String ACCESS_TOKEN_PATH = "/access_token";
+    private static final String REFRESH_TOKEN_PATH = "/refresh_token";
+
+    private final OAuth2RefreshTokenGrantRequestEntityConverter defaultConverter = new OAuth2RefreshTokenGrantRequestEntityConverter();
+    private final WechatProviderRegistry providerRegistry;
+
+    /**
+     * 只按授权地址识别微信的客户端配置
+     */
+    public WechatOAuth2RefreshTokenGrantRequestEntityConverter() {
+        this(new WechatProviderRegistry());
+    }
+
+    public WechatOAuth2RefreshTokenGrantRequestEntityConverter(WechatProviderRegistry providerRegistry) {
+        Assert.notNull(providerRegistry, "providerRegistry cannot be null");
+        this.providerRegistry = providerRegistry;
+    }
+
+    @Override
+    public RequestEntity<?> convert(OAuth2RefreshTokenGrantRequest refreshTokenGrantRequest) {
+        ClientRegistration clientRegistration = refreshTokenGrantRequest.getClientRegistration();
+        if (!this.providerRegistry.supports(clientRegistration)) {
+            return this.defaultConverter.convert(refreshTokenGrantRequest);
+        }
+        URI uri = UriComponentsBuilder.fromUriString(refreshTokenUri(clientRegistration.getProviderDetails().getTokenUri()))
+                .queryParam("appid", clientRegistration.getClientId())
+                .queryParam(OAuth2ParameterNames.GRANT_TYPE, refreshTokenGrantRequest.getGrantType().getValue())
+                .queryParam(OAuth2ParameterNames.REFRESH_TOKEN, refreshTokenGrantRequest.getRefreshToken().getTokenValue())
+                .encode()
+                .build()
+                .toUri();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+        return RequestEntity.get(uri).headers(headers).build();
+    }
+
+    static String refreshTokenUri(String tokenUri) {
+        if (tokenUri.endsWith(ACCESS_TOKEN_PATH)) {
+            return tokenUri.substring(0, tokenUri.length() - ACCESS_TOKEN_PATH.length()) + REFRESH_TOKEN_PATH;
+        }
+        return tokenUri;
+    }
+}
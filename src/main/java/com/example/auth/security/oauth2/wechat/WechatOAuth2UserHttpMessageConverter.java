@@ -0,0 +1,53 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 读取微信用户信息接口响应的转换器，用{@link WechatJsonReader}直接读出{@link WechatOAuth2User}。
+ * 微信返回的errcode原样抛出{@link org.springframework.security.oauth2.core.OAuth2AuthorizationException}，
+ * 由{@link WechatOAuth2UserService}统一转换
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatOAuth2UserHttpMessageConverter extends AbstractHttpMessageConverter<WechatOAuth2User> {
+
+    public WechatOAuth2UserHttpMessageConverter() {
+        super(StandardCharsets.UTF_8, MediaType.TEXT_PLAIN, MediaType.APPLICATION_JSON,
+                new MediaType("application", "*+json"));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return WechatOAuth2User.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected WechatOAuth2User readInternal(Class<? extends WechatOAuth2User> clazz,
+                                            HttpInputMessage inputMessage) throws HttpMessageNotReadableException {
+        try {
+            return WechatJsonReader.readUser(inputMessage.getBody());
+        } catch (IOException ex) {
+            throw new HttpMessageNotReadableException(
+                    "An error occurred reading the UserInfo Response: " + ex.getMessage(), ex, inputMessage);
+        }
+    }
+
+    @Override
+    protected boolean canWrite(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected void writeInternal(WechatOAuth2User user, HttpOutputMessage outputMessage)
+            throws HttpMessageNotWritableException {
+        // noop
+    }
+}
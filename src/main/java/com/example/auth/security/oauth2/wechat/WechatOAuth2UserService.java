@@ -2,13 +2,8 @@ package com.example.auth.security.oauth2.wechat;
 
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.*;
-import org.springframework.http.converter.AbstractHttpMessageConverter;
-import org.springframework.http.converter.GenericHttpMessageConverter;
-import org.springframework.http.converter.HttpMessageNotReadableException;
-import org.springframework.http.converter.HttpMessageNotWritableException;
-import org.springframework.http.converter.json.GsonHttpMessageConverter;
-import org.springframework.http.converter.json.JsonbHttpMessageConverter;
-import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
 import org.springframework.security.oauth2.client.http.OAuth2ErrorResponseErrorHandler;
 import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
@@ -19,7 +14,6 @@ import org.springframework.security.oauth2.core.OAuth2Error;
 import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.util.Assert;
-import org.springframework.util.ClassUtils;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.StringUtils;
 import org.springframework.web.client.RestClientException;
@@ -29,8 +23,6 @@ import org.springframework.web.client.UnknownContentTypeException;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import java.net.URI;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 
 
@@ -43,7 +35,7 @@ import java.util.Collections;
 public class WechatOAuth2UserService implements OAuth2UserService<OAuth2UserRequest, OAuth2User> {
     private static final String MISSING_USER_INFO_URI_ERROR_CODE = "missing_user_info_uri";
     private static final String MISSING_OPENID_ERROR_CODE = "missing_openid_attribute";
-    private static final String INVALID_USER_INFO_RESPONSE_ERROR_CODE = "invalid_user_info_response";
+    static final String INVALID_USER_INFO_RESPONSE_ERROR_CODE = "invalid_user_info_response";
     private static final String OPENID_KEY = "openid";
     private static final String LANG_KEY = "lang";
     private static final String DEFAULT_LANG = "zh_CN";
@@ -55,7 +47,18 @@ public class WechatOAuth2UserService implements OAuth2UserService<OAuth2UserRequ
      * Instantiates a new Wechat o auth 2 user service.
      */
     public WechatOAuth2UserService() {
+        this(new SimpleClientHttpRequestFactory());
+    }
+
+    /**
+     * Instantiates a new Wechat o auth 2 user service.
+     *
+     * @param requestFactory 调用微信接口的http客户端，推荐使用共用的连接池
+     */
+    public WechatOAuth2UserService(ClientHttpRequestFactory requestFactory) {
+        Assert.notNull(requestFactory, "requestFactory cannot be null");
         RestTemplate restTemplate = new RestTemplate(Collections.singletonList(new WechatOAuth2UserHttpMessageConverter()));
+        restTemplate.setRequestFactory(requestFactory);
         restTemplate.setErrorHandler(new OAuth2ErrorResponseErrorHandler());
         this.restOperations = restTemplate;
     }
@@ -63,6 +66,16 @@ public class WechatOAuth2UserService implements OAuth2UserService<OAuth2UserRequ
     @Override
     public WechatOAuth2User loadUser(OAuth2UserRequest userRequest) throws OAuth2AuthenticationException {
         Assert.notNull(userRequest, "userRequest cannot be null");
+        checkUserRequest(userRequest);
+        return getResponse(userRequest).getBody();
+    }
+
+    /**
+     * 校验获取微信用户信息需要的参数，阻塞和响应式两种实现共用
+     *
+     * @param userRequest the user request
+     */
+    static void checkUserRequest(OAuth2UserRequest userRequest) {
         if (!StringUtils
                 .hasText(userRequest.getClientRegistration().getProviderDetails().getUserInfoEndpoint().getUri())) {
             OAuth2Error oauth2Error = new OAuth2Error(MISSING_USER_INFO_URI_ERROR_CODE,
@@ -79,7 +92,26 @@ public class WechatOAuth2UserService implements OAuth2UserService<OAuth2UserRequ
                     null);
             throw new OAuth2AuthenticationException(oauth2Error, oauth2Error.toString());
         }
-        return getResponse(userRequest).getBody();
+    }
+
+    /**
+     * 拼接获取微信用户信息的uri
+     * https://api.weixin.qq.com/sns/userinfo?access_token=ACCESS_TOKEN&openid=OPENID&lang=zh_CN
+     *
+     * @param userRequest the user request
+     * @return the user info uri
+     */
+    static URI buildUserInfoUri(OAuth2UserRequest userRequest) {
+        String userInfoUri = userRequest.getClientRegistration()
+                .getProviderDetails()
+                .getUserInfoEndpoint()
+                .getUri();
+        LinkedMultiValueMap<String, String> queryParams = new LinkedMultiValueMap<>();
+
+        queryParams.add(OAuth2ParameterNames.ACCESS_TOKEN, userRequest.getAccessToken().getTokenValue());
+        queryParams.add(OPENID_KEY, String.valueOf(userRequest.getAdditionalParameters().get(OPENID_KEY)));
+        queryParams.add(LANG_KEY, DEFAULT_LANG);
+        return UriComponentsBuilder.fromUriString(userInfoUri).queryParams(queryParams).build().toUri();
     }
 
     /**
@@ -95,12 +127,7 @@ public class WechatOAuth2UserService implements OAuth2UserService<OAuth2UserRequ
                 .getUserInfoEndpoint()
                 .getUri();
         try {
-            LinkedMultiValueMap<String, String> queryParams = new LinkedMultiValueMap<>();
-
-            queryParams.add(OAuth2ParameterNames.ACCESS_TOKEN, userRequest.getAccessToken().getTokenValue());
-            queryParams.add(OPENID_KEY, String.valueOf(userRequest.getAdditionalParameters().get(OPENID_KEY)));
-            queryParams.add(LANG_KEY, DEFAULT_LANG);
-            URI userInfoEndpoint = UriComponentsBuilder.fromUriString(userInfoUri).queryParams(queryParams).build().toUri();
+            URI userInfoEndpoint = buildUserInfoUri(userRequest);
 
             return this.restOperations.exchange(userInfoEndpoint, HttpMethod.GET, null, OAUTH2_USER_OBJECT);
 
@@ -136,83 +163,4 @@ public class WechatOAuth2UserService implements OAuth2UserService<OAuth2UserRequ
             throw new OAuth2AuthenticationException(oauth2Error, oauth2Error.toString(), ex);
         }
     }
-
-
-    private static class WechatOAuth2UserHttpMessageConverter
-            extends AbstractHttpMessageConverter<WechatOAuth2User> {
-
-        private static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
-
-
-        private final GenericHttpMessageConverter<Object> jsonMessageConverter = HttpMessageConverters.getJsonMessageConverter();
-
-
-        public WechatOAuth2UserHttpMessageConverter() {
-            super(DEFAULT_CHARSET, MediaType.TEXT_PLAIN,
-                    MediaType.APPLICATION_JSON,
-                    new MediaType("application", "*+json"));
-        }
-
-        @Override
-        protected boolean supports(Class<?> clazz) {
-            return WechatOAuth2User.class.isAssignableFrom(clazz);
-        }
-
-        @Override
-        protected WechatOAuth2User readInternal(Class<? extends WechatOAuth2User> clazz,
-                                                HttpInputMessage inputMessage) throws HttpMessageNotReadableException {
-            try {
-                // gh-6463: Parse parameter values as Object in order to handle potential JSON
-                // Object and then convert values to String
-                return (WechatOAuth2User) this.jsonMessageConverter
-                        .read(OAUTH2_USER_OBJECT.getType(), null, inputMessage);
-
-            } catch (Exception ex) {
-                throw new HttpMessageNotReadableException(
-                        "An error occurred reading the OAuth 2.0 Access Token Response: " + ex.getMessage(), ex,
-                        inputMessage);
-            }
-        }
-
-        @Override
-        protected void writeInternal(WechatOAuth2User tokenResponse, HttpOutputMessage outputMessage)
-                throws HttpMessageNotWritableException {
-            // noop
-        }
-
-
-        static class HttpMessageConverters {
-
-            private static final boolean jackson2Present;
-
-            private static final boolean gsonPresent;
-
-            private static final boolean jsonbPresent;
-
-            static {
-                ClassLoader classLoader = HttpMessageConverters.class.getClassLoader();
-                jackson2Present = ClassUtils.isPresent("com.fasterxml.jackson.databind.ObjectMapper", classLoader)
-                        && ClassUtils.isPresent("com.fasterxml.jackson.core.JsonGenerator", classLoader);
-                gsonPresent = ClassUtils.isPresent("com.google.gson.Gson", classLoader);
-                jsonbPresent = ClassUtils.isPresent("javax.json.bind.Jsonb", classLoader);
-            }
-
-            private HttpMessageConverters() {
-            }
-
-            static GenericHttpMessageConverter<Object> getJsonMessageConverter() {
-                if (jackson2Present) {
-                    return new MappingJackson2HttpMessageConverter();
-                }
-                if (gsonPresent) {
-                    return new GsonHttpMessageConverter();
-                }
-                if (jsonbPresent) {
-                    return new JsonbHttpMessageConverter();
-                }
-                return null;
-            }
-
-        }
-    }
 }
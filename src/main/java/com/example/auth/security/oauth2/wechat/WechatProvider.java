@@ -0,0 +1,112 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.RequestEntity;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
+import org.springframework.util.ObjectUtils;
+
+import java.net.URI;
+import java.util.Collections;
+
+/**
+ * 一个微信客户端配置预先算好的登陆策略：授权链接模板，以及换token请求里除了code和redirect_uri之外的部分
+ * ({@code token-uri?grant_type=authorization_code&code=}、{@code &appid=APPID&secret=SECRET})。
+ * 每次登陆只需要把code和redirect_uri编码后拼上去，不再经过UriComponentsBuilder
+ * <p>
+ * 由{@link WechatProviderRegistry}按registrationId编译和缓存，客户端配置变化之后重新编译
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public final class WechatProvider {
+
+    private static final HttpHeaders TOKEN_REQUEST_HEADERS = tokenRequestHeaders();
+
+    private final WechatProviderType type;
+    private final ClientRegistration clientRegistration;
+    private final WechatAuthorizationUriTemplate authorizationUriTemplate;
+    /**
+     * {@code token-uri?grant_type=authorization_code&code=}
+     */
+    private final String tokenRequestPrefix;
+    /**
+     * {@code &appid=APPID&secret=SECRET}
+     */
+    private final String tokenRequestSuffix;
+
+    WechatProvider(WechatProviderType type, ClientRegistration clientRegistration) {
+        this.type = type;
+        this.clientRegistration = clientRegistration;
+        this.authorizationUriTemplate = new WechatAuthorizationUriTemplate(clientRegistration);
+        String tokenUri = clientRegistration.getProviderDetails().getTokenUri();
+        this.tokenRequestPrefix = tokenUri + (tokenUri.indexOf('?') < 0 ? '?' : '&') + "grant_type="
+                + clientRegistration.getAuthorizationGrantType().getValue() + "&code=";
+        StringBuilder suffix = new StringBuilder("&appid=");
+        WechatAuthorizationUriTemplate.appendEncoded(suffix, clientRegistration.getClientId());
+        WechatAuthorizationUriTemplate.appendEncoded(suffix.append("&secret="), clientRegistration.getClientSecret());
+        this.tokenRequestSuffix = suffix.toString();
+    }
+
+    public WechatProviderType getType() {
+        return this.type;
+    }
+
+    public ClientRegistration getClientRegistration() {
+        return this.clientRegistration;
+    }
+
+    public WechatAuthorizationUriTemplate getAuthorizationUriTemplate() {
+        return this.authorizationUriTemplate;
+    }
+
+    /**
+     * 用授权码换token的请求：
+     * {@code GET token-uri?grant_type=authorization_code&code=CODE&redirect_uri=REDIRECT_URI&appid=APPID&secret=SECRET}
+     *
+     * @param authorizationCodeGrantRequest the authorization code grant request
+     * @return the request entity
+     */
+    public RequestEntity<?> tokenRequest(OAuth2AuthorizationCodeGrantRequest authorizationCodeGrantRequest) {
+        OAuth2AuthorizationExchange authorizationExchange = authorizationCodeGrantRequest.getAuthorizationExchange();
+        String code = authorizationExchange.getAuthorizationResponse().getCode();
+        String redirectUri = authorizationExchange.getAuthorizationRequest().getRedirectUri();
+        StringBuilder uri = new StringBuilder(this.tokenRequestPrefix.length() + code.length()
+                + (redirectUri != null ? redirectUri.length() + 16 : 0) + this.tokenRequestSuffix.length());
+        WechatAuthorizationUriTemplate.appendEncoded(uri.append(this.tokenRequestPrefix), code);
+        if (redirectUri != null) {
+            WechatAuthorizationUriTemplate.appendEncoded(uri.append("&redirect_uri="), redirectUri);
+        }
+        uri.append(this.tokenRequestSuffix);
+        return new RequestEntity<>(TOKEN_REQUEST_HEADERS, HttpMethod.GET, URI.create(uri.toString()));
+    }
+
+    /**
+     * 编译时用到的配置都没变，说明还是同一份客户端配置(可能是重新加载出来的新对象)，不需要重新编译
+     *
+     * @param clientRegistration the client registration
+     * @return the boolean
+     */
+    boolean matches(ClientRegistration clientRegistration) {
+        if (this.clientRegistration == clientRegistration) {
+            return true;
+        }
+        ClientRegistration.ProviderDetails providerDetails = clientRegistration.getProviderDetails();
+        ClientRegistration.ProviderDetails compiled = this.clientRegistration.getProviderDetails();
+        return ObjectUtils.nullSafeEquals(this.clientRegistration.getClientId(), clientRegistration.getClientId())
+                && ObjectUtils.nullSafeEquals(this.clientRegistration.getClientSecret(), clientRegistration.getClientSecret())
+                && ObjectUtils.nullSafeEquals(this.clientRegistration.getRedirectUri(), clientRegistration.getRedirectUri())
+                && ObjectUtils.nullSafeEquals(this.clientRegistration.getScopes(), clientRegistration.getScopes())
+                && ObjectUtils.nullSafeEquals(compiled.getAuthorizationUri(), providerDetails.getAuthorizationUri())
+                && ObjectUtils.nullSafeEquals(compiled.getTokenUri(), providerDetails.getTokenUri());
+    }
+
+    private static HttpHeaders tokenRequestHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON_UTF8));
+        headers.setContentType(MediaType.valueOf(MediaType.APPLICATION_FORM_URLENCODED_VALUE + ";charset=UTF-8"));
+        return HttpHeaders.readOnlyHttpHeaders(headers);
+    }
+}
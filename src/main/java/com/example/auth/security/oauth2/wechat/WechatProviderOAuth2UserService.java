@@ -0,0 +1,46 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.util.Assert;
+
+/**
+ * 按{@link WechatProviderRegistry}查一次决定获取用户信息的服务：微信的客户端配置用微信的服务，其它的用默认服务。
+ * 替代{@link org.springframework.security.oauth2.client.userinfo.DelegatingOAuth2UserService}依次尝试每个服务
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatProviderOAuth2UserService implements OAuth2UserService<OAuth2UserRequest, OAuth2User> {
+
+    private final WechatProviderRegistry providerRegistry;
+    private final OAuth2UserService<OAuth2UserRequest, OAuth2User> wechatUserService;
+    private final OAuth2UserService<OAuth2UserRequest, OAuth2User> defaultUserService;
+
+    /**
+     * Instantiates a new Wechat provider o auth 2 user service.
+     *
+     * @param providerRegistry   微信客户端配置的注册表
+     * @param wechatUserService  获取微信用户信息的服务，可以是带缓存、熔断、降级的
+     * @param defaultUserService 其它客户端配置使用的服务
+     */
+    public WechatProviderOAuth2UserService(WechatProviderRegistry providerRegistry,
+                                           OAuth2UserService<OAuth2UserRequest, OAuth2User> wechatUserService,
+                                           OAuth2UserService<OAuth2UserRequest, OAuth2User> defaultUserService) {
+        Assert.notNull(providerRegistry, "providerRegistry cannot be null");
+        Assert.notNull(wechatUserService, "wechatUserService cannot be null");
+        Assert.notNull(defaultUserService, "defaultUserService cannot be null");
+        this.providerRegistry = providerRegistry;
+        this.wechatUserService = wechatUserService;
+        this.defaultUserService = defaultUserService;
+    }
+
+    @Override
+    public OAuth2User loadUser(OAuth2UserRequest userRequest) throws OAuth2AuthenticationException {
+        Assert.notNull(userRequest, "userRequest cannot be null");
+        return this.providerRegistry.supports(userRequest.getClientRegistration())
+                ? this.wechatUserService.loadUser(userRequest)
+                : this.defaultUserService.loadUser(userRequest);
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.util.Assert;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * registrationId到微信登陆策略({@link WechatProvider})的注册表，替代按 registrationId 是否等于 wechat 的判断，
+ * 多个网站应用、公众号同时接入时每个registrationId一份预编译好的策略。
+ * <p>
+ * 查找是对不可变快照的一次{@link HashMap#get(Object)}，非微信的客户端配置也缓存一个占位，不会每次都重新识别。
+ * 客户端配置变化(appid、secret、地址)之后第一次使用时重新编译，{@link #reload(Iterable)} 一次替换整个快照，都不需要重启。
+ * 类型可以按registrationId显式配置，没有配置时按授权地址识别，见{@link WechatProviderType#detect(ClientRegistration)}
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatProviderRegistry {
+
+    private final Map<String, WechatProviderType> types;
+    private volatile Map<String, Entry> providers = Collections.emptyMap();
+
+    /**
+     * 只按授权地址识别类型
+     */
+    public WechatProviderRegistry() {
+        this(Collections.emptyMap());
+    }
+
+    /**
+     * Instantiates a new Wechat provider registry.
+     *
+     * @param types 按registrationId显式配置的类型
+     */
+    public WechatProviderRegistry(Map<String, WechatProviderType> types) {
+        Assert.notNull(types, "types cannot be null");
+        this.types = new HashMap<>(types);
+    }
+
+    /**
+     * 用全部客户端配置重建快照，不在其中的registrationId被移除
+     *
+     * @param clientRegistrations the client registrations
+     */
+    public synchronized void reload(Iterable<ClientRegistration> clientRegistrations) {
+        Map<String, Entry> providers = new HashMap<>();
+        Map<String, Entry> current = this.providers;
+        for (ClientRegistration clientRegistration : clientRegistrations) {
+            String registrationId = clientRegistration.getRegistrationId();
+            providers.put(registrationId, compile(current.get(registrationId), clientRegistration));
+        }
+        this.providers = providers;
+    }
+
+    /**
+     * 移除一个registrationId，下次使用时按当时的配置重新编译
+     *
+     * @param registrationId the registration id
+     */
+    public synchronized void evict(String registrationId) {
+        if (this.providers.containsKey(registrationId)) {
+            Map<String, Entry> providers = new HashMap<>(this.providers);
+            providers.remove(registrationId);
+            this.providers = providers;
+        }
+    }
+
+    /**
+     * 客户端配置对应的微信登陆策略
+     *
+     * @param clientRegistration the client registration
+     * @return 不是微信的客户端配置时为null
+     */
+    public WechatProvider get(ClientRegistration clientRegistration) {
+        Entry entry = this.providers.get(clientRegistration.getRegistrationId());
+        if (entry == null || !matches(entry, clientRegistration)) {
+            entry = put(clientRegistration);
+        }
+        return entry.provider;
+    }
+
+    /**
+     * 是否是微信的客户端配置
+     *
+     * @param clientRegistration the client registration
+     * @return the boolean
+     */
+    public boolean supports(ClientRegistration clientRegistration) {
+        return get(clientRegistration) != null;
+    }
+
+    private synchronized Entry put(ClientRegistration clientRegistration) {
+        String registrationId = clientRegistration.getRegistrationId();
+        Entry current = this.providers.get(registrationId);
+        Entry entry = compile(current, clientRegistration);
+        if (entry != current) {
+            // 写时复制，读的一方始终看到完整的快照
+            Map<String, Entry> providers = new HashMap<>(this.providers);
+            providers.put(registrationId, entry);
+            this.providers = providers;
+        }
+        return entry;
+    }
+
+    private Entry compile(Entry current, ClientRegistration clientRegistration) {
+        if (current != null && matches(current, clientRegistration)) {
+            return current;
+        }
+        WechatProviderType type = type(clientRegistration);
+        return type != null ? new Entry(clientRegistration, new WechatProvider(type, clientRegistration))
+                : new Entry(clientRegistration, null);
+    }
+
+    /**
+     * 同一个对象直接命中；重新加载出来的新对象比较编译时用到的配置，非微信的重新识别一次类型
+     */
+    private boolean matches(Entry entry, ClientRegistration clientRegistration) {
+        if (entry.clientRegistration == clientRegistration) {
+            return true;
+        }
+        return entry.provider != null ? entry.provider.matches(clientRegistration) : type(clientRegistration) == null;
+    }
+
+    private WechatProviderType type(ClientRegistration clientRegistration) {
+        WechatProviderType type = this.types.get(clientRegistration.getRegistrationId());
+        if (type != null) {
+            return AuthorizationGrantType.AUTHORIZATION_CODE.equals(clientRegistration.getAuthorizationGrantType())
+                    ? type : null;
+        }
+        return WechatProviderType.detect(clientRegistration);
+    }
+
+    private static final class Entry {
+        private final ClientRegistration clientRegistration;
+        /**
+         * 不是微信的客户端配置时为null
+         */
+        private final WechatProvider provider;
+
+        private Entry(ClientRegistration clientRegistration, WechatProvider provider) {
+            this.clientRegistration = clientRegistration;
+            this.provider = provider;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+
+/**
+ * 微信应用类型，决定授权链接、换token请求和获取用户信息的方式
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public enum WechatProviderType {
+
+    /**
+     * 网站应用扫码登陆 connect/qrconnect，scope 为 snsapi_login
+     */
+    WEBSITE,
+
+    /**
+     * 公众号网页授权 connect/oauth2/authorize，scope 为 snsapi_base 或 snsapi_userinfo
+     */
+    OFFICIAL_ACCOUNT;
+
+    private static final String OFFICIAL_ACCOUNT_AUTHORIZE_PATH = "/connect/oauth2/authorize";
+
+    /**
+     * 没有显式配置类型时按授权地址识别
+     *
+     * @param clientRegistration the client registration
+     * @return 不是微信的客户端配置时为null
+     */
+    public static WechatProviderType detect(ClientRegistration clientRegistration) {
+        if (!WechatAuthorizationUriTemplate.supports(clientRegistration)) {
+            return null;
+        }
+        String authorizationUri = clientRegistration.getProviderDetails().getAuthorizationUri();
+        return authorizationUri != null && authorizationUri.contains(OFFICIAL_ACCOUNT_AUTHORIZE_PATH)
+                ? OFFICIAL_ACCOUNT : WEBSITE;
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.http.RequestEntity;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.endpoint.ReactiveOAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.util.Assert;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 响应式的获取token客户端，请求的组装复用{@link WechatOAuth2AuthorizationCodeGrantRequestEntityConverter}，
+ * 响应的解析复用{@link WechatJsonReader}，行为和阻塞版本保持一致。设置了tokenResponseConverter时先解析成Map再转换
+ *
+ * Created by berg on 2023/4/10.
+ */
+public class WechatReactiveAuthorizationCodeTokenResponseClient
+        implements ReactiveOAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> {
+    private static final String INVALID_TOKEN_RESPONSE_ERROR_CODE = "invalid_token_response";
+    private static final ParameterizedTypeReference<Map<String, Object>> TOKEN_RESPONSE_PARAMETERS = new ParameterizedTypeReference<Map<String, Object>>() {
+    };
+
+    private final WebClient webClient;
+
+    private Converter<OAuth2AuthorizationCodeGrantRequest, RequestEntity<?>> requestEntityConverter = new WechatOAuth2AuthorizationCodeGrantRequestEntityConverter();
+
+    private Converter<Map<String, String>, OAuth2AccessTokenResponse> tokenResponseConverter;
+
+    /**
+     * Instantiates a new Wechat reactive authorization code token response client.
+     *
+     * @param webClient 需要能把 text/plain 的响应按json解析，参考 WechatReactiveHttpConfiguration
+     */
+    public WechatReactiveAuthorizationCodeTokenResponseClient(WebClient webClient) {
+        Assert.notNull(webClient, "webClient cannot be null");
+        this.webClient = webClient;
+    }
+
+    /**
+     * Instantiates a new Wechat reactive authorization code token response client.
+     *
+     * @param webClient        需要能把 text/plain 的响应按json解析，参考 WechatReactiveHttpConfiguration
+     * @param providerRegistry 微信客户端配置的注册表，和授权请求解析共用
+     */
+    public WechatReactiveAuthorizationCodeTokenResponseClient(WebClient webClient, WechatProviderRegistry providerRegistry) {
+        this(webClient);
+        this.requestEntityConverter = new WechatOAuth2AuthorizationCodeGrantRequestEntityConverter(providerRegistry);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Mono<OAuth2AccessTokenResponse> getTokenResponse(OAuth2AuthorizationCodeGrantRequest authorizationGrantRequest) {
+        return Mono.defer(() -> {
+            Assert.notNull(authorizationGrantRequest, "authorizationGrantRequest cannot be null");
+            RequestEntity<?> request = this.requestEntityConverter.convert(authorizationGrantRequest);
+            WebClient.RequestBodySpec spec = this.webClient.method(request.getMethod())
+                    .uri(request.getUrl())
+                    .headers(headers -> headers.addAll(request.getHeaders()));
+            // 微信是GET请求参数都在url上，其它客户端是POST表单
+            if (request.getBody() != null) {
+                spec.body(BodyInserters.fromFormData((MultiValueMap<String, String>) request.getBody()));
+            }
+            WebClient.ResponseSpec response = spec.retrieve();
+            Mono<OAuth2AccessTokenResponse> tokenResponse = (this.tokenResponseConverter != null)
+                    ? response.bodyToMono(TOKEN_RESPONSE_PARAMETERS).map(this::convertTokenResponse)
+                    : response.bodyToMono(byte[].class).handle(WechatReactiveAuthorizationCodeTokenResponseClient::readTokenResponse);
+            return tokenResponse
+                    .onErrorMap(ex -> !(ex instanceof OAuth2AuthorizationException), ex -> {
+                        OAuth2Error oauth2Error = new OAuth2Error(INVALID_TOKEN_RESPONSE_ERROR_CODE,
+                                "An error occurred while attempting to retrieve the OAuth 2.0 Access Token Response: "
+                                        + ex.getMessage(), null);
+                        return new OAuth2AuthorizationException(oauth2Error, ex);
+                    });
+        });
+    }
+
+    private static void readTokenResponse(byte[] body, SynchronousSink<OAuth2AccessTokenResponse> sink) {
+        try {
+            sink.next(WechatJsonReader.readTokenResponse(body));
+        } catch (IOException ex) {
+            sink.error(ex);
+        }
+    }
+
+    private OAuth2AccessTokenResponse convertTokenResponse(Map<String, Object> tokenResponseParameters) {
+        // 和 OAuth2AccessTokenResponseHttpMessageConverter 一样先把参数值都转成字符串
+        Map<String, String> stringTokenResponseParameters = new HashMap<>(tokenResponseParameters.size() * 2);
+        tokenResponseParameters.forEach((key, value) -> stringTokenResponseParameters.put(key, String.valueOf(value)));
+        return this.tokenResponseConverter.convert(stringTokenResponseParameters);
+    }
+
+    /**
+     * Sets the {@link Converter} used for converting the grant request to a {@link RequestEntity}.
+     *
+     * @param requestEntityConverter the request entity converter
+     */
+    public void setRequestEntityConverter(Converter<OAuth2AuthorizationCodeGrantRequest, RequestEntity<?>> requestEntityConverter) {
+        Assert.notNull(requestEntityConverter, "requestEntityConverter cannot be null");
+        this.requestEntityConverter = requestEntityConverter;
+    }
+
+    /**
+     * Sets the {@link Converter} used for converting the token response parameters.
+     *
+     * @param tokenResponseConverter the token response converter
+     */
+    public void setTokenResponseConverter(Converter<Map<String, String>, OAuth2AccessTokenResponse> tokenResponseConverter) {
+        Assert.notNull(tokenResponseConverter, "tokenResponseConverter cannot be null");
+        this.tokenResponseConverter = tokenResponseConverter;
+    }
+}
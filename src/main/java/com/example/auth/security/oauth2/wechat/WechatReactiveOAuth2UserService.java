@@ -0,0 +1,73 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.ReactiveOAuth2UserService;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.util.Assert;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * 获取微信用户信息的响应式实现，和{@link WechatOAuth2UserService}逻辑一致，
+ * 区别在于调用微信接口时不占用线程。响应同样用{@link WechatJsonReader}解析，微信返回的errcode会转换成登陆失败
+ *
+ * Created by berg on 2023/4/10.
+ */
+public class WechatReactiveOAuth2UserService implements ReactiveOAuth2UserService<OAuth2UserRequest, OAuth2User> {
+
+    private final WebClient webClient;
+
+    /**
+     * Instantiates a new Wechat reactive o auth 2 user service.
+     *
+     * @param webClient 需要能把 text/plain 的响应按json解析，参考 WechatReactiveHttpConfiguration
+     */
+    public WechatReactiveOAuth2UserService(WebClient webClient) {
+        Assert.notNull(webClient, "webClient cannot be null");
+        this.webClient = webClient;
+    }
+
+    @Override
+    public Mono<OAuth2User> loadUser(OAuth2UserRequest userRequest) throws OAuth2AuthenticationException {
+        return Mono.defer(() -> {
+            Assert.notNull(userRequest, "userRequest cannot be null");
+            WechatOAuth2UserService.checkUserRequest(userRequest);
+            URI userInfoUri = WechatOAuth2UserService.buildUserInfoUri(userRequest);
+            return this.webClient.get()
+                    .uri(userInfoUri)
+                    .retrieve()
+                    .bodyToMono(byte[].class)
+                    .<OAuth2User>handle(WechatReactiveOAuth2UserService::readUser)
+                    .onErrorMap(ex -> !(ex instanceof OAuth2AuthenticationException),
+                            ex -> invalidUserInfoResponse(userRequest, ex));
+        });
+    }
+
+    private static void readUser(byte[] body, SynchronousSink<OAuth2User> sink) {
+        try {
+            sink.next(WechatJsonReader.readUser(body));
+        } catch (IOException ex) {
+            sink.error(ex);
+        }
+    }
+
+    private static OAuth2AuthenticationException invalidUserInfoResponse(OAuth2UserRequest userRequest, Throwable ex) {
+        String message = ex.getMessage();
+        if (ex instanceof WebClientResponseException) {
+            WebClientResponseException responseException = (WebClientResponseException) ex;
+            message = "Error details: [UserInfo Uri: "
+                    + userRequest.getClientRegistration().getProviderDetails().getUserInfoEndpoint().getUri()
+                    + ", Http Status: " + responseException.getRawStatusCode() + "]";
+        }
+        OAuth2Error oauth2Error = new OAuth2Error(WechatOAuth2UserService.INVALID_USER_INFO_RESPONSE_ERROR_CODE,
+                "An error occurred while attempting to retrieve the UserInfo Resource: " + message, null);
+        return new OAuth2AuthenticationException(oauth2Error, oauth2Error.toString(), ex);
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ReactiveClientRegistrationRepository;
+import org.springframework.security.oauth2.client.web.server.DefaultServerOAuth2AuthorizationRequestResolver;
+import org.springframework.security.oauth2.client.web.server.ServerOAuth2AuthorizationRequestResolver;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.util.Assert;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+/**
+ * 响应式版本的授权请求解析，效果和servlet下的{@link WechatOAuth2AuthorizationRequestResolver}一致。
+ * redirect_uri仍由默认的resolver展开，授权链接用{@link WechatProviderRegistry}里预编译的{@link WechatAuthorizationUriTemplate}生成
+ *
+ * Created by berg on 2023/4/10.
+ */
+public class WechatServerOAuth2AuthorizationRequestResolver implements ServerOAuth2AuthorizationRequestResolver {
+
+    private final ReactiveClientRegistrationRepository clientRegistrationRepository;
+    private final ServerOAuth2AuthorizationRequestResolver delegate;
+    private final WechatProviderRegistry providerRegistry;
+
+    public WechatServerOAuth2AuthorizationRequestResolver(ReactiveClientRegistrationRepository clientRegistrationRepository) {
+        this(clientRegistrationRepository, new WechatProviderRegistry());
+    }
+
+    @SuppressWarnings("unchecked")
+    public WechatServerOAuth2AuthorizationRequestResolver(ReactiveClientRegistrationRepository clientRegistrationRepository,
+                                                          WechatProviderRegistry providerRegistry) {
+        Assert.notNull(providerRegistry, "providerRegistry cannot be null");
+        this.clientRegistrationRepository = clientRegistrationRepository;
+        this.providerRegistry = providerRegistry;
+        this.delegate = new DefaultServerOAuth2AuthorizationRequestResolver(clientRegistrationRepository);
+        if (clientRegistrationRepository instanceof Iterable) {
+            providerRegistry.reload((Iterable<ClientRegistration>) clientRegistrationRepository);
+        }
+    }
+
+    @Override
+    public Mono<OAuth2AuthorizationRequest> resolve(ServerWebExchange exchange) {
+        return this.delegate.resolve(exchange).flatMap(authorizationRequest -> customize(exchange, authorizationRequest));
+    }
+
+    @Override
+    public Mono<OAuth2AuthorizationRequest> resolve(ServerWebExchange exchange, String clientRegistrationId) {
+        return this.delegate.resolve(exchange, clientRegistrationId)
+                .flatMap(authorizationRequest -> customize(exchange, authorizationRequest));
+    }
+
+    private Mono<OAuth2AuthorizationRequest> customize(ServerWebExchange exchange, OAuth2AuthorizationRequest authorizationRequest) {
+        String redirectUrl = exchange.getRequest()
+                .getQueryParams()
+                .getFirst(WechatOAuth2AuthRequestBuilderCustomizer.REDIRECT_URL_PARAMETER);
+        String registrationId = authorizationRequest.getAttribute(OAuth2ParameterNames.REGISTRATION_ID);
+        return this.clientRegistrationRepository.findByRegistrationId(registrationId)
+                .flatMap(clientRegistration -> Mono.justOrEmpty(this.providerRegistry.get(clientRegistration)))
+                .map(provider -> {
+                    WechatAuthorizationUriTemplate template = provider.getAuthorizationUriTemplate();
+                    return OAuth2AuthorizationRequest.from(authorizationRequest)
+                            .state(redirectUrl)
+                            .authorizationRequestUri(template.authorizationRequestUri(authorizationRequest.getRedirectUri(), redirectUrl))
+                            .build();
+                })
+                .switchIfEmpty(Mono.fromSupplier(() -> {
+                    OAuth2AuthorizationRequest.Builder builder = OAuth2AuthorizationRequest.from(authorizationRequest);
+                    WechatOAuth2AuthRequestBuilderCustomizer.customize(builder, redirectUrl);
+                    return builder.build();
+                }));
+    }
+}
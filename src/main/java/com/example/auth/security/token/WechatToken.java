@@ -0,0 +1,54 @@
+package com.example.auth.security.token;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import lombok.Getter;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+
+import java.util.Collection;
+
+/**
+ * 解析并校验过签名的登陆令牌
+ *
+ * Created by berg on 2023/4/15.
+ */
+@Getter
+public class WechatToken {
+
+    /**
+     * 令牌id，注销时按它吊销
+     */
+    private final String tokenId;
+    private final String keyId;
+    /**
+     * 签发时间，epoch秒
+     */
+    private final long issuedAt;
+    /**
+     * 过期时间，epoch秒
+     */
+    private final long expiresAt;
+    private final String registrationId;
+    private final Collection<? extends GrantedAuthority> authorities;
+    private final WechatOAuth2User user;
+
+    WechatToken(String tokenId, String keyId, long issuedAt, long expiresAt, String registrationId,
+                Collection<? extends GrantedAuthority> authorities, WechatOAuth2User user) {
+        this.tokenId = tokenId;
+        this.keyId = keyId;
+        this.issuedAt = issuedAt;
+        this.expiresAt = expiresAt;
+        this.registrationId = registrationId;
+        this.authorities = authorities;
+        this.user = user;
+    }
+
+    /**
+     * 和登陆时放进会话的认证信息一致，{@code @AuthenticationPrincipal WechatOAuth2User} 照常可用
+     *
+     * @return the authentication
+     */
+    public OAuth2AuthenticationToken toAuthentication() {
+        return new OAuth2AuthenticationToken(this.user, this.authorities, this.registrationId);
+    }
+}
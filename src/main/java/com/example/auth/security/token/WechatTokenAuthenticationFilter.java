@@ -0,0 +1,62 @@
+package com.example.auth.security.token;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.security.authentication.CredentialsExpiredException;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 校验请求中的登陆令牌，通过后把认证信息放进当前请求的{@link SecurityContext}，不读也不创建会话。
+ * 令牌无效时按未登陆处理，由后面的 entry point 返回401。
+ * <p>
+ * 校验结果计入 {@code wechat.token.authentication{result}}
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatTokenAuthenticationFilter extends OncePerRequestFilter {
+
+    static final String METRIC = "wechat.token.authentication";
+
+    private final WechatTokenService tokenService;
+    private final Counter success;
+    private final Counter invalid;
+    private final Counter expired;
+
+    public WechatTokenAuthenticationFilter(WechatTokenService tokenService, MeterRegistry meterRegistry) {
+        this.tokenService = tokenService;
+        this.success = meterRegistry.counter(METRIC, "result", "success");
+        this.invalid = meterRegistry.counter(METRIC, "result", "invalid");
+        this.expired = meterRegistry.counter(METRIC, "result", "expired");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String token = this.tokenService.resolveToken(request);
+        if (token != null && SecurityContextHolder.getContext().getAuthentication() == null) {
+            try {
+                WechatToken wechatToken = this.tokenService.authenticate(token);
+                SecurityContext context = SecurityContextHolder.createEmptyContext();
+                context.setAuthentication(wechatToken.toAuthentication());
+                SecurityContextHolder.setContext(context);
+                this.success.increment();
+            } catch (AuthenticationException ex) {
+                (ex instanceof CredentialsExpiredException ? this.expired : this.invalid).increment();
+                this.tokenService.clearCookie(request, response);
+                if (this.logger.isDebugEnabled()) {
+                    this.logger.debug("Rejected wechat token: " + ex.getMessage());
+                }
+            }
+        }
+        filterChain.doFilter(request, response);
+    }
+}
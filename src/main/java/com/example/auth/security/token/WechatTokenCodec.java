@@ -0,0 +1,256 @@
+package com.example.auth.security.token;
+
+import com.example.auth.redis.WechatOAuth2UserRedisSerializer;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.CredentialsExpiredException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 登陆令牌的编解码，格式为 {@code base64url(body).base64url(HMAC-SHA256(body))}，body 是紧凑的二进制：
+ * <pre>
+ * version(1) flags(1) kid(utf) iat(8) exp(8) tokenId(12) content
+ * </pre>
+ * content 是 registrationId、authorities 和 {@link WechatOAuth2UserRedisSerializer} 写出的用户信息；
+ * 开启加密时 content 换成 {@code iv(12) + AES-GCM(content)}，前面的头部作为附加数据一起认证。
+ * <p>
+ * 签名和加密密钥都由配置的 secret 用 HMAC 派生，新令牌用 active key 签发，列表里的密钥都能校验，密钥轮换期间新旧令牌同时有效
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatTokenCodec {
+
+    private static final byte VERSION = 1;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int TOKEN_ID_LENGTH = 12;
+    private static final int IV_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final int MIN_SECRET_LENGTH = 32;
+    private static final String PLACEHOLDER_SECRET_PREFIX = "change-me";
+    private static final String HMAC = "HmacSHA256";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final Map<String, TokenKey> keys = new HashMap<>();
+    private final TokenKey activeKey;
+    private final boolean encrypt;
+    private final Duration ttl;
+    private final Clock clock;
+    private final SecureRandom random = new SecureRandom();
+
+    public WechatTokenCodec(List<WechatTokenProperties.Key> keys, String activeKeyId, boolean encrypt, Duration ttl) {
+        this(keys, activeKeyId, encrypt, ttl, Clock.systemUTC());
+    }
+
+    WechatTokenCodec(List<WechatTokenProperties.Key> keys, String activeKeyId, boolean encrypt, Duration ttl, Clock clock) {
+        Assert.notEmpty(keys, "wechat.token.keys must not be empty");
+        for (WechatTokenProperties.Key key : keys) {
+            Assert.hasText(key.getId(), "wechat.token.keys[].id must not be empty");
+            Assert.isTrue(key.getSecret() != null && key.getSecret().length() >= MIN_SECRET_LENGTH,
+                    () -> "wechat.token.keys[" + key.getId() + "].secret must be at least " + MIN_SECRET_LENGTH + " characters");
+            Assert.isTrue(!key.getSecret().startsWith(PLACEHOLDER_SECRET_PREFIX),
+                    () -> "wechat.token.keys[" + key.getId() + "].secret is a placeholder, set a random secret");
+            this.keys.put(key.getId(), new TokenKey(key.getId(), key.getSecret()));
+        }
+        String active = StringUtils.hasText(activeKeyId) ? activeKeyId : keys.get(0).getId();
+        this.activeKey = this.keys.get(active);
+        Assert.notNull(this.activeKey, () -> "wechat.token.active-key-id " + active + " not found in wechat.token.keys");
+        this.encrypt = encrypt;
+        this.ttl = ttl;
+        this.clock = clock;
+    }
+
+    /**
+     * 签发令牌
+     *
+     * @param authentication 登陆成功后的认证信息，principal 需要是 {@link WechatOAuth2User}
+     * @return the token
+     */
+    public String encode(OAuth2AuthenticationToken authentication) {
+        WechatOAuth2User user = (WechatOAuth2User) authentication.getPrincipal();
+        long issuedAt = this.clock.instant().getEpochSecond();
+        byte[] tokenId = new byte[TOKEN_ID_LENGTH];
+        this.random.nextBytes(tokenId);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeByte(this.encrypt ? FLAG_ENCRYPTED : 0);
+            out.writeUTF(this.activeKey.id);
+            out.writeLong(issuedAt);
+            out.writeLong(issuedAt + this.ttl.getSeconds());
+            out.write(tokenId);
+            int headerLength = bytes.size();
+
+            ByteArrayOutputStream contentBytes = this.encrypt ? new ByteArrayOutputStream(256) : bytes;
+            DataOutputStream content = this.encrypt ? new DataOutputStream(contentBytes) : out;
+            content.writeUTF(authentication.getAuthorizedClientRegistrationId());
+            Collection<GrantedAuthority> authorities = authentication.getAuthorities();
+            content.writeShort(authorities.size());
+            for (GrantedAuthority authority : authorities) {
+                content.writeUTF(authority.getAuthority());
+            }
+            WechatOAuth2UserRedisSerializer.write(user, content);
+
+            if (this.encrypt) {
+                byte[] iv = new byte[IV_LENGTH];
+                this.random.nextBytes(iv);
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, this.activeKey.encryptionKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+                cipher.updateAAD(bytes.toByteArray(), 0, headerLength);
+                out.write(iv);
+                out.write(cipher.doFinal(contentBytes.toByteArray()));
+            }
+            byte[] body = bytes.toByteArray();
+            return ENCODER.encodeToString(body) + '.' + ENCODER.encodeToString(this.activeKey.sign(body));
+        } catch (IOException | GeneralSecurityException ex) {
+            throw new IllegalStateException("Failed to issue wechat token", ex);
+        }
+    }
+
+    /**
+     * 校验签名和有效期并解析令牌
+     *
+     * @param token the token
+     * @return the wechat token
+     * @throws BadCredentialsException     令牌格式错误、签名不对或密钥已删除
+     * @throws CredentialsExpiredException 令牌已过期
+     */
+    public WechatToken decode(String token) {
+        int dot = token.indexOf('.');
+        if (dot <= 0 || dot == token.length() - 1) {
+            throw new BadCredentialsException("Malformed wechat token");
+        }
+        byte[] body;
+        byte[] signature;
+        try {
+            body = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException ex) {
+            throw new BadCredentialsException("Malformed wechat token", ex);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new BadCredentialsException("Unsupported wechat token version " + version);
+            }
+            int flags = in.readUnsignedByte();
+            String keyId = in.readUTF();
+            TokenKey key = this.keys.get(keyId);
+            if (key == null) {
+                throw new BadCredentialsException("Unknown wechat token key " + keyId);
+            }
+            // 先验签，签名不对的令牌不再往下解析
+            if (!MessageDigest.isEqual(key.sign(body), signature)) {
+                throw new BadCredentialsException("Invalid wechat token signature");
+            }
+            long issuedAt = in.readLong();
+            long expiresAt = in.readLong();
+            if (this.clock.instant().getEpochSecond() >= expiresAt) {
+                throw new CredentialsExpiredException("Wechat token expired");
+            }
+            byte[] tokenId = new byte[TOKEN_ID_LENGTH];
+            in.readFully(tokenId);
+
+            DataInputStream content = in;
+            if ((flags & FLAG_ENCRYPTED) != 0) {
+                int headerLength = body.length - in.available();
+                byte[] iv = new byte[IV_LENGTH];
+                in.readFully(iv);
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, key.encryptionKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+                cipher.updateAAD(body, 0, headerLength);
+                int offset = headerLength + IV_LENGTH;
+                content = new DataInputStream(new ByteArrayInputStream(cipher.doFinal(body, offset, body.length - offset)));
+            }
+            String registrationId = content.readUTF();
+            int size = content.readUnsignedShort();
+            List<GrantedAuthority> authorities = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                authorities.add(new SimpleGrantedAuthority(content.readUTF()));
+            }
+            WechatOAuth2User user = WechatOAuth2UserRedisSerializer.read(content);
+            return new WechatToken(ENCODER.encodeToString(tokenId), keyId, issuedAt, expiresAt, registrationId,
+                    authorities, user);
+        } catch (IOException | GeneralSecurityException ex) {
+            throw new BadCredentialsException("Malformed wechat token", ex);
+        }
+    }
+
+    public Duration getTtl() {
+        return this.ttl;
+    }
+
+    public Clock getClock() {
+        return this.clock;
+    }
+
+    private static final class TokenKey {
+
+        private final String id;
+        private final Mac prototype;
+        private final SecretKeySpec encryptionKey;
+
+        TokenKey(String id, String secret) {
+            this.id = id;
+            try {
+                SecretKeySpec master = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC);
+                this.prototype = Mac.getInstance(HMAC);
+                this.prototype.init(new SecretKeySpec(derive(master, "wechat-token-sign"), HMAC));
+                this.encryptionKey = new SecretKeySpec(Arrays.copyOf(derive(master, "wechat-token-enc"), 16), "AES");
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException("Failed to init wechat token key " + id, ex);
+            }
+        }
+
+        /**
+         * 每次签名复制一份初始化好的Mac，省去 getInstance 查找provider和init
+         */
+        byte[] sign(byte[] body) throws GeneralSecurityException {
+            Mac mac;
+            try {
+                mac = (Mac) this.prototype.clone();
+            } catch (CloneNotSupportedException ex) {
+                synchronized (this.prototype) {
+                    return this.prototype.doFinal(body);
+                }
+            }
+            return mac.doFinal(body);
+        }
+
+        private static byte[] derive(SecretKeySpec master, String label) throws GeneralSecurityException {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(master);
+            return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
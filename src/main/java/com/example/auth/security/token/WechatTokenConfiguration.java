@@ -0,0 +1,25 @@
+package com.example.auth.security.token;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 无状态登陆令牌，{@code wechat.token.enabled=true} 时生效，
+ * SecurityConfiguration 检测到{@link WechatTokenService}后改为不创建会话
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatTokenProperties.class)
+@ConditionalOnProperty(prefix = "wechat.token", name = "enabled", havingValue = "true")
+public class WechatTokenConfiguration {
+
+    @Bean
+    public WechatTokenService wechatTokenService(WechatTokenProperties properties) {
+        WechatTokenCodec codec = new WechatTokenCodec(properties.getKeys(), properties.getActiveKeyId(),
+                properties.isEncrypt(), properties.getTtl());
+        return new WechatTokenService(codec, properties.getCookieName(), properties.getRevocationMaximumSize());
+    }
+}
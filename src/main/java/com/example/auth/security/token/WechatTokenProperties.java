@@ -0,0 +1,68 @@
+package com.example.auth.security.token;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 无状态登陆令牌配置：登陆成功后签发带用户信息的令牌，之后的请求只校验令牌，不再读redis中的会话
+ *
+ * Created by berg on 2023/4/15.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.token")
+public class WechatTokenProperties {
+
+    /**
+     * 是否开启，默认关闭，使用redis会话
+     */
+    private boolean enabled = false;
+
+    /**
+     * 令牌有效期，过期后需要重新登陆
+     */
+    private Duration ttl = Duration.ofHours(2);
+
+    /**
+     * 放令牌的cookie，也可以用 Authorization: Bearer 请求头传递
+     */
+    private String cookieName = "WECHAT_TOKEN";
+
+    /**
+     * 是否加密用户信息(AES-GCM)，不加密时只签名，用户信息base64后可以直接看到
+     */
+    private boolean encrypt = false;
+
+    /**
+     * 签名/加密用的密钥，轮换时先把新密钥加到列表里，所有节点生效后再切换 active-key-id，
+     * 旧密钥在 ttl 之后删除
+     */
+    private List<Key> keys = new ArrayList<>();
+
+    /**
+     * 签发新令牌使用的密钥id，为空时用第一个
+     */
+    private String activeKeyId;
+
+    /**
+     * 本地吊销列表最多保存的条目数，注销的令牌保存到其过期为止
+     */
+    private long revocationMaximumSize = 100000;
+
+    @Data
+    public static class Key {
+
+        /**
+         * 密钥id，写在令牌里，校验时按id找密钥
+         */
+        private String id;
+
+        /**
+         * 密钥，至少32个字符，签名和加密的密钥都由它派生
+         */
+        private String secret;
+    }
+}
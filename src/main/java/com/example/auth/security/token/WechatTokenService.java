@@ -0,0 +1,203 @@
+package com.example.auth.security.token;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
+import org.springframework.security.web.authentication.logout.LogoutHandler;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+import org.springframework.util.StringUtils;
+import org.springframework.web.util.WebUtils;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.time.Clock;
+import java.time.Duration;
+
+/**
+ * 无状态登陆令牌：登陆成功时签发并写入cookie，之后的请求由{@link WechatTokenAuthenticationFilter}校验。
+ * <p>
+ * 注销的令牌记在本地的吊销列表里直到过期，多节点部署时其它节点仍会接受该令牌直到过期，
+ * 需要立即失效的场景把 ttl 调短
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatTokenService {
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    /**
+     * 用 Authorization: Bearer 请求头传令牌的请求，浏览器跨站带不上这个请求头，不需要csrf校验
+     */
+    public static final RequestMatcher BEARER_REQUEST_MATCHER = request -> isBearer(request.getHeader(HttpHeaders.AUTHORIZATION));
+
+    private final WechatTokenCodec codec;
+    private final String cookieName;
+    private final Duration ttl;
+    private final Clock clock;
+    /**
+     * tokenId -> 过期时间
+     */
+    private final Cache<String, Long> revokedTokens;
+    /**
+     * openid -> 吊销时间，这之前签发的令牌都失效
+     */
+    private final Cache<String, Long> revokedUsers;
+
+    public WechatTokenService(WechatTokenCodec codec, String cookieName, long revocationMaximumSize) {
+        this.codec = codec;
+        this.cookieName = cookieName;
+        this.ttl = codec.getTtl();
+        this.clock = codec.getClock();
+        // 令牌最多存活ttl，吊销记录保存ttl之后就没有意义了
+        this.revokedTokens = Caffeine.newBuilder()
+                .maximumSize(revocationMaximumSize)
+                .expireAfterWrite(this.ttl)
+                .build();
+        this.revokedUsers = Caffeine.newBuilder()
+                .maximumSize(revocationMaximumSize)
+                .expireAfterWrite(this.ttl)
+                .build();
+    }
+
+    /**
+     * 签发令牌
+     *
+     * @param authentication the authentication
+     * @return the token
+     */
+    public String issue(OAuth2AuthenticationToken authentication) {
+        return this.codec.encode(authentication);
+    }
+
+    /**
+     * 令牌有效期
+     *
+     * @return the ttl
+     */
+    public Duration getTtl() {
+        return this.ttl;
+    }
+
+    /**
+     * 校验令牌
+     *
+     * @param token the token
+     * @return the wechat token
+     * @throws AuthenticationException 令牌无效、过期或已吊销
+     */
+    public WechatToken authenticate(String token) {
+        WechatToken wechatToken = this.codec.decode(token);
+        if (this.revokedTokens.getIfPresent(wechatToken.getTokenId()) != null) {
+            throw new BadCredentialsException("Wechat token revoked");
+        }
+        Long revokedBefore = this.revokedUsers.getIfPresent(wechatToken.getUser().getOpenid());
+        if (revokedBefore != null && wechatToken.getIssuedAt() <= revokedBefore) {
+            throw new BadCredentialsException("Wechat token revoked");
+        }
+        return wechatToken;
+    }
+
+    /**
+     * 吊销单个令牌
+     *
+     * @param wechatToken the wechat token
+     */
+    public void revoke(WechatToken wechatToken) {
+        this.revokedTokens.put(wechatToken.getTokenId(), wechatToken.getExpiresAt());
+    }
+
+    /**
+     * 吊销某个用户当前所有的令牌，比如用户取消授权时
+     *
+     * @param openid the openid
+     */
+    public void revokeUser(String openid) {
+        this.revokedUsers.put(openid, this.clock.instant().getEpochSecond());
+    }
+
+    /**
+     * 从cookie或者 Authorization: Bearer 请求头中取令牌
+     *
+     * @param request the request
+     * @return the token, or null
+     */
+    public String resolveToken(HttpServletRequest request) {
+        String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (isBearer(authorization)) {
+            return authorization.substring(BEARER_PREFIX.length()).trim();
+        }
+        Cookie cookie = WebUtils.getCookie(request, this.cookieName);
+        return cookie != null && StringUtils.hasText(cookie.getValue()) ? cookie.getValue() : null;
+    }
+
+    private static boolean isBearer(String authorization) {
+        return authorization != null && authorization.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length());
+    }
+
+    /**
+     * 登陆成功后签发令牌写入cookie，并销毁授权过程中用到的会话，再交给原来的handler重定向
+     *
+     * @param delegate the delegate
+     * @return the authentication success handler
+     */
+    public AuthenticationSuccessHandler successHandler(AuthenticationSuccessHandler delegate) {
+        return (request, response, authentication) -> {
+            String token = issue((OAuth2AuthenticationToken) authentication);
+            response.addHeader(HttpHeaders.SET_COOKIE, cookie(request, token, this.ttl).toString());
+            // 授权请求(state、redirect_uri)保存在会话里，登陆完成后就不需要了
+            HttpSession session = request.getSession(false);
+            if (session != null) {
+                session.invalidate();
+            }
+            delegate.onAuthenticationSuccess(request, response, authentication);
+        };
+    }
+
+    /**
+     * 注销时吊销令牌并清掉cookie
+     *
+     * @return the logout handler
+     */
+    public LogoutHandler logoutHandler() {
+        return (request, response, authentication) -> {
+            String token = resolveToken(request);
+            if (token != null) {
+                try {
+                    revoke(this.codec.decode(token));
+                } catch (AuthenticationException ex) {
+                    // 无效或过期的令牌不需要吊销
+                }
+            }
+            clearCookie(request, response);
+        };
+    }
+
+    private ResponseCookie cookie(HttpServletRequest request, String value, Duration maxAge) {
+        String contextPath = request.getContextPath();
+        return ResponseCookie.from(this.cookieName, value)
+                .path(StringUtils.hasLength(contextPath) ? contextPath : "/")
+                .maxAge(maxAge)
+                .httpOnly(true)
+                .secure(request.isSecure())
+                // 微信授权回调是顶级导航，Lax 下回调后的重定向能带上cookie
+                .sameSite("Lax")
+                .build();
+    }
+
+    /**
+     * 清掉cookie，注销或者cookie中的令牌已失效时使用
+     *
+     * @param request  the request
+     * @param response the response
+     */
+    public void clearCookie(HttpServletRequest request, HttpServletResponse response) {
+        response.addHeader(HttpHeaders.SET_COOKIE, cookie(request, "", Duration.ZERO).toString());
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.auth.thread;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 合并同一个key上同时进行的调用：第一个调用方在自己的线程里执行，调用期间同key的其它调用方等待并拿到同一个结果或异常。
+ * 调用结束即移除，不缓存结果
+ * <p>
+ * Created by berg on 2023/4/15.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+    private final LongAdder shared = new LongAdder();
+
+    /**
+     * 执行或者加入同key上正在进行的调用
+     *
+     * @param key  the key
+     * @param call 只有第一个调用方会执行
+     * @return the value
+     */
+    public V execute(K key, Supplier<V> call) {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = this.calls.putIfAbsent(key, own);
+        if (inFlight != null) {
+            this.shared.increment();
+            return join(inFlight);
+        }
+        try {
+            V value = call.get();
+            own.complete(value);
+            return value;
+        } catch (RuntimeException | Error ex) {
+            own.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            this.calls.remove(key, own);
+        }
+    }
+
+    /**
+     * 正在进行的调用数
+     *
+     * @return the int
+     */
+    public int inFlight() {
+        return this.calls.size();
+    }
+
+    /**
+     * 累计加入别人的调用、没有自己执行的次数
+     *
+     * @return the long
+     */
+    public long sharedCount() {
+        return this.shared.sum();
+    }
+
+    private static <V> V join(CompletableFuture<V> inFlight) {
+        try {
+            return inFlight.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        }
+    }
+}
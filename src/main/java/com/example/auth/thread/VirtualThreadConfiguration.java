@@ -0,0 +1,43 @@
+package com.example.auth.thread;
+
+import com.example.auth.http.WechatHttpClientProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 虚拟线程模式：tomcat的请求处理跑在虚拟线程上，登陆过程中阻塞的微信接口调用(获取token、获取用户信息)
+ * 都在请求线程里执行，阻塞时只挂起虚拟线程而不占用平台线程。{@code SecurityConfiguration}不需要任何改动。
+ * <p>
+ * 使用 {@code --spring.profiles.active=virtual-threads} 启动，需要jdk 21+，构建时加 {@code -PvirtualThreads}
+ * <p>
+ * Created by berg on 2023/4/11.
+ */
+@Slf4j
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(prefix = "wechat.virtual-threads", name = "enabled", havingValue = "true")
+public class VirtualThreadConfiguration {
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService virtualThreadRequestExecutor(WechatHttpClientProperties httpClientProperties) {
+        int maxConcurrentRequests = httpClientProperties.getMaxConcurrentRequests();
+        if (maxConcurrentRequests <= 0 || maxConcurrentRequests > httpClientProperties.getMaxTotal()) {
+            // HttpClient 4的连接池在synchronized里等待连接，虚拟线程会钉住载体线程
+            log.warn("wechat.http-client.max-concurrent-requests should be set to at most the pool size ({}) "
+                    + "when running on virtual threads", httpClientProperties.getMaxTotal());
+        }
+        return VirtualThreads.newVirtualThreadPerTaskExecutor();
+    }
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer(ExecutorService virtualThreadRequestExecutor) {
+        log.info("Tomcat request handling runs on virtual threads");
+        return protocolHandler -> protocolHandler.setExecutor(virtualThreadRequestExecutor);
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.auth.thread;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 虚拟线程工具，项目按java 11编译，所以通过反射调用 {@code Executors.newVirtualThreadPerTaskExecutor()}，
+ * 运行在支持虚拟线程的jdk(21+)上才可用
+ * <p>
+ * Created by berg on 2023/4/11.
+ */
+public final class VirtualThreads {
+
+    private static final MethodHandle NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findFactory();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * 当前jdk是否支持虚拟线程
+     *
+     * @return the boolean
+     */
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * 每个任务一个虚拟线程的{@link ExecutorService}
+     *
+     * @return the executor service
+     * @throws IllegalStateException 当前jdk不支持虚拟线程
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR == null) {
+            throw new IllegalStateException("Virtual threads require JDK 21+, current runtime is "
+                    + System.getProperty("java.version"));
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke();
+        } catch (Throwable ex) {
+            throw new IllegalStateException("Failed to create virtual thread executor", ex);
+        }
+    }
+
+    private static MethodHandle findFactory() {
+        try {
+            return MethodHandles.publicLookup().findStatic(java.util.concurrent.Executors.class,
+                    "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.auth.trace;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 一次登陆回调请求的追踪记录，只记录耗时、结果和错误码，不记录code和token
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Getter
+public class WechatLoginTrace {
+
+    private final long id;
+    /**
+     * 开始时间，epoch毫秒
+     */
+    private final long startedAt;
+    private final String path;
+    private final String registrationId;
+    private final String openid;
+    /**
+     * success|error，没有经过登陆阶段(比如state校验失败)时为none
+     */
+    private final String outcome;
+    private final int status;
+    private final long durationMicros;
+    private final List<Event> events;
+
+    WechatLoginTrace(long id, long startedAt, String path, String registrationId, String openid, String outcome,
+                     int status, long durationMicros, List<Event> events) {
+        this.id = id;
+        this.startedAt = startedAt;
+        this.path = path;
+        this.registrationId = registrationId;
+        this.openid = openid;
+        this.outcome = outcome;
+        this.status = status;
+        this.durationMicros = durationMicros;
+        this.events = events;
+    }
+
+    /**
+     * 登陆的一个阶段：token、session(小程序)、userinfo、success
+     */
+    @Getter
+    public static class Event {
+
+        private final String stage;
+        /**
+         * 相对请求开始的时间
+         */
+        private final long offsetMicros;
+        private final long durationMicros;
+        private final String outcome;
+        /**
+         * 微信错误码，成功为0，超时等非微信错误为null
+         */
+        private final String errcode;
+        private final String exception;
+
+        Event(String stage, long offsetMicros, long durationMicros, String outcome, String errcode, String exception) {
+            this.stage = stage;
+            this.offsetMicros = offsetMicros;
+            this.durationMicros = durationMicros;
+            this.outcome = outcome;
+            this.errcode = errcode;
+            this.exception = exception;
+        }
+    }
+}
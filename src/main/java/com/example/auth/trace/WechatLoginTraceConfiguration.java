@@ -0,0 +1,31 @@
+package com.example.auth.trace;
+
+import org.springframework.boot.actuate.autoconfigure.endpoint.condition.ConditionalOnAvailableEndpoint;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 登陆追踪，{@code wechat.login-trace.enabled=true} 时开启，由 SecurityConfiguration 包装登陆组件，仅servlet模式支持
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Configuration
+@EnableConfigurationProperties(WechatLoginTraceProperties.class)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(prefix = "wechat.login-trace", name = "enabled", havingValue = "true")
+public class WechatLoginTraceConfiguration {
+
+    @Bean
+    public WechatLoginTracer wechatLoginTracer(WechatLoginTraceProperties properties) {
+        return new WechatLoginTracer(properties);
+    }
+
+    @Bean
+    @ConditionalOnAvailableEndpoint
+    public WechatLoginTraceEndpoint wechatLoginTraceEndpoint(WechatLoginTracer wechatLoginTracer) {
+        return new WechatLoginTraceEndpoint(wechatLoginTracer);
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.auth.trace;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 登陆追踪记录：/actuator/wechatlogintrace
+ * <ul>
+ *     <li>GET 最近的记录，{@code ?openid=} 只看某个用户</li>
+ *     <li>POST {@code {"openid":"...","watched":true}} 增删一定记录的openid</li>
+ *     <li>DELETE 清空记录</li>
+ * </ul>
+ * 记录里有openid，只在actuator的内网端口(management.server.port)上开放，应用端口上拒绝访问，见 SecurityConfiguration
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Endpoint(id = "wechatlogintrace")
+public class WechatLoginTraceEndpoint {
+
+    private final WechatLoginTracer tracer;
+
+    public WechatLoginTraceEndpoint(WechatLoginTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @ReadOperation
+    public Map<String, Object> traces(@Nullable String openid) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("sampleRate", this.tracer.getSampleRate());
+        result.put("capacity", this.tracer.getCapacity());
+        result.put("openids", this.tracer.getOpenids());
+        result.put("traces", this.tracer.recent(openid));
+        return result;
+    }
+
+    @WriteOperation
+    public void watch(String openid, @Nullable Boolean watched) {
+        this.tracer.watch(openid, watched == null || watched);
+    }
+
+    @DeleteOperation
+    public void clear() {
+        this.tracer.clear();
+    }
+}
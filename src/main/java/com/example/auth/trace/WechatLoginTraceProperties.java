@@ -0,0 +1,38 @@
+package com.example.auth.trace;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 登陆追踪配置。按比例抽样或者按openid记录登陆回调请求各阶段的耗时和错误码，
+ * 保存在内存里固定大小的环形缓冲区，通过 /actuator/wechatlogintrace 查看
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@Data
+@ConfigurationProperties(prefix = "wechat.login-trace")
+public class WechatLoginTraceProperties {
+
+    /**
+     * 是否开启，默认关闭，记录里有openid，排查问题时再打开
+     */
+    private boolean enabled = false;
+
+    /**
+     * 抽样比例 0~1，0 时只记录下面指定的openid
+     */
+    private double sampleRate = 0.01;
+
+    /**
+     * 一定记录的openid，排查某个用户登陆失败时使用，运行时也可以通过端点增删
+     */
+    private Set<String> openids = new LinkedHashSet<>();
+
+    /**
+     * 环形缓冲区大小，只保留最近的这么多次登陆
+     */
+    private int capacity = 256;
+}
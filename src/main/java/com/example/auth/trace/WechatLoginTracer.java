@@ -0,0 +1,260 @@
+package com.example.auth.trace;
+
+import com.example.auth.security.miniprogram.WechatMiniProgramSession;
+import com.example.auth.security.miniprogram.WechatMiniProgramSessionClient;
+import com.example.auth.security.oauth2.wechat.WechatErrorCodes;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+import org.springframework.util.Assert;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * 抽样记录登陆回调请求的各个阶段，替代逐请求打印的 DebugFilter。
+ * <p>
+ * {@link #filter(RequestMatcher)} 在登陆回调请求开始时决定是否追踪：按比例抽中的一定记录；没抽中但配置了openid时先暂存，
+ * 换token拿到openid后匹配上才记录。两者都不满足时不创建任何对象，其余请求只多一次路径匹配。
+ * 各阶段的包装和 WechatLoginMetrics 一样套在登陆组件的最外层，和过滤器在同一个线程里，通过ThreadLocal拿到当前的追踪。
+ * <p>
+ * 记录保存在固定大小的环形缓冲区，写入只有一次自增和一次数组写，新的覆盖最旧的
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+public class WechatLoginTracer {
+
+    public static final String TOKEN = "token";
+    public static final String SESSION = "session";
+    public static final String USERINFO = "userinfo";
+    public static final String SUCCESS = "success";
+
+    private static final String OPENID = "openid";
+
+    private final ThreadLocal<ActiveTrace> current = new ThreadLocal<>();
+    private final AtomicReferenceArray<WechatLoginTrace> traces;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Set<String> openids = ConcurrentHashMap.newKeySet();
+    private final double sampleRate;
+
+    public WechatLoginTracer(WechatLoginTraceProperties properties) {
+        Assert.isTrue(properties.getCapacity() > 0, "capacity must be greater than 0");
+        Assert.isTrue(properties.getSampleRate() >= 0 && properties.getSampleRate() <= 1, "sampleRate must be between 0 and 1");
+        this.traces = new AtomicReferenceArray<>(properties.getCapacity());
+        this.sampleRate = properties.getSampleRate();
+        this.openids.addAll(properties.getOpenids());
+    }
+
+    /**
+     * 追踪登陆回调请求的过滤器
+     *
+     * @param loginRequestMatcher 网页登陆回调和小程序登陆地址
+     * @return the filter
+     */
+    public OncePerRequestFilter filter(RequestMatcher loginRequestMatcher) {
+        return new OncePerRequestFilter() {
+            @Override
+            protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+                    throws ServletException, IOException {
+                ActiveTrace trace = loginRequestMatcher.matches(request) ? begin(request) : null;
+                if (trace == null) {
+                    filterChain.doFilter(request, response);
+                    return;
+                }
+                WechatLoginTracer.this.current.set(trace);
+                try {
+                    filterChain.doFilter(request, response);
+                } finally {
+                    WechatLoginTracer.this.current.remove();
+                    end(trace, response.getStatus());
+                }
+            }
+        };
+    }
+
+    public OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> decorateTokenClient(
+            OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> client) {
+        return grantRequest -> {
+            ActiveTrace trace = this.current.get();
+            if (trace == null) {
+                return client.getTokenResponse(grantRequest);
+            }
+            trace.registrationId = grantRequest.getClientRegistration().getRegistrationId();
+            OAuth2AccessTokenResponse tokenResponse = trace.record(TOKEN, () -> client.getTokenResponse(grantRequest));
+            Object openid = tokenResponse.getAdditionalParameters().get(OPENID);
+            trace.openid = openid != null ? openid.toString() : null;
+            return tokenResponse;
+        };
+    }
+
+    public WechatMiniProgramSessionClient decorateSessionClient(WechatMiniProgramSessionClient client) {
+        return (registrationId, code) -> {
+            ActiveTrace trace = this.current.get();
+            if (trace == null) {
+                return client.getSession(registrationId, code);
+            }
+            trace.registrationId = registrationId;
+            WechatMiniProgramSession session = trace.record(SESSION, () -> client.getSession(registrationId, code));
+            trace.openid = session.getOpenid();
+            return session;
+        };
+    }
+
+    public OAuth2UserService<OAuth2UserRequest, OAuth2User> decorateUserService(OAuth2UserService<OAuth2UserRequest, OAuth2User> userService) {
+        return userRequest -> {
+            ActiveTrace trace = this.current.get();
+            if (trace == null) {
+                return userService.loadUser(userRequest);
+            }
+            return trace.record(USERINFO, () -> userService.loadUser(userRequest));
+        };
+    }
+
+    public AuthenticationSuccessHandler decorateSuccessHandler(AuthenticationSuccessHandler successHandler) {
+        return (request, response, authentication) -> {
+            ActiveTrace trace = this.current.get();
+            if (trace == null) {
+                successHandler.onAuthenticationSuccess(request, response, authentication);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                successHandler.onAuthenticationSuccess(request, response, authentication);
+                trace.add(SUCCESS, start, null);
+            } catch (IOException | ServletException | RuntimeException ex) {
+                trace.add(SUCCESS, start, ex);
+                throw ex;
+            }
+        };
+    }
+
+    /**
+     * 最近的追踪记录，新的在前
+     *
+     * @param openid 不为空时只返回这个openid的
+     * @return the list
+     */
+    public List<WechatLoginTrace> recent(String openid) {
+        List<WechatLoginTrace> recent = new ArrayList<>();
+        for (int i = 0; i < this.traces.length(); i++) {
+            WechatLoginTrace trace = this.traces.get(i);
+            if (trace != null && (openid == null || openid.equals(trace.getOpenid()))) {
+                recent.add(trace);
+            }
+        }
+        recent.sort((a, b) -> Long.compare(b.getId(), a.getId()));
+        return recent;
+    }
+
+    public void clear() {
+        for (int i = 0; i < this.traces.length(); i++) {
+            this.traces.set(i, null);
+        }
+    }
+
+    /**
+     * 运行时增删一定记录的openid
+     *
+     * @param openid  the openid
+     * @param watched 是否记录
+     */
+    public void watch(String openid, boolean watched) {
+        if (watched) {
+            this.openids.add(openid);
+        } else {
+            this.openids.remove(openid);
+        }
+    }
+
+    public Set<String> getOpenids() {
+        return Collections.unmodifiableSet(this.openids);
+    }
+
+    public double getSampleRate() {
+        return this.sampleRate;
+    }
+
+    public int getCapacity() {
+        return this.traces.length();
+    }
+
+    private ActiveTrace begin(HttpServletRequest request) {
+        boolean sampled = this.sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < this.sampleRate;
+        if (!sampled && this.openids.isEmpty()) {
+            return null;
+        }
+        return new ActiveTrace(sampled, request.getRequestURI());
+    }
+
+    private void end(ActiveTrace trace, int status) {
+        if (!trace.sampled && (trace.openid == null || !this.openids.contains(trace.openid))) {
+            return;
+        }
+        long id = this.sequence.getAndIncrement();
+        String outcome = trace.events.isEmpty() ? "none" : trace.events.get(trace.events.size() - 1).getOutcome();
+        this.traces.set((int) (id % this.traces.length()), new WechatLoginTrace(id, trace.startedAt, trace.path,
+                trace.registrationId, trace.openid, outcome, status, micros(System.nanoTime() - trace.startNanos),
+                trace.events));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * 正在进行的追踪，只在请求线程里读写
+     */
+    private static final class ActiveTrace {
+
+        private final boolean sampled;
+        private final String path;
+        private final long startedAt = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final List<WechatLoginTrace.Event> events = new ArrayList<>(4);
+        private String registrationId;
+        private String openid;
+
+        private ActiveTrace(boolean sampled, String path) {
+            this.sampled = sampled;
+            this.path = path;
+        }
+
+        private <T> T record(String stage, Supplier<T> call) {
+            long start = System.nanoTime();
+            try {
+                T value = call.get();
+                add(stage, start, null);
+                return value;
+            } catch (RuntimeException ex) {
+                add(stage, start, ex);
+                throw ex;
+            }
+        }
+
+        private void add(String stage, long start, Throwable ex) {
+            long now = System.nanoTime();
+            this.events.add(new WechatLoginTrace.Event(stage, micros(start - this.startNanos), micros(now - start),
+                    ex == null ? "success" : "error", ex == null ? "0" : WechatErrorCodes.find(ex),
+                    ex == null ? null : ex.getClass().getSimpleName()));
+        }
+    }
+}
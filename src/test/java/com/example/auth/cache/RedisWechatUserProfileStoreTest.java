@@ -0,0 +1,141 @@
+package com.example.auth.cache;
+
+import com.example.auth.redis.WechatOAuth2UserRedisSerializer;
+import com.example.auth.security.oauth2.wechat.CachingWechatOAuth2UserService;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2UserService;
+import com.example.auth.support.WechatStubServer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 两个节点共享redis二级缓存，需要本地 6379 端口的redis，连不上时跳过
+ * <p>
+ * Created by berg on 2023/4/12.
+ */
+class RedisWechatUserProfileStoreTest {
+
+    private final String keyPrefix = "test:wechat:userinfo:" + UUID.randomUUID() + ":";
+    private final String channel = keyPrefix + "invalidation";
+
+    private WechatStubServer stub;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisMessageListenerContainer listenerContainer;
+
+    @BeforeEach
+    void setUp() {
+        this.connectionFactory = new LettuceConnectionFactory("localhost", 6379);
+        this.connectionFactory.afterPropertiesSet();
+        try {
+            this.connectionFactory.getConnection().close();
+        } catch (RuntimeException ex) {
+            this.connectionFactory.destroy();
+            assumeTrue(false, "redis is not available on localhost:6379");
+        }
+        this.listenerContainer = new RedisMessageListenerContainer();
+        this.listenerContainer.setConnectionFactory(this.connectionFactory);
+        this.listenerContainer.afterPropertiesSet();
+        this.listenerContainer.start();
+        this.stub = new WechatStubServer();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (this.stub != null) {
+            this.stub.close();
+            this.listenerContainer.destroy();
+            this.connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    void secondNodeReadsProfileFromRedis() {
+        CachingWechatOAuth2UserService node1 = node();
+        CachingWechatOAuth2UserService node2 = node();
+
+        WechatOAuth2User first = (WechatOAuth2User) node1.loadUser(userRequest("openid-a", null));
+        WechatOAuth2User second = (WechatOAuth2User) node2.loadUser(userRequest("openid-a", null));
+        // 另一个应用，unionid相同
+        WechatOAuth2User otherApp = (WechatOAuth2User) node2.loadUser(userRequest("openid-b", "union-openid-a"));
+
+        assertThat(second).isEqualTo(first);
+        assertThat(otherApp.getOpenid()).isEqualTo("openid-b");
+        assertThat(otherApp.getNickname()).isEqualTo(first.getNickname());
+        assertThat(this.stub.userInfoRequests()).isEqualTo(1);
+    }
+
+    @Test
+    void evictOnOneNodeInvalidatesOtherNodes() throws InterruptedException {
+        CachingWechatOAuth2UserService node1 = node();
+        CachingWechatOAuth2UserService node2 = node();
+        node1.loadUser(userRequest("openid-a", null));
+        node2.loadUser(userRequest("openid-a", null));
+
+        node1.evict("openid-a");
+        // 等待失效通知到达node2
+        Thread.sleep(200);
+        node2.loadUser(userRequest("openid-a", null));
+
+        assertThat(this.stub.userInfoRequests()).isEqualTo(2);
+    }
+
+    @Test
+    void serializedProfileIsSmallerThanJson() throws Exception {
+        WechatOAuth2User user = new WechatOAuth2User();
+        user.setOpenid("o6_bmjrPTlm6_2sgVt7hMZOPfL2M");
+        user.setNickname("昵称");
+        user.setSex(1);
+        user.setProvince("Guangdong");
+        user.setCity("Shenzhen");
+        user.setCountry("CN");
+        user.setHeadimgurl("https://thirdwx.qlogo.cn/mmopen/g3MonUZtNHkdmzicIlibx6iaFqAc56vxLSUfpb6n5WKSYVY0ChQKkiaJSgQ1dZuTOgvLLrhJbERQQ4eMsv84eavHiaiceqxibJxCfHe/0");
+        user.setPrivilege(Collections.singletonList("PRIVILEGE1"));
+        user.setUnionid("o6_bmasdasdsad6_2sgVt7hMZOPfL");
+        WechatOAuth2UserRedisSerializer serializer = new WechatOAuth2UserRedisSerializer();
+
+        byte[] bytes = serializer.serialize(user);
+
+        assertThat(serializer.deserialize(bytes)).isEqualTo(user);
+        assertThat(bytes.length).isLessThan(new ObjectMapper().writeValueAsBytes(user).length);
+    }
+
+    private CachingWechatOAuth2UserService node() {
+        RedisWechatUserProfileStore store = new RedisWechatUserProfileStore(this.connectionFactory, this.keyPrefix,
+                this.channel, Duration.ofMinutes(1));
+        this.listenerContainer.addMessageListener(store, new ChannelTopic(this.channel));
+        CachingWechatOAuth2UserService userService = new CachingWechatOAuth2UserService(
+                new WechatOAuth2UserService(new SimpleClientHttpRequestFactory()), 100, Duration.ofMinutes(30),
+                Duration.ofMinutes(20));
+        userService.setProfileStore(store);
+        return userService;
+    }
+
+    private OAuth2UserRequest userRequest(String openid, String unionid) {
+        Map<String, Object> additionalParameters = new HashMap<>();
+        additionalParameters.put("openid", openid);
+        if (unionid != null) {
+            additionalParameters.put("unionid", unionid);
+        }
+        OAuth2AccessToken accessToken = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token-" + openid,
+                Instant.now(), Instant.now().plusSeconds(7200));
+        return new OAuth2UserRequest(this.stub.clientRegistration(), accessToken, additionalParameters);
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.auth.degrade;
+
+import com.example.auth.cache.WechatUserProfileStore;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2UserService;
+import com.example.auth.support.WechatStubServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Created by berg on 2023/4/15.
+ */
+class WechatDegradedLoginTest {
+
+    private WechatStubServer stub;
+    private WechatDegradedLoginProperties properties;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        this.stub = new WechatStubServer();
+        this.properties = new WechatDegradedLoginProperties();
+        this.properties.setMode(WechatDegradedLoginProperties.Mode.FALLBACK);
+        this.properties.setRetryDelay(Duration.ofMillis(50));
+        this.registry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.stub.close();
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void fallbackLogsInWithoutProfileAndPatchesLater() throws Exception {
+        WechatDegradedLogin degradedLogin = new WechatDegradedLogin(this.properties, this.registry);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = degradedLogin.decorateUserService(
+                new WechatOAuth2UserService(new SimpleClientHttpRequestFactory()));
+        this.stub.errorRate(1);
+
+        WechatOAuth2User user = (WechatOAuth2User) userService.loadUser(userRequest("openid-a", "snsapi_login"));
+
+        assertThat(user.getOpenid()).isEqualTo("openid-a");
+        assertThat(user.getUnionid()).isEqualTo("union-openid-a");
+        assertThat(user.getNickname()).isNull();
+        assertThat(this.registry.get(WechatDegradedLogin.DEGRADED).tag("reason", "fallback").counter().count()).isEqualTo(1);
+
+        this.stub.errorRate(0);
+        awaitProfile(degradedLogin, "openid-a");
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        context.setAuthentication(new OAuth2AuthenticationToken(user, Collections.emptyList(), "wechat"));
+        SecurityContextHolder.setContext(context);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpSession session = new MockHttpSession();
+        request.setSession(session);
+        new WechatProfilePatchFilter(degradedLogin).doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+
+        assertThat(user.getNickname()).isEqualTo("stub");
+        assertThat(session.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY)).isSameAs(context);
+    }
+
+    @Test
+    void profileFetchedOnOneNodePatchedOnAnother() throws Exception {
+        MapProfileStore store = new MapProfileStore();
+        WechatDegradedLogin nodeA = new WechatDegradedLogin(this.properties, this.registry);
+        nodeA.setProfileStore(store);
+        WechatDegradedLogin nodeB = new WechatDegradedLogin(this.properties, this.registry);
+        nodeB.setProfileStore(store);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = nodeA.decorateUserService(
+                new WechatOAuth2UserService(new SimpleClientHttpRequestFactory()));
+        this.stub.errorRate(1);
+
+        WechatOAuth2User user = (WechatOAuth2User) userService.loadUser(userRequest("openid-a", "snsapi_login"));
+        assertThat(nodeB.patch(user)).isFalse();
+
+        this.stub.errorRate(0);
+        awaitProfile(nodeA, "openid-a");
+        // 保存时的失效通知清掉了节点B查不到的标记
+        assertThat(nodeB.patch(user)).isTrue();
+        assertThat(user.getNickname()).isEqualTo("stub");
+    }
+
+    @Test
+    void asyncModeDoesNotWaitForUserinfo() throws Exception {
+        this.properties.setMode(WechatDegradedLoginProperties.Mode.ASYNC);
+        WechatDegradedLogin degradedLogin = new WechatDegradedLogin(this.properties, this.registry);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = degradedLogin.decorateUserService(
+                new WechatOAuth2UserService(new SimpleClientHttpRequestFactory()));
+        this.stub.latency(Duration.ofMillis(500));
+
+        long start = System.nanoTime();
+        OAuth2User user = userService.loadUser(userRequest("openid-a", "snsapi_login"));
+
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofMillis(300));
+        assertThat(user.getName()).isEqualTo("openid-a");
+        assertThat(awaitProfile(degradedLogin, "openid-a").getNickname()).isEqualTo("stub");
+    }
+
+    @Test
+    void baseScopeSkipsUserinfo() {
+        WechatDegradedLogin degradedLogin = new WechatDegradedLogin(this.properties, this.registry);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = degradedLogin.decorateUserService(
+                new WechatOAuth2UserService(new SimpleClientHttpRequestFactory()));
+
+        assertThat(userService.loadUser(userRequest("openid-a", "snsapi_base")).getName()).isEqualTo("openid-a");
+        assertThat(this.stub.userInfoRequests()).isZero();
+    }
+
+    @Test
+    void invalidTokenStillFails() {
+        WechatDegradedLogin degradedLogin = new WechatDegradedLogin(this.properties, this.registry);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = degradedLogin.decorateUserService(userRequest -> {
+            throw new OAuth2AuthenticationException(new OAuth2Error("invalid_user_info_response"),
+                    new OAuth2AuthorizationException(new OAuth2Error("40001", "invalid credential", null)));
+        });
+
+        assertThatThrownBy(() -> userService.loadUser(userRequest("openid-a", "snsapi_login")))
+                .isInstanceOf(OAuth2AuthenticationException.class);
+    }
+
+    private static WechatOAuth2User awaitProfile(WechatDegradedLogin degradedLogin, String openid) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (degradedLogin.profile(openid) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return degradedLogin.profile(openid);
+    }
+
+    /**
+     * 单进程内模拟多个节点共享的存储，保存时通知所有节点
+     */
+    private static final class MapProfileStore implements WechatUserProfileStore {
+
+        private final Map<String, WechatOAuth2User> profiles = new ConcurrentHashMap<>();
+        private final List<BiConsumer<String, String>> listeners = new CopyOnWriteArrayList<>();
+
+        @Override
+        public WechatOAuth2User get(String openid) {
+            return this.profiles.get(openid);
+        }
+
+        @Override
+        public WechatOAuth2User getByUnionid(String unionid) {
+            return null;
+        }
+
+        @Override
+        public void save(WechatOAuth2User user) {
+            this.profiles.put(user.getOpenid(), user);
+            this.listeners.forEach(listener -> listener.accept(user.getOpenid(), user.getUnionid()));
+        }
+
+        @Override
+        public void evict(String openid, String unionid) {
+            this.profiles.remove(openid);
+            this.listeners.forEach(listener -> listener.accept(openid, unionid));
+        }
+
+        @Override
+        public void addInvalidationListener(BiConsumer<String, String> listener) {
+            this.listeners.add(listener);
+        }
+    }
+
+    private OAuth2UserRequest userRequest(String openid, String scope) {
+        Map<String, Object> additionalParameters = new HashMap<>();
+        additionalParameters.put("openid", openid);
+        additionalParameters.put("unionid", "union-" + openid);
+        OAuth2AccessToken accessToken = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token-" + openid,
+                Instant.now(), Instant.now().plusSeconds(7200), Collections.singleton(scope));
+        return new OAuth2UserRequest(this.stub.clientRegistration(), accessToken, additionalParameters);
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.auth.exchange;
+
+import com.example.auth.security.SecurityConfiguration;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2AuthRequestBuilderCustomizer;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2AuthorizationRequestResolver;
+import com.example.auth.support.WechatStubServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationResponse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 跨节点的用例需要本地 6379 端口的redis，连不上时跳过
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+class WechatCodeExchangeTest {
+
+    private final WechatStubServer stub = new WechatStubServer();
+    private final OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> tokenClient = SecurityConfiguration
+            .accessTokenResponseClient(new HttpComponentsClientHttpRequestFactory(HttpClients.createDefault()));
+    private final WechatCodeExchangeProperties properties = new WechatCodeExchangeProperties();
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+    private LettuceConnectionFactory connectionFactory;
+
+    @AfterEach
+    void tearDown() {
+        this.executor.shutdownNow();
+        this.stub.close();
+        if (this.connectionFactory != null) {
+            StringRedisTemplate redisTemplate = new StringRedisTemplate(this.connectionFactory);
+            redisTemplate.delete(redisTemplate.keys(this.properties.getKeyPrefix() + "*"));
+            this.connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    void concurrentExchangesOnOneNodeShareOneCall() {
+        this.stub.latency(Duration.ofMillis(300));
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> client =
+                new WechatCodeExchange(this.properties, meterRegistry).decorateTokenClient(this.tokenClient);
+
+        List<OAuth2AccessTokenResponse> responses = exchange(client, client, 8, "code-a");
+
+        assertThat(responses).extracting(response -> response.getAccessToken().getTokenValue()).containsOnly("token-code-a");
+        assertThat(this.stub.tokenRequests()).isEqualTo(1);
+        assertThat(meterRegistry.get(WechatCodeExchange.METRIC).tag("result", "local").functionCounter().count()).isEqualTo(7);
+    }
+
+    @Test
+    void nodesShareResultThroughRedis() {
+        useRedis();
+        this.stub.latency(Duration.ofMillis(300));
+        SimpleMeterRegistry nodeAMetrics = new SimpleMeterRegistry();
+        SimpleMeterRegistry nodeBMetrics = new SimpleMeterRegistry();
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> nodeA = new WechatCodeExchange(this.properties,
+                nodeAMetrics, this.connectionFactory).decorateTokenClient(this.tokenClient);
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> nodeB = new WechatCodeExchange(this.properties,
+                nodeBMetrics, this.connectionFactory).decorateTokenClient(this.tokenClient);
+
+        List<OAuth2AccessTokenResponse> responses = exchange(nodeA, nodeB, 8, "code-b");
+        // 结果保留 result-ttl，稍后到达的重复回调也不再调用微信
+        OAuth2AccessTokenResponse late = nodeB.getTokenResponse(this.stub.authorizationCodeGrantRequest("code-b"));
+
+        assertThat(this.stub.tokenRequests()).isEqualTo(1);
+        for (OAuth2AccessTokenResponse response : responses) {
+            assertThat(response.getAccessToken().getTokenValue()).isEqualTo("token-code-b");
+            assertThat(response.getRefreshToken().getTokenValue()).isEqualTo("refresh-code-b");
+            assertThat(response.getAdditionalParameters()).containsEntry("openid", "openid-code-b");
+        }
+        assertThat(late.getAccessToken().getTokenValue()).isEqualTo("token-code-b");
+        assertThat(late.getAccessToken().getExpiresAt()).isAfter(late.getAccessToken().getIssuedAt().plusSeconds(7000));
+
+        // 别的浏览器拿着同一个code来换(redirect_url相同，授权请求里的随机数不同)，不共用结果，由微信判断code已被使用
+        nodeA.getTokenResponse(this.stub.authorizationCodeGrantRequest("code-b", "another-nonce"));
+        assertThat(this.stub.tokenRequests()).isEqualTo(2);
+        double leaders = nodeAMetrics.get(WechatCodeExchange.METRIC).tag("result", "leader").counter().count()
+                + nodeBMetrics.get(WechatCodeExchange.METRIC).tag("result", "leader").counter().count();
+        assertThat(leaders).isEqualTo(1);
+    }
+
+    @Test
+    void transientFailureLetsWaitingNodeRetry() {
+        useRedis();
+        this.stub.latency(Duration.ofMillis(200)).fault(WechatStubServer.TOKEN_PATH, WechatStubServer.Fault.systemError());
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> nodeA = new WechatCodeExchange(this.properties,
+                new SimpleMeterRegistry(), this.connectionFactory).decorateTokenClient(this.tokenClient);
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> nodeB = new WechatCodeExchange(this.properties,
+                new SimpleMeterRegistry(), this.connectionFactory).decorateTokenClient(this.tokenClient);
+
+        CompletableFuture<OAuth2AccessTokenResponse> first = CompletableFuture.supplyAsync(
+                () -> nodeA.getTokenResponse(this.stub.authorizationCodeGrantRequest("code-c")), this.executor);
+        // 等A拿到锁
+        StringRedisTemplate redisTemplate = new StringRedisTemplate(this.connectionFactory);
+        String key = this.properties.getKeyPrefix() + WechatCodeExchange.key(this.stub.authorizationCodeGrantRequest("code-c"));
+        while (!Boolean.TRUE.equals(redisTemplate.hasKey(key))) {
+            sleep(5);
+        }
+        OAuth2AccessTokenResponse second = nodeB.getTokenResponse(this.stub.authorizationCodeGrantRequest("code-c"));
+
+        assertThat(first).isCompletedExceptionally();
+        assertThat(second.getAccessToken().getTokenValue()).isEqualTo("token-code-c");
+        assertThat(this.stub.tokenRequests()).isEqualTo(2);
+    }
+
+    @Test
+    void sameRedirectUrlGetsDifferentKeys() {
+        WechatOAuth2AuthorizationRequestResolver resolver = new WechatOAuth2AuthorizationRequestResolver(
+                new InMemoryClientRegistrationRepository(this.stub.clientRegistration()), "/oauth2/authorization");
+        // 攻击者和用户用同一个公开的 redirect_url 发起授权
+        OAuth2AuthorizationRequest victim = resolver.resolve(authorizationRequest("/wx/h5/userinfo"));
+        OAuth2AuthorizationRequest attacker = resolver.resolve(authorizationRequest("/wx/h5/userinfo"));
+
+        assertThat(victim.getState()).isEqualTo(attacker.getState());
+        String victimKey = WechatCodeExchange.key(grantRequest(victim, "code-d"));
+        String attackerKey = WechatCodeExchange.key(grantRequest(attacker, "code-d"));
+        assertThat(victimKey).isNotNull().isNotEqualTo(attackerKey);
+        assertThat(attackerKey).isNotNull();
+        // 同一个授权请求的重复回调仍然合并
+        assertThat(WechatCodeExchange.key(grantRequest(victim, "code-d"))).isEqualTo(victimKey);
+    }
+
+    @Test
+    void noNonceNoMerge() {
+        OAuth2AuthorizationRequest authorizationRequest = OAuth2AuthorizationRequest.authorizationCode()
+                .clientId("wx-stub-appid")
+                .authorizationUri(this.stub.baseUrl() + WechatStubServer.AUTHORIZE_PATH)
+                .redirectUri("http://localhost/login/oauth2/code/wechat")
+                .state("/wx/h5/userinfo")
+                .build();
+
+        assertThat(WechatCodeExchange.key(grantRequest(authorizationRequest, "code-e"))).isNull();
+    }
+
+    private static MockHttpServletRequest authorizationRequest(String redirectUrl) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/oauth2/authorization/wechat");
+        request.setServletPath("/oauth2/authorization/wechat");
+        request.setParameter(WechatOAuth2AuthRequestBuilderCustomizer.REDIRECT_URL_PARAMETER, redirectUrl);
+        return request;
+    }
+
+    private OAuth2AuthorizationCodeGrantRequest grantRequest(OAuth2AuthorizationRequest authorizationRequest, String code) {
+        OAuth2AuthorizationResponse authorizationResponse = OAuth2AuthorizationResponse.success(code)
+                .redirectUri(authorizationRequest.getRedirectUri())
+                .state(authorizationRequest.getState())
+                .build();
+        return new OAuth2AuthorizationCodeGrantRequest(this.stub.clientRegistration(),
+                new OAuth2AuthorizationExchange(authorizationRequest, authorizationResponse));
+    }
+
+    private List<OAuth2AccessTokenResponse> exchange(OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> even,
+                                                     OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> odd,
+                                                     int requests, String code) {
+        List<CompletableFuture<OAuth2AccessTokenResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> client = i % 2 == 0 ? even : odd;
+            futures.add(CompletableFuture.supplyAsync(
+                    () -> client.getTokenResponse(this.stub.authorizationCodeGrantRequest(code)), this.executor));
+        }
+        List<OAuth2AccessTokenResponse> responses = new ArrayList<>();
+        futures.forEach(future -> responses.add(future.join()));
+        return responses;
+    }
+
+    private void useRedis() {
+        this.connectionFactory = new LettuceConnectionFactory("localhost", 6379);
+        this.connectionFactory.afterPropertiesSet();
+        try {
+            this.connectionFactory.getConnection().close();
+        } catch (RuntimeException ex) {
+            this.connectionFactory.destroy();
+            this.connectionFactory = null;
+            assumeTrue(false, "redis is not available on localhost:6379");
+        }
+        this.properties.setKeyPrefix("test:wechat:code-exchange:" + UUID.randomUUID() + ":");
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
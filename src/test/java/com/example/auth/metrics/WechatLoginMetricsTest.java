@@ -0,0 +1,94 @@
+package com.example.auth.metrics;
+
+import com.example.auth.security.oauth2.wechat.WechatMapOAuth2AccessTokenResponseConverter;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2UserService;
+import com.example.auth.support.WechatStubServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Created by berg on 2023/4/14.
+ */
+class WechatLoginMetricsTest {
+
+    private WechatStubServer stub;
+    private SimpleMeterRegistry registry;
+    private WechatLoginMetrics metrics;
+
+    @BeforeEach
+    void setUp() {
+        this.stub = new WechatStubServer();
+        this.registry = new SimpleMeterRegistry();
+        this.metrics = new WechatLoginMetrics(this.registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.stub.close();
+    }
+
+    @Test
+    void userInfoTaggedWithWechatErrcode() {
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = this.metrics.instrumentUserService(
+                new WechatOAuth2UserService(new SimpleClientHttpRequestFactory()));
+
+        userService.loadUser(userRequest("openid-a"));
+        this.stub.errorRate(1);
+        assertThatThrownBy(() -> userService.loadUser(userRequest("openid-b")))
+                .isInstanceOf(OAuth2AuthenticationException.class);
+
+        assertThat(this.registry.get(WechatLoginMetrics.USERINFO).tag("registration", "wechat")
+                .tag("outcome", "success").tag("errcode", "0").timer().count()).isEqualTo(1);
+        assertThat(this.registry.get(WechatLoginMetrics.USERINFO).tag("registration", "wechat")
+                .tag("outcome", "error").tag("errcode", "-1").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    void tokenTaggedWithWechatErrcode() {
+        WechatMapOAuth2AccessTokenResponseConverter converter = new WechatMapOAuth2AccessTokenResponseConverter();
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("errcode", "40163");
+        parameters.put("errmsg", "code been used");
+        // 和 DefaultAuthorizationCodeTokenResponseClient 一样把解析异常包装成 invalid_token_response
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> client = this.metrics.instrumentTokenClient(grantRequest -> {
+            try {
+                return converter.convert(parameters);
+            } catch (RuntimeException ex) {
+                throw new OAuth2AuthorizationException(new OAuth2Error("invalid_token_response"), ex);
+            }
+        });
+
+        assertThatThrownBy(() -> client.getTokenResponse(this.stub.authorizationCodeGrantRequest("code")))
+                .isInstanceOf(OAuth2AuthorizationException.class);
+
+        assertThat(this.registry.get(WechatLoginMetrics.TOKEN).tag("errcode", "40163")
+                .tag("exception", "OAuth2AuthorizationException").timer().count()).isEqualTo(1);
+    }
+
+    private OAuth2UserRequest userRequest(String openid) {
+        Map<String, Object> additionalParameters = new HashMap<>();
+        additionalParameters.put("openid", openid);
+        OAuth2AccessToken accessToken = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token-" + openid,
+                Instant.now(), Instant.now().plusSeconds(7200));
+        return new OAuth2UserRequest(this.stub.clientRegistration(), accessToken, additionalParameters);
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.auth.quota;
+
+import com.example.auth.resilience.WechatEndpoint;
+import com.example.auth.resilience.WechatResilience;
+import com.example.auth.resilience.WechatResilienceProperties;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2UserService;
+import com.example.auth.support.WechatStubServer;
+import com.example.auth.support.WechatStubServer.Fault;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 固定时钟下验证本地桶、优先级和45009；节点之间共享配额的用例需要本地 6379 端口的redis，连不上时跳过
+ * <p>
+ * Created by berg on 2023/4/16.
+ */
+class WechatQuotaTest {
+
+    private static final String APPID = "wx-stub-appid";
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2023-04-16T08:00:00Z"));
+    private final List<WechatQuota> quotas = new ArrayList<>();
+    private WechatStubServer stub;
+    private SimpleMeterRegistry registry;
+    private WechatQuotaProperties properties;
+    private LettuceConnectionFactory connectionFactory;
+
+    @BeforeEach
+    void setUp() {
+        this.stub = new WechatStubServer();
+        this.registry = new SimpleMeterRegistry();
+        this.properties = new WechatQuotaProperties();
+        this.properties.setLeaseInterval(Duration.ofSeconds(1));
+        this.properties.setLeaseSize(2);
+        this.properties.getUserinfo().setRatePerSecond(1.0);
+        this.properties.getUserinfo().setBurst(5);
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.quotas.forEach(WechatQuota::destroy);
+        this.stub.close();
+        if (this.connectionFactory != null) {
+            StringRedisTemplate redisTemplate = new StringRedisTemplate(this.connectionFactory);
+            redisTemplate.delete(redisTemplate.keys(this.properties.getKeyPrefix() + "*"));
+            this.connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    void callsLimitedToBurstThenRefilledByRate() {
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = userService(quota(null), WechatQuota.Priority.FIRST_LOGIN);
+
+        assertThat(load(userService, 10)).isEqualTo(5);
+        assertThatThrownBy(() -> userService.loadUser(userRequest("openid-1")))
+                .isInstanceOfSatisfying(OAuth2AuthenticationException.class, ex -> assertThat(ex.getError().getErrorCode())
+                        .isEqualTo(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE));
+
+        this.clock.advance(Duration.ofSeconds(2));
+        assertThat(load(userService, 10)).isEqualTo(2);
+        assertThat(this.stub.userInfoRequests()).isEqualTo(7);
+        assertThat(this.registry.get(WechatQuota.CALLS).tag("priority", "first_login").tag("result", "rejected")
+                .counter().count()).isEqualTo(14);
+    }
+
+    @Test
+    void reloginLeavesReserveForFirstLogin() {
+        this.properties.setLeaseSize(10);
+        this.properties.setReserve(0.5);
+        this.properties.getUserinfo().setRatePerSecond(0.0);
+        this.properties.getUserinfo().setBurst(10);
+        WechatQuota quota = quota(null);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> firstLogin = userService(quota, WechatQuota.Priority.FIRST_LOGIN);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> relogin = userService(quota, WechatQuota.Priority.RELOGIN);
+
+        // 租到10个，后台刷新只能用到剩5个为止
+        assertThat(load(relogin, 10)).isEqualTo(5);
+        assertThat(quota.permits(APPID, WechatEndpoint.USERINFO)).isEqualTo(5);
+        assertThat(load(firstLogin, 10)).isEqualTo(5);
+    }
+
+    @Test
+    void reloginStopsWhenDailyQuotaRunsLow() {
+        this.properties.setReserve(0.5);
+        this.properties.getUserinfo().setDailyQuota(4L);
+        WechatQuota quota = quota(null);
+
+        // 租出即计入当天用量，剩余低于2之后后台刷新不再租用
+        assertThat(load(userService(quota, WechatQuota.Priority.RELOGIN), 4)).isEqualTo(2);
+        assertThat(this.registry.get(WechatQuota.REMAINING).gauge().value()).isEqualTo(1);
+        assertThat(load(userService(quota, WechatQuota.Priority.FIRST_LOGIN), 4)).isEqualTo(2);
+        assertThat(this.registry.get(WechatQuota.REMAINING).gauge().value()).isZero();
+    }
+
+    @Test
+    void dailyQuotaExceededBlocksUntilNextDay() {
+        this.stub.fault(WechatStubServer.USER_INFO_PATH, Fault.errcode(45009, "reach max api daily quota limit"));
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = userService(quota(null), WechatQuota.Priority.FIRST_LOGIN);
+
+        assertThatThrownBy(() -> userService.loadUser(userRequest("openid-1")))
+                .isInstanceOfSatisfying(OAuth2AuthenticationException.class, ex -> assertThat(ex.getError().getErrorCode())
+                        .isEqualTo(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE));
+        assertThat(load(userService, 3)).isZero();
+        assertThat(this.stub.userInfoRequests()).isEqualTo(1);
+
+        // 2023-04-17 00:00 Asia/Shanghai
+        this.clock.advance(Duration.ofHours(8));
+        assertThat(load(userService, 1)).isEqualTo(1);
+    }
+
+    @Test
+    void retriesInsideResilienceEachTakeAPermit() {
+        this.stub.fault(WechatStubServer.USER_INFO_PATH, Fault.systemError(), Fault.systemError());
+        WechatResilienceProperties resilienceProperties = new WechatResilienceProperties();
+        resilienceProperties.getUserinfo().setRetryBackoff(Duration.ofMillis(1));
+        WechatResilience resilience = new WechatResilience(resilienceProperties, this.registry);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = resilience.decorateUserService(
+                userService(quota(null), WechatQuota.Priority.FIRST_LOGIN));
+
+        try {
+            assertThat(userService.loadUser(userRequest("openid-1")).getName()).isEqualTo("openid-1");
+        } finally {
+            resilience.destroy();
+        }
+
+        assertThat(this.stub.userInfoRequests()).isEqualTo(3);
+        assertThat(this.registry.get(WechatQuota.CALLS).tag("priority", "first_login").tag("result", "granted")
+                .counter().count()).isEqualTo(3);
+    }
+
+    @Test
+    void nodesShareOneBucketThroughRedis() {
+        useRedis();
+        this.properties.getUserinfo().setRatePerSecond(0.0);
+        this.properties.getUserinfo().setBurst(10);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> nodeA = userService(quota(this.connectionFactory), WechatQuota.Priority.FIRST_LOGIN);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> nodeB = userService(quota(this.connectionFactory), WechatQuota.Priority.FIRST_LOGIN);
+
+        int granted = 0;
+        for (int i = 0; i < 10; i++) {
+            granted += load(nodeA, 1) + load(nodeB, 1);
+        }
+
+        assertThat(granted).isEqualTo(10);
+        assertThat(this.stub.userInfoRequests()).isEqualTo(10);
+        assertThat(this.registry.get(WechatQuota.FALLBACK).counter().count()).isZero();
+    }
+
+    private WechatQuota quota(LettuceConnectionFactory connectionFactory) {
+        WechatQuota quota = new WechatQuota(this.properties, this.registry, connectionFactory, this.clock);
+        this.quotas.add(quota);
+        return quota;
+    }
+
+    private static OAuth2UserService<OAuth2UserRequest, OAuth2User> userService(WechatQuota quota, WechatQuota.Priority priority) {
+        return quota.decorateUserService(new WechatOAuth2UserService(new SimpleClientHttpRequestFactory()), priority);
+    }
+
+    /**
+     * @return 放行的调用数
+     */
+    private int load(OAuth2UserService<OAuth2UserRequest, OAuth2User> userService, int calls) {
+        int granted = 0;
+        for (int i = 0; i < calls; i++) {
+            try {
+                userService.loadUser(userRequest("openid-" + i));
+                granted++;
+            } catch (OAuth2AuthenticationException ex) {
+                assertThat(ex.getError().getErrorCode()).isEqualTo(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE);
+            }
+        }
+        return granted;
+    }
+
+    private OAuth2UserRequest userRequest(String openid) {
+        Map<String, Object> additionalParameters = new HashMap<>();
+        additionalParameters.put("openid", openid);
+        OAuth2AccessToken accessToken = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token-" + openid,
+                Instant.now(), Instant.now().plusSeconds(7200));
+        return new OAuth2UserRequest(this.stub.clientRegistration(), accessToken, additionalParameters);
+    }
+
+    private void useRedis() {
+        this.connectionFactory = new LettuceConnectionFactory("localhost", 6379);
+        this.connectionFactory.afterPropertiesSet();
+        try {
+            this.connectionFactory.getConnection().close();
+        } catch (RuntimeException ex) {
+            this.connectionFactory.destroy();
+            this.connectionFactory = null;
+            assumeTrue(false, "redis is not available on localhost:6379");
+        }
+        this.properties.setKeyPrefix("test:wechat:quota:" + UUID.randomUUID() + ":");
+    }
+
+    private static final class MutableClock extends Clock {
+
+        private volatile Instant instant;
+
+        MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        void advance(Duration duration) {
+            this.instant = this.instant.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return this.instant;
+        }
+    }
+}
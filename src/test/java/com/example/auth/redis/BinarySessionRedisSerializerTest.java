@@ -0,0 +1,139 @@
+package com.example.auth.redis;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+import org.springframework.session.MapSession;
+import org.springframework.session.MapSessionRepository;
+
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Created by berg on 2023/4/13.
+ */
+class BinarySessionRedisSerializerTest {
+
+    private final RedisSerializer<Object> json = RedisConfig.jsonRedisSerializer();
+    private final BinarySessionRedisSerializer binary = new BinarySessionRedisSerializer(json);
+
+    @Test
+    void securityContextRoundTrip() {
+        SecurityContextImpl context = securityContext();
+
+        Object read = this.binary.deserialize(this.binary.serialize(context));
+
+        assertThat(read).isEqualTo(context);
+        assertThat(((OAuth2AuthenticationToken) ((SecurityContextImpl) read).getAuthentication()).getPrincipal())
+                .isEqualTo(context.getAuthentication().getPrincipal());
+    }
+
+    @Test
+    void authorizationRequestRoundTrip() {
+        OAuth2AuthorizationRequest request = authorizationRequest();
+
+        OAuth2AuthorizationRequest read = (OAuth2AuthorizationRequest) this.binary.deserialize(this.binary.serialize(request));
+
+        assertThat(read.getAuthorizationRequestUri()).isEqualTo(request.getAuthorizationRequestUri());
+        assertThat(read.getState()).isEqualTo(request.getState());
+        assertThat(read.getScopes()).isEqualTo(request.getScopes());
+        assertThat(read.getAttributes()).isEqualTo(request.getAttributes());
+        assertThat(read.getAdditionalParameters()).isEqualTo(request.getAdditionalParameters());
+    }
+
+    @Test
+    void primitivesKeepTheirTypes() {
+        // spring session用同一个序列化器写 creationTime/maxInactiveInterval
+        assertThat(this.binary.deserialize(this.binary.serialize(1681350000000L))).isEqualTo(1681350000000L);
+        assertThat(this.binary.deserialize(this.binary.serialize(1800))).isEqualTo(1800);
+        assertThat(this.binary.deserialize(this.binary.serialize("value"))).isEqualTo("value");
+    }
+
+    @Test
+    void unregisteredTypesAreEmbeddedAsJson() {
+        Object value = Collections.singletonMap("key", "value");
+
+        assertThat(this.binary.deserialize(this.binary.serialize(value))).isEqualTo(value);
+    }
+
+    @Test
+    void readsSessionsWrittenAsJson() {
+        SecurityContextImpl context = securityContext();
+
+        assertThat(this.binary.deserialize(this.json.serialize(context))).isEqualTo(context);
+        assertThat(this.binary.deserialize(this.json.serialize(1681350000000L))).isEqualTo(1681350000000L);
+    }
+
+    @Test
+    void lazyAttributesDeserializeOnFirstRead() {
+        LazyRedisSerializer lazy = new LazyRedisSerializer(this.binary);
+        SecurityContextImpl context = securityContext();
+        byte[] bytes = this.binary.serialize(context);
+
+        // 会话的时间字段等简单值照常读取
+        assertThat(lazy.deserialize(this.binary.serialize(1681350000000L))).isEqualTo(1681350000000L);
+        assertThat(lazy.deserialize(this.json.serialize(1681350000000L))).isEqualTo(1681350000000L);
+        Object attribute = lazy.deserialize(bytes);
+        assertThat(attribute).isNotInstanceOf(SecurityContextImpl.class);
+        // 没读过的属性原样写回
+        assertThat(lazy.serialize(attribute)).isSameAs(bytes);
+
+        MapSession session = new MapSession();
+        session.setAttribute("SPRING_SECURITY_CONTEXT", attribute);
+        MapSessionRepository mapSessionRepository = new MapSessionRepository(new HashMap<>());
+        mapSessionRepository.save(session);
+        LazySessionRepository<MapSession> repository = new LazySessionRepository<>(mapSessionRepository);
+
+        assertThat(repository.findById(session.getId()).<Object>getAttribute("SPRING_SECURITY_CONTEXT")).isEqualTo(context);
+    }
+
+    @Test
+    void binaryIsSmallerThanJson() {
+        SecurityContextImpl context = securityContext();
+        int jsonSize = this.json.serialize(context).length;
+        int binarySize = this.binary.serialize(context).length;
+
+        // 吞吐对比见jmh的 SessionSerializerBenchmark
+        assertThat(binarySize).isPositive();
+        assertThat(binarySize * 3).isLessThan(jsonSize);
+    }
+
+    static SecurityContextImpl securityContext() {
+        WechatOAuth2User user = new WechatOAuth2User();
+        user.setOpenid("o6_bmjrPTlm6_2sgVt7hMZOPfL2M");
+        user.setNickname("Band");
+        user.setSex(1);
+        user.setProvince("Guangdong");
+        user.setCity("Shenzhen");
+        user.setCountry("CN");
+        user.setHeadimgurl("https://thirdwx.qlogo.cn/mmopen/g3MonUZtNHkdmzicIlibx6iaFqAc56vxLSUfpb6n5WKSYVY0ChQKkiaJSgQ1dZuTOgvLLrhJbERQQ4eMsv84eavHiaiceqxibJxCfHe/0");
+        user.setPrivilege(Collections.singletonList("PRIVILEGE1"));
+        user.setUnionid("o6_bmasdasdsad6_2sgVt7hMZOPfL");
+        OAuth2AuthenticationToken authentication = new OAuth2AuthenticationToken(user,
+                AuthorityUtils.createAuthorityList("SCOPE_snsapi_login"), "wechat");
+        authentication.setDetails(new WebAuthenticationDetails("127.0.0.1", "6b3b5d4e-4b0a-4f1c-9b61-5d8b2f7c0e11"));
+        return new SecurityContextImpl(authentication);
+    }
+
+    static OAuth2AuthorizationRequest authorizationRequest() {
+        return OAuth2AuthorizationRequest.authorizationCode()
+                .authorizationUri("https://open.weixin.qq.com/connect/qrconnect")
+                .clientId("wx-appid")
+                .redirectUri("http://localhost:8080/login/oauth2/code/wechat")
+                .scopes(Collections.singleton("snsapi_login"))
+                .state("http://localhost:8080/")
+                .attributes(attributes -> attributes.put(OAuth2ParameterNames.REGISTRATION_ID, "wechat"))
+                .authorizationRequestUri("https://open.weixin.qq.com/connect/qrconnect?appid=wx-appid"
+                        + "&redirect_uri=http://localhost:8080/login/oauth2/code/wechat&response_type=code"
+                        + "&scope=snsapi_login&state=http://localhost:8080/#wechat_redirect")
+                .build();
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.auth.redis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2RefreshToken;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 需要本地 6379 端口的redis，连不上时跳过
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+class RedisOAuth2AuthorizedClientServiceTest {
+
+    private final String keyPrefix = "test:wechat:authorized-client:" + UUID.randomUUID() + ":";
+    private final ClientRegistration clientRegistration = ClientRegistration.withRegistrationId("wechat")
+            .clientId("wx-appid")
+            .clientSecret("wx-secret")
+            .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+            .redirectUri("{baseUrl}/login/oauth2/code/{registrationId}")
+            .scope("snsapi_login")
+            .authorizationUri("https://open.weixin.qq.com/connect/qrconnect")
+            .tokenUri("https://api.weixin.qq.com/sns/oauth2/access_token")
+            .build();
+
+    private LettuceConnectionFactory connectionFactory;
+    private RedisOAuth2AuthorizedClientService authorizedClientService;
+
+    @BeforeEach
+    void setUp() {
+        this.connectionFactory = new LettuceConnectionFactory("localhost", 6379);
+        this.connectionFactory.afterPropertiesSet();
+        try {
+            this.connectionFactory.getConnection().close();
+        } catch (RuntimeException ex) {
+            this.connectionFactory.destroy();
+            assumeTrue(false, "redis is not available on localhost:6379");
+        }
+        this.authorizedClientService = new RedisOAuth2AuthorizedClientService(
+                new InMemoryClientRegistrationRepository(this.clientRegistration), this.connectionFactory, this.keyPrefix,
+                Duration.ofDays(30));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (this.connectionFactory != null) {
+            StringRedisTemplate redisTemplate = new StringRedisTemplate(this.connectionFactory);
+            redisTemplate.delete(redisTemplate.keys(this.keyPrefix + "*"));
+            this.connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    void tokensStoredAsHashFields() {
+        Instant issuedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        save("openid-a", issuedAt, new OAuth2RefreshToken("refresh-a", issuedAt));
+
+        OAuth2AuthorizedClient loaded = this.authorizedClientService.loadAuthorizedClient("wechat", "openid-a");
+
+        assertThat(loaded.getClientRegistration()).isSameAs(this.clientRegistration);
+        assertThat(loaded.getPrincipalName()).isEqualTo("openid-a");
+        assertThat(loaded.getAccessToken().getTokenValue()).isEqualTo("token-openid-a");
+        assertThat(loaded.getAccessToken().getIssuedAt()).isEqualTo(issuedAt);
+        assertThat(loaded.getAccessToken().getExpiresAt()).isEqualTo(issuedAt.plusSeconds(7200));
+        assertThat(loaded.getAccessToken().getScopes()).containsExactly("snsapi_login");
+        assertThat(loaded.getRefreshToken().getTokenValue()).isEqualTo("refresh-a");
+        assertThat(loaded.getRefreshToken().getIssuedAt()).isEqualTo(issuedAt);
+
+        StringRedisTemplate redisTemplate = new StringRedisTemplate(this.connectionFactory);
+        String key = this.keyPrefix + "wechat:openid-a";
+        assertThat(redisTemplate.<String, String>opsForHash().entries(key)).containsKeys("access_token", "refresh_token");
+        assertThat(redisTemplate.getExpire(key)).isGreaterThan(Duration.ofDays(29).getSeconds());
+    }
+
+    @Test
+    void accessTokenOnly() {
+        Instant issuedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        save("openid-a", issuedAt, new OAuth2RefreshToken("refresh-a", issuedAt));
+
+        OAuth2AccessToken accessToken = this.authorizedClientService.loadAccessToken("wechat", "openid-a");
+
+        assertThat(accessToken.getTokenValue()).isEqualTo("token-openid-a");
+        assertThat(accessToken.getExpiresAt()).isEqualTo(issuedAt.plusSeconds(7200));
+    }
+
+    @Test
+    void savingWithoutRefreshTokenDropsTheOldOne() {
+        Instant issuedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        save("openid-a", issuedAt, new OAuth2RefreshToken("refresh-a", issuedAt));
+        save("openid-a", issuedAt, null);
+
+        OAuth2AuthorizedClient loaded = this.authorizedClientService.loadAuthorizedClient("wechat", "openid-a");
+
+        assertThat(loaded.getRefreshToken()).isNull();
+    }
+
+    @Test
+    void remove() {
+        save("openid-a", Instant.now(), null);
+
+        this.authorizedClientService.removeAuthorizedClient("wechat", "openid-a");
+
+        assertThat((OAuth2AuthorizedClient) this.authorizedClientService.loadAuthorizedClient("wechat", "openid-a")).isNull();
+        assertThat((OAuth2AuthorizedClient) this.authorizedClientService.loadAuthorizedClient("unknown", "openid-a")).isNull();
+    }
+
+    private void save(String principalName, Instant issuedAt, OAuth2RefreshToken refreshToken) {
+        OAuth2AccessToken accessToken = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token-" + principalName,
+                issuedAt, issuedAt.plusSeconds(7200), Collections.singleton("snsapi_login"));
+        this.authorizedClientService.saveAuthorizedClient(
+                new OAuth2AuthorizedClient(this.clientRegistration, principalName, accessToken, refreshToken),
+                new TestingAuthenticationToken(principalName, ""));
+    }
+}
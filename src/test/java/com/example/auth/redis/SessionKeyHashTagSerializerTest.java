@@ -0,0 +1,56 @@
+package com.example.auth.redis;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Created by berg on 2023/4/16.
+ */
+class SessionKeyHashTagSerializerTest {
+
+    private final SessionKeyHashTagSerializer serializer = new SessionKeyHashTagSerializer("spring:session");
+    private final String id = UUID.randomUUID().toString();
+
+    @Test
+    void sessionKeysShareSlot() {
+        byte[] session = this.serializer.serialize("spring:session:sessions:" + this.id);
+        byte[] expires = this.serializer.serialize("spring:session:sessions:expires:" + this.id);
+
+        assertThat(new String(session, StandardCharsets.UTF_8))
+                .isEqualTo("spring:session:sessions:{" + this.id + "}:" + this.id);
+        assertThat(new String(expires, StandardCharsets.UTF_8))
+                .isEqualTo("spring:session:sessions:expires:{" + this.id + "}:" + this.id);
+        assertThat(ClusterSlotHashUtil.calculateSlot(session)).isEqualTo(ClusterSlotHashUtil.calculateSlot(expires));
+    }
+
+    @Test
+    void expiredEventStillResolvesSessionId() {
+        // RedisIndexedSessionRepository.onMessage 取最后一个冒号之后的部分作为会话id
+        String key = new String(this.serializer.serialize("spring:session:sessions:expires:" + this.id), StandardCharsets.UTF_8);
+
+        assertThat(key).startsWith("spring:session:sessions:expires:");
+        assertThat(key.substring(key.lastIndexOf(':') + 1)).isEqualTo(this.id);
+    }
+
+    @Test
+    void sharedKeysUnchanged() {
+        String expirations = "spring:session:expirations:1681632000000";
+        String index = "spring:session:index:org.springframework.session.FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME:openid-1";
+
+        assertThat(this.serializer.serialize(expirations)).isEqualTo(expirations.getBytes(StandardCharsets.UTF_8));
+        assertThat(this.serializer.serialize(index)).isEqualTo(index.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void deserializeRestoresKey() {
+        for (String key : new String[]{"spring:session:sessions:" + this.id, "spring:session:sessions:expires:" + this.id,
+                "spring:session:expirations:1681632000000"}) {
+            assertThat(this.serializer.deserialize(this.serializer.serialize(key))).isEqualTo(key);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.auth.redis;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisClusterConfiguration;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisClusterNode;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.session.data.redis.RedisIndexedSessionRepository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 会话存储的扩展性压测：直接压 RedisIndexedSessionRepository，和线上一样的key序列化(可选hash tag)和二进制属性序列化，
+ * 每个操作是一次已登陆请求(读会话 + 更新访问时间 + 保存)，{@code load.loginRatio} 比例的操作是新登陆(创建会话并写入属性)。
+ * <p>
+ * 输出吞吐、每个master的吞吐、延迟分位数和各节点处理的命令数。集群模式下断言命令在各master之间均匀分布(每个master在平均值的一半到一倍半之间)，
+ * 这是加节点吞吐线性增长的前提；每次保存都会写当前分钟的 expirations 集合，它是所有会话共用的热点key，
+ * {@code -Dload.touchIntervalSeconds=0} 关掉访问时间合并时能看到它所在节点的命令数明显偏高。依次用1、3、6个master的集群运行，perMaster 吞吐基本不变即为线性扩展，发压机的线程数随节点数一起加：
+ * <pre>
+ * ./gradlew loadTest --tests '*SessionStoreScalingLoadTest' -Dload.redis.cluster=true \
+ *     -Dload.redis.nodes=10.0.0.1:6379,10.0.0.2:6379,10.0.0.3:6379 -Dload.threads=192 -Dload.readFrom=REPLICA_PREFERRED
+ * </pre>
+ * 不带参数时压本地 6379 端口的单个redis，连不上时跳过
+ * <p>
+ * Created by berg on 2023/4/16.
+ */
+@Tag("load")
+class SessionStoreScalingLoadTest {
+
+    private static final boolean CLUSTER = Boolean.getBoolean("load.redis.cluster");
+    private static final List<String> NODES = Arrays.asList(System.getProperty("load.redis.nodes", "localhost:6379").split(","));
+    private static final int THREADS = Integer.getInteger("load.threads", 64);
+    private static final int DURATION_SECONDS = Integer.getInteger("load.durationSeconds", 10);
+    private static final int SESSIONS = Integer.getInteger("load.sessions", 10000);
+    private static final double LOGIN_RATIO = Double.parseDouble(System.getProperty("load.loginRatio", "0.05"));
+    private static final boolean HASH_TAGS = Boolean.parseBoolean(System.getProperty("load.hashTags", "true"));
+    private static final String READ_FROM = System.getProperty("load.readFrom");
+    private static final Duration TOUCH_INTERVAL = Duration.ofSeconds(Long.getLong("load.touchIntervalSeconds", 60));
+
+    private final String namespace = "loadtest:session:" + UUID.randomUUID().toString().substring(0, 8);
+    private final Map<String, AtomicInteger> failures = new LinkedHashMap<>();
+
+    private LettuceConnectionFactory connectionFactory;
+    private RedisTemplate<Object, Object> redisTemplate;
+    private RedisIndexedSessionRepository sessionRepository;
+    private TouchCoalescingSessionRepository<RedisIndexedSessionRepository.RedisSession> coalescingRepository;
+
+    @BeforeEach
+    void setUp() {
+        LettuceClientConfiguration.LettuceClientConfigurationBuilder client = LettuceClientConfiguration.builder()
+                .commandTimeout(Duration.ofSeconds(2));
+        if (READ_FROM != null) {
+            client.readFrom(WechatSessionProperties.ReadFrom.valueOf(READ_FROM).toLettuce());
+        }
+        if (CLUSTER) {
+            this.connectionFactory = new LettuceConnectionFactory(new RedisClusterConfiguration(NODES), client.build());
+        } else {
+            String[] hostAndPort = NODES.get(0).split(":");
+            this.connectionFactory = new LettuceConnectionFactory(
+                    new RedisStandaloneConfiguration(hostAndPort[0], Integer.parseInt(hostAndPort[1])), client.build());
+        }
+        this.connectionFactory.afterPropertiesSet();
+        try {
+            this.connectionFactory.getConnection().close();
+        } catch (RuntimeException ex) {
+            this.connectionFactory.destroy();
+            this.connectionFactory = null;
+            assumeTrue(false, "redis is not available on " + NODES);
+        }
+
+        this.redisTemplate = new RedisTemplate<>();
+        this.redisTemplate.setConnectionFactory(this.connectionFactory);
+        this.redisTemplate.setKeySerializer(HASH_TAGS ? new SessionKeyHashTagSerializer(this.namespace) : RedisSerializer.string());
+        this.redisTemplate.setHashKeySerializer(RedisSerializer.string());
+        this.redisTemplate.setHashValueSerializer(new BinarySessionRedisSerializer(RedisConfig.jsonRedisSerializer()));
+        this.redisTemplate.afterPropertiesSet();
+        this.sessionRepository = new RedisIndexedSessionRepository(this.redisTemplate);
+        this.sessionRepository.setRedisKeyNamespace(this.namespace);
+        this.coalescingRepository = new TouchCoalescingSessionRepository<>(this.sessionRepository, TOUCH_INTERVAL);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (this.connectionFactory != null) {
+            Set<Object> keys = this.redisTemplate.keys(this.namespace + ":*");
+            if (keys != null && !keys.isEmpty()) {
+                this.redisTemplate.delete(keys);
+            }
+            this.connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    void sessionStore() throws InterruptedException {
+        String[] ids = new String[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            ids[i] = login();
+        }
+        // 预热
+        run(ids, 2, new SimpleMeterRegistry());
+
+        Map<String, Long> before = commandsPerNode();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        this.failures.clear();
+        long elapsed = run(ids, DURATION_SECONDS, registry);
+        Map<String, Long> after = commandsPerNode();
+
+        Timer timer = registry.get("session.request").timer();
+        int masters = (int) after.keySet().stream().filter(node -> node.startsWith("master")).count();
+        double throughput = timer.count() * 1e9 / elapsed;
+        System.out.printf("[session] mode=%s nodes=%s masters=%d threads=%d hashTags=%s readFrom=%s loginRatio=%.2f touchInterval=%ds%n",
+                CLUSTER ? "cluster" : "standalone", NODES, masters, THREADS, HASH_TAGS, READ_FROM, LOGIN_RATIO,
+                TOUCH_INTERVAL.getSeconds());
+        System.out.printf("[session] requests=%d throughput=%.0f/s perMaster=%.0f/s failures=%s%n",
+                timer.count(), throughput, throughput / Math.max(masters, 1), this.failures);
+        StringBuilder percentiles = new StringBuilder();
+        for (ValueAtPercentile percentile : timer.takeSnapshot().percentileValues()) {
+            percentiles.append(String.format(" p%.1f=%.2fms", percentile.percentile() * 100,
+                    percentile.value(TimeUnit.MILLISECONDS)));
+        }
+        System.out.printf("[session] latency%s max=%.2fms%n", percentiles, timer.max(TimeUnit.MILLISECONDS));
+
+        long masterCommands = 0;
+        for (String node : after.keySet()) {
+            if (node.startsWith("master")) {
+                masterCommands += after.get(node) - before.getOrDefault(node, 0L);
+            }
+        }
+        for (String node : after.keySet()) {
+            long commands = after.get(node) - before.getOrDefault(node, 0L);
+            System.out.printf("[redis] %-32s commands=%-10d %.2f/request%n", node, commands, commands / (double) timer.count());
+            if (masters > 1 && node.startsWith("master")) {
+                assertThat(commands).as("commands on %s", node)
+                        .isBetween(masterCommands / masters / 2, masterCommands / masters * 3 / 2);
+            }
+        }
+        assertThat(this.failures).isEmpty();
+    }
+
+    /**
+     * @return 实际用时，纳秒
+     */
+    private long run(String[] ids, int seconds, SimpleMeterRegistry registry) throws InterruptedException {
+        Timer timer = Timer.builder("session.request")
+                .publishPercentiles(0.5, 0.9, 0.99, 0.999)
+                .register(registry);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        long begin = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        try {
+                            if (random.nextDouble() < LOGIN_RATIO) {
+                                login();
+                            } else {
+                                request(ids[random.nextInt(ids.length)]);
+                            }
+                            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        } catch (RuntimeException ex) {
+                            fail(ex.getClass().getSimpleName());
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }, "session-load-" + t);
+            worker.start();
+        }
+        assertThat(done.await(seconds + 60L, TimeUnit.SECONDS)).isTrue();
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * 新登陆：创建会话，写入和登陆成功后差不多大小的属性
+     */
+    private String login() {
+        RedisIndexedSessionRepository.RedisSession session = this.sessionRepository.createSession();
+        session.setAttribute("openid", "openid-" + UUID.randomUUID());
+        session.setAttribute("nickname", "张三");
+        session.setAttribute("headimgurl", "https://thirdwx.qlogo.cn/mmopen/" + UUID.randomUUID() + "/132");
+        this.sessionRepository.save(session);
+        return session.getId();
+    }
+
+    /**
+     * 已登陆请求：读会话，更新访问时间后保存，和线上一样合并访问时间的更新
+     */
+    private void request(String id) {
+        TouchCoalescingSessionRepository.CoalescingSession<RedisIndexedSessionRepository.RedisSession> session =
+                this.coalescingRepository.findById(id);
+        if (session == null) {
+            fail("missing");
+            return;
+        }
+        session.setLastAccessedTime(Instant.now());
+        this.coalescingRepository.save(session);
+    }
+
+    private synchronized void fail(String reason) {
+        this.failures.computeIfAbsent(reason, key -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * 各节点处理过的命令总数(INFO stats 的 total_commands_processed)，key 为 master|replica 加节点地址
+     */
+    private Map<String, Long> commandsPerNode() {
+        Map<String, Long> commands = new LinkedHashMap<>();
+        if (!CLUSTER) {
+            try (RedisConnection connection = this.connectionFactory.getConnection()) {
+                commands.put("master " + NODES.get(0), processed(connection.serverCommands().info("stats")));
+            }
+            return commands;
+        }
+        List<RedisClusterNode> nodes = new ArrayList<>();
+        try (RedisClusterConnection connection = this.connectionFactory.getClusterConnection()) {
+            connection.clusterGetNodes().forEach(nodes::add);
+            for (RedisClusterNode node : nodes) {
+                String name = (node.isMaster() ? "master " : "replica ") + node.getHost() + ":" + node.getPort();
+                commands.put(name, processed(connection.serverCommands().info(node, "stats")));
+            }
+        }
+        return commands;
+    }
+
+    private static long processed(Properties stats) {
+        return Long.parseLong(stats.getProperty("total_commands_processed", "0"));
+    }
+}
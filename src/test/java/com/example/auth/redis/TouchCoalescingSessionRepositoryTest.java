@@ -0,0 +1,80 @@
+package com.example.auth.redis;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.session.MapSession;
+import org.springframework.session.MapSessionRepository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Created by berg on 2023/4/16.
+ */
+class TouchCoalescingSessionRepositoryTest {
+
+    private static final Instant NOW = Instant.parse("2023-04-16T08:00:00Z");
+
+    private final MapSessionRepository delegate = new MapSessionRepository(new HashMap<>());
+    private final TouchCoalescingSessionRepository<MapSession> repository =
+            new TouchCoalescingSessionRepository<>(this.delegate, Duration.ofMinutes(1));
+
+    @Test
+    void touchWithinIntervalIsSkipped() {
+        String id = saved();
+
+        TouchCoalescingSessionRepository.CoalescingSession<MapSession> session = this.repository.findById(id);
+        session.setLastAccessedTime(NOW.plusSeconds(30));
+        this.repository.save(session);
+
+        assertThat(this.delegate.findById(id).getLastAccessedTime()).isEqualTo(NOW);
+    }
+
+    @Test
+    void touchAfterIntervalIsSaved() {
+        String id = saved();
+
+        TouchCoalescingSessionRepository.CoalescingSession<MapSession> session = this.repository.findById(id);
+        session.setLastAccessedTime(NOW.plusSeconds(61));
+        this.repository.save(session);
+
+        assertThat(this.delegate.findById(id).getLastAccessedTime()).isEqualTo(NOW.plusSeconds(61));
+    }
+
+    @Test
+    void attributesStillWrittenWhenTouchSkipped() {
+        String id = saved();
+
+        TouchCoalescingSessionRepository.CoalescingSession<MapSession> session = this.repository.findById(id);
+        session.setLastAccessedTime(NOW.plusSeconds(10));
+        session.setAttribute("k", "v");
+        this.repository.save(session);
+
+        MapSession stored = this.delegate.findById(id);
+        assertThat(stored.<String>getAttribute("k")).isEqualTo("v");
+        assertThat(stored.getLastAccessedTime()).isEqualTo(NOW);
+    }
+
+    @Test
+    void zeroIntervalTouchesEveryTime() {
+        TouchCoalescingSessionRepository<MapSession> everyTime = new TouchCoalescingSessionRepository<>(this.delegate, Duration.ZERO);
+        String id = saved();
+
+        TouchCoalescingSessionRepository.CoalescingSession<MapSession> session = everyTime.findById(id);
+        session.setLastAccessedTime(NOW.plusSeconds(1));
+        everyTime.save(session);
+
+        assertThat(this.delegate.findById(id).getLastAccessedTime()).isEqualTo(NOW.plusSeconds(1));
+    }
+
+    private String saved() {
+        MapSession session = this.delegate.createSession();
+        session.setLastAccessedTime(NOW);
+        // 固定的时间早已过期，不设超时
+        session.setMaxInactiveInterval(Duration.ofSeconds(-1));
+        this.delegate.save(session);
+        return session.getId();
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.auth.redis;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Created by berg on 2023/4/12.
+ */
+class WechatOAuth2UserRedisSerializerTest {
+
+    @Test
+    void roundTrip() {
+        WechatOAuth2UserRedisSerializer serializer = new WechatOAuth2UserRedisSerializer();
+        WechatOAuth2User user = user();
+
+        assertThat(serializer.deserialize(serializer.serialize(user))).isEqualTo(user);
+    }
+
+    @Test
+    void newerVersionWithAppendedFieldsIsReadable() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // 新版本：版本号2，第9、10位是追加的字段，按 2字节长度 + 内容 写入
+        out.writeByte(2);
+        out.writeShort(1 | (1 << 1) | (1 << 9) | (1 << 10));
+        out.writeUTF("openid-1");
+        out.writeUTF("张三");
+        out.writeUTF("new-field");
+        out.writeShort(3);
+        out.write(new byte[]{1, 2, 3});
+        // 会话序列化时后面还有其它内容
+        out.writeUTF("next");
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        WechatOAuth2User user = WechatOAuth2UserRedisSerializer.read(in);
+
+        assertThat(user.getOpenid()).isEqualTo("openid-1");
+        assertThat(user.getNickname()).isEqualTo("张三");
+        assertThat(in.readUTF()).isEqualTo("next");
+    }
+
+    private static WechatOAuth2User user() {
+        WechatOAuth2User user = new WechatOAuth2User();
+        user.setOpenid("openid-1");
+        user.setNickname("张三");
+        user.setSex(1);
+        user.setPrivilege(Collections.singletonList("chinaunicom"));
+        user.setUnionid("union-1");
+        return user;
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.auth.registration;
+
+import com.example.auth.security.oauth2.wechat.WechatProviderRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationResponse;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 需要本地 6379 端口的redis，连不上时跳过
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+class RedisClientRegistrationRepositoryTest {
+
+    private final ClientRegistration wechat = registration("wechat", "wx-appid", "secret-1");
+    private final WechatClientRegistrationProperties properties = new WechatClientRegistrationProperties();
+    private final List<RedisClientRegistrationRepository> repositories = new ArrayList<>();
+
+    private LettuceConnectionFactory connectionFactory;
+
+    @BeforeEach
+    void setUp() {
+        this.connectionFactory = new LettuceConnectionFactory("localhost", 6379);
+        this.connectionFactory.afterPropertiesSet();
+        try {
+            this.connectionFactory.getConnection().close();
+        } catch (RuntimeException ex) {
+            this.connectionFactory.destroy();
+            this.connectionFactory = null;
+            assumeTrue(false, "redis is not available on localhost:6379");
+        }
+        String prefix = "test:wechat:client-registration:" + UUID.randomUUID() + ":";
+        this.properties.setKeyPrefix(prefix);
+        this.properties.setChannel(prefix + "changed");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (RedisClientRegistrationRepository repository : this.repositories) {
+            repository.destroy();
+        }
+        if (this.connectionFactory != null) {
+            StringRedisTemplate redisTemplate = new StringRedisTemplate(this.connectionFactory);
+            redisTemplate.delete(redisTemplate.keys(this.properties.getKeyPrefix() + "*"));
+            this.connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    void seededRegistrationKeepsItsInstance() {
+        RedisClientRegistrationRepository repository = start();
+
+        assertThat(repository.findByRegistrationId("wechat")).isSameAs(this.wechat);
+        repository.reload();
+        assertThat(repository.findByRegistrationId("wechat")).isSameAs(this.wechat);
+        assertThat(new StringRedisTemplate(this.connectionFactory).opsForHash()
+                .get(this.properties.getKeyPrefix() + "wechat", RedisClientRegistrationRepository.CLIENT_SECRET)).isEqualTo("secret-1");
+    }
+
+    @Test
+    void changesPropagateToOtherNodes() throws InterruptedException {
+        RedisClientRegistrationRepository nodeA = start();
+        RedisClientRegistrationRepository nodeB = start();
+        WechatProviderRegistry providerRegistry = new WechatProviderRegistry();
+        nodeB.setProviderRegistry(providerRegistry);
+
+        nodeA.save(registration("wechat-mp", "wx-mp", "secret-mp"));
+
+        await(() -> nodeB.findByRegistrationId("wechat-mp") != null);
+        ClientRegistration onboarded = nodeB.findByRegistrationId("wechat-mp");
+        assertThat(onboarded.getClientSecret()).isEqualTo("secret-mp");
+        assertThat(onboarded.getScopes()).containsExactly("snsapi_login");
+        assertThat(providerRegistry.get(onboarded)).isNotNull();
+
+        nodeA.remove("wechat-mp");
+
+        await(() -> nodeB.findByRegistrationId("wechat-mp") == null);
+        assertThat(nodeA.findByRegistrationId("wechat-mp")).isNull();
+    }
+
+    @Test
+    void previousSecretRetriedDuringOverlap() {
+        RedisClientRegistrationRepository repository = start();
+        Instant now = Instant.now();
+        repository.setClock(Clock.fixed(now, ZoneOffset.UTC));
+
+        repository.rotateSecret("wechat", "secret-2");
+
+        assertThat(repository.findByRegistrationId("wechat").getClientSecret()).isEqualTo("secret-2");
+        assertThat(repository.previousRegistration("wechat").getClientSecret()).isEqualTo("secret-1");
+
+        // 微信后台还没有重置secret，只认旧的
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SecretRotationTokenResponseClient client = new SecretRotationTokenResponseClient(grantRequest -> {
+            if (!"secret-1".equals(grantRequest.getClientRegistration().getClientSecret())) {
+                throw new OAuth2AuthorizationException(new OAuth2Error("40125", "invalid appsecret", null));
+            }
+            return OAuth2AccessTokenResponse.withToken("token").tokenType(OAuth2AccessToken.TokenType.BEARER).build();
+        }, repository, meterRegistry);
+
+        assertThat(client.getTokenResponse(grantRequest(repository.findByRegistrationId("wechat"))).getAccessToken()
+                .getTokenValue()).isEqualTo("token");
+        assertThat(meterRegistry.get(SecretRotationTokenResponseClient.FALLBACK).tag("result", "success").counter().count())
+                .isEqualTo(1);
+
+        repository.setClock(Clock.fixed(now.plus(this.properties.getSecretOverlap()).plusSeconds(1), ZoneOffset.UTC));
+        assertThat(repository.previousRegistration("wechat")).isNull();
+    }
+
+    @Test
+    void concurrentRotationsKeepTheReplacedSecret() {
+        RedisClientRegistrationRepository nodeA = start();
+        RedisClientRegistrationRepository nodeB = start();
+
+        CompletableFuture<Void> rotateA = CompletableFuture.runAsync(() -> nodeA.rotateSecret("wechat", "secret-a"));
+        CompletableFuture<Void> rotateB = CompletableFuture.runAsync(() -> nodeB.rotateSecret("wechat", "secret-b"));
+        CompletableFuture.allOf(rotateA, rotateB).join();
+        nodeA.reload("wechat");
+
+        // 后执行的一次保留的是先执行的一次写入的secret，而不是两次都读到的secret-1
+        String current = nodeA.findByRegistrationId("wechat").getClientSecret();
+        assertThat(nodeA.previousRegistration("wechat").getClientSecret())
+                .isEqualTo("secret-a".equals(current) ? "secret-b" : "secret-a");
+        assertThatThrownBy(() -> nodeA.rotateSecret("unknown", "secret-c")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private RedisClientRegistrationRepository start() {
+        RedisClientRegistrationRepository repository = new RedisClientRegistrationRepository(this.connectionFactory,
+                this.properties, Collections.singletonList(this.wechat));
+        repository.afterSingletonsInstantiated();
+        this.repositories.add(repository);
+        return repository;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + Duration.ofSeconds(5).toMillis();
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+
+    private static OAuth2AuthorizationCodeGrantRequest grantRequest(ClientRegistration clientRegistration) {
+        String redirectUri = "http://localhost/login/oauth2/code/wechat";
+        OAuth2AuthorizationRequest authorizationRequest = OAuth2AuthorizationRequest.authorizationCode()
+                .clientId(clientRegistration.getClientId())
+                .authorizationUri(clientRegistration.getProviderDetails().getAuthorizationUri())
+                .redirectUri(redirectUri)
+                .state("state")
+                .build();
+        OAuth2AuthorizationResponse authorizationResponse = OAuth2AuthorizationResponse.success("code")
+                .redirectUri(redirectUri)
+                .state("state")
+                .build();
+        return new OAuth2AuthorizationCodeGrantRequest(clientRegistration,
+                new OAuth2AuthorizationExchange(authorizationRequest, authorizationResponse));
+    }
+
+    private static ClientRegistration registration(String registrationId, String clientId, String clientSecret) {
+        return ClientRegistration.withRegistrationId(registrationId)
+                .clientId(clientId)
+                .clientSecret(clientSecret)
+                .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+                .redirectUri("{baseUrl}/login/oauth2/code/{registrationId}")
+                .scope("snsapi_login")
+                .authorizationUri("https://open.weixin.qq.com/connect/qrconnect")
+                .tokenUri("https://api.weixin.qq.com/sns/oauth2/access_token")
+                .userInfoUri("https://api.weixin.qq.com/sns/userinfo")
+                .userNameAttributeName("openid")
+                .build();
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.auth.resilience;
+
+import com.example.auth.security.SecurityConfiguration;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2UserService;
+import com.example.auth.support.WechatStubServer;
+import com.example.auth.support.WechatStubServer.Fault;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 对着注入故障的桩服务验证熔断、隔离、超时、重试和对冲
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+class WechatResilienceTest {
+
+    private WechatStubServer stub;
+    private SimpleMeterRegistry registry;
+    private WechatResilienceProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        this.stub = new WechatStubServer();
+        this.registry = new SimpleMeterRegistry();
+        this.properties = new WechatResilienceProperties();
+        this.properties.getUserinfo().setRetryBackoff(Duration.ofMillis(1));
+        this.properties.getToken().setRetryBackoff(Duration.ofMillis(1));
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.stub.close();
+    }
+
+    @Test
+    void userInfoRetriedOnSystemError() {
+        this.stub.fault(WechatStubServer.USER_INFO_PATH, Fault.systemError(), Fault.systemError());
+        WechatResilience resilience = new WechatResilience(this.properties, this.registry);
+
+        OAuth2User user = userService(resilience).loadUser(userRequest("openid-a"));
+
+        assertThat(user.getName()).isEqualTo("openid-a");
+        assertThat(this.stub.userInfoRequests()).isEqualTo(3);
+        assertThat(this.registry.get(WechatResilience.RETRIES).tag("endpoint", "userinfo").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void codeExchangeNotRetriedOnceSent() {
+        this.stub.fault(WechatStubServer.TOKEN_PATH, Fault.systemError());
+        WechatResilience resilience = new WechatResilience(this.properties, this.registry);
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> client = resilience.decorateTokenClient(
+                SecurityConfiguration.accessTokenResponseClient(new SimpleClientHttpRequestFactory()));
+
+        assertThatThrownBy(() -> client.getTokenResponse(this.stub.authorizationCodeGrantRequest("code-a")))
+                .isInstanceOf(OAuth2AuthorizationException.class);
+
+        assertThat(this.stub.tokenRequests()).isEqualTo(1);
+    }
+
+    @Test
+    void codeExchangeRetriedWhenConnectionRefused() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        WechatResilience resilience = new WechatResilience(this.properties, this.registry);
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> client = resilience.decorateTokenClient(
+                SecurityConfiguration.accessTokenResponseClient(new SimpleClientHttpRequestFactory()));
+        OAuth2AuthorizationCodeGrantRequest grantRequest = this.stub.authorizationCodeGrantRequest("code-a");
+        OAuth2AuthorizationCodeGrantRequest refused = new OAuth2AuthorizationCodeGrantRequest(
+                ClientRegistration.withClientRegistration(grantRequest.getClientRegistration())
+                        .tokenUri("http://127.0.0.1:" + closedPort + WechatStubServer.TOKEN_PATH)
+                        .build(),
+                grantRequest.getAuthorizationExchange());
+
+        assertThatThrownBy(() -> client.getTokenResponse(refused)).isInstanceOf(OAuth2AuthorizationException.class);
+
+        assertThat(this.registry.get(WechatResilience.RETRIES).tag("endpoint", "token").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void slowUserInfoTimesOutAndHedgeWins() {
+        this.properties.getUserinfo().setTimeout(Duration.ofMillis(300));
+        this.properties.getUserinfo().setMaxAttempts(1);
+        this.stub.fault(WechatStubServer.USER_INFO_PATH, Fault.delay(Duration.ofSeconds(1)));
+        WechatResilience resilience = new WechatResilience(this.properties, this.registry);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = userService(resilience);
+
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> userService.loadUser(userRequest("openid-a")))
+                .isInstanceOfSatisfying(OAuth2AuthenticationException.class, ex -> assertThat(ex.getError().getErrorCode())
+                        .isEqualTo(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE));
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofMillis(900));
+
+        // 对冲：第一个请求很慢，50ms后发出的第二个请求先返回
+        WechatResilienceProperties.Policy hedged = new WechatResilienceProperties.Policy();
+        hedged.setHedgeDelay(Duration.ofMillis(50));
+        WechatResilienceProperties.Registration registration = new WechatResilienceProperties.Registration();
+        registration.setUserinfo(hedged);
+        this.properties.getRegistrations().put("wechat", registration);
+        this.stub.fault(WechatStubServer.USER_INFO_PATH, Fault.delay(Duration.ofSeconds(1)));
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> hedgedUserService = userService(
+                new WechatResilience(this.properties, new SimpleMeterRegistry()));
+
+        start = System.nanoTime();
+        assertThat(hedgedUserService.loadUser(userRequest("openid-b")).getName()).isEqualTo("openid-b");
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofMillis(300));
+    }
+
+    @Test
+    void circuitOpensAndRecovers() throws InterruptedException {
+        WechatResilienceProperties.Policy policy = this.properties.getUserinfo();
+        policy.setMaxAttempts(1);
+        policy.setSlidingWindowSize(4);
+        policy.setMinimumNumberOfCalls(4);
+        policy.setWaitDurationInOpenState(Duration.ofMillis(200));
+        policy.setPermittedCallsInHalfOpenState(1);
+        this.stub.errorRate(1);
+        WechatResilience resilience = new WechatResilience(this.properties, this.registry);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = userService(resilience);
+
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(() -> userService.loadUser(userRequest("openid-a")));
+        }
+        assertThat(resilience.state("wechat", WechatEndpoint.USERINFO)).isEqualTo(WechatCircuitBreaker.State.OPEN);
+        assertThatThrownBy(() -> userService.loadUser(userRequest("openid-a")))
+                .isInstanceOfSatisfying(OAuth2AuthenticationException.class, ex -> assertThat(ex.getError().getErrorCode())
+                        .isEqualTo(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE));
+        assertThat(this.stub.userInfoRequests()).isEqualTo(4);
+
+        this.stub.errorRate(0);
+        Thread.sleep(250);
+        assertThat(userService.loadUser(userRequest("openid-a")).getName()).isEqualTo("openid-a");
+        assertThat(resilience.state("wechat", WechatEndpoint.USERINFO)).isEqualTo(WechatCircuitBreaker.State.CLOSED);
+        assertThat(this.registry.get(WechatResilience.CALLS).tag("result", "rejected").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void bulkheadRejectsWhenFull() {
+        this.properties.getUserinfo().setMaxConcurrentCalls(1);
+        this.stub.fault(WechatStubServer.USER_INFO_PATH, Fault.delay(Duration.ofMillis(500)));
+        WechatResilience resilience = new WechatResilience(this.properties, this.registry);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = userService(resilience);
+
+        CompletableFuture<OAuth2User> slow = CompletableFuture.supplyAsync(() -> userService.loadUser(userRequest("openid-a")));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.stub.userInfoRequests() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+
+        assertThatThrownBy(() -> userService.loadUser(userRequest("openid-b")))
+                .isInstanceOfSatisfying(OAuth2AuthenticationException.class, ex -> assertThat(ex.getError().getErrorCode())
+                        .isEqualTo(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE));
+        assertThat(slow.join().getName()).isEqualTo("openid-a");
+        assertThat(this.stub.userInfoRequests()).isEqualTo(1);
+    }
+
+    @Test
+    void rejectedWhenNoThreadAvailable() {
+        this.properties.setMaxThreads(1);
+        this.stub.fault(WechatStubServer.USER_INFO_PATH, Fault.delay(Duration.ofMillis(500)));
+        WechatResilience resilience = new WechatResilience(this.properties, this.registry);
+        OAuth2UserService<OAuth2UserRequest, OAuth2User> userService = userService(resilience);
+
+        CompletableFuture<OAuth2User> slow = CompletableFuture.supplyAsync(() -> userService.loadUser(userRequest("openid-a")));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.stub.userInfoRequests() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+
+        // 隔离名额还有，线程池满了
+        assertThatThrownBy(() -> userService.loadUser(userRequest("openid-b")))
+                .isInstanceOfSatisfying(OAuth2AuthenticationException.class, ex -> assertThat(ex.getError().getErrorCode())
+                        .isEqualTo(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE));
+        assertThat(slow.join().getName()).isEqualTo("openid-a");
+        assertThat(this.stub.userInfoRequests()).isEqualTo(1);
+        assertThat(this.registry.get(WechatResilience.CALLS).tag("result", "rejected").counter().count()).isEqualTo(1);
+        resilience.destroy();
+    }
+
+    private static OAuth2UserService<OAuth2UserRequest, OAuth2User> userService(WechatResilience resilience) {
+        return resilience.decorateUserService(new WechatOAuth2UserService(new SimpleClientHttpRequestFactory()));
+    }
+
+    private OAuth2UserRequest userRequest(String openid) {
+        Map<String, Object> additionalParameters = new HashMap<>();
+        additionalParameters.put("openid", openid);
+        OAuth2AccessToken accessToken = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token-" + openid,
+                Instant.now(), Instant.now().plusSeconds(7200));
+        return new OAuth2UserRequest(this.stub.clientRegistration(), accessToken, additionalParameters);
+    }
+}
@@ -0,0 +1,385 @@
+package com.example.auth.security;
+
+import com.example.auth.metrics.WechatLoginMetrics;
+import com.example.auth.support.WechatStubServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 端到端登陆压测：启动整个应用，微信的 qrconnect、/sns/oauth2/access_token、/sns/userinfo 由进程内的桩服务模拟，
+ * 按固定速率发起登陆(开环，不会因为服务端变慢而降低发压速率)，每个登陆走完整的流程：
+ * <pre>
+ * /oauth2/authorization/wechat -> qrconnect(桩) -> /login/oauth2/code/wechat -> /wx/h5/userinfo
+ * </pre>
+ * 输出吞吐、延迟分位数(从计划发起时间算起)、各步骤的失败数，以及redis的写入量(命令数和写入字节数)。
+ * 需要本地 6379 端口的redis。运行：
+ * {@code ./gradlew loadTest --tests '*LoginFlowLoadTest' -Dload.rate=200 -Dload.durationSeconds=30}，
+ * {@code -Dload.latencyMs}、{@code -Dload.errorRate} 调整桩服务的延迟和错误比例，{@code -Dload.tokenMode=true} 改用无状态令牌，
+ * {@code -Dload.miniProgram=true} 改走小程序登陆(POST code -> /wx/h5/userinfo)
+ * <p>
+ * Created by berg on 2023/4/14.
+ */
+@Tag("load")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class LoginFlowLoadTest {
+
+    private static final int RATE = Integer.getInteger("load.rate", 100);
+    private static final int DURATION_SECONDS = Integer.getInteger("load.durationSeconds", 10);
+    private static final Duration LATENCY = Duration.ofMillis(Long.getLong("load.latencyMs", 50));
+    private static final double ERROR_RATE = Double.parseDouble(System.getProperty("load.errorRate", "0"));
+    private static final String TARGET_URL = "/wx/h5/userinfo";
+    private static final boolean TOKEN_MODE = Boolean.getBoolean("load.tokenMode");
+    private static final boolean MINI_PROGRAM = Boolean.getBoolean("load.miniProgram");
+    private static final String SESSION_COOKIE = "SESSION";
+    private static final String AUTHORIZATION_REQUEST_COOKIE = "WECHAT_AUTH_REQUEST";
+    private static final String TOKEN_COOKIE = "WECHAT_TOKEN";
+
+    private static WechatStubServer stub;
+    private static ExecutorService clientExecutor;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+    private final AtomicLong codes = new AtomicLong();
+    private HttpClient httpClient;
+
+    @BeforeAll
+    static void startStub() {
+        assumeTrue(redisAvailable(), "redis is not available on localhost:6379");
+        stub = new WechatStubServer().latency(LATENCY).errorRate(ERROR_RATE);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        if (stub != null) {
+            stub.close();
+        }
+        if (clientExecutor != null) {
+            clientExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 把 application.yaml 中 wechat provider 的地址指向桩服务
+     */
+    @DynamicPropertySource
+    static void wechatProvider(DynamicPropertyRegistry registry) {
+        String provider = "spring.security.oauth2.client.provider.wechat.";
+        registry.add(provider + "authorization-uri", () -> stub.baseUrl() + WechatStubServer.AUTHORIZE_PATH);
+        registry.add(provider + "token-uri", () -> stub.baseUrl() + WechatStubServer.TOKEN_PATH);
+        registry.add(provider + "user-info-uri", () -> stub.baseUrl() + WechatStubServer.USER_INFO_PATH);
+        registry.add("wechat.authorization-request.store", () -> "cookie");
+        registry.add("wechat.authorization-request.secrets[0]", () -> "load-test-authorization-request-secret-0123456789");
+        if (TOKEN_MODE) {
+            registry.add("wechat.token.enabled", () -> "true");
+            registry.add("wechat.token.keys[0].id", () -> "load-test");
+            registry.add("wechat.token.keys[0].secret", () -> "load-test-token-secret-0123456789abcdef");
+            registry.add("wechat.token.cookie-name", () -> TOKEN_COOKIE);
+        }
+        if (MINI_PROGRAM) {
+            registry.add("wechat.mini-program.enabled", () -> "true");
+            registry.add("wechat.mini-program.session-uri", () -> stub.baseUrl() + WechatStubServer.JSCODE2SESSION_PATH);
+            registry.add("wechat.mini-program.apps.wechat-mini.appid", () -> "wx-stub-mini-appid");
+            registry.add("wechat.mini-program.apps.wechat-mini.secret", () -> "wx-stub-mini-secret");
+        }
+    }
+
+    @Test
+    void loginFlow() throws Exception {
+        clientExecutor = Executors.newFixedThreadPool(8);
+        this.httpClient = HttpClient.newBuilder()
+                .executor(clientExecutor)
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        // 预热：类加载、JIT、连接池
+        runAtRate(Math.min(RATE, 50), 2);
+
+        Properties statsBefore = redisInfo("stats");
+        Properties commandsBefore = redisInfo("commandstats");
+        this.failures.clear();
+        Run run = runAtRate(RATE, DURATION_SECONDS);
+        Properties statsAfter = redisInfo("stats");
+        Properties commandsAfter = redisInfo("commandstats");
+
+        report(run, statsBefore, statsAfter, commandsBefore, commandsAfter);
+        if (ERROR_RATE == 0) {
+            assertThat(this.failures).isEmpty();
+        }
+    }
+
+    /**
+     * 按固定速率发起登陆
+     *
+     * @return 每个登陆的耗时(纳秒，失败的为-1)和实际用时
+     */
+    private Run runAtRate(int rate, int seconds) throws InterruptedException {
+        int logins = rate * seconds;
+        Run run = new Run(logins);
+        CountDownLatch done = new CountDownLatch(logins);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long begin = System.nanoTime();
+        for (int i = 0; i < logins; i++) {
+            long scheduled = begin + i * interval;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else {
+                // 发压线程自己跟不上计划速率，结果里的延迟包含了这部分
+                run.maxLag = Math.max(run.maxLag, -wait);
+            }
+            int index = i;
+            login().whenComplete((ok, ex) -> {
+                run.latencies[index] = Boolean.TRUE.equals(ok) ? System.nanoTime() - scheduled : -1;
+                if (ex != null) {
+                    fail(ex.getClass().getSimpleName());
+                }
+                done.countDown();
+            });
+        }
+        assertThat(done.await(2, TimeUnit.MINUTES)).isTrue();
+        run.elapsed = System.nanoTime() - begin;
+        return run;
+    }
+
+    private CompletableFuture<Boolean> login() {
+        if (MINI_PROGRAM) {
+            return miniProgramLogin();
+        }
+        String base = "http://localhost:" + this.port;
+        URI authorization = URI.create(base + "/oauth2/authorization/wechat?redirect_url="
+                + URLEncoder.encode(TARGET_URL, StandardCharsets.UTF_8));
+        return send(authorization, null).thenCompose(authorize -> {
+            // 302到微信的授权页(桩)，授权请求保存在会话或者cookie里(wechat.authorization-request.store)
+            String session = cookie(authorize, SESSION_COOKIE, cookie(authorize, AUTHORIZATION_REQUEST_COOKIE, null));
+            if (!expectRedirect("authorize", authorize)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return send(location(authorize), null).thenCompose(qrconnect -> {
+                // 用户扫码确认之后，微信带着code重定向回应用
+                if (!expectRedirect("qrconnect", qrconnect)) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return send(location(qrconnect), session).thenCompose(callback -> {
+                    // 换token、取用户信息，成功后重定向到redirect_url，会话id会被更换
+                    if (!expectRedirect("callback", callback)) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    if (!location(callback).getPath().equals(TARGET_URL)) {
+                        // 登陆失败时重定向到 /login?error
+                        fail("callback");
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    // 令牌模式下只带令牌cookie，会话在登陆成功时已销毁
+                    String credential = TOKEN_MODE ? cookie(callback, TOKEN_COOKIE, null) : cookie(callback, SESSION_COOKIE, session);
+                    return send(location(callback), credential).thenApply(userInfo -> {
+                        boolean ok = userInfo.statusCode() == 200 && userInfo.body().contains("\"openid\":\"openid-");
+                        if (!ok) {
+                            fail("userinfo");
+                        }
+                        return ok;
+                    });
+                });
+            });
+        });
+    }
+
+    /**
+     * 小程序登陆：POST code -> /wx/h5/userinfo，令牌模式下令牌在响应体里，用 Authorization 请求头传递
+     */
+    private CompletableFuture<Boolean> miniProgramLogin() {
+        String base = "http://localhost:" + this.port;
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/login/wechat/miniprogram/wechat-mini"))
+                .timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"code\":\"mini-" + this.codes.incrementAndGet() + "\"}"))
+                .build();
+        return this.httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenCompose(login -> {
+            if (login.statusCode() != 200 || !login.body().contains("\"status\":200")) {
+                fail("login");
+                return CompletableFuture.completedFuture(false);
+            }
+            HttpRequest.Builder userInfo = HttpRequest.newBuilder(URI.create(base + TARGET_URL)).timeout(Duration.ofSeconds(30)).GET();
+            if (TOKEN_MODE) {
+                String body = login.body();
+                int start = body.indexOf("\"token\":\"") + "\"token\":\"".length();
+                userInfo.header("Authorization", "Bearer " + body.substring(start, body.indexOf('"', start)));
+            } else {
+                userInfo.header("Cookie", cookie(login, SESSION_COOKIE, ""));
+            }
+            return this.httpClient.sendAsync(userInfo.build(), HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+                boolean ok = response.statusCode() == 200 && response.body().contains("\"openid\":\"openid-mini-");
+                if (!ok) {
+                    fail("userinfo");
+                }
+                return ok;
+            });
+        });
+    }
+
+    /**
+     * @param cookie 形如 name=value，为空时不带cookie
+     */
+    private CompletableFuture<HttpResponse<String>> send(URI uri, String cookie) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).GET();
+        if (cookie != null) {
+            request.header("Cookie", cookie);
+        }
+        return this.httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private boolean expectRedirect(String step, HttpResponse<String> response) {
+        if (response.statusCode() != 302) {
+            fail(step);
+            return false;
+        }
+        return true;
+    }
+
+    private void fail(String step) {
+        this.failures.computeIfAbsent(step, key -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private static URI location(HttpResponse<String> response) {
+        return response.uri().resolve(response.headers().firstValue("Location").orElse(""));
+    }
+
+    private static String cookie(HttpResponse<String> response, String name, String current) {
+        for (String cookie : response.headers().allValues("Set-Cookie")) {
+            if (cookie.startsWith(name + "=")) {
+                return cookie.substring(0, cookie.indexOf(';'));
+            }
+        }
+        return current;
+    }
+
+    private void report(Run run, Properties statsBefore, Properties statsAfter,
+                        Properties commandsBefore, Properties commandsAfter) {
+        long[] succeeded = Arrays.stream(run.latencies).filter(latency -> latency >= 0).sorted().toArray();
+        int logins = run.latencies.length;
+        System.out.printf("[login] target=%d/s duration=%ds stubLatency=%dms stubErrorRate=%.2f mode=%s%s%n",
+                RATE, DURATION_SECONDS, LATENCY.toMillis(), ERROR_RATE, TOKEN_MODE ? "token" : "session",
+                MINI_PROGRAM ? " miniProgram" : "");
+        System.out.printf("[login] logins=%d succeeded=%d elapsed=%dms throughput=%.1f/s driverLag=%dms failures=%s%n",
+                logins, succeeded.length, TimeUnit.NANOSECONDS.toMillis(run.elapsed),
+                succeeded.length * 1e9 / run.elapsed, TimeUnit.NANOSECONDS.toMillis(run.maxLag), this.failures);
+        if (succeeded.length > 0) {
+            System.out.printf("[login] latency p50=%dms p90=%dms p99=%dms p99.9=%dms max=%dms%n",
+                    percentile(succeeded, 0.50), percentile(succeeded, 0.90), percentile(succeeded, 0.99),
+                    percentile(succeeded, 0.999), TimeUnit.NANOSECONDS.toMillis(succeeded[succeeded.length - 1]));
+        }
+        long inputBytes = delta(statsBefore, statsAfter, "total_net_input_bytes");
+        System.out.printf("[redis] bytes written=%d (%.0f B/login)%n", inputBytes, inputBytes / (double) logins);
+        Map<String, Long> commands = new TreeMap<>();
+        for (String name : commandsAfter.stringPropertyNames()) {
+            long calls = calls(commandsAfter.getProperty(name)) - calls(commandsBefore.getProperty(name));
+            if (calls > 0 && !"cmdstat_info".equals(name)) {
+                commands.put(name.substring("cmdstat_".length()), calls);
+            }
+        }
+        commands.forEach((command, calls) -> System.out.printf("[redis] %-12s calls=%-8d %.2f/login%n",
+                command, calls, calls / (double) logins));
+        // 各阶段耗时，包含预热阶段
+        for (String stage : Arrays.asList(WechatLoginMetrics.AUTHORIZE, WechatLoginMetrics.TOKEN,
+                WechatLoginMetrics.USERINFO, WechatLoginMetrics.SUCCESS, "wechat.session.serializer")) {
+            for (Timer timer : this.meterRegistry.find(stage).timers()) {
+                String tags = timer.getId().getTags().stream()
+                        .filter(tag -> !"registration".equals(tag.getKey()) && !"exception".equals(tag.getKey()))
+                        .map(tag -> tag.getKey() + "=" + tag.getValue())
+                        .collect(Collectors.joining(","));
+                System.out.printf("[stage] %-26s %-40s count=%-7d mean=%.3fms max=%.3fms%n", stage, tags,
+                        timer.count(), timer.mean(TimeUnit.MILLISECONDS), timer.max(TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
+    private Properties redisInfo(String section) {
+        try (RedisConnection connection = this.redisConnectionFactory.getConnection()) {
+            return connection.serverCommands().info(section);
+        }
+    }
+
+    private static long delta(Properties before, Properties after, String key) {
+        return Long.parseLong(after.getProperty(key, "0")) - Long.parseLong(before.getProperty(key, "0"));
+    }
+
+    /**
+     * commandstats的格式：calls=1,usec=2,usec_per_call=2.00
+     */
+    private static long calls(String commandStats) {
+        if (commandStats == null) {
+            return 0;
+        }
+        String calls = commandStats.substring("calls=".length(), commandStats.indexOf(','));
+        return Long.parseLong(calls);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(index, 0)]);
+    }
+
+    private static boolean redisAvailable() {
+        try (Socket ignored = new Socket("localhost", 6379)) {
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static final class Run {
+        private final long[] latencies;
+        private long elapsed;
+        private long maxLag;
+
+        private Run(int logins) {
+            this.latencies = new long[logins];
+        }
+    }
+}
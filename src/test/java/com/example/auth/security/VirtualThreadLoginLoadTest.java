@@ -0,0 +1,162 @@
+package com.example.auth.security;
+
+import com.example.auth.http.WechatHttpClientConfiguration;
+import com.example.auth.http.WechatHttpClientProperties;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import com.example.auth.security.oauth2.wechat.WechatOAuth2UserService;
+import com.example.auth.support.WechatStubServer;
+import com.example.auth.thread.VirtualThreads;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 阻塞登陆链路(获取token + 获取用户信息)在平台线程和虚拟线程下的对比压测，微信接口由本地桩服务模拟。
+ * <p>
+ * 平台线程按tomcat默认的200个工作线程，虚拟线程每个登陆一个线程。运行：
+ * {@code ./gradlew loadTest -PvirtualThreads --tests '*VirtualThreadLoginLoadTest'}，
+ * 可以通过 {@code -Dload.logins}、{@code -Dload.latencyMs}、{@code -Dload.poolSize} 调整并发登陆数、桩服务延迟和连接池大小
+ * <p>
+ * Created by berg on 2023/4/11.
+ */
+@Tag("load")
+class VirtualThreadLoginLoadTest {
+
+    private static final int LOGINS = Integer.getInteger("load.logins", 5000);
+    private static final int PLATFORM_THREADS = Integer.getInteger("load.platformThreads", 200);
+    private static final Duration LATENCY = Duration.ofMillis(Long.getLong("load.latencyMs", 100));
+    /**
+     * 和 application.yaml 中的连接池大小一致，提交记录里的结果按这个值测得；
+     * {@code -Dload.poolSize=1000} 对应 application-virtual-threads.yaml
+     */
+    private static final int POOL_SIZE = Integer.getInteger("load.poolSize", 200);
+
+    private static WechatStubServer stub;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> tokenResponseClient;
+    private WechatOAuth2UserService userService;
+
+    @BeforeAll
+    static void startStub() {
+        stub = new WechatStubServer().latency(LATENCY);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        stub.close();
+    }
+
+    /**
+     * 每种模式使用新的连接池，避免上一轮建好的连接影响结果
+     */
+    @BeforeEach
+    void setUp() {
+        WechatHttpClientProperties properties = new WechatHttpClientProperties();
+        properties.setMaxTotal(POOL_SIZE);
+        properties.setMaxPerRoute(POOL_SIZE);
+        properties.setMaxConcurrentRequests(POOL_SIZE);
+        properties.setConnectionRequestTimeout(Duration.ofSeconds(30));
+        properties.setReadTimeout(Duration.ofSeconds(30));
+        WechatHttpClientConfiguration configuration = new WechatHttpClientConfiguration();
+        this.connectionManager = configuration.wechatHttpConnectionManager(properties);
+        this.httpClient = configuration.wechatHttpClient(this.connectionManager, properties);
+        ClientHttpRequestFactory requestFactory = configuration.wechatClientHttpRequestFactory(this.httpClient, properties);
+        this.tokenResponseClient = SecurityConfiguration.accessTokenResponseClient(requestFactory);
+        this.userService = new WechatOAuth2UserService(requestFactory);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        this.httpClient.close();
+    }
+
+    @Test
+    void platformThreads() throws Exception {
+        run("platform(" + PLATFORM_THREADS + ")", Executors.newFixedThreadPool(PLATFORM_THREADS));
+    }
+
+    @Test
+    void virtualThreads() throws Exception {
+        assumeTrue(VirtualThreads.isSupported(), "virtual threads require JDK 21+, run with -PvirtualThreads");
+        run("virtual", VirtualThreads.newVirtualThreadPerTaskExecutor());
+    }
+
+    private void run(String mode, ExecutorService executor) throws InterruptedException {
+        long[] latencies = new long[LOGINS];
+        AtomicInteger failures = new AtomicInteger();
+        AtomicReference<Exception> firstFailure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(LOGINS);
+        for (int i = 0; i < LOGINS; i++) {
+            int index = i;
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    long begin = System.nanoTime();
+                    login("code-" + mode + "-" + index);
+                    latencies[index] = System.nanoTime() - begin;
+                } catch (Exception ex) {
+                    failures.incrementAndGet();
+                    firstFailure.compareAndSet(null, ex);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        assertThat(done.await(5, TimeUnit.MINUTES)).isTrue();
+        long elapsed = System.nanoTime() - begin;
+        executor.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("[%s] logins=%d failures=%d stubLatency=%dms elapsed=%dms throughput=%.1f/s "
+                        + "p50=%dms p99=%dms max=%dms%n",
+                mode, LOGINS, failures.get(), LATENCY.toMillis(), TimeUnit.NANOSECONDS.toMillis(elapsed),
+                LOGINS * 1e9 / elapsed, percentile(latencies, 0.50), percentile(latencies, 0.99),
+                TimeUnit.NANOSECONDS.toMillis(latencies[LOGINS - 1]));
+        System.out.printf("[%s] pool=%s%n", mode, this.connectionManager.getTotalStats());
+        if (firstFailure.get() != null) {
+            System.out.printf("[%s] first failure: %s%n", mode, firstFailure.get());
+        }
+        assertThat(failures.get()).as("first failure: %s", firstFailure.get()).isZero();
+    }
+
+    private void login(String code) {
+        OAuth2AccessTokenResponse tokenResponse = this.tokenResponseClient
+                .getTokenResponse(stub.authorizationCodeGrantRequest(code));
+        WechatOAuth2User user = this.userService.loadUser(new OAuth2UserRequest(stub.clientRegistration(),
+                tokenResponse.getAccessToken(), tokenResponse.getAdditionalParameters()));
+        assertThat(user.getOpenid()).isEqualTo(tokenResponse.getAdditionalParameters().get("openid"));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(index, 0)]);
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.auth.security.authorization;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+
+import javax.servlet.http.Cookie;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Created by berg on 2023/4/16.
+ */
+class CookieOAuth2AuthorizationRequestRepositoryTest {
+
+    private static final String COOKIE = "WECHAT_AUTH_REQUEST";
+    private static final String SECRET_1 = "0123456789abcdef0123456789abcdef-1";
+    private static final String SECRET_2 = "0123456789abcdef0123456789abcdef-2";
+    private static final Instant NOW = Instant.parse("2023-04-16T08:00:00Z");
+
+    @Test
+    void savedRequestLoadsFromCookieWithoutSession() {
+        CookieOAuth2AuthorizationRequestRepository repository = repository(NOW, SECRET_1);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/oauth2/authorization/wechat");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        repository.saveAuthorizationRequest(authorizationRequest(), request, response);
+
+        assertThat(request.getSession(false)).isNull();
+        String setCookie = response.getHeader(HttpHeaders.SET_COOKIE);
+        assertThat(setCookie).contains("HttpOnly").contains("SameSite=Lax").contains("Max-Age=600");
+
+        OAuth2AuthorizationRequest loaded = repository.loadAuthorizationRequest(callback(response.getCookie(COOKIE), "state-1"));
+        assertThat(loaded).isNotNull();
+        assertThat(loaded.getClientId()).isEqualTo("appid");
+        assertThat(loaded.getRedirectUri()).isEqualTo("http://localhost/login/oauth2/code/wechat");
+        assertThat(loaded.getScopes()).containsExactly("snsapi_login");
+        assertThat(loaded.getAuthorizationRequestUri()).isEqualTo(authorizationRequest().getAuthorizationRequestUri());
+        assertThat(loaded.<String>getAttribute(OAuth2ParameterNames.REGISTRATION_ID)).isEqualTo("wechat");
+        assertThat(loaded.getAdditionalParameters()).containsEntry("appid", "appid");
+    }
+
+    @Test
+    void stateMismatchTamperingAndExpiryAreRejected() {
+        CookieOAuth2AuthorizationRequestRepository repository = repository(NOW, SECRET_1);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        repository.saveAuthorizationRequest(authorizationRequest(), new MockHttpServletRequest(), response);
+        Cookie cookie = response.getCookie(COOKIE);
+
+        assertThat(repository.loadAuthorizationRequest(callback(cookie, "other-state"))).isNull();
+
+        String value = cookie.getValue();
+        String tampered = value.substring(0, 3) + (value.charAt(3) == 'A' ? 'B' : 'A') + value.substring(4);
+        assertThat(repository.loadAuthorizationRequest(callback(new Cookie(COOKIE, tampered), "state-1"))).isNull();
+        assertThat(repository.loadAuthorizationRequest(callback(new Cookie(COOKIE, "garbage"), "state-1"))).isNull();
+
+        assertThat(repository(NOW.plus(Duration.ofMinutes(10)), SECRET_1)
+                .loadAuthorizationRequest(callback(cookie, "state-1"))).isNull();
+        assertThat(repository(NOW, SECRET_2).loadAuthorizationRequest(callback(cookie, "state-1"))).isNull();
+    }
+
+    @Test
+    void previousSecretStillVerifiesDuringRotation() {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        repository(NOW, SECRET_1).saveAuthorizationRequest(authorizationRequest(), new MockHttpServletRequest(), response);
+
+        OAuth2AuthorizationRequest loaded = repository(NOW, SECRET_2, SECRET_1)
+                .loadAuthorizationRequest(callback(response.getCookie(COOKIE), "state-1"));
+
+        assertThat(loaded).isNotNull();
+    }
+
+    @Test
+    void removeClearsCookie() {
+        CookieOAuth2AuthorizationRequestRepository repository = repository(NOW, SECRET_1);
+        MockHttpServletResponse saved = new MockHttpServletResponse();
+        repository.saveAuthorizationRequest(authorizationRequest(), new MockHttpServletRequest(), saved);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        OAuth2AuthorizationRequest removed = repository.removeAuthorizationRequest(
+                callback(saved.getCookie(COOKIE), "state-1"), response);
+
+        assertThat(removed).isNotNull();
+        assertThat(response.getHeader(HttpHeaders.SET_COOKIE)).startsWith(COOKIE + "=;").contains("Max-Age=0");
+    }
+
+    @Test
+    void missingOrPlaceholderSecretRejected() {
+        assertThatThrownBy(() -> repository(NOW)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> repository(NOW, "change-me-to-another-random-secret-of-32-chars"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static MockHttpServletRequest callback(Cookie cookie, String state) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/login/oauth2/code/wechat");
+        request.setParameter(OAuth2ParameterNames.CODE, "code-1");
+        request.setParameter(OAuth2ParameterNames.STATE, state);
+        request.setCookies(cookie);
+        return request;
+    }
+
+    private static OAuth2AuthorizationRequest authorizationRequest() {
+        return OAuth2AuthorizationRequest.authorizationCode()
+                .authorizationUri("https://open.weixin.qq.com/connect/qrconnect")
+                .clientId("appid")
+                .redirectUri("http://localhost/login/oauth2/code/wechat")
+                .scopes(Collections.singleton("snsapi_login"))
+                .state("state-1")
+                .additionalParameters(Collections.singletonMap("appid", "appid"))
+                .attributes(attributes -> attributes.put(OAuth2ParameterNames.REGISTRATION_ID, "wechat"))
+                .authorizationRequestUri("https://open.weixin.qq.com/connect/qrconnect?appid=appid"
+                        + "&redirect_uri=http%3A%2F%2Flocalhost%2Flogin%2Foauth2%2Fcode%2Fwechat"
+                        + "&response_type=code&scope=snsapi_login&state=state-1#wechat_redirect")
+                .build();
+    }
+
+    private static CookieOAuth2AuthorizationRequestRepository repository(Instant now, String... secrets) {
+        List<String> keys = Arrays.asList(secrets);
+        return new CookieOAuth2AuthorizationRequestRepository(COOKIE, keys, Duration.ofMinutes(10),
+                Clock.fixed(now, ZoneOffset.UTC));
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.auth.security.miniprogram;
+
+import com.example.auth.security.token.WechatToken;
+import com.example.auth.security.token.WechatTokenCodec;
+import com.example.auth.security.token.WechatTokenProperties;
+import com.example.auth.security.token.WechatTokenService;
+import com.example.auth.support.WechatStubServer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Created by berg on 2023/4/15.
+ */
+class WechatMiniProgramAuthenticationTest {
+
+    private static final String LOGIN_URL = "/login/wechat/miniprogram/{registrationId}";
+
+    private final WechatStubServer stub = new WechatStubServer();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final DefaultWechatMiniProgramSessionClient sessionClient = new DefaultWechatMiniProgramSessionClient(
+            new HttpComponentsClientHttpRequestFactory(HttpClients.createDefault()), properties(this.stub));
+    private final WechatMiniProgramAuthenticationProvider provider = new WechatMiniProgramAuthenticationProvider(
+            this.sessionClient, this.meterRegistry);
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+        this.stub.close();
+    }
+
+    @Test
+    void concurrentSubmissionsOfSameCodeShareOneExchange() {
+        this.stub.latency(Duration.ofMillis(300));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<CompletableFuture<OAuth2AuthenticationToken>> logins = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                logins.add(CompletableFuture.supplyAsync(() -> (OAuth2AuthenticationToken) this.provider.authenticate(
+                        new WechatMiniProgramAuthenticationToken("wechat-mini", "code-a")), executor));
+            }
+            for (CompletableFuture<OAuth2AuthenticationToken> login : logins) {
+                OAuth2AuthenticationToken authentication = login.join();
+                assertThat(authentication.getName()).isEqualTo("openid-code-a");
+                assertThat(authentication.getAuthorizedClientRegistrationId()).isEqualTo("wechat-mini");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(this.stub.sessionRequests()).isEqualTo(1);
+        assertThat(this.meterRegistry.get(WechatMiniProgramAuthenticationProvider.SHARED).functionCounter().count())
+                .isEqualTo(7);
+    }
+
+    @Test
+    void jsonLoginIssuesToken() throws Exception {
+        WechatTokenProperties.Key key = new WechatTokenProperties.Key();
+        key.setId("k1");
+        key.setSecret("0123456789abcdef0123456789abcdef");
+        WechatTokenService tokenService = new WechatTokenService(new WechatTokenCodec(Collections.singletonList(key), "k1",
+                false, Duration.ofHours(2)), "WECHAT_TOKEN", 100);
+        WechatMiniProgramAuthenticationFilter filter = new WechatMiniProgramAuthenticationFilter(LOGIN_URL, this.sessionClient::supports,
+                this.provider, tokenService);
+
+        MockHttpServletResponse response = login(filter, "{\"code\":\"code-b\",\"scene\":{\"path\":\"index\"}}");
+
+        JsonNode body = this.objectMapper.readTree(response.getContentAsString());
+        assertThat(body.get("status").asInt()).isEqualTo(200);
+        assertThat(body.get("openid").asText()).isEqualTo("openid-code-b");
+        assertThat(body.get("unionid").asText()).isEqualTo("union-openid-code-b");
+        assertThat(body.get("expires_in").asLong()).isEqualTo(7200);
+        assertThat(body.has("session_key")).isFalse();
+        WechatToken token = tokenService.authenticate(body.get("token").asText());
+        assertThat(token.getRegistrationId()).isEqualTo("wechat-mini");
+        assertThat(token.getUser().getOpenid()).isEqualTo("openid-code-b");
+    }
+
+    @Test
+    void invalidCodeReturnsWechatErrcode() throws Exception {
+        WechatMiniProgramAuthenticationFilter filter = new WechatMiniProgramAuthenticationFilter(LOGIN_URL, this.sessionClient::supports,
+                this.provider, null);
+
+        MockHttpServletResponse response = login(filter, "{\"code\":\"invalid-c\"}");
+
+        JsonNode body = this.objectMapper.readTree(response.getContentAsString());
+        assertThat(body.get("status").asInt()).isEqualTo(401);
+        assertThat(body.get("errcode").asText()).isEqualTo("40029");
+        assertThat(SecurityContextHolder.getContext().getAuthentication()).isNull();
+    }
+
+    @Test
+    void unknownRegistrationIdRejectedBeforeExchange() throws Exception {
+        WechatMiniProgramAuthenticationFilter filter = new WechatMiniProgramAuthenticationFilter(LOGIN_URL, this.sessionClient::supports,
+                this.provider, null);
+
+        MockHttpServletResponse response = login(filter, "random-id", "{\"code\":\"code-d\"}");
+
+        JsonNode body = this.objectMapper.readTree(response.getContentAsString());
+        assertThat(body.get("status").asInt()).isEqualTo(401);
+        assertThat(this.stub.sessionRequests()).isZero();
+        assertThat(SecurityContextHolder.getContext().getAuthentication()).isNull();
+    }
+
+    private static MockHttpServletResponse login(WechatMiniProgramAuthenticationFilter filter, String json) throws Exception {
+        return login(filter, "wechat-mini", json);
+    }
+
+    private static MockHttpServletResponse login(WechatMiniProgramAuthenticationFilter filter, String registrationId,
+                                                 String json) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/login/wechat/miniprogram/" + registrationId);
+        request.setServletPath("/login/wechat/miniprogram/" + registrationId);
+        request.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        request.setContent(json.getBytes(StandardCharsets.UTF_8));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+
+    private static WechatMiniProgramProperties properties(WechatStubServer stub) {
+        WechatMiniProgramProperties.App app = new WechatMiniProgramProperties.App();
+        app.setAppid("wx-mini-appid");
+        app.setSecret("wx-mini-secret");
+        WechatMiniProgramProperties properties = new WechatMiniProgramProperties();
+        properties.setSessionUri(stub.baseUrl() + WechatStubServer.JSCODE2SESSION_PATH);
+        properties.getApps().put("wechat-mini", app);
+        return properties;
+    }
+}
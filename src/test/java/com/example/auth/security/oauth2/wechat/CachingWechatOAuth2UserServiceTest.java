@@ -0,0 +1,120 @@
+package com.example.auth.security.oauth2.wechat;
+
+import com.example.auth.support.WechatStubServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Created by berg on 2023/4/12.
+ */
+class CachingWechatOAuth2UserServiceTest {
+
+    private WechatStubServer stub;
+
+    @BeforeEach
+    void setUp() {
+        this.stub = new WechatStubServer();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.stub.close();
+    }
+
+    @Test
+    void repeatLoginSkipsUserInfoRequest() {
+        CachingWechatOAuth2UserService userService = userService(Duration.ofMinutes(20));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        userService.bindTo(registry);
+
+        WechatOAuth2User first = (WechatOAuth2User) userService.loadUser(userRequest("openid-a", null));
+        WechatOAuth2User second = (WechatOAuth2User) userService.loadUser(userRequest("openid-a", null));
+
+        assertThat(second).isSameAs(first);
+        assertThat(first.getOpenid()).isEqualTo("openid-a");
+        assertThat(this.stub.userInfoRequests()).isEqualTo(1);
+        assertThat(registry.get("cache.gets").tag("cache", CachingWechatOAuth2UserService.CACHE_NAME)
+                .tag("key", "openid").tag("result", "hit").functionCounter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void unionidFromAnotherAppSkipsUserInfoRequest() {
+        CachingWechatOAuth2UserService userService = userService(Duration.ofMinutes(20));
+        userService.loadUser(userRequest("openid-a", null));
+
+        // 同一开放平台下另一个应用的openid，unionid相同
+        WechatOAuth2User user = (WechatOAuth2User) userService.loadUser(userRequest("openid-b", "union-openid-a"));
+
+        assertThat(user.getOpenid()).isEqualTo("openid-b");
+        assertThat(user.getUnionid()).isEqualTo("union-openid-a");
+        assertThat(user.getNickname()).isEqualTo("stub");
+        assertThat(this.stub.userInfoRequests()).isEqualTo(1);
+    }
+
+    @Test
+    void staleEntryIsRefreshedInBackground() throws InterruptedException {
+        CachingWechatOAuth2UserService userService = userService(Duration.ofMillis(100));
+        userService.loadUser(userRequest("openid-a", null));
+        Thread.sleep(200);
+
+        // 触发刷新的这次登陆直接拿到旧值
+        assertThat(userService.loadUser(userRequest("openid-a", null)).getName()).isEqualTo("openid-a");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.stub.userInfoRequests() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(this.stub.userInfoRequests()).isEqualTo(2);
+    }
+
+    @Test
+    void refreshRunsOnDedicatedExecutor() throws InterruptedException {
+        WechatOAuth2UserService delegate = new WechatOAuth2UserService(new SimpleClientHttpRequestFactory());
+        List<String> threads = new CopyOnWriteArrayList<>();
+        CachingWechatOAuth2UserService userService = new CachingWechatOAuth2UserService(userRequest -> {
+            threads.add(Thread.currentThread().getName());
+            return delegate.loadUser(userRequest);
+        }, 100, Duration.ofMinutes(30), Duration.ofMillis(100), 1, 1);
+        userService.loadUser(userRequest("openid-a", null));
+        Thread.sleep(200);
+
+        userService.loadUser(userRequest("openid-a", null));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (threads.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        userService.destroy();
+
+        assertThat(threads).hasSize(2);
+        assertThat(threads.get(1)).startsWith("wechat-userinfo-refresh-");
+    }
+
+    private CachingWechatOAuth2UserService userService(Duration refreshAfterWrite) {
+        return new CachingWechatOAuth2UserService(new WechatOAuth2UserService(new SimpleClientHttpRequestFactory()),
+                100, Duration.ofMinutes(30), refreshAfterWrite);
+    }
+
+    private OAuth2UserRequest userRequest(String openid, String unionid) {
+        Map<String, Object> additionalParameters = new HashMap<>();
+        additionalParameters.put("openid", openid);
+        if (unionid != null) {
+            additionalParameters.put("unionid", unionid);
+        }
+        OAuth2AccessToken accessToken = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token-" + openid,
+                Instant.now(), Instant.now().plusSeconds(7200));
+        return new OAuth2UserRequest(this.stub.clientRegistration(), accessToken, additionalParameters);
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.auth.security.oauth2.wechat;
+
+import com.example.auth.security.SecurityConfiguration;
+import com.example.auth.support.WechatStubServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.oauth2.client.InMemoryOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2RefreshToken;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Created by berg on 2023/4/15.
+ */
+class RefreshingOAuth2AuthorizedClientServiceTest {
+
+    private final WechatStubServer stub = new WechatStubServer();
+    private final ClientRegistration clientRegistration = this.stub.clientRegistration();
+    private final MutableClock clock = new MutableClock(Instant.now());
+    private final RefreshingOAuth2AuthorizedClientService authorizedClientService = new RefreshingOAuth2AuthorizedClientService(
+            new InMemoryOAuth2AuthorizedClientService(new InMemoryClientRegistrationRepository(this.clientRegistration)),
+            SecurityConfiguration.refreshTokenResponseClient(new SimpleClientHttpRequestFactory()));
+
+    RefreshingOAuth2AuthorizedClientServiceTest() {
+        this.authorizedClientService.setClock(this.clock);
+        this.authorizedClientService.setRefreshBefore(Duration.ofMinutes(10));
+        this.authorizedClientService.setJitter(Duration.ZERO);
+        this.authorizedClientService.setRatePerSecond(1000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.stub.close();
+    }
+
+    @Test
+    void refreshesBeforeExpiryAndKeepsRefreshTokenIssuedAt() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        this.authorizedClientService.bindTo(registry);
+        Instant loggedInAt = this.clock.instant();
+        save("user-a", "refresh-a");
+
+        this.authorizedClientService.tick();
+        assertThat(this.stub.refreshTokenRequests()).isZero();
+
+        this.clock.advance(Duration.ofMinutes(111));
+        this.authorizedClientService.tick();
+
+        OAuth2AuthorizedClient refreshed = this.authorizedClientService.loadAuthorizedClient("wechat", "user-a");
+        assertThat(this.stub.refreshTokenRequests()).isEqualTo(1);
+        assertThat(refreshed.getAccessToken().getTokenValue()).startsWith("refreshed-");
+        assertThat(refreshed.getRefreshToken().getTokenValue()).isEqualTo("refresh-a");
+        assertThat(refreshed.getRefreshToken().getIssuedAt()).isEqualTo(loggedInAt);
+        assertThat(registry.get("wechat.token.refresh").tag("result", "success").functionCounter().count()).isEqualTo(1);
+        // 刷新后按新的过期时间重新登记
+        assertThat(registry.get("wechat.token.refresh.scheduled").gauge().value()).isEqualTo(1);
+    }
+
+    @Test
+    void batchSizeLimitsEachTick() {
+        this.authorizedClientService.setBatchSize(2);
+        for (int i = 0; i < 5; i++) {
+            save("user-" + i, "refresh-" + i);
+        }
+        this.clock.advance(Duration.ofMinutes(111));
+
+        this.authorizedClientService.tick();
+        assertThat(this.stub.refreshTokenRequests()).isEqualTo(2);
+
+        this.authorizedClientService.tick();
+        this.authorizedClientService.tick();
+        assertThat(this.stub.refreshTokenRequests()).isEqualTo(5);
+    }
+
+    @Test
+    void rejectedRefreshTokenIsNotRetried() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        this.authorizedClientService.bindTo(registry);
+        save("user-a", "expired-a");
+        this.clock.advance(Duration.ofMinutes(111));
+
+        this.authorizedClientService.tick();
+        this.clock.advance(Duration.ofHours(1));
+        this.authorizedClientService.tick();
+
+        assertThat(this.stub.refreshTokenRequests()).isEqualTo(1);
+        assertThat(registry.get("wechat.token.refresh").tag("result", "rejected").functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get("wechat.token.refresh.scheduled").gauge().value()).isZero();
+    }
+
+    @Test
+    void stopsWhenRefreshTokenExpires() {
+        this.authorizedClientService.setRefreshTokenTtl(Duration.ofHours(3));
+        save("user-a", "refresh-a");
+
+        for (int i = 0; i < 5; i++) {
+            this.clock.advance(Duration.ofMinutes(111));
+            this.authorizedClientService.tick();
+        }
+
+        // 第一次刷新后的下一次刷新时间超过了refresh_token的有效期
+        assertThat(this.stub.refreshTokenRequests()).isEqualTo(1);
+    }
+
+    @Test
+    void reloginReplacesScheduledRefresh() {
+        save("user-a", "refresh-a");
+        this.clock.advance(Duration.ofMinutes(100));
+        save("user-a", "refresh-b");
+
+        this.clock.advance(Duration.ofMinutes(11));
+        this.authorizedClientService.tick();
+
+        assertThat(this.stub.refreshTokenRequests()).isZero();
+    }
+
+    private void save(String principalName, String refreshToken) {
+        Instant now = this.clock.instant();
+        OAuth2AuthorizedClient authorizedClient = new OAuth2AuthorizedClient(this.clientRegistration, principalName,
+                new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token-" + principalName, now, now.plusSeconds(7200)),
+                new OAuth2RefreshToken(refreshToken, now));
+        this.authorizedClientService.saveAuthorizedClient(authorizedClient, new TestingAuthenticationToken(principalName, ""));
+    }
+
+    private static final class MutableClock extends Clock {
+
+        private volatile Instant instant;
+
+        MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        void advance(Duration duration) {
+            this.instant = this.instant.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return this.instant;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Created by berg on 2023/4/15.
+ */
+class WechatJsonReaderTest {
+
+    @Test
+    void tokenResponseMatchesMapConverter() throws IOException {
+        String body = "{\"access_token\":\"ACCESS_TOKEN\",\"expires_in\":7200,\"refresh_token\":\"REFRESH_TOKEN\","
+                + "\"openid\":\"OPENID\",\"scope\":\"snsapi_login\",\"unionid\":\"UNIONID\",\"is_snapshotuser\":1}";
+
+        OAuth2AccessTokenResponse tokenResponse = WechatJsonReader.readTokenResponse(bytes(body));
+
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("access_token", "ACCESS_TOKEN");
+        parameters.put("expires_in", "7200");
+        parameters.put("refresh_token", "REFRESH_TOKEN");
+        parameters.put("openid", "OPENID");
+        parameters.put("scope", "snsapi_login");
+        parameters.put("unionid", "UNIONID");
+        parameters.put("is_snapshotuser", "1");
+        OAuth2AccessTokenResponse expected = new WechatMapOAuth2AccessTokenResponseConverter().convert(parameters);
+        assertThat(tokenResponse.getAccessToken().getTokenValue()).isEqualTo(expected.getAccessToken().getTokenValue());
+        assertThat(tokenResponse.getAccessToken().getScopes()).isEqualTo(expected.getAccessToken().getScopes());
+        assertThat(tokenResponse.getAccessToken().getExpiresAt().getEpochSecond())
+                .isCloseTo(expected.getAccessToken().getExpiresAt().getEpochSecond(), within(1L));
+        assertThat(tokenResponse.getRefreshToken().getTokenValue()).isEqualTo("REFRESH_TOKEN");
+        assertThat(tokenResponse.getAdditionalParameters()).isEqualTo(expected.getAdditionalParameters());
+    }
+
+    @Test
+    void userInfoSkipsUnknownFields() throws IOException {
+        String body = "{\"openid\":\"OPENID\",\"nickname\":\"NICKNAME\",\"sex\":1,\"language\":\"zh_CN\",\"city\":\"CITY\","
+                + "\"extra\":{\"a\":[1,2]},\"privilege\":[\"PRIVILEGE1\",\"PRIVILEGE2\"],\"unionid\":\"UNIONID\"}";
+
+        WechatOAuth2User user = WechatJsonReader.readUser(bytes(body));
+
+        assertThat(user.getOpenid()).isEqualTo("OPENID");
+        assertThat(user.getNickname()).isEqualTo("NICKNAME");
+        assertThat(user.getSex()).isEqualTo(1);
+        assertThat(user.getCity()).isEqualTo("CITY");
+        assertThat(user.getPrivilege()).containsExactly("PRIVILEGE1", "PRIVILEGE2");
+        assertThat(user.getUnionid()).isEqualTo("UNIONID");
+    }
+
+    @Test
+    void errcodeIsRaised() {
+        assertThatThrownBy(() -> WechatJsonReader.readTokenResponse(bytes("{\"errcode\":40163,\"errmsg\":\"code been used\"}")))
+                .isInstanceOf(OAuth2AuthorizationException.class)
+                .satisfies(ex -> assertThat(WechatErrorCodes.find(ex)).isEqualTo("40163"));
+        assertThatThrownBy(() -> WechatJsonReader.readUser(bytes("{\"errcode\":40001,\"errmsg\":\"invalid credential\"}")))
+                .isInstanceOf(OAuth2AuthorizationException.class)
+                .satisfies(ex -> assertThat(WechatErrorCodes.find(ex)).isEqualTo("40001"));
+        assertThatThrownBy(() -> WechatJsonReader.readUser(bytes("[]"))).isInstanceOf(IOException.class);
+    }
+
+    private static byte[] bytes(String body) {
+        return body.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.util.UriUtils;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Created by berg on 2023/4/14.
+ */
+class WechatOAuth2AuthorizationRequestResolverTest {
+
+    private final ClientRegistration qrconnect = registration("wechat", "https://open.weixin.qq.com/connect/qrconnect",
+            "snsapi_login");
+    private final ClientRegistration inApp = registration("wechat-mp", "https://open.weixin.qq.com/connect/oauth2/authorize",
+            "snsapi_userinfo");
+    private final ClientRegistration other = ClientRegistration.withRegistrationId("other")
+            .clientId("client")
+            .clientSecret("secret")
+            .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+            .redirectUri("{baseUrl}/login/oauth2/code/{registrationId}")
+            .scope("profile")
+            .authorizationUri("https://example.com/authorize")
+            .tokenUri("https://example.com/token")
+            .build();
+    private final WechatOAuth2AuthorizationRequestResolver resolver = new WechatOAuth2AuthorizationRequestResolver(
+            new InMemoryClientRegistrationRepository(this.qrconnect, this.inApp, this.other), "/oauth2/authorization");
+
+    @Test
+    void qrconnectParametersInWechatOrder() {
+        OAuth2AuthorizationRequest authorizationRequest = this.resolver.resolve(request("wechat", "http://localhost:8080/wx/h5/userinfo"));
+
+        assertThat(authorizationRequest.getAuthorizationRequestUri()).isEqualTo("https://open.weixin.qq.com/connect/qrconnect"
+                + "?appid=wx-appid&redirect_uri=http://localhost:8080/login/oauth2/code/wechat"
+                + "&response_type=code&scope=snsapi_login&state=http://localhost:8080/wx/h5/userinfo#wechat_redirect");
+        assertThat(authorizationRequest.getRedirectUri()).isEqualTo("http://localhost:8080/login/oauth2/code/wechat");
+        assertThat(authorizationRequest.getState()).isEqualTo("http://localhost:8080/wx/h5/userinfo");
+        assertThat(authorizationRequest.<String>getAttribute(OAuth2ParameterNames.REGISTRATION_ID)).isEqualTo("wechat");
+    }
+
+    @Test
+    void inAppAuthorizeEndpoint() {
+        OAuth2AuthorizationRequest authorizationRequest = this.resolver.resolve(request("wechat-mp", "/home"));
+
+        assertThat(authorizationRequest.getAuthorizationRequestUri()).isEqualTo("https://open.weixin.qq.com/connect/oauth2/authorize"
+                + "?appid=wx-appid&redirect_uri=http://localhost:8080/login/oauth2/code/wechat-mp"
+                + "&response_type=code&scope=snsapi_userinfo&state=/home#wechat_redirect");
+    }
+
+    @Test
+    void stateEncodedLikeSpring() {
+        String state = "http://localhost:8080/页面?a=1&b=c d#frag+x";
+
+        OAuth2AuthorizationRequest authorizationRequest = this.resolver.resolve(request("wechat", state));
+
+        assertThat(authorizationRequest.getAuthorizationRequestUri())
+                .endsWith("&state=" + UriUtils.encodeQueryParam(state, StandardCharsets.UTF_8) + "#wechat_redirect");
+    }
+
+    @Test
+    void otherRegistrationsUseDefaultResolver() {
+        // 默认resolver的customizer从RequestContextHolder取请求，应用里由RequestContextFilter绑定
+        MockHttpServletRequest request = request("other", "/home");
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        OAuth2AuthorizationRequest authorizationRequest;
+        try {
+            authorizationRequest = this.resolver.resolve(request);
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+
+        assertThat(authorizationRequest.getAuthorizationRequestUri()).startsWith("https://example.com/authorize?response_type=code")
+                .contains("client_id=client")
+                .doesNotContain("#wechat_redirect");
+        assertThat(authorizationRequest.getState()).isEqualTo("/home");
+    }
+
+    @Test
+    void notAnAuthorizationRequest() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/wx/h5/userinfo");
+        request.setServletPath("/wx/h5/userinfo");
+
+        assertThat(this.resolver.resolve(request)).isNull();
+    }
+
+    private static MockHttpServletRequest request(String registrationId, String redirectUrl) {
+        String uri = "/oauth2/authorization/" + registrationId;
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        request.setServletPath(uri);
+        request.setServerPort(8080);
+        request.setParameter(WechatOAuth2AuthRequestBuilderCustomizer.REDIRECT_URL_PARAMETER, redirectUrl);
+        return request;
+    }
+
+    private static ClientRegistration registration(String registrationId, String authorizationUri, String scope) {
+        return ClientRegistration.withRegistrationId(registrationId)
+                .clientId("wx-appid")
+                .clientSecret("wx-secret")
+                .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+                .redirectUri("{baseUrl}/login/oauth2/code/{registrationId}")
+                .scope(scope)
+                .authorizationUri(authorizationUri)
+                .tokenUri("https://api.weixin.qq.com/sns/oauth2/access_token")
+                .userInfoUri("https://api.weixin.qq.com/sns/userinfo")
+                .build();
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.auth.security.oauth2.wechat;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.RequestEntity;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationResponse;
+import org.springframework.security.oauth2.core.user.DefaultOAuth2User;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Created by berg on 2023/4/15.
+ */
+class WechatProviderRegistryTest {
+
+    private final ClientRegistration website = registration("wechat", "https://open.weixin.qq.com/connect/qrconnect",
+            "wx-website", "secret");
+    private final ClientRegistration officialAccount = registration("wechat-mp", "https://open.weixin.qq.com/connect/oauth2/authorize",
+            "wx-mp", "secret");
+    private final ClientRegistration other = registration("other", "https://example.com/authorize", "client", "secret");
+
+    @Test
+    void everyWechatAppGetsWechatTokenRequest() {
+        WechatProviderRegistry registry = new WechatProviderRegistry();
+        registry.reload(Arrays.asList(this.website, this.officialAccount, this.other));
+        WechatOAuth2AuthorizationCodeGrantRequestEntityConverter converter =
+                new WechatOAuth2AuthorizationCodeGrantRequestEntityConverter(registry);
+
+        RequestEntity<?> request = converter.convert(grantRequest(this.officialAccount, "code-a"));
+
+        assertThat(registry.get(this.website).getType()).isEqualTo(WechatProviderType.WEBSITE);
+        assertThat(registry.get(this.officialAccount).getType()).isEqualTo(WechatProviderType.OFFICIAL_ACCOUNT);
+        assertThat(request.getMethod()).isEqualTo(HttpMethod.GET);
+        assertThat(request.getUrl().toString()).isEqualTo("https://api.weixin.qq.com/sns/oauth2/access_token"
+                + "?grant_type=authorization_code&code=code-a&redirect_uri=http://localhost/login/oauth2/code/wechat-mp"
+                + "&appid=wx-mp&secret=secret");
+        assertThat(request.getBody()).isNull();
+        assertThat(registry.get(this.other)).isNull();
+        assertThat(converter.convert(grantRequest(this.other, "code-b")).getMethod()).isEqualTo(HttpMethod.POST);
+    }
+
+    @Test
+    void configuredTypeForUnknownAuthorizationUri() {
+        ClientRegistration proxied = registration("wechat-proxy", "https://wx-proxy.example.com/connect/qrconnect",
+                "wx-proxy", "secret");
+        WechatProviderRegistry registry = new WechatProviderRegistry(
+                Collections.singletonMap("wechat-proxy", WechatProviderType.WEBSITE));
+
+        assertThat(new WechatProviderRegistry().get(proxied)).isNull();
+        assertThat(registry.get(proxied).getType()).isEqualTo(WechatProviderType.WEBSITE);
+    }
+
+    @Test
+    void changedRegistrationRecompiledWithoutRestart() {
+        WechatProviderRegistry registry = new WechatProviderRegistry();
+        WechatProvider provider = registry.get(this.website);
+
+        ClientRegistration reloaded = ClientRegistration.withClientRegistration(this.website).build();
+        assertThat(registry.get(reloaded)).isSameAs(provider);
+
+        ClientRegistration rotated = ClientRegistration.withClientRegistration(this.website).clientSecret("rotated").build();
+        WechatProvider recompiled = registry.get(rotated);
+        assertThat(recompiled).isNotSameAs(provider);
+        assertThat(recompiled.tokenRequest(grantRequest(rotated, "code-a")).getUrl().toString()).endsWith("&secret=rotated");
+
+        registry.reload(Collections.singletonList(this.other));
+        assertThat(registry.get(this.other)).isNull();
+        assertThat(registry.get(rotated)).isNotSameAs(recompiled);
+    }
+
+    @Test
+    void userServiceDispatchedByRegistration() {
+        OAuth2User wechatUser = new DefaultOAuth2User(Collections.emptyList(), Collections.singletonMap("openid", "openid-a"), "openid");
+        OAuth2User otherUser = new DefaultOAuth2User(Collections.emptyList(), Collections.singletonMap("sub", "user-a"), "sub");
+        WechatProviderOAuth2UserService userService = new WechatProviderOAuth2UserService(new WechatProviderRegistry(),
+                userRequest -> wechatUser, userRequest -> otherUser);
+
+        assertThat(userService.loadUser(userRequest(this.officialAccount))).isSameAs(wechatUser);
+        assertThat(userService.loadUser(userRequest(this.other))).isSameAs(otherUser);
+    }
+
+    private static OAuth2UserRequest userRequest(ClientRegistration clientRegistration) {
+        return new OAuth2UserRequest(clientRegistration, new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token",
+                Instant.now(), Instant.now().plusSeconds(7200)));
+    }
+
+    private static OAuth2AuthorizationCodeGrantRequest grantRequest(ClientRegistration clientRegistration, String code) {
+        String redirectUri = "http://localhost/login/oauth2/code/" + clientRegistration.getRegistrationId();
+        OAuth2AuthorizationRequest authorizationRequest = OAuth2AuthorizationRequest.authorizationCode()
+                .clientId(clientRegistration.getClientId())
+                .authorizationUri(clientRegistration.getProviderDetails().getAuthorizationUri())
+                .redirectUri(redirectUri)
+                .state("state")
+                .build();
+        OAuth2AuthorizationResponse authorizationResponse = OAuth2AuthorizationResponse.success(code)
+                .redirectUri(redirectUri)
+                .state("state")
+                .build();
+        return new OAuth2AuthorizationCodeGrantRequest(clientRegistration,
+                new OAuth2AuthorizationExchange(authorizationRequest, authorizationResponse));
+    }
+
+    private static ClientRegistration registration(String registrationId, String authorizationUri, String clientId,
+                                                   String clientSecret) {
+        return ClientRegistration.withRegistrationId(registrationId)
+                .clientId(clientId)
+                .clientSecret(clientSecret)
+                .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+                .redirectUri("{baseUrl}/login/oauth2/code/{registrationId}")
+                .scope("snsapi_login")
+                .authorizationUri(authorizationUri)
+                .tokenUri(authorizationUri.startsWith("https://open.weixin.qq.com")
+                        ? "https://api.weixin.qq.com/sns/oauth2/access_token" : "https://example.com/token")
+                .userInfoUri("https://api.weixin.qq.com/sns/userinfo")
+                .build();
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.auth.security.token;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+import javax.servlet.http.Cookie;
+import java.io.IOException;
+import java.net.Socket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 令牌模式下没有会话，注销请求不能因为会话里取不到csrf令牌被403拦掉。需要本地 6379 端口的redis
+ * <p>
+ * Created by berg on 2023/4/15.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "wechat.token.enabled=true",
+        "wechat.token.keys[0].id=test",
+        "wechat.token.keys[0].secret=test-token-secret-0123456789abcdefghijkl",
+        "wechat.token.cookie-name=WECHAT_TOKEN"
+})
+class WechatTokenLogoutTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private WechatTokenService tokenService;
+
+    @BeforeAll
+    static void requireRedis() {
+        assumeTrue(redisAvailable(), "redis is not available on localhost:6379");
+    }
+
+    @Test
+    void bearerLogoutRevokesToken() throws Exception {
+        String token = this.tokenService.issue(authentication());
+
+        this.mockMvc.perform(post("/logout").header("Authorization", "Bearer " + token))
+                .andExpect(status().is3xxRedirection());
+
+        assertThatThrownBy(() -> this.tokenService.authenticate(token)).isInstanceOf(BadCredentialsException.class);
+    }
+
+    @Test
+    void cookieLogoutNeedsCsrfCookie() throws Exception {
+        String token = this.tokenService.issue(authentication());
+        Cookie tokenCookie = new Cookie("WECHAT_TOKEN", token);
+
+        // 令牌cookie会被跨站请求带上，没有csrf令牌时拒绝，令牌仍然有效
+        this.mockMvc.perform(post("/logout").cookie(tokenCookie))
+                .andExpect(status().isForbidden());
+        assertThat(this.tokenService.authenticate(token).getUser().getOpenid()).isEqualTo("openid-1");
+
+        // 页面从 XSRF-TOKEN cookie 读出csrf令牌放到请求头里
+        this.mockMvc.perform(post("/logout").cookie(tokenCookie, new Cookie("XSRF-TOKEN", "csrf-1"))
+                        .header("X-XSRF-TOKEN", "csrf-1"))
+                .andExpect(status().is3xxRedirection());
+
+        assertThatThrownBy(() -> this.tokenService.authenticate(token)).isInstanceOf(BadCredentialsException.class);
+    }
+
+    private static OAuth2AuthenticationToken authentication() {
+        WechatOAuth2User user = new WechatOAuth2User();
+        user.setOpenid("openid-1");
+        user.setNickname("张三");
+        return new OAuth2AuthenticationToken(user, AuthorityUtils.createAuthorityList("ROLE_USER"), "wechat");
+    }
+
+    private static boolean redisAvailable() {
+        try (Socket ignored = new Socket("localhost", 6379)) {
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.auth.security.token;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2User;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.CredentialsExpiredException;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Created by berg on 2023/4/15.
+ */
+class WechatTokenServiceTest {
+
+    private static final Instant NOW = Instant.parse("2023-04-15T08:00:00Z");
+
+    @Test
+    void roundTrip() {
+        WechatTokenCodec codec = codec(false, NOW, "k1", key("k1"));
+
+        WechatToken token = codec.decode(codec.encode(authentication()));
+
+        assertThat(token.getRegistrationId()).isEqualTo("wechat");
+        assertThat(token.getKeyId()).isEqualTo("k1");
+        assertThat(token.getExpiresAt() - token.getIssuedAt()).isEqualTo(7200);
+        assertThat(token.getUser().getOpenid()).isEqualTo("openid-1");
+        assertThat(token.getUser().getNickname()).isEqualTo("张三");
+        assertThat(token.getUser().getPrivilege()).containsExactly("chinaunicom");
+        OAuth2AuthenticationToken authentication = token.toAuthentication();
+        assertThat(authentication.getName()).isEqualTo("openid-1");
+        assertThat(AuthorityUtils.authorityListToSet(authentication.getAuthorities())).containsExactly("ROLE_USER");
+    }
+
+    @Test
+    void encryptedContentIsNotReadable() {
+        WechatTokenCodec codec = codec(true, NOW, "k1", key("k1"));
+
+        String token = codec.encode(authentication());
+
+        assertThat(new String(Base64.getUrlDecoder().decode(token.substring(0, token.indexOf('.')))))
+                .doesNotContain("openid-1");
+        assertThat(codec.decode(token).getUser().getOpenid()).isEqualTo("openid-1");
+    }
+
+    @Test
+    void tamperedTokenRejected() {
+        WechatTokenCodec codec = codec(false, NOW, "k1", key("k1"));
+        String token = codec.encode(authentication());
+        char[] chars = token.toCharArray();
+        chars[10] = chars[10] == 'A' ? 'B' : 'A';
+
+        assertThatThrownBy(() -> codec.decode(new String(chars))).isInstanceOf(BadCredentialsException.class);
+        assertThatThrownBy(() -> codec.decode("not-a-token")).isInstanceOf(BadCredentialsException.class);
+    }
+
+    @Test
+    void expiredTokenRejected() {
+        String token = codec(false, NOW, "k1", key("k1")).encode(authentication());
+
+        assertThatThrownBy(() -> codec(false, NOW.plus(Duration.ofHours(2)), "k1", key("k1")).decode(token))
+                .isInstanceOf(CredentialsExpiredException.class);
+    }
+
+    @Test
+    void keyRotation() {
+        String oldToken = codec(false, NOW, "k1", key("k1")).encode(authentication());
+        WechatTokenCodec rotated = codec(false, NOW, "k2", key("k1"), key("k2"));
+
+        String newToken = rotated.encode(authentication());
+
+        assertThat(rotated.decode(oldToken).getKeyId()).isEqualTo("k1");
+        assertThat(rotated.decode(newToken).getKeyId()).isEqualTo("k2");
+        // 旧密钥删除后，用它签发的令牌失效
+        assertThatThrownBy(() -> codec(false, NOW, "k2", key("k2")).decode(oldToken))
+                .isInstanceOf(BadCredentialsException.class);
+    }
+
+    @Test
+    void placeholderSecretRejected() {
+        WechatTokenProperties.Key placeholder = key("k1");
+        placeholder.setSecret("change-me-to-a-random-secret-of-32-chars");
+
+        assertThatThrownBy(() -> codec(false, NOW, "k1", placeholder)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> codec(false, NOW, "k1")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void revocation() {
+        WechatTokenService service = new WechatTokenService(codec(false, NOW, "k1", key("k1")), "WECHAT_TOKEN", 100);
+        String first = service.issue(authentication());
+        String second = service.issue(authentication());
+
+        service.revoke(service.authenticate(first));
+
+        assertThatThrownBy(() -> service.authenticate(first)).isInstanceOf(BadCredentialsException.class);
+        assertThat(service.authenticate(second).getUser().getOpenid()).isEqualTo("openid-1");
+
+        service.revokeUser("openid-1");
+
+        assertThatThrownBy(() -> service.authenticate(second)).isInstanceOf(BadCredentialsException.class);
+    }
+
+    private static WechatTokenCodec codec(boolean encrypt, Instant now, String activeKeyId, WechatTokenProperties.Key... keys) {
+        List<WechatTokenProperties.Key> keyList = Arrays.asList(keys);
+        return new WechatTokenCodec(keyList, activeKeyId, encrypt, Duration.ofHours(2), Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    private static WechatTokenProperties.Key key(String id) {
+        WechatTokenProperties.Key key = new WechatTokenProperties.Key();
+        key.setId(id);
+        key.setSecret("secret-of-" + id + "-0123456789abcdefghijklmnopqrstuvwxyz");
+        return key;
+    }
+
+    private static OAuth2AuthenticationToken authentication() {
+        WechatOAuth2User user = new WechatOAuth2User();
+        user.setOpenid("openid-1");
+        user.setNickname("张三");
+        user.setSex(1);
+        user.setPrivilege(Collections.singletonList("chinaunicom"));
+        return new OAuth2AuthenticationToken(user, AuthorityUtils.createAuthorityList("ROLE_USER"), "wechat");
+    }
+}
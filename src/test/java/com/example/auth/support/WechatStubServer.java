@@ -0,0 +1,334 @@
+package com.example.auth.support;
+
+import com.example.auth.security.oauth2.wechat.WechatOAuth2AuthorizationRequestResolver;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.reactivestreams.Publisher;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationResponse;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的微信开放平台桩服务，模拟 qrconnect、/sns/oauth2/access_token、/sns/oauth2/refresh_token、/sns/userinfo
+ * 和小程序的 /sns/jscode2session，和微信一样返回 text/plain 的json。基于reactor netty，模拟的延迟不占线程，可以承受上万并发连接。
+ * 可以按接口注入故障({@link #fault(String, Fault...)})，测试熔断、超时和重试
+ * <p>
+ * Created by berg on 2023/4/11.
+ */
+public class WechatStubServer implements AutoCloseable {
+
+    public static final String AUTHORIZE_PATH = "/connect/qrconnect";
+    public static final String TOKEN_PATH = "/sns/oauth2/access_token";
+    public static final String USER_INFO_PATH = "/sns/userinfo";
+    public static final String REFRESH_TOKEN_PATH = "/sns/oauth2/refresh_token";
+    public static final String JSCODE2SESSION_PATH = "/sns/jscode2session";
+
+    private static final String SYSTEM_ERROR = "{\"errcode\":-1,\"errmsg\":\"system error\"}";
+
+    private final DisposableServer server;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong tokenRequests = new AtomicLong();
+    private final AtomicLong userInfoRequests = new AtomicLong();
+    private final Map<String, Queue<Fault>> faults = new ConcurrentHashMap<>();
+    private final AtomicLong refreshTokenRequests = new AtomicLong();
+    private final AtomicLong sessionRequests = new AtomicLong();
+    private volatile Duration latency = Duration.ZERO;
+    private volatile double errorRate;
+
+    public WechatStubServer() {
+        this.server = HttpServer.create()
+                .host("127.0.0.1")
+                .port(0)
+                .route(routes -> routes
+                        .get(AUTHORIZE_PATH, this::authorize)
+                        .get(TOKEN_PATH, this::token)
+                        .get(USER_INFO_PATH, this::userInfo)
+                        .get(REFRESH_TOKEN_PATH, this::refreshToken)
+                        .get(JSCODE2SESSION_PATH, this::jscode2session))
+                .bindNow();
+    }
+
+    /**
+     * 每个接口响应之前的等待时间，模拟微信接口的耗时
+     *
+     * @param latency the latency
+     * @return this
+     */
+    public WechatStubServer latency(Duration latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * token和userinfo接口按该比例随机返回微信的错误码(errcode=-1，系统繁忙)
+     *
+     * @param errorRate 0-1
+     * @return this
+     */
+    public WechatStubServer errorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * 接下来的请求依次按给定的故障响应，用完之后恢复正常
+     *
+     * @param path   接口路径，例如 {@link #USER_INFO_PATH}
+     * @param faults the faults
+     * @return this
+     */
+    public WechatStubServer fault(String path, Fault... faults) {
+        this.faults.computeIfAbsent(path, key -> new ConcurrentLinkedQueue<>()).addAll(Arrays.asList(faults));
+        return this;
+    }
+
+    /**
+     * 收到的 /sns/oauth2/access_token 请求数
+     *
+     * @return the count
+     */
+    public long tokenRequests() {
+        return this.tokenRequests.get();
+    }
+
+    /**
+     * 收到的 /sns/userinfo 请求数
+     *
+     * @return the count
+     */
+    public long userInfoRequests() {
+        return this.userInfoRequests.get();
+    }
+
+    /**
+     * 收到的 /sns/oauth2/refresh_token 请求数
+     *
+     * @return the count
+     */
+    public long refreshTokenRequests() {
+        return this.refreshTokenRequests.get();
+    }
+
+    /**
+     * 收到的 /sns/jscode2session 请求数
+     *
+     * @return the count
+     */
+    public long sessionRequests() {
+        return this.sessionRequests.get();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + this.server.port();
+    }
+
+    /**
+     * 指向桩服务的微信客户端配置，和 application.yaml 中的 wechat 配置一致
+     *
+     * @return the client registration
+     */
+    public ClientRegistration clientRegistration() {
+        return ClientRegistration.withRegistrationId("wechat")
+                .clientId("wx-stub-appid")
+                .clientSecret("wx-stub-secret")
+                .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+                .redirectUri("{baseUrl}/login/oauth2/code/{registrationId}")
+                .scope("snsapi_login")
+                .authorizationUri(baseUrl() + AUTHORIZE_PATH)
+                .tokenUri(baseUrl() + TOKEN_PATH)
+                .userInfoUri(baseUrl() + USER_INFO_PATH)
+                .build();
+    }
+
+    /**
+     * 构造一次授权码换token的请求，相当于用户扫码之后微信回调带回来的code
+     *
+     * @param code the code
+     * @return the grant request
+     */
+    public OAuth2AuthorizationCodeGrantRequest authorizationCodeGrantRequest(String code) {
+        return authorizationCodeGrantRequest(code, "nonce");
+    }
+
+    /**
+     * @param exchangeNonce 浏览器保存的授权请求里的随机数，不同浏览器不同，state(redirect_url)都一样
+     */
+    public OAuth2AuthorizationCodeGrantRequest authorizationCodeGrantRequest(String code, String exchangeNonce) {
+        ClientRegistration clientRegistration = clientRegistration();
+        String redirectUri = "http://localhost/login/oauth2/code/wechat";
+        String state = "/wx/h5/userinfo";
+        OAuth2AuthorizationRequest authorizationRequest = OAuth2AuthorizationRequest.authorizationCode()
+                .clientId(clientRegistration.getClientId())
+                .authorizationUri(clientRegistration.getProviderDetails().getAuthorizationUri())
+                .redirectUri(redirectUri)
+                .scopes(clientRegistration.getScopes())
+                .state(state)
+                .attributes(attributes -> attributes.put(WechatOAuth2AuthorizationRequestResolver.EXCHANGE_NONCE_ATTRIBUTE, exchangeNonce))
+                .build();
+        OAuth2AuthorizationResponse authorizationResponse = OAuth2AuthorizationResponse.success(code)
+                .redirectUri(redirectUri)
+                .state(state)
+                .build();
+        return new OAuth2AuthorizationCodeGrantRequest(clientRegistration,
+                new OAuth2AuthorizationExchange(authorizationRequest, authorizationResponse));
+    }
+
+    private Publisher<Void> authorize(HttpServerRequest request, HttpServerResponse response) {
+        Map<String, String> query = query(request);
+        URI location = UriComponentsBuilder.fromUriString(query.get("redirect_uri"))
+                .queryParam("code", "code-" + this.sequence.incrementAndGet())
+                .queryParam("state", query.get("state"))
+                .encode()
+                .build()
+                .toUri();
+        return delay().then(response.status(HttpResponseStatus.FOUND)
+                .header("Location", location.toString())
+                .send());
+    }
+
+    private Publisher<Void> token(HttpServerRequest request, HttpServerResponse response) {
+        this.tokenRequests.incrementAndGet();
+        Map<String, String> query = query(request);
+        String openid = "openid-" + query.get("code");
+        return write(TOKEN_PATH, response, "{\"access_token\":\"token-" + query.get("code") + "\",\"expires_in\":7200,"
+                + "\"refresh_token\":\"refresh-" + query.get("code") + "\",\"openid\":\"" + openid + "\","
+                + "\"scope\":\"snsapi_login\",\"unionid\":\"union-" + openid + "\"}");
+    }
+
+    /**
+     * refresh_token 以 expired- 开头时返回42002(refresh_token超时)，否则返回新的access_token和原来的refresh_token
+     */
+    private Publisher<Void> refreshToken(HttpServerRequest request, HttpServerResponse response) {
+        long count = this.refreshTokenRequests.incrementAndGet();
+        String refreshToken = query(request).get("refresh_token");
+        if (refreshToken.startsWith("expired-")) {
+            return write(REFRESH_TOKEN_PATH, response, "{\"errcode\":42002,\"errmsg\":\"refresh_token timeout\"}");
+        }
+        return write(REFRESH_TOKEN_PATH, response, "{\"access_token\":\"refreshed-" + count + "\",\"expires_in\":7200,"
+                + "\"refresh_token\":\"" + refreshToken + "\",\"openid\":\"openid-" + refreshToken + "\","
+                + "\"scope\":\"snsapi_login\"}");
+    }
+
+    /**
+     * 小程序用code换session，js_code 以 invalid- 开头时返回40029(code无效)
+     */
+    private Publisher<Void> jscode2session(HttpServerRequest request, HttpServerResponse response) {
+        this.sessionRequests.incrementAndGet();
+        String code = query(request).get("js_code");
+        if (code.startsWith("invalid-")) {
+            return write(JSCODE2SESSION_PATH, response, "{\"errcode\":40029,\"errmsg\":\"invalid code\"}");
+        }
+        return write(JSCODE2SESSION_PATH, response, "{\"session_key\":\"key-" + code + "\",\"openid\":\"openid-" + code + "\","
+                + "\"unionid\":\"union-openid-" + code + "\"}");
+    }
+
+    private Publisher<Void> userInfo(HttpServerRequest request, HttpServerResponse response) {
+        this.userInfoRequests.incrementAndGet();
+        String openid = query(request).get("openid");
+        return write(USER_INFO_PATH, response, "{\"openid\":\"" + openid + "\",\"nickname\":\"stub\",\"sex\":1,\"province\":\"Guangdong\","
+                + "\"city\":\"Shenzhen\",\"country\":\"CN\",\"headimgurl\":\"https://thirdwx.qlogo.cn/mmopen/stub/0\","
+                + "\"privilege\":[],\"unionid\":\"union-" + openid + "\"}");
+    }
+
+    private Mono<Void> delay() {
+        Duration latency = this.latency;
+        return latency.isZero() ? Mono.empty() : Mono.delay(latency).then();
+    }
+
+    private static Map<String, String> query(HttpServerRequest request) {
+        Map<String, String> query = new HashMap<>();
+        UriComponentsBuilder.fromUriString(request.uri()).build().getQueryParams()
+                .forEach((key, values) -> query.put(key, UriUtils.decode(values.get(0), StandardCharsets.UTF_8)));
+        return query;
+    }
+
+    private Publisher<Void> write(String path, HttpServerResponse response, String body) {
+        Mono<Void> delay = delay();
+        Queue<Fault> queue = this.faults.get(path);
+        Fault fault = queue != null ? queue.poll() : null;
+        if (fault != null) {
+            if (fault.delay != null) {
+                delay = delay.then(Mono.delay(fault.delay)).then();
+            } else {
+                body = fault.body;
+            }
+        } else if (this.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < this.errorRate) {
+            // 微信出错时http状态码仍然是200
+            body = SYSTEM_ERROR;
+        }
+        // 微信接口的content-type是text/plain
+        return delay.then(response.header("Content-Type", "text/plain")
+                .sendString(Mono.just(body), StandardCharsets.UTF_8)
+                .then());
+    }
+
+    @Override
+    public void close() {
+        this.server.disposeNow();
+    }
+
+    /**
+     * 注入的故障
+     */
+    public static final class Fault {
+
+        private final Duration delay;
+        private final String body;
+
+        private Fault(Duration delay, String body) {
+            this.delay = delay;
+            this.body = body;
+        }
+
+        /**
+         * 返回 errcode=-1 系统繁忙
+         *
+         * @return the fault
+         */
+        public static Fault systemError() {
+            return new Fault(null, SYSTEM_ERROR);
+        }
+
+        /**
+         * 返回指定的errcode，比如45009(当天配额用尽)
+         *
+         * @param errcode the errcode
+         * @param errmsg  the errmsg
+         * @return the fault
+         */
+        public static Fault errcode(int errcode, String errmsg) {
+            return new Fault(null, "{\"errcode\":" + errcode + ",\"errmsg\":\"" + errmsg + "\"}");
+        }
+
+        /**
+         * 额外等待一段时间再正常返回
+         *
+         * @param delay the delay
+         * @return the fault
+         */
+        public static Fault delay(Duration delay) {
+            return new Fault(delay, null);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.auth.trace;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationResponse;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Created by berg on 2023/4/15.
+ */
+class WechatLoginTracerTest {
+
+    private static final String CALLBACK = "/login/oauth2/code/wechat";
+
+    @Test
+    void sampledLoginRecordsStages() throws Exception {
+        WechatLoginTracer tracer = tracer(1.0, 4);
+
+        login(tracer, "openid-1", null);
+        login(tracer, "openid-2", "40163");
+
+        List<WechatLoginTrace> traces = tracer.recent(null);
+        assertThat(traces).extracting(WechatLoginTrace::getOpenid).containsExactly(null, "openid-1");
+        WechatLoginTrace failed = traces.get(0);
+        assertThat(failed.getOutcome()).isEqualTo("error");
+        assertThat(failed.getRegistrationId()).isEqualTo("wechat");
+        assertThat(failed.getEvents()).singleElement()
+                .satisfies(event -> assertThat(event.getErrcode()).isEqualTo("40163"));
+        assertThat(traces.get(1).getOutcome()).isEqualTo("success");
+        assertThat(traces.get(1).getPath()).isEqualTo(CALLBACK);
+    }
+
+    @Test
+    void unsampledLoginRecordedOnlyForWatchedOpenid() throws Exception {
+        WechatLoginTracer tracer = tracer(0, 4);
+        tracer.watch("openid-watched", true);
+
+        login(tracer, "openid-1", null);
+        login(tracer, "openid-watched", null);
+
+        assertThat(tracer.recent(null)).extracting(WechatLoginTrace::getOpenid).containsExactly("openid-watched");
+    }
+
+    @Test
+    void ringBufferKeepsNewest() throws Exception {
+        WechatLoginTracer tracer = tracer(1.0, 3);
+
+        for (int i = 0; i < 5; i++) {
+            login(tracer, "openid-" + i, null);
+        }
+
+        assertThat(tracer.recent(null)).extracting(WechatLoginTrace::getOpenid)
+                .containsExactly("openid-4", "openid-3", "openid-2");
+        assertThat(tracer.recent("openid-3")).hasSize(1);
+    }
+
+    private static WechatLoginTracer tracer(double sampleRate, int capacity) {
+        WechatLoginTraceProperties properties = new WechatLoginTraceProperties();
+        properties.setSampleRate(sampleRate);
+        properties.setCapacity(capacity);
+        return new WechatLoginTracer(properties);
+    }
+
+    private static void login(WechatLoginTracer tracer, String openid, String errcode) throws Exception {
+        OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> tokenClient = tracer.decorateTokenClient(grantRequest -> {
+            if (errcode != null) {
+                throw new OAuth2AuthorizationException(new OAuth2Error(errcode, "code been used", null));
+            }
+            return OAuth2AccessTokenResponse.withToken("token")
+                    .tokenType(OAuth2AccessToken.TokenType.BEARER)
+                    .additionalParameters(Collections.singletonMap("openid", openid))
+                    .build();
+        });
+        OncePerRequestFilter filter = tracer.filter(new AntPathRequestMatcher("/login/oauth2/code/*"));
+        MockFilterChain chain = new MockFilterChain(new HttpServlet() {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) {
+                try {
+                    tokenClient.getTokenResponse(grantRequest());
+                } catch (OAuth2AuthorizationException ex) {
+                    response.setStatus(HttpServletResponse.SC_FOUND);
+                }
+            }
+        });
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", CALLBACK);
+        request.setServletPath(CALLBACK);
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+    }
+
+    private static OAuth2AuthorizationCodeGrantRequest grantRequest() {
+        ClientRegistration clientRegistration = ClientRegistration.withRegistrationId("wechat")
+                .clientId("wx-appid")
+                .clientSecret("secret")
+                .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+                .redirectUri("{baseUrl}/login/oauth2/code/{registrationId}")
+                .authorizationUri("https://open.weixin.qq.com/connect/qrconnect")
+                .tokenUri("https://api.weixin.qq.com/sns/oauth2/access_token")
+                .build();
+        OAuth2AuthorizationRequest authorizationRequest = OAuth2AuthorizationRequest.authorizationCode()
+                .clientId("wx-appid")
+                .authorizationUri("https://open.weixin.qq.com/connect/qrconnect")
+                .redirectUri("http://localhost" + CALLBACK)
+                .state("state")
+                .build();
+        OAuth2AuthorizationResponse authorizationResponse = OAuth2AuthorizationResponse.success("code")
+                .redirectUri("http://localhost" + CALLBACK)
+                .state("state")
+                .build();
+        return new OAuth2AuthorizationCodeGrantRequest(clientRegistration,
+                new OAuth2AuthorizationExchange(authorizationRequest, authorizationResponse));
+    }
+}